@@ -0,0 +1,118 @@
+package com.example.android.novuscarta;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that a {@link BookWindow} read through the provider holds the neighbors of a book in
+ * the order of the catalog.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookWindowTest {
+
+    /** Title of the test books, to find and delete them */
+    private static final String TITLE = "Book Window Test";
+
+    /** Number of test books, more than fit in a window */
+    private static final int BOOKS = BookWindow.NEIGHBORS * 3;
+
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRODUCT_QUANTITY };
+
+    private ContentResolver mResolver;
+
+    /** IDs of the test books, in the order of the catalog */
+    private long[] mIds = new long[BOOKS];
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        for (int i = 0; i < BOOKS; i++) {
+            ContentValues book = new ContentValues();
+            book.put(BookEntry.COLUMN_PRODUCT_NAME, TITLE);
+            book.put(BookEntry.COLUMN_PRODUCT_PRICE, 10);
+            book.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 1);
+            book.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+            book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i);
+            book.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "555");
+            mIds[i] = ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, book));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(BookEntry.CONTENT_URI, BookEntry.COLUMN_PRODUCT_NAME + "=?",
+                new String[] { TITLE });
+    }
+
+    @Test
+    public void windowPagesThroughNeighbors() {
+        int center = BOOKS / 2;
+        BookWindow window = readWindow(mIds[center]);
+
+        assertNotNull(window.find(mIds[center]));
+        assertEquals(mIds[center + 1], getId(window.neighbor(mIds[center], 1)));
+        assertEquals(mIds[center - 1], getId(window.neighbor(mIds[center], -1)));
+
+        // The ends of the window are as far as paging gets without reading it again
+        long first = mIds[center - BookWindow.NEIGHBORS];
+        long last = mIds[center + BookWindow.NEIGHBORS];
+        assertNull(window.neighbor(first, -1));
+        assertNull(window.neighbor(last, 1));
+        assertFalse(window.needsRefill(mIds[center], 1));
+        assertTrue(window.needsRefill(last, 1));
+        assertTrue(window.needsRefill(first, -1));
+    }
+
+    @Test
+    public void windowOfLastBook_doesNotNeedRefill() {
+        long last = mIds[BOOKS - 1];
+        BookWindow window = readWindow(last);
+        assertNull(window.neighbor(last, 1));
+        assertFalse(window.needsRefill(last, 1));
+        assertTrue(window.needsRefill(mIds[BOOKS - 1 - BookWindow.NEIGHBORS], -1));
+    }
+
+    @Test
+    public void windowOfDeletedBook_hasItsNeighbors() {
+        int center = BOOKS / 2;
+        assertEquals(1, mResolver.delete(
+                ContentUris.withAppendedId(BookEntry.CONTENT_URI, mIds[center]), null, null));
+        BookWindow window = readWindow(mIds[center]);
+
+        assertNull(window.find(mIds[center]));
+        assertEquals(mIds[center + 1], getId(window.neighbor(mIds[center], 1)));
+        assertEquals(mIds[center - 1], getId(window.neighbor(mIds[center], -1)));
+    }
+
+    private BookWindow readWindow(long centerId) {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, PROJECTION, BookWindow.SELECTION,
+                BookWindow.selectionArgs(centerId), BookWindow.SORT_ORDER);
+        assertNotNull(cursor);
+        try {
+            return BookWindow.fromCursor(cursor, centerId);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getId(ContentValues values) {
+        assertNotNull(values);
+        return values.getAsLong(BookEntry._ID);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.android.novuscarta;
+
+import android.content.ContentValues;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Test how the editor shows a book it preloaded from the list once the book is loaded, when a
+ * sale landed in between and the user may have touched the fields in the meantime.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EditorActivityTest {
+
+    @Test
+    public void mergePreloaded_showsSaleInFieldsLeftAlone() {
+        // Touching the quantity without changing it is not an edit
+        ContentValues shown = EditorActivity.mergePreloaded(preloaded(), entered("Mort", 5),
+                loadedAfterSale());
+
+        assertEquals(4, (int) shown.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY));
+        assertEquals("Mort", shown.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+    }
+
+    @Test
+    public void mergePreloaded_keepsSaleUnderEditedQuantity() {
+        // The user counted three more copies on the shelf than the list showed
+        ContentValues shown = EditorActivity.mergePreloaded(preloaded(), entered("Mort", 8),
+                loadedAfterSale());
+
+        assertEquals(7, (int) shown.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY));
+    }
+
+    @Test
+    public void mergePreloaded_keepsEditedTitleAndUnparsedFields() {
+        ContentValues entered = entered("Mort (2nd edition)", 5);
+        // The quantity field was cleared to type a new one
+        entered.remove(BookEntry.COLUMN_PRODUCT_QUANTITY);
+        ContentValues shown = EditorActivity.mergePreloaded(preloaded(), entered,
+                loadedAfterSale());
+
+        assertEquals("Mort (2nd edition)", shown.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+        assertFalse(shown.containsKey(BookEntry.COLUMN_PRODUCT_QUANTITY));
+        assertEquals("Gollancz", shown.getAsString(BookEntry.COLUMN_SUPPLIER_NAME));
+    }
+
+    /** The values the list handed over when the book was opened, before the sale */
+    private static ContentValues preloaded() {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry._ID, 1L);
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Mort");
+        values.put(BookEntry.COLUMN_PRODUCT_PRICE, 899);
+        values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 5);
+        return values;
+    }
+
+    /** The book as the loader reads it once a copy was sold, with its columns as text */
+    private static ContentValues loadedAfterSale() {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry._ID, "1");
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Mort");
+        values.put(BookEntry.COLUMN_PRODUCT_PRICE, "899");
+        values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, "4");
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Gollancz");
+        values.put(BookEntry.COLUMN_VERSION, "2");
+        return values;
+    }
+
+    private static ContentValues entered(String title, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, title);
+        values.put(BookEntry.COLUMN_PRODUCT_PRICE, 899);
+        values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        return values;
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.novuscarta;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.ImageView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that a trim event from the system frees the memory held by the app's caches. The trim
+ * is dispatched through the application, like the system does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemoryTrimTest {
+
+    /** Number of different thumbnails loaded into the cache */
+    private static final int THUMBNAILS = 12;
+
+    private Context mContext;
+    private Application mApplication;
+    private CoverLoader mCoverLoader;
+    private File mCover;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mApplication = (Application) mContext.getApplicationContext();
+        mCoverLoader = CoverLoader.getInstance(mContext);
+        mApplication.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        // A cover large enough to be downsampled for every thumbnail size
+        mCover = new File(mContext.getCacheDir(), "memory-trim-test.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.DKGRAY);
+        FileOutputStream out = new FileOutputStream(mCover);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+    }
+
+    @After
+    public void tearDown() {
+        mCover.delete();
+    }
+
+    @Test
+    public void trimMemory_releasesThumbnails() throws Exception {
+        loadThumbnails();
+        int cachedBytes = mCoverLoader.getMemoryCacheBytes();
+        assertTrue("No thumbnails cached", cachedBytes > 0);
+        long before = usedMemory();
+
+        mApplication.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertEquals(0, mCoverLoader.getMemoryCacheBytes());
+        long freed = before - usedMemory();
+        assertTrue("Freed " + freed + " of " + cachedBytes + " bytes", freed >= cachedBytes / 2);
+    }
+
+    @Test
+    public void trimMemoryInBackground_halvesThumbnails() throws Exception {
+        loadThumbnails();
+        int cachedBytes = mCoverLoader.getMemoryCacheBytes();
+
+        mApplication.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+
+        assertTrue(mCoverLoader.getMemoryCacheBytes() <= Math.max(cachedBytes / 2, 1));
+    }
+
+    /**
+     * Load thumbnails of different sizes into views, wait until they are all decoded, and
+     * drop the views, so only the cache keeps the bitmaps.
+     */
+    private void loadThumbnails() throws InterruptedException {
+        final List<ImageView> views = new ArrayList<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < THUMBNAILS; i++) {
+                    ImageView view = new ImageView(mContext);
+                    mCoverLoader.load(view, mCover.getPath(), 64 + 16 * i,
+                            R.drawable.outline_book_white_36);
+                    views.add(view);
+                }
+            }
+        });
+
+        long deadline = SystemClock.uptimeMillis() + 10000;
+        while (pending(views) && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (ImageView view : views) {
+                    view.setImageDrawable(null);
+                }
+                views.clear();
+            }
+        });
+    }
+
+    private static boolean pending(final List<ImageView> views) {
+        final boolean[] pending = new boolean[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (ImageView view : views) {
+                    pending[0] |= view.getTag(R.id.cover_request) != null;
+                }
+            }
+        });
+        return pending[0];
+    }
+
+    /**
+     * Returns the bytes allocated on the Java and native heaps after a full collection.
+     * Bitmap pixels live on either one, depending on the Android version.
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+                + Debug.getNativeHeapAllocatedSize();
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+import com.example.android.novuscarta.sync.SyncEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that restoring a backup brings back the books as they were, and that nothing that
+ * remembers the replaced database (queued sales, sync checkpoints, cover files) carries over,
+ * and that taking a backup does not hold up the till.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseBackupTest {
+
+    private static final String LOG_TAG = DatabaseBackupTest.class.getSimpleName();
+
+    /** Title of the test books, to find and delete them */
+    private static final String TITLE = "Database Backup Test";
+
+    /** Number of books in the database the writers have to get past a backup of */
+    private static final int BACKUP_BOOKS = 5000;
+
+    /**
+     * Longest a write may wait while a backup runs. Well above a write on a slow emulator,
+     * well below copying thousands of books.
+     */
+    private static final long MAX_BLOCKED_MILLIS = 500;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private SharedPreferences mSyncPrefs;
+    private File mBackup;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mResolver = mContext.getContentResolver();
+        mSyncPrefs = mContext.getSharedPreferences(SyncEngine.PREFS_NAME, Context.MODE_PRIVATE);
+        mBackup = new File(mContext.getCacheDir(), "database-backup-test.db.gz");
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(BookEntry.CONTENT_URI, BookEntry.COLUMN_PRODUCT_NAME + "=?",
+                new String[] { TITLE });
+        mSyncPrefs.edit().clear().commit();
+        mBackup.delete();
+    }
+
+    @Test
+    public void restore_bringsBackBooksAndForgetsTheReplacedDatabase() throws Exception {
+        // A book whose cover file will be gone by the time the backup is restored
+        Uri kept = insertBook(3);
+        long keptId = ContentUris.parseId(kept);
+        File keptCover = writeCover(kept);
+        DatabaseBackup.backup(mContext, Uri.fromFile(mBackup), true);
+
+        // After the backup: a new book with a cover, a queued sale, and a sync far ahead
+        Uri added = insertBook(1);
+        File addedCover = writeCover(added);
+        assertTrue(keptCover.delete());
+        SaleQueue queue = SaleQueue.getInstance(mContext);
+        queue.record(keptId, LocationEntry.DEFAULT_LOCATION_ID, -1, null);
+        mSyncPrefs.edit()
+                .putLong(SyncEngine.KEY_PUSHED_SEQ, Long.MAX_VALUE / 2)
+                .putLong(SyncEngine.KEY_PULLED_VERSION, 42)
+                .commit();
+
+        DatabaseBackup.restore(mContext, Uri.fromFile(mBackup));
+
+        Cursor cursor = mResolver.query(kept, new String[] {
+                BookEntry.COLUMN_PRODUCT_QUANTITY, BookEntry.COLUMN_COVER_PATH },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getInt(0));
+            assertTrue(cursor.isNull(1));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(0, queue.getPendingDelta(keptId, LocationEntry.DEFAULT_LOCATION_ID));
+        cursor = mResolver.query(added, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        assertFalse(addedCover.exists());
+
+        // The checkpoints start from the restored change log, so the next change is pushed
+        assertEquals(0, mSyncPrefs.getLong(SyncEngine.KEY_PULLED_VERSION, 0));
+        long pushedSeq = mSyncPrefs.getLong(SyncEngine.KEY_PUSHED_SEQ, 0);
+        assertEquals(getLastSeq(), pushedSeq);
+        insertBook(1);
+        assertTrue(getLastSeq() > pushedSeq);
+    }
+
+    @Test
+    public void backup_doesNotBlockWriters() throws Exception {
+        ContentValues[] books = new ContentValues[BACKUP_BOOKS];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = newBook(1);
+        }
+        assertEquals(books.length, mResolver.bulkInsert(BookEntry.CONTENT_URI, books));
+        final Uri book = insertBook(1);
+
+        // Sell from the book for as long as the backup runs, timing every write
+        final AtomicBoolean backingUp = new AtomicBoolean(true);
+        final AtomicLong maxBlocked = new AtomicLong();
+        Thread seller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                int quantity = 1;
+                while (backingUp.get()) {
+                    values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, quantity++);
+                    long start = SystemClock.elapsedRealtime();
+                    mResolver.update(book, values, null, null);
+                    long blocked = SystemClock.elapsedRealtime() - start;
+                    if (blocked > maxBlocked.get()) {
+                        maxBlocked.set(blocked);
+                    }
+                }
+            }
+        });
+        seller.start();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            DatabaseBackup.backup(mContext, Uri.fromFile(mBackup), false);
+        } finally {
+            backingUp.set(false);
+            seller.join();
+        }
+        long backupMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(LOG_TAG, "Backup took " + backupMillis + " ms, writers blocked for at most "
+                + maxBlocked.get() + " ms");
+        assertTrue("Writers blocked for " + maxBlocked.get() + " ms",
+                maxBlocked.get() < MAX_BLOCKED_MILLIS);
+    }
+
+    private long getLastSeq() {
+        return DatabaseUtils.longForQuery(
+                BookDbHelper.getInstance(mContext).getReadableDatabase(),
+                "SELECT MAX(" + ChangeLogEntry.COLUMN_SEQ + ") FROM "
+                        + ChangeLogEntry.TABLE_NAME, null);
+    }
+
+    private Uri insertBook(int quantity) {
+        Uri book = mResolver.insert(BookEntry.CONTENT_URI, newBook(quantity));
+        assertNotNull(book);
+        return book;
+    }
+
+    private ContentValues newBook(int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, TITLE);
+        values.put(BookEntry.COLUMN_PRODUCT_PRICE, 10);
+        values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + System.nanoTime());
+        values.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "555");
+        return values;
+    }
+
+    private File writeCover(Uri book) throws Exception {
+        File cover = CoverStore.getCoverFile(mContext, ContentUris.parseId(book));
+        FileOutputStream out = new FileOutputStream(cover);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_COVER_PATH, cover.getAbsolutePath());
+        assertEquals(1, mResolver.update(book, values, null, null));
+        return cover;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link MainThreadMonitor} against the real provider. Runs in the debug build,
+ * where the monitor is enabled.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadMonitorTest {
+
+    private ContentResolver mResolver;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        // Opened here, so opening it is not what the tests see on the main thread
+        mDb = BookDbHelper.getInstance(InstrumentationRegistry.getTargetContext())
+                .getReadableDatabase();
+        MainThreadMonitor.setStrict(false);
+        MainThreadMonitor.clear();
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadMonitor.setStrict(false);
+        MainThreadMonitor.clear();
+    }
+
+    @Test
+    public void providerCallOnMainThreadIsRecorded() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                queryBooks();
+            }
+        });
+
+        List<MainThreadMonitor.Violation> violations = MainThreadMonitor.getViolations();
+        assertEquals(1, violations.size());
+        MainThreadMonitor.Violation violation = violations.get(0);
+        assertEquals("query", violation.operation);
+        assertEquals(BookEntry.CONTENT_URI.toString(), violation.target);
+        assertTrue(violation.durationMillis >= 0);
+        assertNotNull(violation.stack);
+    }
+
+    @Test
+    public void providerCallOnWorkerThreadIsNotRecorded() {
+        // The instrumentation runs the tests on a thread of its own
+        queryBooks();
+
+        assertTrue(MainThreadMonitor.getViolations().isEmpty());
+    }
+
+    @Test
+    public void strictModeFailsOnViolation() {
+        MainThreadMonitor.setStrict(true);
+        final RuntimeException[] thrown = new RuntimeException[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queryBooks();
+                } catch (IllegalStateException e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+
+        assertNotNull(thrown[0]);
+    }
+
+    @Test
+    public void strictModeFailsOnRawQuery() {
+        MainThreadMonitor.setStrict(true);
+        final RuntimeException[] thrown = new RuntimeException[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rawQueryBooks();
+                } catch (IllegalStateException e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+
+        assertNotNull(thrown[0]);
+        assertTrue(MainThreadMonitor.getViolations().isEmpty());
+    }
+
+    @Test
+    public void rawQueryOnMainThreadIsRecorded() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                rawQueryBooks();
+            }
+        });
+
+        List<MainThreadMonitor.Violation> violations = MainThreadMonitor.getViolations();
+        assertEquals(1, violations.size());
+        assertEquals("sql", violations.get(0).operation);
+    }
+
+    private void rawQueryBooks() {
+        Cursor cursor = mDb.rawQuery("SELECT " + BookEntry._ID + " FROM "
+                + BookEntry.TABLE_NAME, null);
+        cursor.close();
+    }
+
+    private void queryBooks() {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI,
+                new String[] { BookEntry._ID }, null, null, null);
+        assertNotNull(cursor);
+        cursor.close();
+    }
+}
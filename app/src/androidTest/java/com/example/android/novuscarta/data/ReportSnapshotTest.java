@@ -0,0 +1,133 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that a {@link ReportSnapshot} reads the books as of the moment it was opened, while
+ * writes go on through the provider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReportSnapshotTest {
+
+    /** Title of the test books, to find and delete them */
+    private static final String TITLE = "Report Snapshot Test";
+
+    /** Number of test books, enough for a few chunks */
+    private static final int BOOKS = ReportSnapshot.CHUNK_ROWS * 2 + 10;
+
+    private static final String SELECTION = BookEntry.COLUMN_PRODUCT_NAME + "=?";
+    private static final String[] SELECTION_ARGS = { TITLE };
+
+    private ContentResolver mResolver;
+    private BookDbHelper mDbHelper;
+    private Uri mFirstBook;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mResolver = context.getContentResolver();
+        mDbHelper = BookDbHelper.getInstance(context);
+        ContentValues[] books = new ContentValues[BOOKS];
+        for (int i = 0; i < BOOKS; i++) {
+            books[i] = new ContentValues();
+            books[i].put(BookEntry.COLUMN_PRODUCT_NAME, TITLE);
+            books[i].put(BookEntry.COLUMN_PRODUCT_PRICE, 10);
+            books[i].put(BookEntry.COLUMN_PRODUCT_QUANTITY, 1);
+            books[i].put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_NUMBER, "555");
+        }
+        mResolver.bulkInsert(BookEntry.CONTENT_URI, books);
+
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[] { BookEntry._ID },
+                SELECTION, SELECTION_ARGS, BookEntry._ID);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            mFirstBook = ContentUris.withAppendedId(BookEntry.CONTENT_URI, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(BookEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void reportDoesNotSeeLaterWrites() {
+        Cursor report = new ReportSnapshot(mDbHelper).queryBooks(new String[] { BookEntry._ID,
+                BookEntry.COLUMN_PRODUCT_QUANTITY }, SELECTION, SELECTION_ARGS, null);
+        try {
+            // Sell the first book and add another one after the report has read its first
+            // chunk, and before it reads the others
+            assertTrue(report.moveToFirst());
+            ContentValues sold = new ContentValues();
+            sold.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 0);
+            assertEquals(1, mResolver.update(mFirstBook, sold, null, null));
+            ContentValues book = new ContentValues();
+            book.put(BookEntry.COLUMN_PRODUCT_NAME, TITLE);
+            book.put(BookEntry.COLUMN_PRODUCT_PRICE, 10);
+            book.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 1);
+            book.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+            book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Late supplier");
+            book.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "555");
+            assertNotNull(mResolver.insert(BookEntry.CONTENT_URI, book));
+
+            assertEquals(BOOKS, report.getCount());
+            int rows = 0;
+            long lastId = 0;
+            do {
+                assertTrue(report.getLong(0) > lastId);
+                lastId = report.getLong(0);
+                assertEquals(1, report.getInt(1));
+                rows++;
+            } while (report.moveToNext());
+            assertEquals(BOOKS, rows);
+
+            // Going back reads the first chunk again, still as of the snapshot
+            assertTrue(report.moveToFirst());
+            assertEquals(ContentUris.parseId(mFirstBook), report.getLong(0));
+            assertEquals(1, report.getInt(1));
+        } finally {
+            report.close();
+        }
+
+        // The provider sees the writes, and a new report does too
+        Cursor current = mResolver.query(BookEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(BookEntry.PARAM_REPORT, "true")
+                        .build(),
+                new String[] { BookEntry._ID }, SELECTION, SELECTION_ARGS, null);
+        assertNotNull(current);
+        try {
+            assertEquals(BOOKS + 1, current.getCount());
+        } finally {
+            current.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reportWithSortOrderIsRejected() {
+        mResolver.query(BookEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(BookEntry.PARAM_REPORT, "true")
+                        .build(),
+                new String[] { BookEntry._ID }, null, null, BookEntry.COLUMN_PRODUCT_NAME);
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that the changes of a {@link SaleQueue} survive the process dying, and that a batch is
+ * applied exactly once however often it is sent. Each test runs a queue on a directory of its
+ * own, standing in for the queue of the next process.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleQueueTest {
+
+    /** Title of the test book, to find and delete it */
+    private static final String TITLE = "Sale Queue Test";
+
+    /** How long to wait for a queue to apply its batches */
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private static final long LOCATION = LocationEntry.DEFAULT_LOCATION_ID;
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private File mDir;
+    private Uri mBook;
+    private long mBookId;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mResolver = mContext.getContentResolver();
+        mDir = new File(mContext.getCacheDir(), "sale-queue-test");
+        deleteDir();
+        assertTrue(mDir.mkdirs());
+
+        ContentValues book = new ContentValues();
+        book.put(BookEntry.COLUMN_PRODUCT_NAME, TITLE);
+        book.put(BookEntry.COLUMN_PRODUCT_PRICE, 10);
+        book.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 5);
+        book.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+        book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier");
+        book.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "555");
+        mBook = mResolver.insert(BookEntry.CONTENT_URI, book);
+        assertNotNull(mBook);
+        mBookId = Long.parseLong(mBook.getLastPathSegment());
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(BookEntry.CONTENT_URI, BookEntry.COLUMN_PRODUCT_NAME + "=?",
+                new String[] { TITLE });
+        deleteDir();
+    }
+
+    @Test
+    public void readBatch_skipsTornAndCorruptRecords() throws Exception {
+        String sold = SaleQueue.formatRecord(1, 1, -1);
+        String delivered = SaleQueue.formatRecord(2, 1, 10);
+        // A bit flipped in the change, which the checksum no longer matches
+        String corrupt = SaleQueue.formatRecord(3, 1, -2).replace(" -2 ", " -3 ");
+        // The crash cut off a record right where what is left still reads as a change
+        String torn = SaleQueue.formatRecord(1, 1, -10).substring(0, "1 1 -1".length());
+        File batch = writeFile("batch-" + UUID.randomUUID(), sold + delivered + corrupt + torn);
+
+        Map<String, Integer> deltas = SaleQueue.readBatch(batch);
+        assertNotNull(deltas);
+        assertEquals(2, deltas.size());
+        assertEquals(Integer.valueOf(-1), deltas.get("1:1"));
+        assertEquals(Integer.valueOf(10), deltas.get("2:1"));
+    }
+
+    @Test
+    public void recordedChanges_areAppliedAndNoLongerPending() throws Exception {
+        SaleQueue queue = new SaleQueue(mContext, mDir);
+        queue.record(mBookId, LOCATION, -1, null);
+        // Changes are acknowledged once they are in the journal
+        awaitRecorded(queue, -1);
+
+        awaitApplied(queue);
+        assertEquals(3, getQuantity());
+    }
+
+    @Test
+    public void appliedChanges_stayPendingForListsLoadedBefore() throws Exception {
+        SaleQueue queue = new SaleQueue(mContext, mDir);
+        long loaded = queue.getAppliedGeneration();
+        awaitRecorded(queue, -1);
+        awaitApplied(queue);
+
+        // A list loaded before the sale was applied doesn't have it, one loaded after does
+        long applied = queue.getAppliedGeneration();
+        assertTrue(applied > loaded);
+        assertEquals(-1, queue.getPendingDelta(mBookId, LOCATION, loaded));
+        assertEquals(0, queue.getPendingDelta(mBookId, LOCATION, applied));
+
+        // Only the batches up to the given generation are forgotten
+        queue.forgetApplied(loaded);
+        assertEquals(-1, queue.getPendingDelta(mBookId, LOCATION, loaded));
+        queue.forgetApplied(applied);
+        assertEquals(0, queue.getPendingDelta(mBookId, LOCATION, loaded));
+    }
+
+    @Test
+    public void journalOfDeadProcess_isAppliedOnNextStart() throws Exception {
+        // The process died with two sales in the journal and one more half written
+        writeFile("journal", SaleQueue.formatRecord(mBookId, LOCATION, -1)
+                + SaleQueue.formatRecord(mBookId, LOCATION, -1)
+                + SaleQueue.formatRecord(mBookId, LOCATION, -1).substring(0, 4));
+
+        SaleQueue queue = new SaleQueue(mContext, mDir);
+        awaitApplied(queue);
+        assertEquals(3, getQuantity());
+    }
+
+    @Test
+    public void batchSentAgain_isAppliedOnce() throws Exception {
+        // The process died after the provider applied the batch but before it was deleted
+        String name = "batch-" + UUID.randomUUID();
+        String records = SaleQueue.formatRecord(mBookId, LOCATION, -2);
+        writeFile(name, records);
+        awaitApplied(new SaleQueue(mContext, mDir));
+        assertEquals(3, getQuantity());
+
+        writeFile(name, records);
+        awaitApplied(new SaleQueue(mContext, mDir));
+        assertEquals(3, getQuantity());
+
+        // The provider itself tells a batch it has seen before
+        Bundle extras = new Bundle();
+        extras.putLongArray(BookContract.EXTRA_BOOK_IDS, new long[] { mBookId });
+        extras.putLongArray(BookContract.EXTRA_LOCATION_IDS, new long[] { LOCATION });
+        extras.putIntArray(BookContract.EXTRA_DELTAS, new int[] { -1 });
+        String batchId = UUID.randomUUID().toString();
+        assertTrue(applyStockDeltas(batchId, extras));
+        assertFalse(applyStockDeltas(batchId, extras));
+        assertEquals(2, getQuantity());
+    }
+
+    @Test
+    public void unreadableBatch_isSetAsideAndLaterBatchesApplied() throws Exception {
+        // A batch that can't be read, here because it is a directory
+        File unreadable = new File(mDir, "batch-" + UUID.randomUUID());
+        assertTrue(unreadable.mkdir());
+        writeFile("batch-" + UUID.randomUUID(), SaleQueue.formatRecord(mBookId, LOCATION, -2));
+
+        SaleQueue queue = new SaleQueue(mContext, mDir);
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (getQuantity() != 3) {
+            assertTrue("Batch not applied in time", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(50);
+        }
+        assertFalse(unreadable.exists());
+        assertTrue(new File(mDir, "unreadable-" + unreadable.getName()).isDirectory());
+        assertEquals(0, queue.getPendingDelta(mBookId, LOCATION));
+    }
+
+    private boolean applyStockDeltas(String batchId, Bundle extras) {
+        Bundle result = mResolver.call(BookContract.BASE_CONTENT_URI,
+                BookContract.METHOD_APPLY_STOCK_DELTAS, batchId, extras);
+        assertNotNull(result);
+        return result.getBoolean(BookContract.EXTRA_APPLIED);
+    }
+
+    /**
+     * Record a change and wait until the queue acknowledges it.
+     */
+    private void awaitRecorded(SaleQueue queue, int delta) throws InterruptedException {
+        final CountDownLatch recorded = new CountDownLatch(1);
+        queue.record(mBookId, LOCATION, delta, new SaleQueue.OnRecordedListener() {
+            @Override
+            public void onRecorded() {
+                recorded.countDown();
+            }
+        });
+        assertTrue("Change not recorded in time",
+                recorded.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Wait until the queue has applied all its changes and deleted its journal and batches.
+     */
+    private void awaitApplied(SaleQueue queue) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (queue.getPendingDelta(mBookId, LOCATION) != 0 || mDir.list().length > 0) {
+            assertTrue("Changes not applied in time", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(50);
+        }
+    }
+
+    private int getQuantity() {
+        Cursor cursor = mResolver.query(mBook,
+                new String[] { BookEntry.COLUMN_PRODUCT_QUANTITY }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private File writeFile(String name, String text) throws Exception {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                // Also an unreadable batch set aside, which is an empty directory
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+}
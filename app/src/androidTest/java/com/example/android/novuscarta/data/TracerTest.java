@@ -0,0 +1,92 @@
+package com.example.android.novuscarta.data;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link Tracer} and its Chrome trace export.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TracerTest {
+
+    @Before
+    public void setUp() {
+        Tracer.setRecording(true);
+    }
+
+    @After
+    public void tearDown() {
+        Tracer.setRecording(false);
+        Tracer.clear();
+    }
+
+    @Test
+    public void nothingIsRecordedWhenNotRecording() {
+        Tracer.setRecording(false);
+        Tracer.Span span = Tracer.beginFlow("tap", null);
+        assertNull(span);
+        assertEquals(0, Tracer.getCurrentFlows().length);
+        Tracer.end(span);
+        assertEquals(0, Tracer.getSpanCount());
+    }
+
+    @Test
+    public void flowFollowsWorkToOtherThreads() throws Exception {
+        Tracer.Span tap = Tracer.beginFlow("tap", null);
+        final long[] flows = Tracer.getCurrentFlows();
+        Tracer.end(tap);
+        assertEquals(1, flows.length);
+        assertEquals(0, Tracer.getCurrentFlows().length);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Tracer.Span flush = Tracer.beginFlows("flush", null, flows);
+                Tracer.Span write = Tracer.begin("write", "books");
+                Tracer.handOffFlows();
+                Tracer.end(write);
+                Tracer.end(flush);
+            }
+        });
+        writer.start();
+        writer.join();
+
+        Tracer.Span load = Tracer.beginHandedOffFlows("load", null);
+        assertArrayEquals(flows, Tracer.getCurrentFlows());
+        Tracer.end(load);
+        assertEquals(4, Tracer.getSpanCount());
+
+        StringWriter out = new StringWriter();
+        Tracer.writeChromeTrace(out);
+        JSONArray events = new JSONObject(out.toString()).getJSONArray("traceEvents");
+        List<String> spans = new ArrayList<>();
+        List<String> flowPhases = new ArrayList<>();
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            String phase = event.getString("ph");
+            if (phase.equals("X")) {
+                spans.add(event.getString("name"));
+                assertEquals(String.valueOf(flows[0]),
+                        event.getJSONObject("args").getString("flows").replaceAll("[\\[\\]]", ""));
+            } else if (!phase.equals("M")) {
+                assertEquals(flows[0], event.getLong("id"));
+                flowPhases.add(phase);
+            }
+        }
+        assertEquals("[tap, flush, write, load]", spans.toString());
+        // The write inherits the flow on its thread, so it is not a step of its own
+        assertEquals("[s, t, f]", flowPhases.toString());
+    }
+}
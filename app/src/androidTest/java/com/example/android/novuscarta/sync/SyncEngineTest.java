@@ -0,0 +1,303 @@
+package com.example.android.novuscarta.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+import com.example.android.novuscarta.data.BookDbHelper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end test of the {@link SyncEngine} against a local mock HTTP server.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SyncEngineTest {
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private MockWebServer mServer;
+    private SyncEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mResolver = mContext.getContentResolver();
+
+        // Start from an empty catalog, an empty change log and no checkpoints
+        mResolver.delete(BookEntry.CONTENT_URI, null, null);
+        BookDbHelper.getInstance(mContext).getWritableDatabase()
+                .delete(ChangeLogEntry.TABLE_NAME, null, null);
+        mContext.getSharedPreferences(SyncEngine.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+
+        mServer = new MockWebServer();
+        mServer.start();
+        SyncTransport transport = new SyncTransport(mServer.url("/").toString(), 3, 10, 50);
+        mEngine = new SyncEngine(mContext, transport, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void push_sendsOnlyChangedBooksOnce() throws Exception {
+        Uri kept = insertBook("Good Omens", 3);
+        Uri edited = insertBook("Small Gods", 1);
+        Uri deleted = insertBook("Mort", 2);
+        String deletedUuid = getUuid(deleted);
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_PRICE, 1299);
+        mResolver.update(edited, values, null, null);
+        mResolver.delete(deleted, null, null);
+        setQuantity(kept, 4);
+
+        // Six log entries in batches of two make three requests. Each batch collapses to one
+        // delta per book, carrying the state the book is in when the batch is read. The deleted
+        // book is only sent by the batch with its delete, and the stock change stays local.
+        for (int i = 0; i < 3; i++) {
+            mServer.enqueue(new MockResponse().setResponseCode(200));
+        }
+        assertEquals(4, mEngine.push());
+        assertEquals(3, mServer.getRequestCount());
+
+        Map<String, JSONObject> sent = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = mServer.takeRequest();
+            assertEquals("/push", request.getPath());
+            assertEquals("gzip", request.getHeader("Content-Encoding"));
+            JSONArray changes = gunzip(request.getBody()).getJSONArray("changes");
+            for (int j = 0; j < changes.length(); j++) {
+                JSONObject change = changes.getJSONObject(j);
+                assertFalse(change.has(BookEntry._ID));
+                sent.put(change.getString(BookEntry.COLUMN_UUID), change);
+            }
+        }
+        assertEquals(3, sent.size());
+        assertEquals(SyncEngine.OP_UPSERT, sent.get(getUuid(kept)).getString("op"));
+        assertEquals(1299, sent.get(getUuid(edited)).getInt(BookEntry.COLUMN_PRODUCT_PRICE));
+        assertFalse(sent.get(getUuid(edited)).has(BookEntry.COLUMN_PRODUCT_QUANTITY));
+        assertEquals(SyncEngine.OP_DELETE, sent.get(deletedUuid).getString("op"));
+
+        // Nothing but stock changed since the checkpoint, so nothing travels
+        setQuantity(kept, 2);
+        assertEquals(0, mEngine.push());
+        assertEquals(0, mEngine.push());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void push_retriesServerErrorsAndResumesFromCheckpoint() throws Exception {
+        insertBook("Good Omens", 3);
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setResponseCode(200));
+
+        assertEquals(1, mEngine.push());
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void pull_appliesRemoteDeltas() throws Exception {
+        Uri local = insertBook("Good Omens", 3);
+
+        JSONObject change = new JSONObject();
+        change.put("op", SyncEngine.OP_UPSERT);
+        change.put(BookEntry.COLUMN_UUID, getUuid(local));
+        change.put(BookEntry.COLUMN_PRODUCT_PRICE, 999);
+        change.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 50);
+        enqueuePull(new JSONArray().put(change));
+
+        assertEquals(1, mEngine.pull());
+        assertEquals("/pull?store=", mServer.takeRequest().getPath().substring(0, 12));
+
+        Cursor cursor = mResolver.query(local, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(999,
+                    cursor.getInt(cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_PRICE)));
+            assertEquals(3,
+                    cursor.getInt(cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_QUANTITY)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void pull_matchesBooksByUuidNotById() throws Exception {
+        // The other store has a different book under the same local ID as ours
+        Uri local = insertBook("Good Omens", 3);
+        long id = ContentUris.parseId(local);
+        String remoteUuid = "0123456789abcdef0123456789abcdef";
+
+        JSONObject upsert = new JSONObject();
+        upsert.put("op", SyncEngine.OP_UPSERT);
+        upsert.put(BookEntry._ID, id);
+        upsert.put(BookEntry.COLUMN_UUID, remoteUuid);
+        upsert.put(BookEntry.COLUMN_PRODUCT_NAME, "Guards! Guards!");
+        upsert.put(BookEntry.COLUMN_PRODUCT_PRICE, 899);
+        upsert.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 7);
+        upsert.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+        upsert.put(BookEntry.COLUMN_SUPPLIER_NAME, "Gollancz");
+        upsert.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "02073939830");
+        JSONObject delete = new JSONObject();
+        delete.put("op", SyncEngine.OP_DELETE);
+        delete.put(BookEntry._ID, id);
+        delete.put(BookEntry.COLUMN_UUID, "fedcba9876543210fedcba9876543210");
+        enqueuePull(new JSONArray().put(upsert).put(delete));
+
+        assertEquals(2, mEngine.pull());
+
+        // Our book is untouched, and theirs is added under an ID of its own, without stock
+        Cursor cursor = mResolver.query(local, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Good Omens",
+                    cursor.getString(cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_NAME)));
+            assertEquals(1499,
+                    cursor.getInt(cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_PRICE)));
+        } finally {
+            cursor.close();
+        }
+        cursor = mResolver.query(BookEntry.CONTENT_URI,
+                new String[] { BookEntry._ID, BookEntry.COLUMN_PRODUCT_QUANTITY },
+                BookEntry.COLUMN_UUID + "=?", new String[] { remoteUuid }, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertNotEquals(id, cursor.getLong(0));
+            assertEquals(0, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void pull_matchesBookBothStoresStartedWithByNaturalKey() throws Exception {
+        // Both stores entered the same book before their first sync, each under its own key
+        Uri local = insertBook("Good Omens", 3);
+        String lowerUuid = "00000000000000000000000000000000";
+        String higherUuid = "ffffffffffffffffffffffffffffffff";
+        enqueuePull(new JSONArray().put(newGoodOmens(lowerUuid, 999)));
+        enqueuePull(new JSONArray().put(newGoodOmens(higherUuid, 1099)));
+
+        // The lower key wins in both stores, whichever pulls first, and the remote changes
+        // apply to our copy, keeping our stock
+        assertEquals(1, mEngine.pull());
+        assertEquals(lowerUuid, getUuid(local));
+        mContext.getSharedPreferences(SyncEngine.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().remove(SyncEngine.KEY_PULLED_VERSION).commit();
+        assertEquals(1, mEngine.pull());
+        assertEquals(lowerUuid, getUuid(local));
+
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[] {
+                        BookEntry.COLUMN_PRODUCT_PRICE, BookEntry.COLUMN_PRODUCT_QUANTITY },
+                BookEntry.COLUMN_PRODUCT_NAME + "=?", new String[] { "Good Omens" }, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1099, cursor.getInt(0));
+            assertEquals(3, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns an upsert of the book {@link #insertBook(String, int)} enters as "Good Omens",
+     * as another store sends it.
+     */
+    private static JSONObject newGoodOmens(String uuid, int price) throws Exception {
+        JSONObject upsert = new JSONObject();
+        upsert.put("op", SyncEngine.OP_UPSERT);
+        upsert.put(BookEntry.COLUMN_UUID, uuid);
+        upsert.put(BookEntry.COLUMN_PRODUCT_NAME, "Good Omens");
+        upsert.put(BookEntry.COLUMN_PRODUCT_PRICE, price);
+        upsert.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+        upsert.put(BookEntry.COLUMN_SUPPLIER_NAME, "ACE Science Fiction");
+        upsert.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "8007636782");
+        return upsert;
+    }
+
+    private void setQuantity(Uri book, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        assertEquals(1, mResolver.update(book, values, null, null));
+    }
+
+    private void enqueuePull(JSONArray changes) throws Exception {
+        JSONObject body = new JSONObject();
+        body.put("version", 7);
+        body.put("changes", changes);
+        mServer.enqueue(new MockResponse()
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(gzip(body.toString())));
+    }
+
+    private String getUuid(Uri book) {
+        Cursor cursor = mResolver.query(book, new String[] { BookEntry.COLUMN_UUID },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertNotNull(cursor.getString(0));
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Uri insertBook(String title, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, title);
+        values.put(BookEntry.COLUMN_PRODUCT_PRICE, 1499);
+        values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_PRODUCT_CATEGORY, BookEntry.CATEGORY_FICTION);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "ACE Science Fiction");
+        values.put(BookEntry.COLUMN_SUPPLIER_NUMBER, "8007636782");
+        return mResolver.insert(BookEntry.CONTENT_URI, values);
+    }
+
+    private static JSONObject gunzip(Buffer body) throws Exception {
+        GZIPInputStream in = new GZIPInputStream(body.inputStream());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new JSONObject(new String(out.toByteArray(), "UTF-8"));
+    }
+
+    private static Buffer gzip(String text) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return new Buffer().write(bytes.toByteArray());
+    }
+}
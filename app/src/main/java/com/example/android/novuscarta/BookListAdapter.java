@@ -0,0 +1,289 @@
+package com.example.android.novuscarta;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.novuscarta.data.SaleQueue;
+import com.example.android.novuscarta.data.Tracer;
+
+import java.util.List;
+
+/**
+ * {@link BookListAdapter} shows the books of the catalog in a RecyclerView. Every new list of
+ * books is compared with the list shown before on a background thread, matching the books by
+ * their ID, so only the rows that changed are bound again. A row whose quantity is the only
+ * change only updates its quantity.
+ */
+public class BookListAdapter
+        extends ListAdapter<BookListAdapter.Item, BookListAdapter.ViewHolder> {
+
+    /** Payload of a change of the quantity only */
+    private static final Object PAYLOAD_QUANTITY = new Object();
+
+    /**
+     * Compares the books of two lists. Runs on the background thread of the differ.
+     */
+    private static final DiffUtil.ItemCallback<Item> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<Item>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+                    return oldItem.id == newItem.id;
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+                    return oldItem.equals(newItem);
+                }
+
+                @Override
+                public Object getChangePayload(@NonNull Item oldItem, @NonNull Item newItem) {
+                    return oldItem.withQuantity(newItem.quantity).equals(newItem)
+                            ? PAYLOAD_QUANTITY : null;
+                }
+            };
+
+    /**
+     * Listener for clicks on a book of the list.
+     */
+    public interface OnBookClickListener {
+        void onBookClick(Item item);
+    }
+
+    /**
+     * The columns of a book shown in the list, and the {@link SaleQueue#getAppliedGeneration()}
+     * they were loaded at, which is not part of the contents.
+     */
+    public static final class Item {
+        public final long id;
+        public final String title;
+        public final int price;
+        public final int quantity;
+        public final String coverPath;
+        public final long generation;
+
+        public Item(long id, String title, int price, int quantity, String coverPath,
+                    long generation) {
+            this.id = id;
+            this.title = title;
+            this.price = price;
+            this.quantity = quantity;
+            this.coverPath = coverPath;
+            this.generation = generation;
+        }
+
+        Item withQuantity(int quantity) {
+            return new Item(id, title, price, quantity, coverPath, generation);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Item)) {
+                return false;
+            }
+            Item other = (Item) o;
+            return id == other.id && price == other.price && quantity == other.quantity
+                    && equal(title, other.title) && equal(coverPath, other.coverPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ (id >>> 32));
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final Context mContext;
+    private final OnBookClickListener mListener;
+    private final int mCoverSize;
+
+    /** Traced flows of the last list submitted, until its rows are bound */
+    private long[] mListFlows = new long[0];
+
+    private final Runnable mClearListFlows = new Runnable() {
+        @Override
+        public void run() {
+            mListFlows = new long[0];
+        }
+    };
+
+    /**
+     * Constructs a new {@link BookListAdapter}.
+     *
+     * @param context  The context
+     * @param listener Listener for clicks on the books
+     */
+    public BookListAdapter(Context context, OnBookClickListener listener) {
+        super(DIFF_CALLBACK);
+        mContext = context;
+        mListener = listener;
+        mCoverSize = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_size);
+        setHasStableIds(true);
+    }
+
+    @Override
+    public void submitList(List<Item> list) {
+        // The changes that led to this list end with its rows being bound
+        mListFlows = Tracer.getCurrentFlows();
+        super.submitList(list);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).id;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(LayoutInflater.from(mContext)
+                .inflate(R.layout.list_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.bind(getItem(position));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        Tracer.Span span = Tracer.beginFlows("BookListAdapter.bind", null, mListFlows);
+        try {
+            bindChanges(holder, getItem(position), payloads);
+        } finally {
+            Tracer.end(span);
+        }
+        if (mListFlows.length != 0) {
+            // The rows of the new list are all bound in the same layout pass
+            holder.itemView.post(mClearListFlows);
+        }
+    }
+
+    private static void bindChanges(ViewHolder holder, Item item, List<Object> payloads) {
+        // The payloads of several changes since the last bind are merged; anything but
+        // quantity changes needs a full bind
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_QUANTITY) {
+                holder.bind(item);
+                return;
+            }
+        }
+        if (payloads.isEmpty()) {
+            holder.bind(item);
+        } else {
+            holder.bindQuantity(item);
+        }
+    }
+
+    /**
+     * Holds the views of a row of the list.
+     */
+    public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final TextView mProductNameTextView;
+        private final TextView mProductPriceTextView;
+        private final TextView mQuantityTextView;
+        private final ImageView mCoverImageView;
+
+        ViewHolder(View view) {
+            super(view);
+            mProductNameTextView = view.findViewById(R.id.product_name);
+            mProductPriceTextView = view.findViewById(R.id.product_price);
+            mQuantityTextView = view.findViewById(R.id.quantity);
+            mCoverImageView = view.findViewById(R.id.cover);
+            view.setOnClickListener(this);
+            Button soldButton = view.findViewById(R.id.sold_button);
+            soldButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    sell();
+                }
+            });
+        }
+
+        void bind(Item item) {
+            mProductNameTextView.setText(item.title);
+            mProductPriceTextView.setText(Integer.toString(item.price));
+            bindQuantity(item);
+
+            // Load the cover thumbnail in the background. A recycled view cancels the request
+            // for the book it showed before.
+            CoverLoader.getInstance(mContext).load(mCoverImageView, item.coverPath, mCoverSize,
+                    R.drawable.outline_book_white_36);
+        }
+
+        void bindQuantity(Item item) {
+            // Copies sold but not yet in the quantity that was loaded are already taken off
+            int quantity = item.quantity + SaleQueue.getInstance(mContext).getPendingDelta(
+                    item.id, CurrentLocation.getId(mContext), item.generation);
+            mQuantityTextView.setText(Integer.toString(Math.max(quantity, 0)));
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mListener.onBookClick(getItem(position));
+            }
+        }
+
+        private void sell() {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            // The sale starts a traced flow, which follows it to the row showing the sale
+            Tracer.Span span = Tracer.beginFlow("BookListAdapter.sell", null);
+            try {
+                // Get the current quantity from the TextView
+                int currentQuantity =
+                        Integer.parseInt(mQuantityTextView.getText().toString().trim());
+                // If currentQuantity is greater than 0, sell a copy. The sale is queued and
+                // written to the database together with the other sales of the next moment;
+                // nothing touches the disk on this thread.
+                if (currentQuantity > 0) {
+                    final long bookId = getItem(position).id;
+                    long locationId = CurrentLocation.getId(mContext);
+                    // The sale only shows once it is in the journal, and can't be lost anymore
+                    SaleQueue.getInstance(mContext).record(bookId, locationId, -1,
+                            new SaleQueue.OnRecordedListener() {
+                                @Override
+                                public void onRecorded() {
+                                    onSold(bookId);
+                                }
+                            });
+                } else {
+                    // The current quantity is 0 therefore a copy cannot be sold
+                    Toast.makeText(mContext, R.string.insufficient_quantity,
+                            Toast.LENGTH_SHORT).show();
+                }
+            } finally {
+                Tracer.end(span);
+            }
+        }
+
+        /**
+         * Show a recorded sale, if this row still shows the book sold.
+         */
+        private void onSold(long bookId) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && getItem(position).id == bookId) {
+                bindQuantity(getItem(position));
+            }
+            Toast.makeText(mContext, R.string.book_sold, Toast.LENGTH_SHORT).show();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.android.novuscarta;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.SaleQueue;
+import com.example.android.novuscarta.data.Tracer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the books of the catalog at the current location as a list of
+ * {@link BookListAdapter.Item}s. Like a CursorLoader, it queries on a background thread, cancels
+ * queries that are no longer needed and loads again when the books change, but it also reads
+ * the rows on that thread, so the main thread only gets a finished list to compare.
+ */
+public class BookListLoader extends AsyncTaskLoader<List<BookListAdapter.Item>> {
+
+    /** Minimum time between two loads, so a burst of sales doesn't load for every sale */
+    private static final long UPDATE_THROTTLE_MILLIS = 250;
+
+    /** Columns of the books shown in the list, in the order of the Item fields */
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRODUCT_PRICE,
+            BookEntry.COLUMN_PRODUCT_QUANTITY,
+            BookEntry.COLUMN_COVER_PATH };
+
+    /** Order of the books in the list, which is also the order the editor pages through */
+    static final String SORT_ORDER = BookEntry._ID;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /** The last list of books loaded */
+    private List<BookListAdapter.Item> mItems;
+
+    /** Signal to cancel the query that is running, or null */
+    private CancellationSignal mCancellationSignal;
+
+    /** Whether the observer of the books is registered */
+    private boolean mObserving;
+
+    /** Traced flows of the changes the last load was for, guarded by this */
+    private long[] mLoadedFlows = new long[0];
+
+    /**
+     * {@link SaleQueue#getAppliedGeneration()} the list delivered last was loaded at, or -1 if
+     * it had no books
+     */
+    private long mDeliveredGeneration = -1;
+
+    public BookListLoader(Context context) {
+        super(context);
+        setUpdateThrottle(UPDATE_THROTTLE_MILLIS);
+    }
+
+    @Override
+    public List<BookListAdapter.Item> loadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        // The load is for the changes written since the last one
+        Tracer.Span span = Tracer.beginHandedOffFlows("BookListLoader.load", null);
+        try {
+            synchronized (this) {
+                mLoadedFlows = Tracer.getCurrentFlows();
+            }
+            // The sales the queue applied after this are still taken off the quantities
+            long generation = SaleQueue.getInstance(getContext()).getAppliedGeneration();
+            // The quantities are the stock at the current location
+            Cursor cursor = getContext().getContentResolver().query(
+                    CurrentLocation.appendTo(getContext(), BookEntry.CONTENT_URI), PROJECTION,
+                    null, null, SORT_ORDER, mCancellationSignal);
+            if (cursor == null) {
+                return Collections.emptyList();
+            }
+            try {
+                List<BookListAdapter.Item> items = new ArrayList<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    items.add(new BookListAdapter.Item(cursor.getLong(0), cursor.getString(1),
+                            cursor.getInt(2), cursor.getInt(3), cursor.getString(4),
+                            generation));
+                }
+                return items;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            Tracer.end(span);
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(List<BookListAdapter.Item> items) {
+        if (isReset()) {
+            return;
+        }
+        mItems = items;
+        if (isStarted()) {
+            long[] flows;
+            synchronized (this) {
+                flows = mLoadedFlows;
+                mLoadedFlows = new long[0];
+            }
+            Tracer.Span span = Tracer.beginFlows("BookListLoader.deliver", null, flows);
+            try {
+                super.deliverResult(items);
+            } finally {
+                Tracer.end(span);
+            }
+            // The rows of the list before may still be shown while the new one is compared,
+            // so the sales applied after that one was loaded are the oldest still needed
+            if (mDeliveredGeneration >= 0) {
+                SaleQueue.getInstance(getContext()).forgetApplied(mDeliveredGeneration);
+            }
+            mDeliveredGeneration = items.isEmpty() ? -1 : items.get(0).generation;
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mItems != null) {
+            deliverResult(mItems);
+        }
+        if (!mObserving) {
+            // Changes to any book, including the sales written by the sale queue, load again
+            getContext().getContentResolver().registerContentObserver(BookEntry.CONTENT_URI,
+                    true, mObserver);
+            mObserving = true;
+        }
+        if (takeContentChanged() || mItems == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mItems = null;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.android.novuscarta;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The books around the one shown in the editor, in the order of the catalog, so the editor can
+ * page to the next or previous book without waiting for a query.
+ *
+ * The window is read with one query of {@link #SELECTION}: up to {@link #NEIGHBORS} books
+ * before a center book and up to {@link #NEIGHBORS} after it, each side a seek into the IDs
+ * (the catalog lists the books by ID) rather than an offset into the whole catalog. Paging
+ * only needs a new window when it gets within {@link #REFILL_AT} books of an end that has more
+ * books behind it.
+ */
+final class BookWindow {
+
+    /** Number of books read on each side of the center */
+    static final int NEIGHBORS = 10;
+
+    /** A new window is read when fewer books than this are left on the side paged towards */
+    private static final int REFILL_AT = 3;
+
+    /**
+     * Selection of the books of a window, with the ID of the center book as both arguments.
+     * If the center book was deleted, the books after it are read instead.
+     */
+    static final String SELECTION = BookEntry._ID + " IN (SELECT " + BookEntry._ID
+            + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + "<? ORDER BY "
+            + BookEntry._ID + " DESC LIMIT " + NEIGHBORS + ") OR " + BookEntry._ID
+            + " IN (SELECT " + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME + " WHERE "
+            + BookEntry._ID + ">=? ORDER BY " + BookEntry._ID + " LIMIT " + (NEIGHBORS + 1)
+            + ")";
+
+    /** Sort order of the books of a window, the order of the catalog */
+    static final String SORT_ORDER = BookListLoader.SORT_ORDER;
+
+    /** Values of the books in the order of their ID */
+    private final List<ContentValues> mBooks;
+
+    /** Whether the catalog has books before the first one of the window */
+    private final boolean mMoreBefore;
+
+    /** Whether the catalog has books after the last one of the window */
+    private final boolean mMoreAfter;
+
+    private BookWindow(List<ContentValues> books, boolean moreBefore, boolean moreAfter) {
+        mBooks = books;
+        mMoreBefore = moreBefore;
+        mMoreAfter = moreAfter;
+    }
+
+    /**
+     * Returns the selection arguments of the window around the given book.
+     */
+    static String[] selectionArgs(long centerId) {
+        String id = String.valueOf(centerId);
+        return new String[] { id, id };
+    }
+
+    /**
+     * Read the window that the query of {@link #SELECTION} returned.
+     *
+     * @param cursor   books of the window, with their {@link BookEntry#_ID}
+     * @param centerId ID of the center book the window was read for
+     */
+    static BookWindow fromCursor(Cursor cursor, long centerId) {
+        List<ContentValues> books = new ArrayList<>(cursor.getCount());
+        int before = 0;
+        int idColumn = cursor.getColumnIndexOrThrow(BookEntry._ID);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ContentValues values = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, values);
+            books.add(values);
+            if (cursor.getLong(idColumn) < centerId) {
+                before++;
+            }
+        }
+        // A side that was cut off at its limit may go on
+        return new BookWindow(books, before == NEIGHBORS,
+                books.size() - before == NEIGHBORS + 1);
+    }
+
+    /**
+     * Returns the values of the given book, or null if it is not in the window.
+     */
+    ContentValues find(long id) {
+        int index = indexOf(id);
+        return index < mBooks.size() && getId(index) == id ? mBooks.get(index) : null;
+    }
+
+    /**
+     * Returns the values of the book after (direction 1) or before (direction -1) the given
+     * one, or null if the window doesn't have it.
+     */
+    ContentValues neighbor(long id, int direction) {
+        int index = indexOf(id);
+        if (direction > 0) {
+            // The first book after the given one, whether the window has that one or not
+            if (index < mBooks.size() && getId(index) == id) {
+                index++;
+            }
+        } else {
+            index--;
+        }
+        return index >= 0 && index < mBooks.size() ? mBooks.get(index) : null;
+    }
+
+    /**
+     * Returns whether paging from the given book in the given direction gets close to an end
+     * of the window behind which the catalog has more books.
+     */
+    boolean needsRefill(long id, int direction) {
+        int index = indexOf(id);
+        if (direction > 0) {
+            return mMoreAfter && mBooks.size() - 1 - index < REFILL_AT;
+        }
+        return mMoreBefore && index < REFILL_AT;
+    }
+
+    /**
+     * Returns the index of the given book, or of the first book after it if the window doesn't
+     * have it.
+     */
+    private int indexOf(long id) {
+        int low = 0;
+        int high = mBooks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getId(middle) < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long getId(int index) {
+        return mBooks.get(index).getAsLong(BookEntry._ID);
+    }
+}
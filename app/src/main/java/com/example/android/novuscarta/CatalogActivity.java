@@ -1,14 +1,19 @@
 package com.example.android.novuscarta;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
 import android.util.Log;
@@ -16,23 +21,49 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.Toast;
 
+import com.example.android.novuscarta.data.BackupService;
+import com.example.android.novuscarta.data.BookContract;
 import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+import com.example.android.novuscarta.data.MaintenanceJobService;
+import com.example.android.novuscarta.data.TitleIndex;
+import com.example.android.novuscarta.sync.SyncService;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Displays list of books that were entered and stored in the app.
  */
 
 public class CatalogActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<List<BookListAdapter.Item>> {
 
     public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
 
     private static final int BOOK_LOADER = 0;
 
+    /** Request code for picking the document a backup is written to */
+    private static final int CREATE_BACKUP_REQUEST = 1;
+
+    /** Request code for picking the backup to restore */
+    private static final int OPEN_BACKUP_REQUEST = 2;
+
     // This is the Adapter being used to display the list's data
-    BookCursorAdapter mCursorAdapter;
+    BookListAdapter mListAdapter;
+
+    /** View shown instead of the list when there are no books */
+    private View mEmptyView;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,44 +81,236 @@ public class CatalogActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the book data
-        ListView bookListView = findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the book data
+        RecyclerView bookListView = findViewById(R.id.list);
+        bookListView.setLayoutManager(new LinearLayoutManager(this));
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        bookListView.setEmptyView(emptyView);
+        // Find the empty view, which only shows when the list has 0 items
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Set up an Adapter to create a list item for each row of book data in the Cursor.
-        // There is no book data (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new BookCursorAdapter(this, null);
-        bookListView.setAdapter(mCursorAdapter);
-
-        // Set up item click listener
-        bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Set up an Adapter to create a list item for each book. There is no book data (until
+        // the loader finishes), so the list starts out empty.
+        mListAdapter = new BookListAdapter(this, new BookListAdapter.OnBookClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onBookClick(BookListAdapter.Item item) {
                 // Create new intent to go to {@Link EditorActivity}
                 Intent intent =
                         new Intent(CatalogActivity.this, EditorActivity.class);
 
                 // Form the content URI that represents the specific book that was clicked on,
-                // by appending the "id" (passed as input to this method) onto the
-                // {@Link BookEntry#CONTENT_URI}
+                // by appending the "id" of the book onto the {@Link BookEntry#CONTENT_URI}
                 // For example, the URI would be "content://com.example.android.novuscarta/books/2"
                 // if the book with ID 2 was clicked on.
-                Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+                Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, item.id);
 
                 // Set the URI on the data field of the intent
                 intent.setData(currentBookUri);
 
+                // Hand over the columns the list already loaded, so the editor can show them
+                // before its own query returns
+                ContentValues values = new ContentValues();
+                values.put(BookEntry._ID, item.id);
+                values.put(BookEntry.COLUMN_PRODUCT_NAME, item.title);
+                values.put(BookEntry.COLUMN_PRODUCT_PRICE, item.price);
+                values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, item.quantity);
+                values.put(BookEntry.COLUMN_COVER_PATH, item.coverPath);
+                intent.putExtra(EditorActivity.EXTRA_BOOK_VALUES, values);
+
                 // Launch the {@link EditorActivity} to display the data for the current book.
                 startActivity(intent);
             }
         });
+        bookListView.setAdapter(mListAdapter);
+
+        // Set up the title search. Picking a suggestion opens that book in the editor.
+        final AutoCompleteTextView titleSearch = findViewById(R.id.title_search);
+        titleSearch.setAdapter(new TitleSuggestionAdapter(this));
+        titleSearch.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+                TitleIndex.Suggestion suggestion =
+                        (TitleIndex.Suggestion) adapterView.getItemAtPosition(position);
+                titleSearch.setText("");
+                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+                intent.setData(ContentUris.withAppendedId(BookEntry.CONTENT_URI, suggestion.id));
+                startActivity(intent);
+            }
+        });
 
         // Kick off the loader
         getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        showCurrentLocation();
+
+        // Make sure the database gets its nightly housekeeping
+        MaintenanceJobService.schedule(this);
+    }
+
+    /**
+     * Show the name of the current location below the title of the activity, once it is read
+     * in the background.
+     */
+    private void showCurrentLocation() {
+        new ShowCurrentLocationTask().execute(CurrentLocation.getId(this));
+    }
+
+    /**
+     * Reads the name of a location off the main thread and shows it as the subtitle.
+     */
+    private class ShowCurrentLocationTask extends AsyncTask<Long, Void, String> {
+
+        @Override
+        protected String doInBackground(Long... locationIds) {
+            Cursor cursor = getContentResolver().query(LocationEntry.CONTENT_URI,
+                    new String[] { LocationEntry.COLUMN_LOCATION_NAME },
+                    LocationEntry._ID + "=?", new String[] { String.valueOf(locationIds[0]) },
+                    null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String name) {
+            if (name != null && getSupportActionBar() != null) {
+                getSupportActionBar().setSubtitle(name);
+            }
+        }
+    }
+
+    /**
+     * Let the user pick the location whose stock is shown, or add a new one. The locations
+     * are read in the background first.
+     */
+    private void showChooseLocationDialog() {
+        new ChooseLocationTask().execute();
+    }
+
+    /**
+     * Reads the locations off the main thread and then shows the dialog to choose one.
+     */
+    private class ChooseLocationTask extends AsyncTask<Void, Void, Boolean> {
+
+        private long[] mIds;
+        private String[] mNames;
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            Cursor cursor = getContentResolver().query(LocationEntry.CONTENT_URI,
+                    new String[] { LocationEntry._ID, LocationEntry.COLUMN_LOCATION_NAME },
+                    null, null, LocationEntry.COLUMN_LOCATION_NAME);
+            if (cursor == null) {
+                return false;
+            }
+            try {
+                mIds = new long[cursor.getCount()];
+                mNames = new String[cursor.getCount()];
+                while (cursor.moveToNext()) {
+                    mIds[cursor.getPosition()] = cursor.getLong(0);
+                    mNames[cursor.getPosition()] = cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            return true;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean loaded) {
+            // The activity may have gone while the locations were read
+            if (loaded && !isFinishing()) {
+                showChooseLocationDialog(mIds, mNames);
+            }
+        }
+    }
+
+    /**
+     * Show the dialog to choose one of the given locations, or add a new one.
+     */
+    private void showChooseLocationDialog(final long[] ids, String[] names) {
+        int checked = -1;
+        long currentId = CurrentLocation.getId(this);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == currentId) {
+                checked = i;
+            }
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.choose_location_title);
+        builder.setSingleChoiceItems(names, checked, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+                changeLocation(ids[which]);
+            }
+        });
+        builder.setNeutralButton(R.string.add_location, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                showAddLocationDialog();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Ask for the name of a new location, add it and make it the current location.
+     */
+    private void showAddLocationDialog() {
+        final EditText nameEditText = new EditText(this);
+        nameEditText.setHint(R.string.hint_location_name);
 
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.add_location);
+        builder.setView(nameEditText);
+        builder.setPositiveButton(R.string.add, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                String name = nameEditText.getText().toString().trim();
+                if (name.isEmpty()) {
+                    return;
+                }
+                new AddLocationTask().execute(name);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Adds a location off the main thread and then makes it the current location.
+     */
+    private class AddLocationTask extends AsyncTask<String, Void, Uri> {
+
+        @Override
+        protected Uri doInBackground(String... names) {
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_LOCATION_NAME, names[0]);
+            return getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        }
+
+        @Override
+        protected void onPostExecute(Uri newUri) {
+            if (newUri != null && !isFinishing()) {
+                changeLocation(ContentUris.parseId(newUri));
+            }
+        }
+    }
+
+    /**
+     * Make the given location the current one and show its stock. Restarting the loader
+     * cancels a load of the previous location that is still running.
+     */
+    private void changeLocation(long locationId) {
+        CurrentLocation.setId(this, locationId);
+        showCurrentLocation();
+        getLoaderManager().restartLoader(BOOK_LOADER, null, this);
     }
 
     private void insertBook() {
@@ -104,8 +327,74 @@ public class CatalogActivity extends AppCompatActivity implements
         // Insert the new row for Good Omens into the provider using the ContentResolver.
         // Use the {@Link BookEntry#CONTENT_URI} to indicate that we want to insert into the
         // books database table. Receive the new content URI that will allow us to access the
-        // data for Good Omens in the future.
-        Uri newURI = getContentResolver().insert(BookEntry.CONTENT_URI, values);
+        // data for Good Omens in the future. Once Good Omens is in the catalog, inserting it
+        // again restocks it instead of adding a duplicate.
+        Uri newURI = getContentResolver().insert(
+                CurrentLocation.appendTo(this, BookEntry.CONTENT_URI).buildUpon()
+                        .appendQueryParameter(BookEntry.PARAM_RESTOCK, "true").build(), values);
+    }
+
+    /**
+     * Ask for a percentage and a category, and change the prices of the books in the category
+     * by the percentage.
+     */
+    private void showAdjustPricesDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_adjust_prices, null);
+        final EditText percentEditText = view.findViewById(R.id.adjust_percent);
+        final Spinner categorySpinner = view.findViewById(R.id.adjust_category);
+
+        // The first option is all categories, the others are the categories of the editor
+        List<String> categories = new ArrayList<>();
+        categories.add(getString(R.string.all_categories));
+        categories.addAll(Arrays.asList(getResources().getStringArray(
+                R.array.array_category_options)));
+        ArrayAdapter<String> categoryAdapter = new ArrayAdapter<>(this,
+                android.R.layout.simple_spinner_item, categories);
+        categoryAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        categorySpinner.setAdapter(categoryAdapter);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.adjust_prices_title);
+        builder.setView(view);
+        builder.setPositiveButton(R.string.adjust, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                int percent;
+                try {
+                    percent = Integer.parseInt(percentEditText.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                Bundle extras = new Bundle();
+                extras.putInt(BookContract.EXTRA_PERCENT, percent);
+                int position = categorySpinner.getSelectedItemPosition();
+                if (position > 0) {
+                    extras.putInt(BookContract.EXTRA_CATEGORY, position - 1);
+                }
+                new AdjustPricesTask().execute(extras);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Changes the prices off the main thread and tells the user how many changed.
+     */
+    private class AdjustPricesTask extends AsyncTask<Bundle, Void, Integer> {
+
+        @Override
+        protected Integer doInBackground(Bundle... extras) {
+            Bundle result = getContentResolver().call(BookContract.BASE_CONTENT_URI,
+                    BookContract.METHOD_ADJUST_PRICES, null, extras[0]);
+            return result == null ? 0 : result.getInt(BookContract.EXTRA_ADJUSTED);
+        }
+
+        @Override
+        protected void onPostExecute(Integer adjusted) {
+            Toast.makeText(CatalogActivity.this, getResources().getQuantityString(
+                    R.plurals.prices_adjusted, adjusted, adjusted), Toast.LENGTH_SHORT).show();
+        }
     }
 
     /**
@@ -117,11 +406,48 @@ public class CatalogActivity extends AppCompatActivity implements
         Log.v("CatalogActivity", rowsDeleted + " rows deleted from book database");
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != CREATE_BACKUP_REQUEST && requestCode != OPEN_BACKUP_REQUEST) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        if (requestCode == CREATE_BACKUP_REQUEST) {
+            BackupService.startBackup(this, data.getData());
+        } else {
+            showRestoreConfirmationDialog(data.getData());
+        }
+    }
+
+    /**
+     * Ask the user to confirm replacing the whole inventory with a backup.
+     */
+    private void showRestoreConfirmationDialog(final Uri backupUri) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.restore_dialog_msg);
+        builder.setPositiveButton(R.string.restore, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                BackupService.startRestore(CatalogActivity.this, backupUri);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_debug).setVisible(BuildConfig.DEBUG);
+        // Backups are written to documents picked with the storage access framework
+        boolean canBackUp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        menu.findItem(R.id.action_backup).setVisible(canBackUp);
+        menu.findItem(R.id.action_restore).setVisible(canBackUp);
         return true;
     }
 
@@ -133,41 +459,75 @@ public class CatalogActivity extends AppCompatActivity implements
             case R.id.action_insert_dummy_data:
                 insertBook();
                 return true;
+            // Respond to a click on the "Choose location" menu option
+            case R.id.action_choose_location:
+                showChooseLocationDialog();
+                return true;
+            // Respond to a click on the "Adjust prices" menu option
+            case R.id.action_adjust_prices:
+                showAdjustPricesDialog();
+                return true;
+            // Respond to a click on the "Stocktake" menu option
+            case R.id.action_stocktake:
+                startActivity(new Intent(this, StocktakeActivity.class));
+                return true;
+            // Respond to a click on the "Sync now" menu option
+            case R.id.action_sync:
+                if (SyncService.isConfigured()) {
+                    SyncService.startSync(this);
+                } else {
+                    Toast.makeText(this, R.string.sync_not_configured, Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            // Respond to a click on the "Back up" menu option
+            case R.id.action_backup:
+                String fileName = "inventory-"
+                        + new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date())
+                        + ".db.gz";
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("application/gzip")
+                        .putExtra(Intent.EXTRA_TITLE, fileName), CREATE_BACKUP_REQUEST);
+                return true;
+            // Respond to a click on the "Restore" menu option
+            case R.id.action_restore:
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("*/*"), OPEN_BACKUP_REQUEST);
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteAllBooks();
                 return true;
+            // Respond to a click on the "Debug" menu option
+            case R.id.action_debug:
+                startActivity(new Intent(this, DebugActivity.class));
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define a projection that specifies the columns that we care about from the table
-        String[] projection = {
-                BookEntry._ID,
-                BookEntry.COLUMN_PRODUCT_NAME,
-                BookEntry.COLUMN_PRODUCT_PRICE,
-                BookEntry.COLUMN_PRODUCT_QUANTITY };
-
+    public Loader<List<BookListAdapter.Item>> onCreateLoader(int id, Bundle args) {
         // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,
-                BookEntry.CONTENT_URI,
-                projection,
-                null,
-                null,
-                null);
+        // and read the books into a list there. A load that is no longer needed (the activity
+        // stops, the loader is restarted or the data changes again) is cancelled, which also
+        // cancels the query in the provider.
+        return new BookListLoader(this);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@Link BookCursorAdapter} with this new cursor containing updated book data
-        mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<List<BookListAdapter.Item>> loader,
+                               List<BookListAdapter.Item> data) {
+        // Hand the new list to {@Link BookListAdapter}, which compares it with the list shown
+        // in the background and then only updates the rows that changed
+        mListAdapter.submitList(data);
+        mEmptyView.setVisibility(data.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<List<BookListAdapter.Item>> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mListAdapter.submitList(null);
     }
-}
\ No newline at end of file
+}
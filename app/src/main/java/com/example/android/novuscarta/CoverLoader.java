@@ -0,0 +1,347 @@
+package com.example.android.novuscarta;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads book cover thumbnails into {@link ImageView}s without decoding on the main thread.
+ *
+ * Thumbnails are looked up in two caches: an in-memory LRU cache of bitmaps, sized from the
+ * memory class of the device, and a disk cache of pre-scaled JPEGs. Only on a miss in both is the
+ * full cover decoded, downsampled while decoding, and the thumbnail written to the disk cache.
+ * The main thread only looks at the memory cache, which is keyed by the path of the cover; a
+ * decode thread then checks that the cover has not been replaced since, without touching the
+ * disk on the main thread.
+ * Every view remembers its pending request, which is cancelled when the view is rebound to
+ * another book, so a fling never decodes covers that have already scrolled out of view.
+ *
+ * Under memory pressure the memory cache shrinks to half its size, and it is emptied when the
+ * process is about to be killed; the disk cache then brings the thumbnails back quickly.
+ */
+public class CoverLoader implements ComponentCallbacks2 {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = CoverLoader.class.getSimpleName();
+
+    /** Directory under the app's cache directory that holds the thumbnails */
+    private static final String THUMBNAILS_DIR = "thumbnails";
+
+    /** Upper bound for the size of the thumbnail disk cache */
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Number of threads decoding covers */
+    private static final int DECODE_THREADS = 2;
+
+    private static CoverLoader sInstance;
+
+    /** Thumbnails in memory, keyed by {@link #memoryKey(String, int)} */
+    private final LruCache<String, Thumbnail> mMemoryCache;
+
+    private final File mThumbnailsDir;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Returns the shared {@link CoverLoader}.
+     *
+     * @param context of the app
+     */
+    public static synchronized CoverLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CoverLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CoverLoader(Context context) {
+        // Use an eighth of the memory available to the app for thumbnails
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int cacheBytes = activityManager.getMemoryClass() * 1024 * 1024 / 8;
+        mMemoryCache = new LruCache<String, Thumbnail>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Thumbnail thumbnail) {
+                return thumbnail.mBitmap.getByteCount();
+            }
+        };
+
+        mThumbnailsDir = new File(context.getCacheDir(), THUMBNAILS_DIR);
+        if (!mThumbnailsDir.isDirectory() && !mThumbnailsDir.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create " + mThumbnailsDir);
+        }
+        context.registerComponentCallbacks(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mMemoryCache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Returns the number of bytes of the thumbnails in the memory cache.
+     */
+    int getMemoryCacheBytes() {
+        return mMemoryCache.size();
+    }
+
+    /**
+     * Show the cover at the given path in the view, scaled to the given size. Any request still
+     * pending for the view is cancelled. Must be called on the main thread.
+     *
+     * @param view        to show the cover in
+     * @param coverPath   path of the cover file, or null if the book has no cover
+     * @param sizePx      width and height of the thumbnail in pixels
+     * @param placeholder drawable shown while loading and for books without a cover
+     */
+    public void load(ImageView view, String coverPath, int sizePx, int placeholder) {
+        cancel(view);
+        if (coverPath == null) {
+            view.setImageResource(placeholder);
+            return;
+        }
+
+        // Show a cached thumbnail right away, and only replace it if the cover changed
+        String key = memoryKey(coverPath, sizePx);
+        Thumbnail cached = mMemoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached.mBitmap);
+        } else {
+            view.setImageResource(placeholder);
+        }
+        Request request = new Request(view, new File(coverPath), key, sizePx, cached);
+        view.setTag(R.id.cover_request, request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /**
+     * Cancel the request pending for the given view, if any.
+     */
+    public void cancel(ImageView view) {
+        Request request = (Request) view.getTag(R.id.cover_request);
+        if (request != null) {
+            request.mFuture.cancel(true);
+            view.setTag(R.id.cover_request, null);
+        }
+    }
+
+    /**
+     * Returns the key of a thumbnail in the memory cache, which the main thread can work out
+     * without reading the disk.
+     */
+    private static String memoryKey(String coverPath, int sizePx) {
+        return coverPath + "_" + sizePx;
+    }
+
+    /**
+     * Returns the key of a thumbnail in the disk cache. It includes the modification time of
+     * the cover, so a replaced cover never shows a stale thumbnail.
+     */
+    private static String diskKey(File cover, long modified, int sizePx) {
+        return cover.getName() + "_" + modified + "_" + sizePx;
+    }
+
+    /**
+     * Returns the thumbnail for the given cover: from the disk cache if it is there, otherwise
+     * decoded from the cover and written to the disk cache. Runs on a decode thread.
+     */
+    private Bitmap loadThumbnail(File cover, String key, int sizePx) throws InterruptedException {
+        File thumbnail = new File(mThumbnailsDir, key + ".jpg");
+        if (thumbnail.isFile()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        // Read the dimensions only, to pick the largest power of two to subsample by
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(cover.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= sizePx
+                && options.outHeight / (sampleSize * 2) >= sizePx) {
+            sampleSize *= 2;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeFile(cover.getPath(), options);
+        if (decoded == null) {
+            return null;
+        }
+        // Scale the shorter side to the thumbnail size and crop the centre
+        float scale = (float) sizePx / Math.min(decoded.getWidth(), decoded.getHeight());
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded,
+                Math.max(sizePx, Math.round(decoded.getWidth() * scale)),
+                Math.max(sizePx, Math.round(decoded.getHeight() * scale)), true);
+        Bitmap bitmap = Bitmap.createBitmap(scaled, (scaled.getWidth() - sizePx) / 2,
+                (scaled.getHeight() - sizePx) / 2, sizePx, sizePx);
+        if (decoded != bitmap) {
+            decoded.recycle();
+        }
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+
+        writeThumbnail(bitmap, thumbnail);
+        return bitmap;
+    }
+
+    /**
+     * Write a thumbnail to the disk cache, then trim the disk cache to its maximum size.
+     */
+    private void writeThumbnail(Bitmap bitmap, File thumbnail) {
+        try {
+            File temp = new File(thumbnail.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(thumbnail)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write thumbnail " + thumbnail, e);
+        }
+        trimDiskCache();
+    }
+
+    /**
+     * Delete the least recently written thumbnails until the disk cache fits its budget.
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = mThumbnailsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (total <= MAX_DISK_CACHE_BYTES * 3 / 4) {
+                break;
+            }
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    /**
+     * A thumbnail in the memory cache, with the modification time of the cover it was made
+     * from.
+     */
+    private static class Thumbnail {
+
+        final Bitmap mBitmap;
+        final long mModified;
+
+        Thumbnail(Bitmap bitmap, long modified) {
+            mBitmap = bitmap;
+            mModified = modified;
+        }
+    }
+
+    /**
+     * A pending request to load a thumbnail into a view, or to check that the one it shows
+     * from the memory cache is still that of the cover.
+     */
+    private class Request implements Runnable {
+
+        private final ImageView mView;
+        private final File mCover;
+        private final String mKey;
+        private final int mSizePx;
+        private final Thumbnail mCached;
+        private Future<?> mFuture;
+
+        Request(ImageView view, File cover, String key, int sizePx, Thumbnail cached) {
+            mView = view;
+            mCover = cover;
+            mKey = key;
+            mSizePx = sizePx;
+            mCached = cached;
+        }
+
+        @Override
+        public void run() {
+            long modified = mCover.lastModified();
+            if (mCached != null && mCached.mModified == modified) {
+                return;
+            }
+            final Bitmap bitmap;
+            try {
+                bitmap = loadThumbnail(mCover, diskKey(mCover, modified, mSizePx), mSizePx);
+            } catch (InterruptedException e) {
+                // The view was rebound to another book
+                return;
+            }
+            if (bitmap == null) {
+                // The cover is gone or broken, so the cached thumbnail is stale too
+                mMemoryCache.remove(mKey);
+                return;
+            }
+            mMemoryCache.put(mKey, new Thumbnail(bitmap, modified));
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Only show the bitmap if the view is still waiting for this request
+                    if (mView.getTag(R.id.cover_request) == Request.this) {
+                        mView.setTag(R.id.cover_request, null);
+                        mView.setImageBitmap(bitmap);
+                    }
+                }
+            });
+        }
+    }
+}
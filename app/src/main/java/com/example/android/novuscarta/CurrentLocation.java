@@ -0,0 +1,50 @@
+package com.example.android.novuscarta;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+
+/**
+ * Remembers the location (shop or warehouse) this device is used at. The catalog and the
+ * editor show and change the stock at this location.
+ */
+public final class CurrentLocation {
+
+    /** Name of the preferences file holding the current location */
+    private static final String PREFS_NAME = "location";
+
+    /** {@link LocationEntry#_ID} of the current location */
+    private static final String KEY_LOCATION_ID = "location_id";
+
+    private CurrentLocation() {}
+
+    /**
+     * Returns the ID of the current location.
+     */
+    public static long getId(Context context) {
+        return getPrefs(context).getLong(KEY_LOCATION_ID, LocationEntry.DEFAULT_LOCATION_ID);
+    }
+
+    /**
+     * Make the location with the given ID the current location.
+     */
+    public static void setId(Context context, long locationId) {
+        getPrefs(context).edit().putLong(KEY_LOCATION_ID, locationId).apply();
+    }
+
+    /**
+     * Returns the given books URI restricted to the stock at the current location.
+     */
+    public static Uri appendTo(Context context, Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(BookEntry.PARAM_LOCATION, String.valueOf(getId(context)))
+                .build();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.android.novuscarta;
+
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.example.android.novuscarta.data.LoadSimulator;
+import com.example.android.novuscarta.data.MainThreadMonitor;
+import com.example.android.novuscarta.data.Tracer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Shows which code made database calls on the main thread, as recorded by the
+ * {@link MainThreadMonitor}, runs the {@link LoadSimulator} and records traces with the
+ * {@link Tracer}. Only reachable from the catalog in debug builds.
+ */
+public class DebugActivity extends AppCompatActivity {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DebugActivity.class.getSimpleName();
+
+    /** Directory under the app's external files directory that the traces are written to */
+    private static final String TRACE_DIR = "traces";
+
+    /** Number of synthetic books added by the load simulation */
+    private static final int SIMULATION_BOOKS = 10000;
+
+    /** Duration of the workload of the load simulation, in seconds */
+    private static final int SIMULATION_SECONDS = 30;
+
+    /** TextView showing the summary of the recorded calls */
+    private TextView mSummaryTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_debug);
+        mSummaryTextView = (TextView) findViewById(R.id.debug_summary);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showSummary();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_debug, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_trace).setTitle(Tracer.isRecording()
+                ? R.string.action_stop_trace : R.string.action_start_trace);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            // Respond to a click on the "Dump to log" menu option
+            case R.id.action_dump_log:
+                MainThreadMonitor.dump();
+                return true;
+            // Respond to a click on the "Clear" menu option
+            case R.id.action_clear:
+                MainThreadMonitor.clear();
+                showSummary();
+                return true;
+            // Respond to a click on the "Load Simulation" menu option
+            case R.id.action_load_simulation:
+                showLoadSimulationDialog();
+                return true;
+            // Respond to a click on the "Start Trace" or "Export Trace" menu option
+            case R.id.action_trace:
+                if (Tracer.isRecording()) {
+                    Tracer.setRecording(false);
+                    new ExportTraceTask().execute();
+                } else {
+                    Tracer.setRecording(true);
+                    mSummaryTextView.setText(R.string.trace_recording);
+                }
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showSummary() {
+        if (Tracer.isRecording()) {
+            mSummaryTextView.setText(R.string.trace_recording);
+        } else {
+            mSummaryTextView.setText(MainThreadMonitor.summarize());
+        }
+    }
+
+    /**
+     * Ask before running the load simulation, as its books stay in the catalog.
+     */
+    private void showLoadSimulationDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getString(R.string.load_simulation_msg, SIMULATION_BOOKS,
+                SIMULATION_SECONDS));
+        builder.setPositiveButton(R.string.run, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mSummaryTextView.setText(R.string.load_simulation_running);
+                new LoadSimulationTask().execute();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Runs the load simulation off the main thread and shows its report.
+     */
+    private class LoadSimulationTask extends AsyncTask<Void, Void, String> {
+
+        @Override
+        protected String doInBackground(Void... params) {
+            return new LoadSimulator(DebugActivity.this, System.currentTimeMillis())
+                    .setDurationMillis(SIMULATION_SECONDS * 1000L)
+                    .setQueuedSales(true)
+                    .run(SIMULATION_BOOKS)
+                    .toString();
+        }
+
+        @Override
+        protected void onPostExecute(String report) {
+            mSummaryTextView.setText(report);
+        }
+    }
+
+    /**
+     * Writes the recorded trace to a new file off the main thread and shows where it is. The
+     * external files directory can be pulled with adb without root.
+     */
+    private class ExportTraceTask extends AsyncTask<Void, Void, String> {
+
+        @Override
+        protected String doInBackground(Void... params) {
+            File base = getExternalFilesDir(null);
+            File dir = new File(base != null ? base : getFilesDir(), TRACE_DIR);
+            File file = new File(dir, "trace-" + System.currentTimeMillis() + ".json");
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Could not create " + dir);
+                }
+                Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                try {
+                    Tracer.writeChromeTrace(out);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not export the trace", e);
+                return getString(R.string.trace_export_failed);
+            }
+            return getString(R.string.trace_exported, Tracer.getSpanCount(), file.getPath());
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            mSummaryTextView.setText(result);
+        }
+    }
+}
@@ -2,29 +2,38 @@ package com.example.android.novuscarta;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
+import android.support.v4.view.ViewCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.view.GestureDetector;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.CoverStore;
+import com.example.android.novuscarta.data.Tracer;
+
 
 /**
  * Allows user to create a new book or edit an existing one.
@@ -34,12 +43,67 @@ public class EditorActivity extends AppCompatActivity implements
 
     private static final String LOG_TAG = EditorActivity.class.getSimpleName();
 
-    /** Identifier for the book data loader */
+    /**
+     * Intent extra with {@link ContentValues} of the book that the caller already has, e.g.
+     * the columns shown in the catalog. They are shown right away, before the book is loaded.
+     */
+    public static final String EXTRA_BOOK_VALUES =
+            "com.example.android.novuscarta.extra.BOOK_VALUES";
+
+    /** Identifier for the loader of the book and its neighbors in the catalog */
     private static final int EXISTING_BOOK_LOADER = 0;
 
+    /** Minimum time between two loads of the neighbors, so a burst of sales loads once */
+    private static final long UPDATE_THROTTLE_MILLIS = 250;
+
+    /** Request code for picking a cover image */
+    private static final int PICK_COVER_REQUEST = 1;
+
+    /** Key of the URI of the book being edited in the saved state, as paging changes it */
+    private static final String STATE_BOOK_URI = "book_uri";
+
     /** Content URI for the existing book (null if it's a new book) */
     private Uri mCurrentBookUri;
 
+    /** Projection that contains all columns of the book table shown in the editor */
+    private static final String[] BOOK_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRODUCT_PRICE,
+            BookEntry.COLUMN_PRODUCT_QUANTITY,
+            BookEntry.COLUMN_PRODUCT_CATEGORY,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_NUMBER,
+            BookEntry.COLUMN_COVER_PATH,
+            BookEntry.COLUMN_VERSION };
+
+    /**
+     * Values of the existing book as they were when the user started editing. Used to tell
+     * the user's changes apart from changes made elsewhere in the meantime.
+     */
+    private ContentValues mLoadedValues;
+
+    /** Version of the existing book as it was when the user started editing */
+    private long mLoadedVersion;
+
+    /** Columns of {@link #EXTRA_BOOK_VALUES} the user can edit */
+    private static final String[] PRELOADED_EDITABLE_COLUMNS = {
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRODUCT_PRICE,
+            BookEntry.COLUMN_PRODUCT_QUANTITY };
+
+    /** Values shown from {@link #EXTRA_BOOK_VALUES} before the book was loaded, or null */
+    private ContentValues mPreloadedValues;
+
+    /** The book and its neighbors in the catalog, as last loaded, or null */
+    private BookWindow mWindow;
+
+    /** Detects the sideways swipes that page through the catalog, or null for a new book */
+    private GestureDetector mSwipeDetector;
+
+    /** Whether the book had been edited before the current touch gesture started */
+    private boolean mChangedBeforeGesture;
+
     /** EditText field to enter the product name */
     private EditText mProductNameEditText;
 
@@ -70,6 +134,15 @@ public class EditorActivity extends AppCompatActivity implements
     /** Button that will initiate a call intent using the supplier phone number */
     private Button mCallSupplierButton;
 
+    /** ImageView showing the cover of the book */
+    private ImageView mCoverImageView;
+
+    /** Button that will pick a new cover image */
+    private Button mChooseCoverButton;
+
+    /** Import of a newly picked cover, attached to the book when it is saved */
+    private CoverStore.CoverImport mCoverImport;
+
     /**
      * Category of the product. The possible values are:
      * 0 for unknown, 1 for fiction, 2 for non-fiction, 3 for reference.
@@ -118,6 +191,19 @@ public class EditorActivity extends AppCompatActivity implements
         }
     };
 
+    private Button.OnClickListener mChooseCoverClickListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            // Let the user pick an image from any app that provides them
+            Intent pickCover = new Intent(Intent.ACTION_GET_CONTENT);
+            pickCover.setType("image/*");
+            pickCover.addCategory(Intent.CATEGORY_OPENABLE);
+            if (pickCover.resolveActivity(getPackageManager()) != null) {
+                startActivityForResult(pickCover, PICK_COVER_REQUEST);
+            }
+        }
+    };
+
     private Button.OnClickListener mDecreaseClickListener = new Button.OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -172,6 +258,13 @@ public class EditorActivity extends AppCompatActivity implements
         // in order to figure out if we're creating a new book entry or editing an existing one.
         Intent intent = getIntent();
         mCurrentBookUri = intent.getData();
+        if (savedInstanceState != null && savedInstanceState.containsKey(STATE_BOOK_URI)) {
+            // The user paged to another book before the activity was recreated
+            mCurrentBookUri = savedInstanceState.getParcelable(STATE_BOOK_URI);
+        } else if (mCurrentBookUri != null) {
+            // Show and edit the stock at the current location
+            mCurrentBookUri = CurrentLocation.appendTo(this, mCurrentBookUri);
+        }
 
         // If the intent DOES NOT contain a book content URI, then we know that we are
         // creating a new book entry.
@@ -189,6 +282,7 @@ public class EditorActivity extends AppCompatActivity implements
             // Initialize a loader to read the book data from the database
             // and display the current values in the editor
             getLoaderManager().initLoader(EXISTING_BOOK_LOADER, null, this);
+            mSwipeDetector = new GestureDetector(this, new SwipeListener());
 
             // Set up an OnClickListener on the delete button
             // and set the button to be visible as a current book is being edited
@@ -211,6 +305,10 @@ public class EditorActivity extends AppCompatActivity implements
 
         mCallSupplierButton = findViewById(R.id.call_button);
 
+        mCoverImageView = findViewById(R.id.editor_cover);
+        mCoverImageView.setImageResource(R.drawable.outline_book_white_36);
+        mChooseCoverButton = findViewById(R.id.choose_cover_button);
+
         // Setup OnTouchListeners on all the input fields, so we can determine if the user
         // has touched or modified them. This will let us know if there are unsaved changes
         // or not, if the user tries to leave the editor without saving.
@@ -228,8 +326,160 @@ public class EditorActivity extends AppCompatActivity implements
         mDecreaseQuantityButton.setOnClickListener(mDecreaseClickListener);
         mIncreaseQuantityButton.setOnClickListener(mIncreaseClickListener);
         mCallSupplierButton.setOnClickListener(mCallButtonClickListener);
+        mChooseCoverButton.setOnClickListener(mChooseCoverClickListener);
 
         setupSpinner();
+
+        // Show the values the caller already has right away. The loader then fills in the
+        // other columns and replaces whatever changed in the meantime.
+        ContentValues preloaded = intent.getParcelableExtra(EXTRA_BOOK_VALUES);
+        if (mCurrentBookUri != null && preloaded != null && savedInstanceState == null) {
+            mPreloadedValues = preloaded;
+            bindValues(preloaded);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mCurrentBookUri != null) {
+            outState.putParcelable(STATE_BOOK_URI, mCurrentBookUri);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != PICK_COVER_REQUEST) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+            // Start copying the image right away, so saving the book doesn't wait for it
+            if (mCoverImport != null) {
+                mCoverImport.discard();
+            }
+            mCoverImport = CoverStore.importCover(this, data.getData());
+            mBookHasChanged = true;
+            Toast.makeText(this, R.string.cover_chosen, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A cover that was picked but never saved with the book is thrown away
+        if (mCoverImport != null) {
+            mCoverImport.discard();
+            mCoverImport = null;
+        }
+        CoverLoader.getInstance(this).cancel(mCoverImageView);
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        if (mSwipeDetector != null) {
+            if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                mChangedBeforeGesture = mBookHasChanged;
+            }
+            if (mSwipeDetector.onTouchEvent(event)
+                    && event.getActionMasked() == MotionEvent.ACTION_UP) {
+                // The swipe paged to another book, so it is not a tap on the view below it
+                event.setAction(MotionEvent.ACTION_CANCEL);
+            }
+        }
+        return super.dispatchTouchEvent(event);
+    }
+
+    /**
+     * Pages to the next book of the catalog on a swipe towards the start of the line, and to
+     * the previous one on a swipe towards its end.
+     */
+    private class SwipeListener extends GestureDetector.SimpleOnGestureListener {
+
+        private final int mMinDistance =
+                ViewConfiguration.get(EditorActivity.this).getScaledTouchSlop() * 4;
+
+        @Override
+        public boolean onFling(MotionEvent down, MotionEvent up, float velocityX,
+                               float velocityY) {
+            if (down == null) {
+                return false;
+            }
+            float distance = up.getX() - down.getX();
+            if (Math.abs(distance) < mMinDistance
+                    || Math.abs(velocityX) < Math.abs(velocityY) * 2) {
+                return false;
+            }
+            // The swipe went over the input fields, but didn't edit them
+            mBookHasChanged = mChangedBeforeGesture;
+            boolean rtl = ViewCompat.getLayoutDirection(getWindow().getDecorView())
+                    == ViewCompat.LAYOUT_DIRECTION_RTL;
+            pageTo((distance < 0) != rtl ? 1 : -1);
+            return true;
+        }
+    }
+
+    /**
+     * Show the next (direction 1) or previous (direction -1) book of the catalog, if it was
+     * loaded, after asking what to do with unsaved changes to this one.
+     */
+    private void pageTo(final int direction) {
+        if (mWindow == null) {
+            return;
+        }
+        final ContentValues neighbor =
+                mWindow.neighbor(ContentUris.parseId(mCurrentBookUri), direction);
+        if (neighbor == null) {
+            return;
+        }
+        if (!mBookHasChanged) {
+            showNeighbor(neighbor, direction);
+            return;
+        }
+        showUnsavedChangesDialog(new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                // User clicked "Discard" button, show the other book
+                showNeighbor(neighbor, direction);
+            }
+        });
+    }
+
+    /**
+     * Make the given book of the window the one being edited and show it right away. When the
+     * window runs low on books in the direction of paging, read the window around this book
+     * in the background.
+     */
+    private void showNeighbor(ContentValues values, int direction) {
+        long id = values.getAsLong(BookEntry._ID);
+        mCurrentBookUri = CurrentLocation.appendTo(this,
+                ContentUris.withAppendedId(BookEntry.CONTENT_URI, id));
+        if (mCoverImport != null) {
+            mCoverImport.discard();
+            mCoverImport = null;
+        }
+        mBookHasChanged = false;
+        mPreloadedValues = null;
+        // The values may be older than the book, which the version check of the update finds
+        rebase(values);
+        bindValues(values);
+
+        if (mWindow.needsRefill(id, direction)) {
+            CursorLoader loader =
+                    (CursorLoader) getLoaderManager().<Cursor>getLoader(EXISTING_BOOK_LOADER);
+            loader.setSelectionArgs(BookWindow.selectionArgs(id));
+            loader.forceLoad();
+        }
+    }
+
+    /**
+     * Make the newly picked cover, if any, the cover of the saved book.
+     */
+    private void attachCover(Uri bookUri) {
+        if (mCoverImport != null) {
+            mCoverImport.attachTo(bookUri);
+            mCoverImport = null;
+        }
     }
 
     /**
@@ -315,7 +565,8 @@ public class EditorActivity extends AppCompatActivity implements
             if (mCurrentBookUri == null) {
                 // This is a NEW book, so insert a new book into the provider,
                 // returning the content URI for the new book.
-                Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
+                Uri newUri = getContentResolver().insert(
+                        CurrentLocation.appendTo(this, BookEntry.CONTENT_URI), values);
 
                 // Show a toast message depending on whether or not the insertion was successful.
                 if (newUri == null) {
@@ -326,32 +577,172 @@ public class EditorActivity extends AppCompatActivity implements
                     // Otherwise, the insertion was successful and we can display a toast.
                     Toast.makeText(this, getString(R.string.editor_insert_book_successful),
                             Toast.LENGTH_SHORT).show();
+                    attachCover(newUri);
                 }
+                finish();
             } else {
-                // Otherwise this is an EXISTING book, so update the book with content URI:
-                // mCurrentBookUri and pass in the new ContentValues. Pass in null for the selection
-                // and selection args because mCurrentBookUri will already identify the correct row
-                // in the database that we want to modify.
-                int rowsAffected = getContentResolver().update(mCurrentBookUri,
-                        values, null, null);
-
-                // Show a toast message depending on whether or not the update was successful.
-                if (rowsAffected == 0) {
-                    // If no rows were affected, then there was an error with the update.
-                    Toast.makeText(this, getString(R.string.editor_update_book_failed),
-                            Toast.LENGTH_SHORT).show();
-                } else {
-                    // Otherwise, the update was successful and we can display a toast.
-                    Toast.makeText(this, getString(R.string.editor_update_book_successful),
-                            Toast.LENGTH_SHORT).show();
-                }
+                // Otherwise this is an EXISTING book, so update it unless it was changed
+                // elsewhere since it was loaded, in which case the changes are merged.
+                updateBook(values);
             }
-            finish();
         } else {
             Toast.makeText(this, R.string.all_fields_required, Toast.LENGTH_SHORT).show();
         }
     }
 
+    /**
+     * Update the existing book with the given values, as long as it is still at the version
+     * that was loaded. If it was changed elsewhere in the meantime, merge the changes or ask
+     * the user what to do.
+     */
+    private void updateBook(ContentValues values) {
+        // Pass in null for the selection and selection args because mCurrentBookUri will
+        // already identify the correct row in the database that we want to modify.
+        Uri versionedUri = mCurrentBookUri.buildUpon()
+                .appendQueryParameter(BookEntry.PARAM_EXPECTED_VERSION,
+                        String.valueOf(mLoadedVersion))
+                .build();
+        int rowsAffected = getContentResolver().update(versionedUri, values, null, null);
+
+        if (rowsAffected == BookEntry.UPDATE_CONFLICT) {
+            resolveConflict(values);
+            return;
+        }
+
+        // Show a toast message depending on whether or not the update was successful.
+        if (rowsAffected == 0) {
+            // If no rows were affected, then there was an error with the update.
+            Toast.makeText(this, getString(R.string.editor_update_book_failed),
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            // Otherwise, the update was successful and we can display a toast.
+            Toast.makeText(this, getString(R.string.editor_update_book_successful),
+                    Toast.LENGTH_SHORT).show();
+            attachCover(mCurrentBookUri);
+        }
+        finish();
+    }
+
+    /**
+     * The book was changed elsewhere (e.g. sold from the list) while it was being edited.
+     * Re-read it and merge the user's changes into it. If both changed the same field in
+     * different ways, let the user choose between their values and the current ones.
+     */
+    private void resolveConflict(final ContentValues values) {
+        final ContentValues current = queryCurrentValues();
+        if (current == null) {
+            // The book was deleted in the meantime
+            Toast.makeText(this, getString(R.string.editor_update_book_failed),
+                    Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        // Without the values the user started from there is nothing to merge against
+        ContentValues merged = mLoadedValues == null
+                ? null : mergeValues(mLoadedValues, values, current);
+        if (merged != null) {
+            // Retry on top of the current version
+            rebase(current);
+            if (merged.size() == 0) {
+                // Everything the user wants is already in the database
+                Toast.makeText(this, getString(R.string.editor_update_book_successful),
+                        Toast.LENGTH_SHORT).show();
+                attachCover(mCurrentBookUri);
+                finish();
+            } else {
+                updateBook(merged);
+            }
+            return;
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.conflict_dialog_msg);
+        builder.setPositiveButton(R.string.keep_mine, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Keep mine" button, so overwrite the current values
+                rebase(current);
+                updateBook(values);
+            }
+        });
+        builder.setNegativeButton(R.string.use_current, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Use current" button, so show the current values and
+                // continue editing from there
+                mBookHasChanged = false;
+                rebase(current);
+                bindValues(current);
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Make the given values of the book the base for the next update.
+     */
+    private void rebase(ContentValues current) {
+        mLoadedValues = current;
+        mLoadedVersion = current.getAsLong(BookEntry.COLUMN_VERSION);
+    }
+
+    /**
+     * Returns the current values of the book in the database, or null if it no longer exists.
+     */
+    private ContentValues queryCurrentValues() {
+        Cursor cursor = getContentResolver().query(mCurrentBookUri, BOOK_PROJECTION,
+                null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues current = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, current);
+            return current;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Three-way merge of the user's values with the current values of the book, based on the
+     * values the user started from. Fields changed on only one side keep that change, and
+     * concurrent changes to the quantity are added up. Returns the values that still need to
+     * be written, or null if both sides changed another field in different ways.
+     *
+     * @param base    values the user started editing from
+     * @param mine    values entered by the user
+     * @param current values currently in the database
+     */
+    private static ContentValues mergeValues(ContentValues base, ContentValues mine,
+                                             ContentValues current) {
+        ContentValues merged = new ContentValues();
+        for (String key : mine.keySet()) {
+            String baseValue = base.getAsString(key);
+            String myValue = mine.getAsString(key);
+            String currentValue = current.getAsString(key);
+            if (TextUtils.equals(myValue, baseValue) || TextUtils.equals(myValue, currentValue)) {
+                // Only changed elsewhere (or changed the same way), nothing to write
+                continue;
+            }
+            if (TextUtils.equals(currentValue, baseValue)) {
+                // Only changed by the user
+                merged.put(key, myValue);
+            } else if (BookEntry.COLUMN_PRODUCT_QUANTITY.equals(key)) {
+                // Both changed the stock level, e.g. a copy was sold while the user counted
+                // new stock, so apply both changes
+                int quantity = current.getAsInteger(key)
+                        + mine.getAsInteger(key) - base.getAsInteger(key);
+                merged.put(key, Math.max(quantity, 0));
+            } else {
+                return null;
+            }
+        }
+        return merged;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -381,8 +772,13 @@ public class EditorActivity extends AppCompatActivity implements
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save book to database
-                saveBook();
+                // Save book to database, traced up to the catalog showing the change
+                Tracer.Span span = Tracer.beginFlow("EditorActivity.save", mCurrentBookUri);
+                try {
+                    saveBook();
+                } finally {
+                    Tracer.end(span);
+                }
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -445,24 +841,17 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Since the editor shows all book attributes, define a projection that contains
-        // all columns from the book table
-        String[] projection = {
-                BookEntry._ID,
-                BookEntry.COLUMN_PRODUCT_NAME,
-                BookEntry.COLUMN_PRODUCT_PRICE,
-                BookEntry.COLUMN_PRODUCT_QUANTITY,
-                BookEntry.COLUMN_PRODUCT_CATEGORY,
-                BookEntry.COLUMN_SUPPLIER_NAME,
-                BookEntry.COLUMN_SUPPLIER_NUMBER };
-
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                mCurrentBookUri,         // Query the content URI for the current book
-                projection,              // Columns to include in the resulting Cursor
-                null,           // No selection clause
-                null,        // No selection arguments
-                null);          // Default sort order
+        // This loader will execute the ContentProvider's query method on a background thread.
+        // Leaving the editor before the book is loaded cancels the query. Along with the book,
+        // it reads its neighbors in the catalog, which paging shows without a query.
+        CursorLoader loader = new CursorLoader(this,
+                CurrentLocation.appendTo(this, BookEntry.CONTENT_URI), // Stock at this location
+                BOOK_PROJECTION,         // Columns to include in the resulting Cursor
+                BookWindow.SELECTION,    // The book and its neighbors
+                BookWindow.selectionArgs(ContentUris.parseId(mCurrentBookUri)),
+                BookWindow.SORT_ORDER);  // The order of the catalog
+        loader.setUpdateThrottle(UPDATE_THROTTLE_MILLIS);
+        return loader;
     }
 
     @Override
@@ -472,51 +861,142 @@ public class EditorActivity extends AppCompatActivity implements
             return;
         }
 
-        // Proceed with moving to the first row of the cursor and reading data from it
-        // (This should be the only row in the cursor)
-        if (cursor.moveToFirst()) {
-            // Find the columns of book attributes that we're interested in
-            int productNameColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_NAME);
-            int productPriceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_PRICE);
-            int productQuantityColumnIndex =
-                    cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_QUANTITY);
-            int categoryColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_CATEGORY);
-            int supplierNameColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_SUPPLIER_NAME);
-            int supplierNumberColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_SUPPLIER_NUMBER);
-
-            // Extract out the value from the Cursor for the given column index
-            String bookName = cursor.getString(productNameColumnIndex);
-            int price = cursor.getInt(productPriceColumnIndex);
-            int quantity = cursor.getInt(productQuantityColumnIndex);
-            int category = cursor.getInt(categoryColumnIndex);
-            String supplierName = cursor.getString(supplierNameColumnIndex);
-            String supplierNumber = cursor.getString(supplierNumberColumnIndex);
-
-            // Update the views on the screen with the values from the database
-            mProductNameEditText.setText(bookName);
+        // Read the window around the book it was loaded for, which is the current book or one
+        // paged to from there
+        long centerId = Long.parseLong(((CursorLoader) loader).getSelectionArgs()[0]);
+        mWindow = BookWindow.fromCursor(cursor, centerId);
+
+        // If the user has started editing, keep their values on screen. Changes made elsewhere
+        // since then are merged when the book is saved.
+        if (mBookHasChanged && mLoadedValues != null) {
+            return;
+        }
+
+        // Proceed with the row of the current book, unless it was deleted or is still as it
+        // was loaded, e.g. when the window was read again because another book changed
+        ContentValues values = mWindow.find(ContentUris.parseId(mCurrentBookUri));
+        if (values != null && !values.equals(mLoadedValues)) {
+            if (mBookHasChanged && mLoadedValues == null && mPreloadedValues != null) {
+                // The user may have started editing the preloaded values before the book was
+                // loaded. They can be older than the book, e.g. the list doesn't count the
+                // sales still queued, so merge what the user entered into the loaded values.
+                rebase(values);
+                bindValues(mergePreloaded(values));
+                return;
+            }
+            rebase(values);
+            bindValues(values);
+        }
+    }
+
+    /**
+     * Returns the loaded values of the book with what the user entered over the preloaded
+     * values merged in, see {@link #mergePreloaded(ContentValues, ContentValues, ContentValues)}.
+     */
+    private ContentValues mergePreloaded(ContentValues loaded) {
+        ContentValues entered = new ContentValues();
+        entered.put(BookEntry.COLUMN_PRODUCT_NAME,
+                mProductNameEditText.getText().toString().trim());
+        putIfNumber(entered, BookEntry.COLUMN_PRODUCT_PRICE, mProductPriceEditText);
+        putIfNumber(entered, BookEntry.COLUMN_PRODUCT_QUANTITY, mProductQuantityEditText);
+        return mergePreloaded(mPreloadedValues, entered, loaded);
+    }
+
+    /**
+     * Returns the values to show once the book is loaded, when the user may have edited the
+     * preloaded values in the meantime. Fields the user left alone show the loaded value, and
+     * a quantity the user changed keeps the changes made elsewhere, like sales the list didn't
+     * count yet. Editable fields missing from the entered values, like one that doesn't hold a
+     * number yet, are left out, so they stay as the user left them.
+     *
+     * @param preloaded values shown before the book was loaded
+     * @param entered   values of the editable fields on screen
+     * @param loaded    values of the book as loaded
+     */
+    static ContentValues mergePreloaded(ContentValues preloaded, ContentValues entered,
+                                        ContentValues loaded) {
+        ContentValues shown = new ContentValues(loaded);
+        for (String column : PRELOADED_EDITABLE_COLUMNS) {
+            if (!preloaded.containsKey(column)) {
+                continue;
+            }
+            if (!entered.containsKey(column)) {
+                shown.remove(column);
+                continue;
+            }
+            ContentValues mine = new ContentValues();
+            mine.put(column, entered.getAsString(column));
+            ContentValues merged = mergeValues(preloaded, mine, loaded);
+            // Changed both here and elsewhere: the user typed over the old value
+            shown.putAll(merged == null ? mine : merged);
+        }
+        return shown;
+    }
+
+    /**
+     * Put the whole number in the given field into the values, if it holds one.
+     */
+    private static void putIfNumber(ContentValues values, String column, EditText field) {
+        String text = field.getText().toString().trim();
+        try {
+            values.put(column, Integer.parseInt(text));
+        } catch (NumberFormatException e) {
+            // Not a number (yet), so there is nothing to merge
+        }
+    }
+
+    /**
+     * Update the views on the screen with the given values of the book. Views of columns that
+     * are not in the values are left as they are.
+     */
+    private void bindValues(ContentValues values) {
+        // Update the views on the screen with the values from the database
+        if (values.containsKey(BookEntry.COLUMN_PRODUCT_NAME)) {
+            mProductNameEditText.setText(values.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+        }
+        if (values.containsKey(BookEntry.COLUMN_PRODUCT_PRICE)) {
+            int price = values.getAsInteger(BookEntry.COLUMN_PRODUCT_PRICE);
             mProductPriceEditText.setText(Integer.toString(price));
+        }
+        if (values.containsKey(BookEntry.COLUMN_PRODUCT_QUANTITY)) {
+            int quantity = values.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY);
             mProductQuantityEditText.setText(Integer.toString(quantity));
-            mSupplierNameEditText.setText(supplierName);
-            mSupplierNumberEditText.setText(supplierNumber);
-
-            // Category is a dropdown spinner, so map the constant value from the database
-            // into one of the dropdown options (0 is Unknown, 1 is Fiction, 2 is Non-fiction, 3 is
-            // reference). Then call setSelection() so that option is displayed on screen as the
-            // current selection.
-            switch (category) {
-                case BookEntry.CATEGORY_FICTION:
-                    mCategorySpinner.setSelection(1);
-                    break;
-                case BookEntry.CATEGORY_NONFICTION:
-                    mCategorySpinner.setSelection(2);
-                    break;
-                case BookEntry.CATEGORY_REFERENCE:
-                    mCategorySpinner.setSelection(3);
-                    break;
-                default:
-                    mCategorySpinner.setSelection(0);
-                    break;
-            }
+        }
+        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
+            mSupplierNameEditText.setText(values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME));
+        }
+        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NUMBER)) {
+            mSupplierNumberEditText.setText(
+                    values.getAsString(BookEntry.COLUMN_SUPPLIER_NUMBER));
+        }
+        if (values.containsKey(BookEntry.COLUMN_COVER_PATH)) {
+            CoverLoader.getInstance(this).load(mCoverImageView,
+                    values.getAsString(BookEntry.COLUMN_COVER_PATH),
+                    getResources().getDimensionPixelSize(R.dimen.cover_editor_size),
+                    R.drawable.outline_book_white_36);
+        }
+        if (!values.containsKey(BookEntry.COLUMN_PRODUCT_CATEGORY)) {
+            return;
+        }
+
+        // Category is a dropdown spinner, so map the constant value from the database
+        // into one of the dropdown options (0 is Unknown, 1 is Fiction, 2 is Non-fiction, 3 is
+        // reference). Then call setSelection() so that option is displayed on screen as the
+        // current selection.
+        int category = values.getAsInteger(BookEntry.COLUMN_PRODUCT_CATEGORY);
+        switch (category) {
+            case BookEntry.CATEGORY_FICTION:
+                mCategorySpinner.setSelection(1);
+                break;
+            case BookEntry.CATEGORY_NONFICTION:
+                mCategorySpinner.setSelection(2);
+                break;
+            case BookEntry.CATEGORY_REFERENCE:
+                mCategorySpinner.setSelection(3);
+                break;
+            default:
+                mCategorySpinner.setSelection(0);
+                break;
         }
     }
 
@@ -0,0 +1,268 @@
+package com.example.android.novuscarta;
+
+import android.app.AlertDialog;
+import android.app.LoaderManager;
+import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.CursorLoader;
+import android.content.DialogInterface;
+import android.content.Loader;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.AdapterView;
+import android.widget.AutoCompleteTextView;
+import android.widget.ListView;
+import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.novuscarta.data.BookContract;
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.StocktakeEntry;
+import com.example.android.novuscarta.data.BookUpdates;
+import com.example.android.novuscarta.data.TitleIndex;
+
+/**
+ * Counts the books at the current location. Each scanned ISBN or picked title adds a copy to
+ * the count, and the list shows the books whose count differs from the stock. Applying the
+ * stocktake sets the stock to the counts.
+ */
+public class StocktakeActivity extends AppCompatActivity implements
+        LoaderManager.LoaderCallbacks<Cursor> {
+
+    /** Identifier for the discrepancies loader */
+    private static final int DISCREPANCY_LOADER = 0;
+
+    /** Token of the query looking up a scanned ISBN */
+    private static final int TOKEN_FIND_ISBN = 1;
+
+    /** Key of the full count option in the saved state */
+    private static final String STATE_FULL_COUNT = "full_count";
+
+    /** Adapter of the discrepancies */
+    private SimpleCursorAdapter mAdapter;
+
+    /** Writes the counts off the main thread, as fast as they are scanned */
+    private AsyncQueryHandler mQueryHandler;
+
+    /** URI of the counts at the current location */
+    private Uri mStocktakeUri;
+
+    /** Whether books that were not counted are missing, rather than not counted yet */
+    private boolean mFullCount;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stocktake);
+
+        if (savedInstanceState != null) {
+            mFullCount = savedInstanceState.getBoolean(STATE_FULL_COUNT);
+        }
+        mStocktakeUri = StocktakeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookEntry.PARAM_LOCATION,
+                        String.valueOf(CurrentLocation.getId(this)))
+                .build();
+        mQueryHandler = new CountHandler(getContentResolver());
+
+        // Scanners type the ISBN followed by enter; titles can be picked from the suggestions
+        final AutoCompleteTextView scanInput = (AutoCompleteTextView) findViewById(R.id.scan_input);
+        scanInput.setAdapter(new TitleSuggestionAdapter(this));
+        scanInput.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+                TitleIndex.Suggestion suggestion =
+                        (TitleIndex.Suggestion) adapterView.getItemAtPosition(position);
+                scanInput.setText("");
+                countBook(suggestion.id);
+            }
+        });
+        scanInput.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView textView, int actionId, KeyEvent event) {
+                if (actionId != EditorInfo.IME_ACTION_DONE && (event == null
+                        || event.getKeyCode() != KeyEvent.KEYCODE_ENTER
+                        || event.getAction() != KeyEvent.ACTION_DOWN)) {
+                    return false;
+                }
+                String isbn = BookUpdates.normalizeIsbn(textView.getText().toString());
+                textView.setText("");
+                if (isbn != null) {
+                    mQueryHandler.startQuery(TOKEN_FIND_ISBN, isbn, BookEntry.CONTENT_URI,
+                            new String[] { BookEntry._ID }, BookEntry.COLUMN_ISBN + "=?",
+                            new String[] { isbn }, null);
+                }
+                return true;
+            }
+        });
+
+        ListView discrepancyListView = (ListView) findViewById(R.id.discrepancy_list);
+        discrepancyListView.setEmptyView(findViewById(R.id.empty_discrepancies));
+        mAdapter = new SimpleCursorAdapter(this, android.R.layout.simple_list_item_2, null,
+                new String[] { BookEntry.COLUMN_PRODUCT_NAME, StocktakeEntry.COLUMN_DIFFERENCE },
+                new int[] { android.R.id.text1, android.R.id.text2 }, 0);
+        mAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (view.getId() != android.R.id.text2) {
+                    return false;
+                }
+                int expected = cursor.getInt(
+                        cursor.getColumnIndexOrThrow(StocktakeEntry.COLUMN_EXPECTED));
+                int counted = cursor.getInt(
+                        cursor.getColumnIndexOrThrow(StocktakeEntry.COLUMN_COUNTED));
+                ((TextView) view).setText(getString(R.string.stocktake_counts, expected, counted));
+                return true;
+            }
+        });
+        discrepancyListView.setAdapter(mAdapter);
+
+        // Kick off the loader
+        getLoaderManager().initLoader(DISCREPANCY_LOADER, null, this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_FULL_COUNT, mFullCount);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_stocktake, menu);
+        menu.findItem(R.id.action_full_count).setChecked(mFullCount);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            // Respond to a click on the "Full count" menu option
+            case R.id.action_full_count:
+                mFullCount = !mFullCount;
+                item.setChecked(mFullCount);
+                getLoaderManager().restartLoader(DISCREPANCY_LOADER, null, this);
+                return true;
+            // Respond to a click on the "Apply" menu option
+            case R.id.action_apply_stocktake:
+                showApplyConfirmationDialog();
+                return true;
+            // Respond to a click on the "Discard counts" menu option
+            case R.id.action_discard_counts:
+                mQueryHandler.startDelete(0, null, mStocktakeUri, null, null);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Add a copy of the book with the given ID to the count.
+     */
+    private void countBook(long bookId) {
+        ContentValues values = new ContentValues();
+        values.put(StocktakeEntry.COLUMN_BOOK_ID, bookId);
+        mQueryHandler.startInsert(0, null, mStocktakeUri, values);
+    }
+
+    private void showApplyConfirmationDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(mFullCount
+                ? R.string.apply_full_stocktake_msg : R.string.apply_stocktake_msg);
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                new ApplyStocktakeTask(getContentResolver(), mFullCount)
+                        .execute(CurrentLocation.getId(StocktakeActivity.this));
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // The provider computes the discrepancies in a single query, with fixed columns
+        Uri uri = mStocktakeUri.buildUpon()
+                .appendQueryParameter(StocktakeEntry.PARAM_FULL_COUNT, String.valueOf(mFullCount))
+                .build();
+        return new CursorLoader(this, uri, null, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        mAdapter.swapCursor(data);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mAdapter.swapCursor(null);
+    }
+
+    /**
+     * Counts the book found for a scanned ISBN.
+     */
+    private class CountHandler extends AsyncQueryHandler {
+
+        CountHandler(ContentResolver resolver) {
+            super(resolver);
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            try {
+                if (cursor.moveToFirst()) {
+                    countBook(cursor.getLong(0));
+                } else {
+                    Toast.makeText(StocktakeActivity.this,
+                            getString(R.string.isbn_not_found, cookie), Toast.LENGTH_SHORT).show();
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Applies the stocktake off the main thread and tells the user how many stock levels
+     * changed.
+     */
+    private class ApplyStocktakeTask extends AsyncTask<Long, Void, Integer> {
+
+        private final ContentResolver mResolver;
+        private final boolean mFull;
+
+        ApplyStocktakeTask(ContentResolver resolver, boolean full) {
+            mResolver = resolver;
+            mFull = full;
+        }
+
+        @Override
+        protected Integer doInBackground(Long... locationIds) {
+            Bundle extras = new Bundle();
+            extras.putBoolean(BookContract.EXTRA_FULL_COUNT, mFull);
+            Bundle result = mResolver.call(BookContract.BASE_CONTENT_URI,
+                    BookContract.METHOD_APPLY_STOCKTAKE, String.valueOf(locationIds[0]), extras);
+            return result == null ? 0 : result.getInt(BookContract.EXTRA_ADJUSTED);
+        }
+
+        @Override
+        protected void onPostExecute(Integer adjusted) {
+            Toast.makeText(StocktakeActivity.this,
+                    getResources().getQuantityString(R.plurals.stocktake_applied, adjusted,
+                            adjusted),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+}
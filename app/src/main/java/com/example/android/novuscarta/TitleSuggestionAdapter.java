@@ -0,0 +1,68 @@
+package com.example.android.novuscarta;
+
+import android.content.Context;
+import android.widget.ArrayAdapter;
+import android.widget.Filter;
+
+import com.example.android.novuscarta.data.TitleIndex;
+import com.example.android.novuscarta.data.TitleIndex.Suggestion;
+
+import java.util.List;
+
+/**
+ * {@link TitleSuggestionAdapter} offers the titles starting with the typed text as suggestions
+ * of an AutoCompleteTextView. The suggestions come from the in-memory {@link TitleIndex}, so
+ * typing never queries the database.
+ */
+public class TitleSuggestionAdapter extends ArrayAdapter<Suggestion> {
+
+    /** Maximum number of suggestions shown */
+    private static final int MAX_SUGGESTIONS = 8;
+
+    private final TitleIndex mTitleIndex;
+
+    private final Filter mFilter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            FilterResults results = new FilterResults();
+            if (constraint != null) {
+                List<Suggestion> suggestions =
+                        mTitleIndex.suggest(constraint.toString(), MAX_SUGGESTIONS);
+                results.values = suggestions;
+                results.count = suggestions.size();
+            }
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            setNotifyOnChange(false);
+            clear();
+            if (results.values != null) {
+                addAll((List<Suggestion>) results.values);
+            }
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public CharSequence convertResultToString(Object resultValue) {
+            return ((Suggestion) resultValue).title;
+        }
+    };
+
+    /**
+     * Constructs a new {@link TitleSuggestionAdapter}.
+     *
+     * @param context The context
+     */
+    public TitleSuggestionAdapter(Context context) {
+        super(context, android.R.layout.simple_dropdown_item_1line);
+        mTitleIndex = TitleIndex.getInstance(context);
+    }
+
+    @Override
+    public Filter getFilter() {
+        return mFilter;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.novuscarta.data;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.example.android.novuscarta.R;
+
+import java.io.IOException;
+
+/**
+ * {@link IntentService} that runs a {@link DatabaseBackup} or a restore off the main thread
+ * and tells the user how it went.
+ */
+public class BackupService extends IntentService {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = BackupService.class.getSimpleName();
+
+    private static final String ACTION_BACKUP = "com.example.android.novuscarta.action.BACKUP";
+    private static final String ACTION_RESTORE =
+            "com.example.android.novuscarta.action.RESTORE";
+
+    public BackupService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Start a compressed backup to the given document in the background.
+     *
+     * @param context     of the app
+     * @param destination document picked by the user
+     */
+    public static void startBackup(Context context, Uri destination) {
+        context.startService(new Intent(ACTION_BACKUP, destination, context, BackupService.class)
+                .addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION));
+    }
+
+    /**
+     * Start restoring the database from the given document in the background.
+     *
+     * @param context of the app
+     * @param source  document picked by the user
+     */
+    public static void startRestore(Context context, Uri source) {
+        context.startService(new Intent(ACTION_RESTORE, source, context, BackupService.class)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (ACTION_BACKUP.equals(intent.getAction())) {
+            try {
+                DatabaseBackup.backup(this, intent.getData(), true);
+                showToast(R.string.backup_successful);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Backup failed", e);
+                showToast(R.string.backup_failed);
+            }
+        } else if (ACTION_RESTORE.equals(intent.getAction())) {
+            try {
+                DatabaseBackup.restore(this, intent.getData());
+                showToast(R.string.restore_successful);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Restore failed", e);
+                showToast(R.string.restore_failed);
+            }
+        }
+    }
+
+    private void showToast(final int messageId) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), messageId, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+}
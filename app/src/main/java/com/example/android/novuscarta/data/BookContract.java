@@ -1,9 +1,14 @@
 package com.example.android.novuscarta.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import com.example.android.novuscarta.core.BookSchema;
+import com.example.android.novuscarta.core.PriceHistorySchema;
+import com.example.android.novuscarta.core.SalesSchema;
+
 public final class BookContract {
 
     private BookContract() {}
@@ -30,6 +35,106 @@ public final class BookContract {
      */
     public static final String PATH_BOOKS = "books";
 
+    /**
+     * Path appended to the books path for the change feed, e.g.
+     * content://com.example.android.novuscarta/books/changes?since=42
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Path for the locations (shops and warehouses) stock is kept at, e.g.
+     * content://com.example.android.novuscarta/locations
+     */
+    public static final String PATH_LOCATIONS = "locations";
+
+    /**
+     * Path for the stock counted in a stocktake, e.g.
+     * content://com.example.android.novuscarta/stocktake?location=2
+     */
+    public static final String PATH_STOCKTAKE = "stocktake";
+
+    /**
+     * Path for the sales velocity of the books, e.g.
+     * content://com.example.android.novuscarta/velocity
+     */
+    public static final String PATH_VELOCITY = "velocity";
+
+    /**
+     * Path for the books that should be reordered, e.g.
+     * content://com.example.android.novuscarta/reorder?cover_days=14
+     */
+    public static final String PATH_REORDER = "reorder";
+
+    /**
+     * Path appended to the URI of a book for its price history, e.g.
+     * content://com.example.android.novuscarta/books/3/prices?at=1530000000
+     */
+    public static final String PATH_PRICES = "prices";
+
+    /**
+     * Provider method that adds a batch of deltas to the stock of books, in one transaction
+     * and with one change notification. Call it with {@link ContentResolver#call} on
+     * {@link #BASE_CONTENT_URI}, with a unique batch ID as the argument and the deltas in
+     * {@link #EXTRA_BOOK_IDS}, {@link #EXTRA_LOCATION_IDS} and {@link #EXTRA_DELTAS}. A batch
+     * that was already applied is ignored, so a batch can safely be sent again after a crash.
+     * The stock never drops below 0. Negative deltas are sales: the copies actually taken off
+     * the stock are recorded for the {@link VelocityEntry sales velocity}.
+     */
+    public static final String METHOD_APPLY_STOCK_DELTAS = "apply_stock_deltas";
+
+    /** Extra of {@link #METHOD_APPLY_STOCK_DELTAS}: long array of book IDs */
+    public static final String EXTRA_BOOK_IDS = "book_ids";
+
+    /** Extra of {@link #METHOD_APPLY_STOCK_DELTAS}: long array of location IDs */
+    public static final String EXTRA_LOCATION_IDS = "location_ids";
+
+    /** Extra of {@link #METHOD_APPLY_STOCK_DELTAS}: int array of changes in quantity */
+    public static final String EXTRA_DELTAS = "deltas";
+
+    /** Result of {@link #METHOD_APPLY_STOCK_DELTAS}: whether the batch was applied now */
+    public static final String EXTRA_APPLIED = "applied";
+
+    /**
+     * Provider method that sets the stock at a location to the quantities counted in the
+     * stocktake there, and then clears the counts. Call it with {@link ContentResolver#call}
+     * on {@link #BASE_CONTENT_URI}, with the {@link LocationEntry#_ID} as the argument. All
+     * books are adjusted in one transaction.
+     */
+    public static final String METHOD_APPLY_STOCKTAKE = "apply_stocktake";
+
+    /**
+     * Extra of {@link #METHOD_APPLY_STOCKTAKE}: boolean, whether the whole location was
+     * counted, so books that were not counted are no longer in stock there
+     */
+    public static final String EXTRA_FULL_COUNT = "full_count";
+
+    /**
+     * Result of {@link #METHOD_APPLY_STOCKTAKE} and {@link #METHOD_ADJUST_PRICES}: number of
+     * stock levels or prices that changed
+     */
+    public static final String EXTRA_ADJUSTED = "adjusted";
+
+    /**
+     * Provider method that changes the price of all books matching a filter at once, e.g. for
+     * a promotion. Call it with {@link ContentResolver#call} on {@link #BASE_CONTENT_URI},
+     * with either {@link #EXTRA_PERCENT} or {@link #EXTRA_AMOUNT}, and optionally
+     * {@link #EXTRA_CATEGORY} and {@link #EXTRA_SUPPLIER} to restrict the books. All prices
+     * change in a single statement, and a price never drops below 0.
+     */
+    public static final String METHOD_ADJUST_PRICES = "adjust_prices";
+
+    /** Extra of {@link #METHOD_ADJUST_PRICES}: int, percentage added to the prices, e.g. -20 */
+    public static final String EXTRA_PERCENT = "percent";
+
+    /** Extra of {@link #METHOD_ADJUST_PRICES}: int, amount added to the prices */
+    public static final String EXTRA_AMOUNT = "amount";
+
+    /** Extra of {@link #METHOD_ADJUST_PRICES}: int, only adjust books of this category */
+    public static final String EXTRA_CATEGORY = "category";
+
+    /** Extra of {@link #METHOD_ADJUST_PRICES}: String, only adjust books of this supplier */
+    public static final String EXTRA_SUPPLIER = "supplier";
+
     public static abstract class BookEntry implements BaseColumns {
 
         /** The content URI to access the book data in the provider */
@@ -48,7 +153,7 @@ public final class BookContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BOOKS;
 
         /** Name of database table for books */
-        public static final String TABLE_NAME = "books";
+        public static final String TABLE_NAME = BookSchema.TABLE_NAME;
 
         /**
          * Unique ID number for the book (only for use in the database table).
@@ -62,21 +167,23 @@ public final class BookContract {
          *
          * Type: TEXT
          */
-        public static final String COLUMN_PRODUCT_NAME = "title";
+        public static final String COLUMN_PRODUCT_NAME = BookSchema.COLUMN_TITLE;
 
         /**
          * Price of the book.
          *
          * Type: INTEGER
          */
-        public static final String COLUMN_PRODUCT_PRICE = "price";
+        public static final String COLUMN_PRODUCT_PRICE = BookSchema.COLUMN_PRICE;
 
         /**
-         * Quantity of the book in stock.
+         * Quantity of the book in stock. This is the total over all locations, unless the URI
+         * has the {@link #PARAM_LOCATION} parameter, in which case it is the quantity at that
+         * location only (both when reading and writing).
          *
          * Type: INTEGER
          */
-        public static final String COLUMN_PRODUCT_QUANTITY = "quantity";
+        public static final String COLUMN_PRODUCT_QUANTITY = BookSchema.COLUMN_QUANTITY;
 
         /**
          * Category of the book.
@@ -86,40 +193,558 @@ public final class BookContract {
          *
          * Type: INTEGER
          */
-        public static final String COLUMN_PRODUCT_CATEGORY = "category";
+        public static final String COLUMN_PRODUCT_CATEGORY = BookSchema.COLUMN_CATEGORY;
 
         /**
          * Name of the supplier.
          *
          * Type: TEXT
          */
-        public static final String COLUMN_SUPPLIER_NAME = "supplier";
+        public static final String COLUMN_SUPPLIER_NAME = BookSchema.COLUMN_SUPPLIER_NAME;
 
         /**
          * Number of the supplier.
          *
          * Type: TEXT
          */
-        public static final String COLUMN_SUPPLIER_NUMBER = "number";
+        public static final String COLUMN_SUPPLIER_NUMBER = BookSchema.COLUMN_SUPPLIER_NUMBER;
+
+        /**
+         * Absolute path of the cover image file of the book, or null if it has no cover.
+         * Covers are stored as files named after the book ID, never in the database.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_COVER_PATH = "cover";
+
+        /**
+         * Version of the row, incremented by every write. Set by the provider only.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_VERSION = BookSchema.COLUMN_VERSION;
+
+        /**
+         * ISBN of the book, digits only (and a final X for ISBN-10), or null if unknown. When
+         * present, it identifies the book.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_ISBN = BookSchema.COLUMN_ISBN;
+
+        /**
+         * Title normalized for matching, see {@link TitleIndex#normalize(String)}. Set by the
+         * provider only.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_TITLE_KEY = "title_key";
+
+        /**
+         * Key that identifies the book regardless of how it was typed in: the ISBN when known,
+         * otherwise the normalized title and the supplier. Unique, except that books that were
+         * duplicates before the key existed have no key. Set by the database only.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_NATURAL_KEY = "natural_key";
+
+        /**
+         * Random key of the book that is the same in every store, unlike the
+         * {@link #_ID}, which is local to the database it was inserted into. The sync engine
+         * identifies books by this key. Set by the database when a book is inserted without
+         * one.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_UUID = "uuid";
+
+        /**
+         * Query parameter for inserts of books: restock instead of creating duplicates, e.g.
+         * content://com.example.android.novuscarta/books?restock=true
+         *
+         * A book with the same {@link #COLUMN_NATURAL_KEY} as one in the database adds its
+         * quantity to the stock of that book; any other book is inserted. A bulk insert
+         * restocks all its books in one transaction.
+         */
+        public static final String PARAM_RESTOCK = "restock";
+
+        /**
+         * Query parameter for updates of a single book: only apply the update if the book is
+         * still at this {@link #COLUMN_VERSION}, e.g.
+         * content://com.example.android.novuscarta/books/3?expected_version=7
+         */
+        public static final String PARAM_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Returned by an update with {@link #PARAM_EXPECTED_VERSION} when the book exists but
+         * has been changed since that version. The caller should re-read the book and merge.
+         */
+        public static final int UPDATE_CONFLICT = -1;
+
+        /**
+         * Query parameter for books: read and write {@link #COLUMN_PRODUCT_QUANTITY} at the
+         * location with this {@link LocationEntry#_ID} instead of the total, e.g.
+         * content://com.example.android.novuscarta/books?location=2
+         *
+         * Writes without it go to {@link LocationEntry#DEFAULT_LOCATION_ID}.
+         */
+        public static final String PARAM_LOCATION = "location";
+
+        /**
+         * Query parameter for queries of all books: run the query as a report, e.g. a stock
+         * valuation or an export, e.g.
+         * content://com.example.android.novuscarta/books?report=true
+         *
+         * A report reads the books as of one point in time, on a connection of its own and in
+         * paced chunks, so it doesn't slow down sales running at the same time. Its rows are
+         * in the order of their {@link #_ID}: it takes no sort order, and a query with one
+         * fails with an {@link IllegalArgumentException}. Its cursor reads the chunks as it
+         * moves, isn't notified of changes, and holds on to the point in time until it is
+         * closed.
+         */
+        public static final String PARAM_REPORT = "report";
 
         /**
          * Possible values for the category of the product
          */
-        public static final int CATEGORY_UNKNOWN = 0;
-        public static final int CATEGORY_FICTION = 1;
-        public static final int CATEGORY_NONFICTION = 2;
-        public static final int CATEGORY_REFERENCE = 3;
+        public static final int CATEGORY_UNKNOWN = BookSchema.CATEGORY_UNKNOWN;
+        public static final int CATEGORY_FICTION = BookSchema.CATEGORY_FICTION;
+        public static final int CATEGORY_NONFICTION = BookSchema.CATEGORY_NONFICTION;
+        public static final int CATEGORY_REFERENCE = BookSchema.CATEGORY_REFERENCE;
 
         /**
          * Returns whether or not the given category is {@link #CATEGORY_UNKNOWN},
          * {@link #CATEGORY_FICTION}, {@link #CATEGORY_NONFICTION} or {@link #CATEGORY_REFERENCE}.
          */
         public static boolean isValidCategory(int category) {
-            if (category == CATEGORY_UNKNOWN || category == CATEGORY_FICTION
-                    || category == CATEGORY_NONFICTION || category == CATEGORY_REFERENCE) {
-                return true;
-            }
-            return false;
+            return BookSchema.isValidCategory(category);
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the change log table. Triggers on the books
+     * table append an entry here for every insert, update and delete, so the sync engine and
+     * any other consumer can follow exactly what changed since the last sequence number it saw.
+     */
+    public static final class ChangeLogEntry {
+
+        private ChangeLogEntry() {}
+
+        /**
+         * The content URI of the change feed. Append {@link #PARAM_SINCE} to only read the
+         * changes after a given sequence number, and {@link #PARAM_LIMIT} to page through them.
+         *
+         * The feed has the columns {@link #COLUMN_SEQ}, {@link #COLUMN_OP}, {@link BookEntry#_ID}
+         * (the changed book), {@link #COLUMN_COLUMNS} and {@link #COLUMN_CHANGED_AT}, ordered by
+         * sequence number. Entries older than the retention period are pruned, so a consumer that
+         * sees a gap between its last sequence number and the first one returned must re-read
+         * the books table instead.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BookEntry.CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the change feed.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_BOOKS + "." + PATH_CHANGES;
+
+        /** Query parameter: only return changes with a sequence number greater than this */
+        public static final String PARAM_SINCE = "since";
+
+        /** Query parameter: return at most this many changes */
+        public static final String PARAM_LIMIT = "limit";
+
+        /** Name of database table for the change log */
+        public static final String TABLE_NAME = "change_log";
+
+        /**
+         * Monotonically increasing sequence number (version) of the change.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SEQ = "seq";
+
+        /**
+         * {@link BookEntry#_ID} of the book that was changed.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * {@link BookEntry#COLUMN_UUID} of the book that was deleted, so the delete can still
+         * be sent to other stores. Null for inserts and updates.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_BOOK_UUID = "book_uuid";
+
+        /**
+         * Kind of change. The only possible values are {@link #OP_INSERT}, {@link #OP_UPDATE}
+         * or {@link #OP_DELETE}.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_OP = "op";
+
+        /**
+         * Comma separated names of the columns changed by an update. Null for inserts and
+         * deletes, which affect the whole row.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_COLUMNS = "columns";
+
+        /**
+         * Time of the change, in seconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_CHANGED_AT = "changed_at";
+
+        /**
+         * Whether the change was applied from the central server by the sync engine (1) or
+         * made locally (0). Remote changes are not pushed back to the server.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_REMOTE = "remote";
+
+        /**
+         * Possible values for the kind of change
+         */
+        public static final String OP_INSERT = "I";
+        public static final String OP_UPDATE = "U";
+        public static final String OP_DELETE = "D";
+    }
+
+    /**
+     * Inner class that defines constant values for the locations table. Every shop and
+     * warehouse is a location with its own stock of each book.
+     */
+    public static final class LocationEntry implements BaseColumns {
+
+        private LocationEntry() {}
+
+        /** The content URI to access the locations in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_LOCATIONS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of locations.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+
+        /** Name of database table for locations */
+        public static final String TABLE_NAME = "locations";
+
+        /**
+         * Unique ID number for the location (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the location.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_LOCATION_NAME = "name";
+
+        /**
+         * The location that exists in every database. The stock of the single location of
+         * earlier versions was moved here.
+         */
+        public static final long DEFAULT_LOCATION_ID = 1;
+    }
+
+    /**
+     * Inner class that defines constant values for the stock table, which holds the quantity of
+     * each book at each location. It is only accessed through the books URIs with
+     * {@link BookEntry#PARAM_LOCATION}; the total in {@link BookEntry#COLUMN_PRODUCT_QUANTITY}
+     * is kept equal to the sum over all locations by triggers.
+     */
+    public static final class StockEntry {
+
+        private StockEntry() {}
+
+        /** Name of database table for the stock */
+        public static final String TABLE_NAME = "stock";
+
+        /**
+         * {@link BookEntry#_ID} of the book.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * {@link LocationEntry#_ID} of the location.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /**
+         * Quantity of the book in stock at the location.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_QUANTITY = "quantity";
+    }
+
+    /**
+     * Inner class that defines constant values for the table of batches applied with
+     * {@link #METHOD_APPLY_STOCK_DELTAS}, which makes applying a batch idempotent.
+     */
+    public static final class AppliedBatchEntry {
+
+        private AppliedBatchEntry() {}
+
+        /** Name of database table for the applied batches */
+        public static final String TABLE_NAME = "applied_batches";
+
+        /**
+         * Unique ID of the batch, chosen by the caller.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_BATCH_ID = "batch_id";
+
+        /**
+         * Time the batch was applied, in seconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_APPLIED_AT = "applied_at";
+
+        /** Batches are remembered this long (7 days), far longer than any retry takes */
+        public static final long RETENTION_SECONDS = 7L * 24 * 60 * 60;
+    }
+
+    /**
+     * Inner class that defines constant values for the table of online migrations, the schema
+     * changes that are too slow for an upgrade and run in batches in the background. Each row
+     * remembers how far a migration got, so it resumes there after the process is killed.
+     */
+    public static final class MigrationEntry {
+
+        private MigrationEntry() {}
+
+        /** Name of database table for the online migrations */
+        public static final String TABLE_NAME = "migrations";
+
+        /**
+         * Name of the migration.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_NAME = "name";
+
+        /**
+         * Position the next batch of the migration starts after, usually a
+         * {@link BookEntry#_ID}.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_POSITION = "position";
+
+        /**
+         * Whether the migration is done and cut over (1) or still running (0).
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DONE = "done";
+    }
+
+    /**
+     * Inner class that defines constant values for the stocktake, the count of the books at a
+     * location. Counts are collected in a staging table as the books are scanned, compared with
+     * the stock in one query, and applied with {@link #METHOD_APPLY_STOCKTAKE}.
+     *
+     * Inserting into {@link #CONTENT_URI} adds {@link #COLUMN_COUNTED} (1 if not given) to the
+     * count of {@link #COLUMN_BOOK_ID}. Querying it returns the books whose count differs from
+     * their stock, with the columns {@link #_ID}, {@link BookEntry#COLUMN_PRODUCT_NAME},
+     * {@link #COLUMN_EXPECTED}, {@link #COLUMN_COUNTED} and {@link #COLUMN_DIFFERENCE}.
+     * Deleting it discards the counts. All three work on the location given with
+     * {@link BookEntry#PARAM_LOCATION}, or the default location.
+     */
+    public static final class StocktakeEntry implements BaseColumns {
+
+        private StocktakeEntry() {}
+
+        /** The content URI to access the stocktake in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCKTAKE);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of discrepancies.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCKTAKE;
+
+        /** Name of the staging table for the counts */
+        public static final String TABLE_NAME = "stocktake";
+
+        /**
+         * ID of the counted book. Books are exposed as {@link #_ID} in query results.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * ID of the location the book was counted at.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /**
+         * Number of copies counted.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_COUNTED = "counted";
+
+        /**
+         * Query results only: number of copies in stock according to the database.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_EXPECTED = "expected";
+
+        /**
+         * Query results only: {@link #COLUMN_COUNTED} minus {@link #COLUMN_EXPECTED}.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DIFFERENCE = "difference";
+
+        /**
+         * Query parameter: the whole location is being counted, so books that were not counted
+         * are reported as missing, e.g.
+         * content://com.example.android.novuscarta/stocktake?full_count=true
+         */
+        public static final String PARAM_FULL_COUNT = "full_count";
+    }
+
+    /**
+     * Inner class that defines constant values for the sales velocity of the books, computed
+     * from the daily and weekly rollups of their sales. Querying {@link #CONTENT_URI} returns
+     * every book; querying {@link #REORDER_URI} only returns the books that will sell out within
+     * {@link #PARAM_COVER_DAYS}, grouped by supplier. Both have the columns {@link #_ID},
+     * {@link BookEntry#COLUMN_PRODUCT_NAME}, {@link BookEntry#COLUMN_SUPPLIER_NAME},
+     * {@link BookEntry#COLUMN_SUPPLIER_NUMBER}, {@link BookEntry#COLUMN_PRODUCT_QUANTITY},
+     * {@link #COLUMN_VELOCITY}, {@link #COLUMN_DAYS_OF_COVER} and
+     * {@link #COLUMN_SUGGESTED_QUANTITY}, whatever the projection.
+     */
+    public static final class VelocityEntry implements BaseColumns {
+
+        private VelocityEntry() {}
+
+        /** The content URI for the sales velocity of all books */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_VELOCITY);
+
+        /** The content URI for the reorder suggestions */
+        public static final Uri REORDER_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_REORDER);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} and {@link #REORDER_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_VELOCITY;
+
+        /**
+         * Copies sold per day over the last four weeks, or over the last quarter for books
+         * that didn't sell in four weeks.
+         *
+         * Type: REAL
+         */
+        public static final String COLUMN_VELOCITY = SalesSchema.COLUMN_VELOCITY;
+
+        /**
+         * Days until the stock sells out at the velocity, or null for books that don't sell.
+         *
+         * Type: REAL
+         */
+        public static final String COLUMN_DAYS_OF_COVER = SalesSchema.COLUMN_DAYS_OF_COVER;
+
+        /**
+         * Copies to order so the stock lasts {@link #PARAM_COVER_DAYS}, 0 if it already does.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SUGGESTED_QUANTITY =
+                SalesSchema.COLUMN_SUGGESTED_QUANTITY;
+
+        /**
+         * Query parameter: number of days the stock should last, by default
+         * {@link #DEFAULT_COVER_DAYS}
+         */
+        public static final String PARAM_COVER_DAYS = "cover_days";
+
+        /** Stock lasting less than this many days (two weeks) is reordered by default */
+        public static final int DEFAULT_COVER_DAYS = 14;
+    }
+
+    /**
+     * Inner class that defines constant values for the price history of a book, written by the
+     * database whenever the price of the book changes. Query the URI from {@link #buildUri}
+     * with {@link #PARAM_AT} for the price at an instant, one row or none if the book had no
+     * price yet; or with {@link #PARAM_FROM} and {@link #PARAM_TO} for the price at the start
+     * of a period and its changes during the period, oldest first. The rows have the columns
+     * {@link #COLUMN_CHANGED_AT} and {@link #COLUMN_PRICE}, whatever the projection.
+     */
+    public static final class PriceHistoryEntry {
+
+        private PriceHistoryEntry() {}
+
+        /**
+         * The MIME type of a price history.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_BOOKS + "." + PATH_PRICES;
+
+        /**
+         * Time the price took effect in seconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_CHANGED_AT = PriceHistorySchema.COLUMN_CHANGED_AT;
+
+        /**
+         * Price of the book in cents from that time on.
+         *
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PRICE = PriceHistorySchema.COLUMN_PRICE;
+
+        /** Query parameter: the instant of the price, in seconds since the epoch */
+        public static final String PARAM_AT = "at";
+
+        /** Query parameter: start of the period, in seconds since the epoch, by default none */
+        public static final String PARAM_FROM = "from";
+
+        /**
+         * Query parameter: end of the period, inclusive, in seconds since the epoch, by default
+         * none
+         */
+        public static final String PARAM_TO = "to";
+
+        /**
+         * Returns the content URI of the price history of a book.
+         *
+         * @param bookId ID of the book
+         */
+        public static Uri buildUri(long bookId) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId),
+                    PATH_PRICES);
         }
     }
 }
@@ -1,12 +1,31 @@
 package com.example.android.novuscarta.data;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.novuscarta.R;
+import com.example.android.novuscarta.core.PriceHistoryQueries;
+import com.example.android.novuscarta.core.SalesQueries;
+import com.example.android.novuscarta.core.SqlStatement;
+import com.example.android.novuscarta.data.BookContract.AppliedBatchEntry;
 import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+import com.example.android.novuscarta.data.BookContract.StockEntry;
+import com.example.android.novuscarta.data.BookContract.StocktakeEntry;
 
-public class BookDbHelper extends SQLiteOpenHelper {
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class BookDbHelper extends SQLiteOpenHelper implements ComponentCallbacks2 {
 
     public static final String LOG_TAG = BookDbHelper.class.getSimpleName();
 
@@ -14,16 +33,201 @@ public class BookDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "inventory.db";
 
     /** Database version */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 14;
+
+    /**
+     * Columns of the books table whose changes are captured by the change log triggers.
+     * Add new columns here so that updates to them show up in the change feed.
+     */
+    private static final String[] CAPTURED_COLUMNS = {
+            BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRODUCT_PRICE,
+            BookEntry.COLUMN_PRODUCT_QUANTITY,
+            BookEntry.COLUMN_PRODUCT_CATEGORY,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_NUMBER,
+            BookEntry.COLUMN_COVER_PATH,
+            BookEntry.COLUMN_ISBN };
+
+    /**
+     * SQL expression for the natural key of a book, with %1$s standing for the row, e.g.
+     * "NEW.". {@link BookUpdates#naturalKey} computes the same key in Java.
+     */
+    private static final String SQL_NATURAL_KEY = "CASE WHEN %1$s" + BookEntry.COLUMN_ISBN
+            + " IS NOT NULL THEN 'isbn:' || %1$s" + BookEntry.COLUMN_ISBN
+            + " ELSE 'title:' || %1$s" + BookEntry.COLUMN_TITLE_KEY + " || '|' || %1$s"
+            + BookEntry.COLUMN_SUPPLIER_NAME + " END";
+
+    /** Bounds of the page cache of the database connection, in KiB */
+    private static final int MIN_PAGE_CACHE_KIB = 256;
+    private static final int MAX_PAGE_CACHE_KIB = 4096;
+
+    /** SQL expression for the current time in seconds since the epoch */
+    private static final String SQL_NOW = "CAST(strftime('%s','now') AS INTEGER)";
+
+    /** SQL expression for a new random {@link BookEntry#COLUMN_UUID}, 128 bits in hex */
+    static final String SQL_NEW_UUID = "lower(hex(randomblob(16)))";
+
+    /** The single helper shared by the provider and the background jobs of the app */
+    private static BookDbHelper sInstance;
+
+    /** Application context, used to read the change log retention settings and resources */
+    private final Context mContext;
+
+    /** Open connections of reports, guarded by this */
+    private final Set<SQLiteDatabase> mReportDatabases = new HashSet<>();
+
+    /**
+     * Returns the shared instance of {@link BookDbHelper}. Everything that touches
+     * inventory.db must go through this instance, so that all readers and writers share one
+     * connection pool and see each other's locks. Reports get connections of their own from
+     * {@link #openReportDatabase()}.
+     *
+     * @param context of the app
+     */
+    public static synchronized BookDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
 
     /**
      * Constructs a new instance of {@Link BookDbHelper}
      *
      * @param context of the app
      */
-    public BookDbHelper(Context context) {
-        super(context, DATABASE_NAME, null,
+    private BookDbHelper(Context context) {
+        // In debug builds, the cursor factory records queries made on the main thread
+        super(context, DATABASE_NAME, MainThreadMonitor.CURSOR_FACTORY,
                 DATABASE_VERSION);
+        mContext = context;
+        // With a write-ahead log, readers never wait for writers (or the maintenance job)
+        setWriteAheadLoggingEnabled(true);
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Returns the size of the page cache for the device in KiB: a 64th of the memory class of
+     * the app (1 MiB for 64 MB), halved on low-RAM devices.
+     */
+    static int pageCacheKib(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int kib = activityManager.getMemoryClass() * 1024 / 64;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && activityManager.isLowRamDevice()) {
+            kib /= 2;
+        }
+        return Math.max(MIN_PAGE_CACHE_KIB, Math.min(MAX_PAGE_CACHE_KIB, kib));
+    }
+
+    /**
+     * Give the memory of SQLite's page caches back when the system runs low on memory. The
+     * pages are read again from the file (or the OS file cache) when they are needed.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            SQLiteDatabase.releaseMemory();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        SQLiteDatabase.releaseMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Returns the file of the database.
+     */
+    File getDatabaseFile() {
+        return mContext.getDatabasePath(DATABASE_NAME);
+    }
+
+    /**
+     * Replace the database with the given file, which is moved into its place. The open
+     * connections are closed first; the next call to {@link #getWritableDatabase()} opens the
+     * new database and upgrades it if it is from an older version. Opening the database waits
+     * until the swap is done.
+     *
+     * @param replacement database file in the same directory as the database
+     */
+    synchronized void replaceDatabase(File replacement) throws IOException {
+        // Closing the last connection checkpoints the write-ahead log into the database file.
+        // A log left over must not be replayed onto the new file, so it goes too. Reports
+        // still running fail instead of reading the replaced file.
+        for (SQLiteDatabase db : mReportDatabases) {
+            db.close();
+        }
+        mReportDatabases.clear();
+        close();
+        File file = getDatabaseFile();
+        for (String suffix : DatabaseBackup.SIDE_FILE_SUFFIXES) {
+            File sideFile = new File(file.getPath() + suffix);
+            if (sideFile.exists() && !sideFile.delete()) {
+                throw new IOException("Cannot delete " + sideFile);
+            }
+        }
+        if (!replacement.renameTo(file)) {
+            throw new IOException("Cannot move " + replacement + " to " + file);
+        }
+    }
+
+    /**
+     * Open a read-only connection to the database outside the connection pool of the helper,
+     * for a {@link ReportSnapshot}. The database is created or upgraded first if needed. Must
+     * be closed with {@link #closeReportDatabase(SQLiteDatabase)}.
+     */
+    synchronized SQLiteDatabase openReportDatabase() {
+        getWritableDatabase();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(getDatabaseFile().getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        mReportDatabases.add(db);
+        return db;
+    }
+
+    /**
+     * Close a connection opened by {@link #openReportDatabase()}.
+     */
+    synchronized void closeReportDatabase(SQLiteDatabase db) {
+        // Already closed if the database was replaced in the meantime
+        if (mReportDatabases.remove(db)) {
+            db.close();
+        }
+    }
+
+    /**
+     * This is called when the database connection is being configured, before it is created or
+     * upgraded
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Let the maintenance job return the pages freed by deletes to the file system. This
+        // only takes effect for a new database; existing ones are switched over by the job.
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        // Size the page cache by the memory of the device; a negative size is in KiB
+        db.execSQL("PRAGMA cache_size=-" + pageCacheKib(mContext));
+    }
+
+    /**
+     * This is called every time the database is opened, after it has been created or upgraded
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            ChangeLogRetention.prune(mContext, db);
+            // Resume the migrations left over from an upgrade, possibly in an earlier process
+            if (OnlineMigrations.hasPending(db)) {
+                OnlineMigrations.startInBackground(mContext);
+            }
+        }
     }
 
     /**
@@ -43,6 +247,10 @@ public class BookDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_INVENTORY_TABLE);
+
+        // Everything added after version 1 is created by replaying the upgrade steps, so a new
+        // install always ends up with exactly the schema of an upgraded one
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
@@ -50,6 +258,257 @@ public class BookDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Database still version 1, nothing to do here yet.
+        // Version 2 adds the change log used by the sync engine. Seed it with one insert per
+        // existing book so the first sync of an upgraded store sends its whole catalog once.
+        if (oldVersion < 2) {
+            db.execSQL("CREATE TABLE " + ChangeLogEntry.TABLE_NAME + " ("
+                    + ChangeLogEntry.COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + ChangeLogEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                    + ChangeLogEntry.COLUMN_OP + " TEXT NOT NULL);");
+            db.execSQL("INSERT INTO " + ChangeLogEntry.TABLE_NAME + " ("
+                    + ChangeLogEntry.COLUMN_BOOK_ID + ", " + ChangeLogEntry.COLUMN_OP + ") "
+                    + "SELECT " + BookEntry._ID + ", '" + ChangeLogEntry.OP_INSERT + "' FROM "
+                    + BookEntry.TABLE_NAME + " ORDER BY " + BookEntry._ID);
+        }
+        // Version 3 moves change capture from the provider into triggers, which also record
+        // the changed columns and the time of every change
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + ChangeLogEntry.TABLE_NAME
+                    + " ADD COLUMN " + ChangeLogEntry.COLUMN_COLUMNS + " TEXT");
+            db.execSQL("ALTER TABLE " + ChangeLogEntry.TABLE_NAME
+                    + " ADD COLUMN " + ChangeLogEntry.COLUMN_CHANGED_AT
+                    + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + ChangeLogEntry.TABLE_NAME
+                    + " ADD COLUMN " + ChangeLogEntry.COLUMN_REMOTE
+                    + " INTEGER NOT NULL DEFAULT 0");
+        }
+        // Version 4 adds the row version used for optimistic concurrency
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                    + " ADD COLUMN " + BookEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0");
+        }
+        // Version 5 adds the path of the cover image file
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                    + " ADD COLUMN " + BookEntry.COLUMN_COVER_PATH + " TEXT");
+        }
+        // Version 6 keeps stock per location. The existing stock moves to the default location.
+        if (oldVersion < 6) {
+            createStockTables(db);
+        }
+        // Version 7 remembers the batches of stock deltas that were applied
+        if (oldVersion < 7) {
+            db.execSQL("CREATE TABLE " + AppliedBatchEntry.TABLE_NAME + " ("
+                    + AppliedBatchEntry.COLUMN_BATCH_ID + " TEXT PRIMARY KEY, "
+                    + AppliedBatchEntry.COLUMN_APPLIED_AT + " INTEGER NOT NULL);");
+        }
+        // Version 8 identifies books by their ISBN or their normalized title and supplier, so
+        // deliveries of books that are already in the catalog restock them
+        if (oldVersion < 8) {
+            createNaturalKey(db);
+        }
+        // Version 9 adds the staging table for the counts of a stocktake
+        if (oldVersion < 9) {
+            db.execSQL("CREATE TABLE " + StocktakeEntry.TABLE_NAME + " ("
+                    + StocktakeEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                    + StocktakeEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "
+                    + StocktakeEntry.COLUMN_COUNTED + " INTEGER NOT NULL DEFAULT 0, "
+                    + "PRIMARY KEY (" + StocktakeEntry.COLUMN_LOCATION_ID + ", "
+                    + StocktakeEntry.COLUMN_BOOK_ID + "));");
+            db.execSQL("CREATE TRIGGER books_delete_stocktake AFTER DELETE ON "
+                    + BookEntry.TABLE_NAME + " BEGIN DELETE FROM " + StocktakeEntry.TABLE_NAME
+                    + " WHERE " + StocktakeEntry.COLUMN_BOOK_ID + "=OLD." + BookEntry._ID
+                    + "; END");
+        }
+        // Version 10 keeps track of the online migrations. Upgrades from before version 8
+        // already created the table when they scheduled one.
+        if (oldVersion < 10) {
+            OnlineMigrations.createTable(db);
+        }
+        // Version 11 records the sales with their daily and weekly rollups. The sales of
+        // deleted books stay, as book IDs are never reused.
+        if (oldVersion < 11) {
+            for (SqlStatement statement : SalesQueries.createTables()) {
+                db.execSQL(statement.sql);
+            }
+        }
+        // Version 12 keeps the price history of the books, from the current prices on, which
+        // are recorded in the background. SQLite only has tables without rowid from Lollipop
+        // on.
+        if (oldVersion < 12) {
+            boolean withoutRowid = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            for (SqlStatement statement : PriceHistoryQueries.createTables(withoutRowid)) {
+                db.execSQL(statement.sql);
+            }
+            OnlineMigrations.schedule(db, new PriceHistoryBackfill());
+        }
+        // Version 13 gives every book a key that is the same in all stores, for the sync
+        // engine. The existing books get random ones in the background, as they were never
+        // synced by key.
+        if (oldVersion < 13) {
+            createUuid(db);
+        }
+        // Version 14 only logs updates that increment the version, so the cover paths, which
+        // only mean something on this device, are no longer synced. The triggers below are
+        // all there is to it.
+
+        // The triggers depend on the columns of the books table, so recreate them after every
+        // upgrade
+        createChangeLogTriggers(db);
+    }
+
+    /**
+     * Create the locations and stock tables, move the existing quantities to the default
+     * location, and create the triggers that keep the total quantity of each book equal to the
+     * sum of its stock.
+     */
+    private void createStockTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " ("
+                + LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + LocationEntry.COLUMN_LOCATION_NAME + " TEXT NOT NULL);");
+        ContentValues defaultLocation = new ContentValues();
+        defaultLocation.put(LocationEntry._ID, LocationEntry.DEFAULT_LOCATION_ID);
+        defaultLocation.put(LocationEntry.COLUMN_LOCATION_NAME,
+                mContext.getString(R.string.default_location_name));
+        db.insertOrThrow(LocationEntry.TABLE_NAME, null, defaultLocation);
+
+        // The primary key starts with the book, so the stock of one book at one location (and
+        // at all locations, for the totals) is a single index lookup
+        db.execSQL("CREATE TABLE " + StockEntry.TABLE_NAME + " ("
+                + StockEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + StockEntry.COLUMN_BOOK_ID + ", "
+                + StockEntry.COLUMN_LOCATION_ID + "));");
+        // Queries for a single location only read that location's part of the index
+        db.execSQL("CREATE INDEX stock_location ON " + StockEntry.TABLE_NAME + " ("
+                + StockEntry.COLUMN_LOCATION_ID + ", " + StockEntry.COLUMN_BOOK_ID + ")");
+        db.execSQL("INSERT INTO " + StockEntry.TABLE_NAME + " (" + StockEntry.COLUMN_BOOK_ID
+                + ", " + StockEntry.COLUMN_LOCATION_ID + ", " + StockEntry.COLUMN_QUANTITY
+                + ") SELECT " + BookEntry._ID + ", " + LocationEntry.DEFAULT_LOCATION_ID + ", "
+                + BookEntry.COLUMN_PRODUCT_QUANTITY + " FROM " + BookEntry.TABLE_NAME);
+
+        // Recompute the total of a book (and bump its version) whenever its stock changes
+        String updateTotal = "UPDATE " + BookEntry.TABLE_NAME + " SET "
+                + BookEntry.COLUMN_PRODUCT_QUANTITY + "=(SELECT IFNULL(SUM("
+                + StockEntry.COLUMN_QUANTITY + "), 0) FROM " + StockEntry.TABLE_NAME + " WHERE "
+                + StockEntry.COLUMN_BOOK_ID + "=%1$s." + StockEntry.COLUMN_BOOK_ID + "), "
+                + BookEntry.COLUMN_VERSION + "=" + BookEntry.COLUMN_VERSION + "+1 WHERE "
+                + BookEntry._ID + "=%1$s." + StockEntry.COLUMN_BOOK_ID + ";";
+        db.execSQL("CREATE TRIGGER stock_total_insert AFTER INSERT ON " + StockEntry.TABLE_NAME
+                + " BEGIN " + String.format(updateTotal, "NEW") + " END");
+        db.execSQL("CREATE TRIGGER stock_total_update AFTER UPDATE ON " + StockEntry.TABLE_NAME
+                + " WHEN OLD." + StockEntry.COLUMN_QUANTITY + " IS NOT NEW."
+                + StockEntry.COLUMN_QUANTITY
+                + " BEGIN " + String.format(updateTotal, "NEW") + " END");
+        db.execSQL("CREATE TRIGGER stock_total_delete AFTER DELETE ON " + StockEntry.TABLE_NAME
+                + " BEGIN " + String.format(updateTotal, "OLD") + " END");
+
+        // The stock of a deleted book goes with it
+        db.execSQL("CREATE TRIGGER books_delete_stock AFTER DELETE ON " + BookEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + StockEntry.TABLE_NAME + " WHERE "
+                + StockEntry.COLUMN_BOOK_ID + "=OLD." + BookEntry._ID + "; END");
+    }
+
+    /**
+     * Add the ISBN, the title key and the natural key to the books table, with a unique index
+     * on the natural key and the triggers that keep it current. Filling in the existing books
+     * is an {@link OnlineMigration}, so it doesn't hold up the first query after the update.
+     */
+    private static void createNaturalKey(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                + " ADD COLUMN " + BookEntry.COLUMN_ISBN + " TEXT");
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                + " ADD COLUMN " + BookEntry.COLUMN_TITLE_KEY + " TEXT");
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                + " ADD COLUMN " + BookEntry.COLUMN_NATURAL_KEY + " TEXT");
+
+        // All keys are NULL so far, and NULL keys don't collide, so books entered twice before
+        // now fit into the unique index. The index is built while the new column is empty.
+        db.execSQL("CREATE UNIQUE INDEX books_natural_key ON " + BookEntry.TABLE_NAME + " ("
+                + BookEntry.COLUMN_NATURAL_KEY + ")");
+
+        // Books written without a key (by the sync engine, or edits of the title, supplier or
+        // ISBN) get it from these triggers, unless another book already has it
+        String setNaturalKey = "UPDATE " + BookEntry.TABLE_NAME + " SET "
+                + BookEntry.COLUMN_NATURAL_KEY + "=CASE WHEN EXISTS (SELECT 1 FROM "
+                + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_NATURAL_KEY + "="
+                + String.format(SQL_NATURAL_KEY, "NEW.") + " AND " + BookEntry._ID + "<>NEW."
+                + BookEntry._ID + ") THEN NULL ELSE " + String.format(SQL_NATURAL_KEY, "NEW.")
+                + " END WHERE " + BookEntry._ID + "=NEW." + BookEntry._ID + ";";
+        db.execSQL("CREATE TRIGGER books_natural_key_insert AFTER INSERT ON "
+                + BookEntry.TABLE_NAME + " WHEN NEW." + BookEntry.COLUMN_NATURAL_KEY
+                + " IS NULL BEGIN " + setNaturalKey + " END");
+        db.execSQL("CREATE TRIGGER books_natural_key_update AFTER UPDATE OF "
+                + BookEntry.COLUMN_TITLE_KEY + ", " + BookEntry.COLUMN_SUPPLIER_NAME + ", "
+                + BookEntry.COLUMN_ISBN + " ON " + BookEntry.TABLE_NAME + " WHEN OLD."
+                + BookEntry.COLUMN_TITLE_KEY + " IS NOT NEW." + BookEntry.COLUMN_TITLE_KEY
+                + " OR OLD." + BookEntry.COLUMN_SUPPLIER_NAME + " IS NOT NEW."
+                + BookEntry.COLUMN_SUPPLIER_NAME + " OR OLD." + BookEntry.COLUMN_ISBN
+                + " IS NOT NEW." + BookEntry.COLUMN_ISBN + " BEGIN " + setNaturalKey + " END");
+
+        // The title keys of the existing books are filled in in the background, which also
+        // gives them their natural keys through the trigger above
+        OnlineMigrations.schedule(db, new TitleKeyBackfill());
+    }
+
+    /**
+     * Add the global key to the books table and the change log, and create the trigger that
+     * keys new books. Keying the existing books and the unique index on the key are an
+     * {@link OnlineMigration}, like the title keys of version 8. Only deletes log the key, as
+     * the book is gone when the change is sent.
+     */
+    private static void createUuid(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME
+                + " ADD COLUMN " + BookEntry.COLUMN_UUID + " TEXT");
+        db.execSQL("ALTER TABLE " + ChangeLogEntry.TABLE_NAME
+                + " ADD COLUMN " + ChangeLogEntry.COLUMN_BOOK_UUID + " TEXT");
+        db.execSQL("CREATE TRIGGER books_uuid_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                + " WHEN NEW." + BookEntry.COLUMN_UUID + " IS NULL BEGIN UPDATE "
+                + BookEntry.TABLE_NAME + " SET " + BookEntry.COLUMN_UUID + "=" + SQL_NEW_UUID
+                + " WHERE " + BookEntry._ID + "=NEW." + BookEntry._ID + "; END");
+        OnlineMigrations.schedule(db, new UuidBackfill());
+    }
+
+    /**
+     * (Re)create the triggers that append an entry to the change log for every insert, update
+     * and delete on the books table. Updates that do not change any captured column are not
+     * logged, and neither are those that leave the version alone, see
+     * {@link BookUpdates#update(SQLiteDatabase, ContentValues, String, String[], boolean)}.
+     */
+    private static void createChangeLogTriggers(SQLiteDatabase db) {
+        StringBuilder changedColumns = new StringBuilder();
+        StringBuilder anyChanged = new StringBuilder();
+        for (String column : CAPTURED_COLUMNS) {
+            String changed = "OLD." + column + " IS NOT NEW." + column;
+            changedColumns.append(changedColumns.length() == 0 ? "" : " || ")
+                    .append("CASE WHEN ").append(changed)
+                    .append(" THEN '").append(column).append(",' ELSE '' END");
+            anyChanged.append(anyChanged.length() == 0 ? "" : " OR ").append(changed);
+        }
+
+        db.execSQL("DROP TRIGGER IF EXISTS books_log_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS books_log_update");
+        db.execSQL("DROP TRIGGER IF EXISTS books_log_delete");
+
+        db.execSQL("CREATE TRIGGER books_log_insert AFTER INSERT ON " + BookEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + ChangeLogEntry.TABLE_NAME + " ("
+                + ChangeLogEntry.COLUMN_BOOK_ID + ", " + ChangeLogEntry.COLUMN_OP + ", "
+                + ChangeLogEntry.COLUMN_CHANGED_AT + ") VALUES (NEW." + BookEntry._ID + ", '"
+                + ChangeLogEntry.OP_INSERT + "', " + SQL_NOW + "); END");
+        db.execSQL("CREATE TRIGGER books_log_update AFTER UPDATE ON " + BookEntry.TABLE_NAME
+                + " WHEN OLD." + BookEntry.COLUMN_VERSION + " IS NOT NEW."
+                + BookEntry.COLUMN_VERSION + " AND (" + anyChanged + ")"
+                + " BEGIN INSERT INTO " + ChangeLogEntry.TABLE_NAME + " ("
+                + ChangeLogEntry.COLUMN_BOOK_ID + ", " + ChangeLogEntry.COLUMN_OP + ", "
+                + ChangeLogEntry.COLUMN_COLUMNS + ", " + ChangeLogEntry.COLUMN_CHANGED_AT
+                + ") VALUES (NEW." + BookEntry._ID + ", '" + ChangeLogEntry.OP_UPDATE + "', "
+                + "rtrim(" + changedColumns + ", ','), " + SQL_NOW + "); END");
+        db.execSQL("CREATE TRIGGER books_log_delete AFTER DELETE ON " + BookEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + ChangeLogEntry.TABLE_NAME + " ("
+                + ChangeLogEntry.COLUMN_BOOK_ID + ", " + ChangeLogEntry.COLUMN_BOOK_UUID + ", "
+                + ChangeLogEntry.COLUMN_OP + ", " + ChangeLogEntry.COLUMN_CHANGED_AT
+                + ") VALUES (OLD." + BookEntry._ID + ", OLD." + BookEntry.COLUMN_UUID + ", '"
+                + ChangeLogEntry.OP_DELETE + "', " + SQL_NOW + "); END");
     }
 }
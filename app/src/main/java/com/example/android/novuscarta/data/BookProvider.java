@@ -5,11 +5,36 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.novuscarta.core.BookQueries;
+import com.example.android.novuscarta.core.BookValidator;
+import com.example.android.novuscarta.core.PriceHistoryQueries;
+import com.example.android.novuscarta.core.SalesQueries;
+import com.example.android.novuscarta.core.SqlStatement;
+import com.example.android.novuscarta.data.BookContract.AppliedBatchEntry;
 import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+import com.example.android.novuscarta.data.BookContract.PriceHistoryEntry;
+import com.example.android.novuscarta.data.BookContract.StockEntry;
+import com.example.android.novuscarta.data.BookContract.StocktakeEntry;
+import com.example.android.novuscarta.data.BookContract.VelocityEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@Link ContentProvider} for the Novus Carta app
@@ -28,6 +53,24 @@ public class BookProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single book in the books table */
     private static final int BOOK_ID = 101;
 
+    /** URI matcher code for the content URI for the change feed of the books table */
+    private static final int CHANGES = 102;
+
+    /** URI matcher code for the content URI for the locations table */
+    private static final int LOCATIONS = 103;
+
+    /** URI matcher code for the counts of a stocktake */
+    private static final int STOCKTAKE = 104;
+
+    /** URI matcher code for the sales velocity of all books */
+    private static final int VELOCITY = 105;
+
+    /** URI matcher code for the books that should be reordered */
+    private static final int REORDER = 106;
+
+    /** URI matcher code for the price history of a single book */
+    private static final int PRICE_HISTORY = 107;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -35,11 +78,37 @@ public class BookProvider extends ContentProvider {
      */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /**
+     * Maps the columns of the change feed to the columns of the change log table. The changed
+     * book is exposed as {@link BookEntry#_ID}, so consumers can look it up directly.
+     */
+    private static final Map<String, String> sChangesProjectionMap = new LinkedHashMap<>();
+
     // Static initializer. This is run the first time anything is called from this class.
     static {
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS, BOOKS);
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
                 BookContract.PATH_BOOKS +"/#", BOOK_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_CHANGES, CHANGES);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_LOCATIONS,
+                LOCATIONS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_STOCKTAKE,
+                STOCKTAKE);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_VELOCITY,
+                VELOCITY);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_REORDER,
+                REORDER);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_PRICES, PRICE_HISTORY);
+
+        sChangesProjectionMap.put(ChangeLogEntry.COLUMN_SEQ, ChangeLogEntry.COLUMN_SEQ);
+        sChangesProjectionMap.put(ChangeLogEntry.COLUMN_OP, ChangeLogEntry.COLUMN_OP);
+        sChangesProjectionMap.put(BookEntry._ID,
+                ChangeLogEntry.COLUMN_BOOK_ID + " AS " + BookEntry._ID);
+        sChangesProjectionMap.put(ChangeLogEntry.COLUMN_COLUMNS, ChangeLogEntry.COLUMN_COLUMNS);
+        sChangesProjectionMap.put(ChangeLogEntry.COLUMN_CHANGED_AT,
+                ChangeLogEntry.COLUMN_CHANGED_AT);
     }
 
     /**
@@ -47,7 +116,7 @@ public class BookProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new BookDbHelper(getContext());
+        mDbHelper = BookDbHelper.getInstance(getContext());
         return true;
     }
 
@@ -58,6 +127,36 @@ public class BookProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Perform the query for the given URI, like {@link #query(Uri, String[], String, String[],
+     * String)}. If the caller cancels the query (e.g. a loader whose result is no longer
+     * needed), the database stops executing it and {@link OperationCanceledException} is
+     * thrown, instead of filling a cursor nobody is going to read.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        ProviderMetrics.recordQuery();
+        MainThreadMonitor.Call call = MainThreadMonitor.begin("query", uri);
+        Tracer.Span span = Tracer.begin("BookProvider.query", uri);
+        try {
+            return queryBooks(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        } catch (OperationCanceledException e) {
+            ProviderMetrics.recordQueryCancelled();
+            throw e;
+        } finally {
+            Tracer.end(span);
+            MainThreadMonitor.end(call);
+        }
+    }
+
+    private Cursor queryBooks(Uri uri, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder,
+                              CancellationSignal cancellationSignal) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -66,13 +165,30 @@ public class BookProvider extends ContentProvider {
 
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
+
+        // If the URI asks for the stock of books at one location, read the quantity from there
+        String locationParam = uri.getQueryParameter(BookEntry.PARAM_LOCATION);
+        if (locationParam != null && (match == BOOKS || match == BOOK_ID)) {
+            projection = locationProjection(projection, Long.parseLong(locationParam));
+        }
+
+        if (uri.getBooleanQueryParameter(BookEntry.PARAM_REPORT, false)) {
+            if (match != BOOKS) {
+                throw new IllegalArgumentException("Cannot run a report of " + uri);
+            }
+            if (sortOrder != null) {
+                throw new IllegalArgumentException("Reports are in the order of the book IDs");
+            }
+            return queryReport(projection, selection, selectionArgs, cancellationSignal);
+        }
+
         switch (match) {
             case BOOKS:
                 // For the BOOKS code, query the books table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the books table.
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(false, BookEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder, null, cancellationSignal);
                 break;
             case BOOK_ID:
                 // For the BOOK_ID code, extract out the ID from the URI.
@@ -88,9 +204,39 @@ public class BookProvider extends ContentProvider {
 
                 // This will perform a query on the books table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(false, BookEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder, null, cancellationSignal);
                 break;
+            case CHANGES:
+                // The change feed is read incrementally, so the caller's selection and sort
+                // order are ignored. Changes are always returned in sequence order.
+                cursor = queryChanges(database, uri, projection, cancellationSignal);
+                // Any change to a book is also a change to the feed
+                cursor.setNotificationUri(getContext().getContentResolver(), BookEntry.CONTENT_URI);
+                return cursor;
+            case LOCATIONS:
+                cursor = database.query(false, LocationEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder, null, cancellationSignal);
+                break;
+            case STOCKTAKE:
+                // The discrepancies have fixed columns, and also change when the stock does
+                cursor = queryDiscrepancies(database, uri, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        BookContract.BASE_CONTENT_URI);
+                return cursor;
+            case VELOCITY:
+            case REORDER:
+                // The velocities have fixed columns, and change with the sales and the stock
+                cursor = queryVelocity(database, uri, match == REORDER, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        BookEntry.CONTENT_URI);
+                return cursor;
+            case PRICE_HISTORY:
+                // The prices have fixed columns, and change when the book does
+                cursor = queryPrices(database, uri, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        BookEntry.CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -102,15 +248,187 @@ public class BookProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Read the books for a report from a snapshot of the database. Sales go on writing
+     * through the connection pool of the helper in the meantime. The snapshot stays open
+     * until the returned cursor is closed.
+     */
+    private Cursor queryReport(String[] projection, String selection, String[] selectionArgs,
+                               CancellationSignal cancellationSignal) {
+        ReportSnapshot snapshot = new ReportSnapshot(mDbHelper);
+        try {
+            return snapshot.queryBooks(projection, selection, selectionArgs,
+                    cancellationSignal);
+        } catch (RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the given projection of the books table with the quantity replaced by the stock
+     * at the given location. The stock is looked up by its primary key for each book, so only
+     * that location's stock is read.
+     */
+    private static String[] locationProjection(String[] projection, long locationId) {
+        if (projection == null) {
+            throw new IllegalArgumentException("Querying a location requires a projection");
+        }
+        String[] locationProjection = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (BookEntry.COLUMN_PRODUCT_QUANTITY.equals(projection[i])) {
+                locationProjection[i] = "IFNULL((SELECT " + StockEntry.COLUMN_QUANTITY
+                        + " FROM " + StockEntry.TABLE_NAME + " WHERE "
+                        + StockEntry.COLUMN_BOOK_ID + "=" + BookEntry.TABLE_NAME + "."
+                        + BookEntry._ID + " AND " + StockEntry.COLUMN_LOCATION_ID + "="
+                        + locationId + "), 0) AS " + BookEntry.COLUMN_PRODUCT_QUANTITY;
+            } else {
+                locationProjection[i] = projection[i];
+            }
+        }
+        return locationProjection;
+    }
+
+    /**
+     * Returns the location whose stock is written by the given URI.
+     */
+    private static long getLocationId(Uri uri) {
+        String locationParam = uri.getQueryParameter(BookEntry.PARAM_LOCATION);
+        return locationParam == null
+                ? LocationEntry.DEFAULT_LOCATION_ID : Long.parseLong(locationParam);
+    }
+
+    /**
+     * Read the change log after the sequence number given by the
+     * {@link ChangeLogEntry#PARAM_SINCE} parameter of the URI, using the index of its primary
+     * key, so the cost only depends on the number of changes returned.
+     */
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection,
+                                CancellationSignal cancellationSignal) {
+        long since = 0;
+        String sinceParam = uri.getQueryParameter(ChangeLogEntry.PARAM_SINCE);
+        if (sinceParam != null) {
+            since = Long.parseLong(sinceParam);
+        }
+        String limit = uri.getQueryParameter(ChangeLogEntry.PARAM_LIMIT);
+        if (limit != null) {
+            // Validate the limit, as it ends up in the SQL statement
+            limit = String.valueOf(Long.parseLong(limit));
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(ChangeLogEntry.TABLE_NAME);
+        builder.setProjectionMap(sChangesProjectionMap);
+        return builder.query(database, projection, ChangeLogEntry.COLUMN_SEQ + ">?",
+                new String[] { String.valueOf(since) }, null, null, ChangeLogEntry.COLUMN_SEQ,
+                limit, cancellationSignal);
+    }
+
+    /**
+     * Compare the counts of the stocktake at the location of the URI with the stock there, in
+     * a single pass over the books, and return the books where they differ. Books that were
+     * not counted only count as missing if the URI has {@link StocktakeEntry#PARAM_FULL_COUNT}.
+     */
+    private static Cursor queryDiscrepancies(SQLiteDatabase database, Uri uri,
+                                             CancellationSignal cancellationSignal) {
+        String location = String.valueOf(getLocationId(uri));
+        boolean fullCount = uri.getBooleanQueryParameter(StocktakeEntry.PARAM_FULL_COUNT, false);
+        String expected = "IFNULL(s." + StockEntry.COLUMN_QUANTITY + ", 0)";
+        String counted = "IFNULL(c." + StocktakeEntry.COLUMN_COUNTED + ", "
+                + (fullCount ? "0" : expected) + ")";
+        String sql = "SELECT b." + BookEntry._ID + " AS " + StocktakeEntry._ID + ", b."
+                + BookEntry.COLUMN_PRODUCT_NAME + " AS " + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                + expected + " AS " + StocktakeEntry.COLUMN_EXPECTED + ", "
+                + counted + " AS " + StocktakeEntry.COLUMN_COUNTED + ", "
+                + counted + "-" + expected + " AS " + StocktakeEntry.COLUMN_DIFFERENCE
+                + " FROM " + BookEntry.TABLE_NAME + " b"
+                + " LEFT JOIN " + StockEntry.TABLE_NAME + " s ON s." + StockEntry.COLUMN_BOOK_ID
+                + "=b." + BookEntry._ID + " AND s." + StockEntry.COLUMN_LOCATION_ID + "=?"
+                + " LEFT JOIN " + StocktakeEntry.TABLE_NAME + " c ON c."
+                + StocktakeEntry.COLUMN_BOOK_ID + "=b." + BookEntry._ID + " AND c."
+                + StocktakeEntry.COLUMN_LOCATION_ID + "=?"
+                + " WHERE " + counted + "<>" + expected
+                + " ORDER BY b." + BookEntry.COLUMN_PRODUCT_NAME;
+        return database.rawQuery(sql, new String[] { location, location }, cancellationSignal);
+    }
+
+    /**
+     * Read the sales velocity of the books from the rollups of their recent sales, so the
+     * cost doesn't grow with the length of the sales history.
+     */
+    private static Cursor queryVelocity(SQLiteDatabase database, Uri uri, boolean reorderOnly,
+                                        CancellationSignal cancellationSignal) {
+        String coverDaysParam = uri.getQueryParameter(VelocityEntry.PARAM_COVER_DAYS);
+        int coverDays = coverDaysParam == null
+                ? VelocityEntry.DEFAULT_COVER_DAYS : Integer.parseInt(coverDaysParam);
+        SqlStatement query = SalesQueries.velocity(System.currentTimeMillis() / 1000,
+                coverDays, reorderOnly);
+        return rawQuery(database, query, cancellationSignal);
+    }
+
+    /**
+     * Returns the price of a book at the instant of {@link PriceHistoryEntry#PARAM_AT}, or else
+     * its prices during the period of {@link PriceHistoryEntry#PARAM_FROM} and
+     * {@link PriceHistoryEntry#PARAM_TO}. Either is a seek into the primary key of the history.
+     */
+    private static Cursor queryPrices(SQLiteDatabase database, Uri uri,
+                                      CancellationSignal cancellationSignal) {
+        long bookId = Long.parseLong(uri.getPathSegments().get(1));
+        String atParam = uri.getQueryParameter(PriceHistoryEntry.PARAM_AT);
+        SqlStatement query;
+        if (atParam != null) {
+            query = PriceHistoryQueries.priceAt(bookId, Long.parseLong(atParam));
+        } else {
+            String fromParam = uri.getQueryParameter(PriceHistoryEntry.PARAM_FROM);
+            String toParam = uri.getQueryParameter(PriceHistoryEntry.PARAM_TO);
+            query = PriceHistoryQueries.prices(bookId,
+                    fromParam == null ? Long.MIN_VALUE : Long.parseLong(fromParam),
+                    toParam == null ? Long.MAX_VALUE : Long.parseLong(toParam));
+        }
+        return rawQuery(database, query, cancellationSignal);
+    }
+
+    /**
+     * Run a query of the core module. SQLiteDatabase only binds strings to a raw query, which
+     * the integer columns the queries compare them with convert back to numbers.
+     */
+    private static Cursor rawQuery(SQLiteDatabase database, SqlStatement query,
+                                   CancellationSignal cancellationSignal) {
+        String[] args = new String[query.args.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = query.args[i].toString();
+        }
+        return database.rawQuery(query.sql, args, cancellationSignal);
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        MainThreadMonitor.Call call = MainThreadMonitor.begin("insert", uri);
+        Tracer.Span span = Tracer.begin("BookProvider.insert", uri);
+        try {
+            return doInsert(uri, contentValues);
+        } finally {
+            Tracer.end(span);
+            MainThreadMonitor.end(call);
+        }
+    }
+
+    private Uri doInsert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
+                if (uri.getBooleanQueryParameter(BookEntry.PARAM_RESTOCK, false)) {
+                    long id = restockBooks(uri, new ContentValues[] { contentValues })[0];
+                    return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+                }
                 return insertBook(uri, contentValues);
+            case LOCATIONS:
+                return insertLocation(uri, contentValues);
+            case STOCKTAKE:
+                return recordCount(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -121,11 +439,32 @@ public class BookProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertBook(Uri uri, ContentValues values) {
+        BookValidator.checkNewBookValues(SQLiteBookStore.toRow(values));
+
         // Gets the data repository in write mode
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        // Insert the new book with the given values
-        long id = db.insert(BookEntry.TABLE_NAME, null, values);
+        // New books always start at the default version, with a new global key. With the
+        // natural key set, the unique index rejects a book that is already in the catalog.
+        values = new ContentValues(BookUpdates.withDerivedColumns(values));
+        values.remove(BookEntry.COLUMN_VERSION);
+        values.remove(BookEntry.COLUMN_UUID);
+        values.put(BookEntry.COLUMN_NATURAL_KEY, BookUpdates.naturalKey(values));
+
+        // Insert the new book with the given values. Its quantity is the initial stock at the
+        // location, which also makes it the total.
+        long id;
+        db.beginTransaction();
+        try {
+            id = db.insert(BookEntry.TABLE_NAME, null, values);
+            Integer quantity = values.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY);
+            if (id != -1 && quantity != null) {
+                writeStock(db, id, getLocationId(uri), quantity);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
@@ -133,6 +472,7 @@ public class BookProvider extends ContentProvider {
         }
 
         // Notify all listeners that the data has changed for the book content URI
+        Tracer.handOffFlows();
         getContext().getContentResolver().notifyChange(uri, null);
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end
@@ -140,12 +480,243 @@ public class BookProvider extends ContentProvider {
 
     }
 
+    /**
+     * Insert several rows in one call. Books restocked with {@link BookEntry#PARAM_RESTOCK}
+     * are all written in one transaction; everything else is inserted row by row.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        MainThreadMonitor.Call call = MainThreadMonitor.begin("bulkInsert", uri);
+        Tracer.Span span = Tracer.begin("BookProvider.bulkInsert", uri);
+        try {
+            if (sUriMatcher.match(uri) == BOOKS
+                    && uri.getBooleanQueryParameter(BookEntry.PARAM_RESTOCK, false)) {
+                return restockBooks(uri, values).length;
+            }
+            return super.bulkInsert(uri, values);
+        } finally {
+            Tracer.end(span);
+            MainThreadMonitor.end(call);
+        }
+    }
+
+    /**
+     * Add the quantities of the given books to their stock at the location of the URI. Books
+     * that are not in the catalog yet (by their natural key) are inserted first. All books are
+     * written in one transaction, with one statement per table and book, and listeners are
+     * notified once.
+     *
+     * @return the IDs of the books, in the order of the values
+     */
+    private long[] restockBooks(Uri uri, ContentValues[] rows) {
+        for (ContentValues row : rows) {
+            BookValidator.checkNewBookValues(SQLiteBookStore.toRow(row));
+        }
+        long locationId = getLocationId(uri);
+        long[] ids = new long[rows.length];
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        // A book already in the catalog is left as it is; only its stock changes
+        SQLiteStatement insertBook = db.compileStatement("INSERT OR IGNORE INTO "
+                + BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_PRODUCT_NAME + ", "
+                + BookEntry.COLUMN_TITLE_KEY + ", " + BookEntry.COLUMN_PRODUCT_PRICE + ", "
+                + BookEntry.COLUMN_PRODUCT_QUANTITY + ", " + BookEntry.COLUMN_PRODUCT_CATEGORY
+                + ", " + BookEntry.COLUMN_SUPPLIER_NAME + ", " + BookEntry.COLUMN_SUPPLIER_NUMBER
+                + ", " + BookEntry.COLUMN_ISBN + ", " + BookEntry.COLUMN_NATURAL_KEY
+                + ") VALUES (?, ?, ?, 0, ?, ?, ?, ?, ?)");
+        SQLiteStatement findBook = db.compileStatement("SELECT " + BookEntry._ID + " FROM "
+                + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_NATURAL_KEY + "=?");
+        // While the title keys are filled in in the background, a book delivered again may not
+        // have its keys yet. Filling in the title key of its copies first gives the oldest one
+        // the natural key, through the trigger, so the delivery restocks it. Like the backfill,
+        // this leaves the change log and the version alone.
+        SQLiteStatement setTitleKey = OnlineMigrations.hasPending(db)
+                ? db.compileStatement("UPDATE " + BookEntry.TABLE_NAME + " SET "
+                        + BookEntry.COLUMN_TITLE_KEY + "=? WHERE " + BookEntry.COLUMN_TITLE_KEY
+                        + " IS NULL AND " + BookEntry.COLUMN_PRODUCT_NAME + "=? AND "
+                        + BookEntry.COLUMN_SUPPLIER_NAME + "=?")
+                : null;
+        StockAdder addStock = new StockAdder(db);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                ContentValues row = BookUpdates.withDerivedColumns(rows[i]);
+                String naturalKey = BookUpdates.naturalKey(row);
+                if (setTitleKey != null) {
+                    setTitleKey.bindString(1, row.getAsString(BookEntry.COLUMN_TITLE_KEY));
+                    setTitleKey.bindString(2, row.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+                    setTitleKey.bindString(3, row.getAsString(BookEntry.COLUMN_SUPPLIER_NAME));
+                    setTitleKey.executeUpdateDelete();
+                }
+                Integer category = row.getAsInteger(BookEntry.COLUMN_PRODUCT_CATEGORY);
+                DatabaseUtils.bindObjectToProgram(insertBook, 1,
+                        row.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+                DatabaseUtils.bindObjectToProgram(insertBook, 2,
+                        row.getAsString(BookEntry.COLUMN_TITLE_KEY));
+                insertBook.bindLong(3, row.getAsInteger(BookEntry.COLUMN_PRODUCT_PRICE));
+                insertBook.bindLong(4, category == null ? BookEntry.CATEGORY_UNKNOWN : category);
+                insertBook.bindString(5, row.getAsString(BookEntry.COLUMN_SUPPLIER_NAME));
+                insertBook.bindString(6, row.getAsString(BookEntry.COLUMN_SUPPLIER_NUMBER));
+                DatabaseUtils.bindObjectToProgram(insertBook, 7,
+                        row.getAsString(BookEntry.COLUMN_ISBN));
+                insertBook.bindString(8, naturalKey);
+                insertBook.executeInsert();
+
+                findBook.bindString(1, naturalKey);
+                ids[i] = findBook.simpleQueryForLong();
+                addStock.add(ids[i], locationId,
+                        row.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertBook.close();
+            findBook.close();
+            if (setTitleKey != null) {
+                setTitleKey.close();
+            }
+            addStock.close();
+        }
+
+        if (rows.length != 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return ids;
+    }
+
+    /**
+     * Adds to the stock of books at locations, creating the stock row if there is none yet.
+     */
+    private static final class StockAdder {
+
+        /** First version with a SQLite that supports upserts (Android 11, SQLite 3.28) */
+        private static final int SDK_UPSERT = 30;
+
+        private final SQLiteStatement mUpsert;
+        private final SQLiteStatement mInsert;
+        private final SQLiteStatement mUpdate;
+
+        StockAdder(SQLiteDatabase db) {
+            if (Build.VERSION.SDK_INT >= SDK_UPSERT) {
+                mUpsert = db.compileStatement("INSERT INTO " + StockEntry.TABLE_NAME + " ("
+                        + StockEntry.COLUMN_BOOK_ID + ", " + StockEntry.COLUMN_LOCATION_ID + ", "
+                        + StockEntry.COLUMN_QUANTITY + ") VALUES (?, ?, ?) ON CONFLICT ("
+                        + StockEntry.COLUMN_BOOK_ID + ", " + StockEntry.COLUMN_LOCATION_ID
+                        + ") DO UPDATE SET " + StockEntry.COLUMN_QUANTITY + "="
+                        + StockEntry.COLUMN_QUANTITY + "+excluded." + StockEntry.COLUMN_QUANTITY);
+                mInsert = null;
+                mUpdate = null;
+            } else {
+                // Older versions make sure the row exists and then add to it
+                mUpsert = null;
+                mInsert = db.compileStatement("INSERT OR IGNORE INTO " + StockEntry.TABLE_NAME
+                        + " (" + StockEntry.COLUMN_BOOK_ID + ", " + StockEntry.COLUMN_LOCATION_ID
+                        + ", " + StockEntry.COLUMN_QUANTITY + ") VALUES (?, ?, 0)");
+                mUpdate = db.compileStatement("UPDATE " + StockEntry.TABLE_NAME + " SET "
+                        + StockEntry.COLUMN_QUANTITY + "=" + StockEntry.COLUMN_QUANTITY
+                        + "+? WHERE " + StockEntry.COLUMN_BOOK_ID + "=? AND "
+                        + StockEntry.COLUMN_LOCATION_ID + "=?");
+            }
+        }
+
+        void add(long bookId, long locationId, int quantity) {
+            if (mUpsert != null) {
+                mUpsert.bindLong(1, bookId);
+                mUpsert.bindLong(2, locationId);
+                mUpsert.bindLong(3, quantity);
+                mUpsert.executeInsert();
+                return;
+            }
+            mInsert.bindLong(1, bookId);
+            mInsert.bindLong(2, locationId);
+            mInsert.executeInsert();
+            mUpdate.bindLong(1, quantity);
+            mUpdate.bindLong(2, bookId);
+            mUpdate.bindLong(3, locationId);
+            mUpdate.executeUpdateDelete();
+        }
+
+        void close() {
+            if (mUpsert != null) {
+                mUpsert.close();
+            } else {
+                mInsert.close();
+                mUpdate.close();
+            }
+        }
+    }
+
+    /**
+     * Add copies of a book counted in the stocktake at the location of the URI to its count.
+     * Returns the URI of the stocktake with the ID of the book.
+     */
+    private Uri recordCount(Uri uri, ContentValues values) {
+        Long bookId = values.getAsLong(StocktakeEntry.COLUMN_BOOK_ID);
+        if (bookId == null) {
+            throw new IllegalArgumentException("A count requires a book");
+        }
+        Integer counted = values.getAsInteger(StocktakeEntry.COLUMN_COUNTED);
+        if (counted == null) {
+            counted = 1;
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String[] key = new String[] {
+                String.valueOf(getLocationId(uri)), String.valueOf(bookId) };
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT OR IGNORE INTO " + StocktakeEntry.TABLE_NAME + " ("
+                    + StocktakeEntry.COLUMN_LOCATION_ID + ", " + StocktakeEntry.COLUMN_BOOK_ID
+                    + ") VALUES (?, ?)", key);
+            db.execSQL("UPDATE " + StocktakeEntry.TABLE_NAME + " SET "
+                    + StocktakeEntry.COLUMN_COUNTED + "=MAX(0, " + StocktakeEntry.COLUMN_COUNTED
+                    + "+" + counted + ") WHERE " + StocktakeEntry.COLUMN_LOCATION_ID + "=? AND "
+                    + StocktakeEntry.COLUMN_BOOK_ID + "=?", key);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        getContext().getContentResolver().notifyChange(StocktakeEntry.CONTENT_URI, null);
+        return ContentUris.withAppendedId(StocktakeEntry.CONTENT_URI, bookId);
+    }
+
+    /**
+     * Insert a location into the database. Return the new content URI for that location.
+     */
+    private Uri insertLocation(Uri uri, ContentValues values) {
+        String name = values.getAsString(LocationEntry.COLUMN_LOCATION_NAME);
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Location requires a name");
+        }
+
+        long id = mDbHelper.getWritableDatabase().insert(LocationEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        MainThreadMonitor.Call call = MainThreadMonitor.begin("update", uri);
+        Tracer.Span span = Tracer.begin("BookProvider.update", uri);
+        try {
+            return doUpdate(uri, contentValues, selection, selectionArgs);
+        } finally {
+            Tracer.end(span);
+            MainThreadMonitor.end(call);
+        }
+    }
+
+    private int doUpdate(Uri uri, ContentValues contentValues, String selection,
+                         String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
@@ -154,9 +725,26 @@ public class BookProvider extends ContentProvider {
                 // For the BOOK_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
-                selection = BookEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                String id = String.valueOf(ContentUris.parseId(uri));
+                String expectedVersion =
+                        uri.getQueryParameter(BookEntry.PARAM_EXPECTED_VERSION);
+                if (expectedVersion == null) {
+                    selection = BookEntry._ID + "=?";
+                    selectionArgs = new String[] { id };
+                    return updateBook(uri, contentValues, selection, selectionArgs);
+                }
+
+                // If the caller gave the version it read, only update the book if nobody else
+                // has written it since. The check and the write are the same statement.
+                selection = BookEntry._ID + "=? AND " + BookEntry.COLUMN_VERSION + "=?";
+                selectionArgs = new String[] {
+                        id, String.valueOf(Long.parseLong(expectedVersion)) };
+                int rowsUpdated = updateBook(uri, contentValues, selection, selectionArgs);
+                if (rowsUpdated == 0 && contentValues.size() != 0 && bookExists(id)) {
+                    // The book is still there, so it was changed by someone else
+                    return BookEntry.UPDATE_CONFLICT;
+                }
+                return rowsUpdated;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -168,53 +756,11 @@ public class BookProvider extends ContentProvider {
      * Return the number of rows that were successfully updated.
      */
     private int updateBook(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link BookEntry#COLUMN_PRODUCT_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(BookEntry.COLUMN_PRODUCT_NAME)) {
-            String productName = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
-            if (productName == null) {
-                throw new IllegalArgumentException("Book requires a title");
-            }
-        }
-        // If the {@link BookEntry#COLUMN_PRODUCT_PRICE} key is present,
-        // check that the price value is not null and is greater than 0.
-        if (values.containsKey(BookEntry.COLUMN_PRODUCT_PRICE)) {
-            Integer productPrice = values.getAsInteger(BookEntry.COLUMN_PRODUCT_PRICE);
-            if (productPrice != null && productPrice < 0) {
-                throw new IllegalArgumentException("Book requires a valid price");
-            }
-        }
-        // If the {@link BookEntry#COLUMN_PRODUCT_QUANTITY} key is present,
-        // check that the quantity value is not null and is 0 or a positive number.
-        if (values.containsKey(BookEntry.COLUMN_PRODUCT_QUANTITY)) {
-            Integer productQuantity = values.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY);
-            if (productQuantity != null && productQuantity < 0) {
-                throw new IllegalArgumentException("Book requires a valid quantity");
-            }
-        }
-        // If the {@link BookEntry#COLUMN_PRODUCT_CATEGORY} key is present,
-        // check that the category value is valid.
-        if (values.containsKey(BookEntry.COLUMN_PRODUCT_CATEGORY)) {
-            Integer productCategory = values.getAsInteger(BookEntry.COLUMN_PRODUCT_CATEGORY);
-            if (productCategory == null || !BookEntry.isValidCategory(productCategory)) {
-                throw new IllegalArgumentException("Book requires a valid category");
-            }
-        }
-        // If the {@link BookEntry#COLUMN_SUPPLIER_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
-            String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
-            if (supplierName == null) {
-                throw new IllegalArgumentException("Supplier name required");
-            }
-        }
-        // If the {@link BookEntry#COLUMN_SUPPLIER_NUMBER} key is present,
-        // check that the number value is not null
-        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NUMBER)) {
-            String supplierNumber = values.getAsString(BookEntry.COLUMN_SUPPLIER_NUMBER);
-            if (supplierNumber == null) {
-                throw new IllegalArgumentException("Supplier number required");
-            }
+        Tracer.Span span = Tracer.begin("BookProvider.validate", null);
+        try {
+            BookValidator.checkBookValues(SQLiteBookStore.toRow(values));
+        } finally {
+            Tracer.end(span);
         }
 
         // If there are no values to update, then don't try to update the database
@@ -224,12 +770,26 @@ public class BookProvider extends ContentProvider {
         // Otherwise, get writable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(BookEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. This also
+        // increments the version of every updated book.
+        int rowsUpdated;
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_PRODUCT_QUANTITY);
+        span = Tracer.begin("BookProvider.writeBooks", selection);
+        try {
+            if (quantity == null) {
+                rowsUpdated = BookUpdates.update(database, values, selection, selectionArgs);
+            } else {
+                rowsUpdated = updateBookAndStock(database, values, quantity, getLocationId(uri),
+                        selection, selectionArgs);
+            }
+        } finally {
+            Tracer.end(span);
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
+            Tracer.handOffFlows();
             getContext().getContentResolver().notifyChange(uri, null);
         }
 
@@ -237,11 +797,83 @@ public class BookProvider extends ContentProvider {
         return rowsUpdated;
     }
 
+    /**
+     * Update books including their quantity, which is written to the stock at the given
+     * location. The total quantity of the books is then updated by the stock triggers.
+     */
+    private static int updateBookAndStock(SQLiteDatabase db, ContentValues values, int quantity,
+                                          long locationId, String selection,
+                                          String[] selectionArgs) {
+        ContentValues bookValues = new ContentValues(values);
+        bookValues.remove(BookEntry.COLUMN_PRODUCT_QUANTITY);
+
+        db.beginTransaction();
+        try {
+            // Find the books before updating them, as the selection may include the version
+            List<Long> ids = new ArrayList<>();
+            Cursor cursor = db.query(BookEntry.TABLE_NAME, new String[] { BookEntry._ID },
+                    selection, selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // Even with only the quantity to write this runs, to check and bump the version
+            int rowsUpdated = BookUpdates.update(db, bookValues, selection, selectionArgs);
+            for (long id : ids) {
+                writeStock(db, id, locationId, quantity);
+            }
+            db.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Set the stock of a book at a location, touching only that one row of the stock table.
+     */
+    private static void writeStock(SQLiteDatabase db, long bookId, long locationId,
+                                   int quantity) {
+        ContentValues stock = new ContentValues();
+        stock.put(StockEntry.COLUMN_QUANTITY, quantity);
+        String[] key = new String[] { String.valueOf(bookId), String.valueOf(locationId) };
+        int rowsUpdated = db.update(StockEntry.TABLE_NAME, stock, StockEntry.COLUMN_BOOK_ID
+                + "=? AND " + StockEntry.COLUMN_LOCATION_ID + "=?", key);
+        if (rowsUpdated == 0) {
+            stock.put(StockEntry.COLUMN_BOOK_ID, bookId);
+            stock.put(StockEntry.COLUMN_LOCATION_ID, locationId);
+            db.insertOrThrow(StockEntry.TABLE_NAME, null, stock);
+        }
+    }
+
+    /**
+     * Returns whether the book with the given ID is in the database.
+     */
+    private boolean bookExists(String id) {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                BookEntry.TABLE_NAME, BookEntry._ID + "=?", new String[] { id }) != 0;
+    }
+
     /**
      * Delete the data at the given selection and selection arguments.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        MainThreadMonitor.Call call = MainThreadMonitor.begin("delete", uri);
+        Tracer.Span span = Tracer.begin("BookProvider.delete", uri);
+        try {
+            return doDelete(uri, selection, selectionArgs);
+        } finally {
+            Tracer.end(span);
+            MainThreadMonitor.end(call);
+        }
+    }
+
+    private int doDelete(Uri uri, String selection, String[] selectionArgs) {
         // Get writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -252,21 +884,49 @@ public class BookProvider extends ContentProvider {
         switch (match) {
             case BOOKS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case BOOK_ID:
                 // Delete a single row given by the ID in the URI
                 selection = BookEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case STOCKTAKE:
+                // Discard the counts at the location
+                rowsDeleted = database.delete(StocktakeEntry.TABLE_NAME,
+                        StocktakeEntry.COLUMN_LOCATION_ID + "=?",
+                        new String[] { String.valueOf(getLocationId(uri)) });
+                if (rowsDeleted != 0) {
+                    getContext().getContentResolver().notifyChange(StocktakeEntry.CONTENT_URI,
+                            null);
+                }
+                return rowsDeleted;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
+        // Find the cover files of the books about to be deleted, so they can be removed too
+        List<String> coverPaths = new ArrayList<>();
+        String coverSelection = BookEntry.COLUMN_COVER_PATH + " IS NOT NULL";
+        if (selection != null) {
+            coverSelection += " AND (" + selection + ")";
+        }
+        Cursor covers = database.query(BookEntry.TABLE_NAME,
+                new String[] { BookEntry.COLUMN_COVER_PATH }, coverSelection, selectionArgs,
+                null, null, null);
+        try {
+            while (covers.moveToNext()) {
+                coverPaths.add(covers.getString(0));
+            }
+        } finally {
+            covers.close();
+        }
+
+        rowsDeleted = database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
+
+        // If 1 or more rows were deleted, then delete their covers and notify all listeners
+        // that the data at the given URI has changed
         if (rowsDeleted != 0) {
+            CoverStore.deleteCovers(coverPaths);
             getContext().getContentResolver().notifyChange(uri, null);
         }
 
@@ -274,6 +934,224 @@ public class BookProvider extends ContentProvider {
         return rowsDeleted;
     }
 
+    /**
+     * Call a provider method that is not a plain query, insert, update or delete.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        MainThreadMonitor.Call call = MainThreadMonitor.begin("call", method);
+        Tracer.Span span = Tracer.begin("BookProvider.call", method);
+        try {
+            if (BookContract.METHOD_APPLY_STOCK_DELTAS.equals(method)) {
+                return applyStockDeltas(arg, extras);
+            }
+            if (BookContract.METHOD_APPLY_STOCKTAKE.equals(method)) {
+                return applyStocktake(arg, extras);
+            }
+            if (BookContract.METHOD_ADJUST_PRICES.equals(method)) {
+                return adjustPrices(extras);
+            }
+            return super.call(method, arg, extras);
+        } finally {
+            Tracer.end(span);
+            MainThreadMonitor.end(call);
+        }
+    }
+
+    /**
+     * Add the deltas of a batch to the stock, unless the batch was applied before. The whole
+     * batch is one transaction, and listeners are notified once at the end.
+     */
+    private Bundle applyStockDeltas(String batchId, Bundle extras) {
+        if (batchId == null) {
+            throw new IllegalArgumentException("A batch requires an ID");
+        }
+        long[] bookIds = extras.getLongArray(BookContract.EXTRA_BOOK_IDS);
+        long[] locationIds = extras.getLongArray(BookContract.EXTRA_LOCATION_IDS);
+        int[] deltas = extras.getIntArray(BookContract.EXTRA_DELTAS);
+        if (bookIds == null || locationIds == null || deltas == null
+                || bookIds.length != locationIds.length || bookIds.length != deltas.length) {
+            throw new IllegalArgumentException("A batch requires a delta for every book");
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis() / 1000;
+        boolean applied;
+        Tracer.Span span = Tracer.begin("BookProvider.writeStockDeltas", batchId);
+        db.beginTransaction();
+        try {
+            ContentValues batch = new ContentValues();
+            batch.put(AppliedBatchEntry.COLUMN_BATCH_ID, batchId);
+            batch.put(AppliedBatchEntry.COLUMN_APPLIED_AT, now);
+            applied = db.insertWithOnConflict(AppliedBatchEntry.TABLE_NAME, null, batch,
+                    SQLiteDatabase.CONFLICT_IGNORE) != -1;
+            if (applied) {
+                SQLiteStatement update = db.compileStatement("UPDATE " + StockEntry.TABLE_NAME
+                        + " SET " + StockEntry.COLUMN_QUANTITY + "=MAX(0, "
+                        + StockEntry.COLUMN_QUANTITY + "+?) WHERE " + StockEntry.COLUMN_BOOK_ID
+                        + "=? AND " + StockEntry.COLUMN_LOCATION_ID + "=?");
+                SQLiteStatement stock = db.compileStatement("SELECT IFNULL((SELECT "
+                        + StockEntry.COLUMN_QUANTITY + " FROM " + StockEntry.TABLE_NAME
+                        + " WHERE " + StockEntry.COLUMN_BOOK_ID + "=? AND "
+                        + StockEntry.COLUMN_LOCATION_ID + "=?), 0)");
+                // A book deleted since the sale (or delivery) was queued gets no stock back
+                SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                        + StockEntry.TABLE_NAME + " (" + StockEntry.COLUMN_BOOK_ID + ", "
+                        + StockEntry.COLUMN_LOCATION_ID + ", " + StockEntry.COLUMN_QUANTITY
+                        + ") SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM " + BookEntry.TABLE_NAME
+                        + " WHERE " + BookEntry._ID + "=?)");
+                SQLiteBookStore store = new SQLiteBookStore(db);
+                try {
+                    for (int i = 0; i < deltas.length; i++) {
+                        // A sale only counts the copies that were still in stock
+                        int sold = 0;
+                        if (deltas[i] < 0) {
+                            stock.bindLong(1, bookIds[i]);
+                            stock.bindLong(2, locationIds[i]);
+                            sold = (int) Math.min(-deltas[i], stock.simpleQueryForLong());
+                        }
+                        update.bindLong(1, deltas[i]);
+                        update.bindLong(2, bookIds[i]);
+                        update.bindLong(3, locationIds[i]);
+                        if (update.executeUpdateDelete() == 0 && deltas[i] > 0) {
+                            // First stock of the book at this location
+                            insert.bindLong(1, bookIds[i]);
+                            insert.bindLong(2, locationIds[i]);
+                            insert.bindLong(3, deltas[i]);
+                            insert.bindLong(4, bookIds[i]);
+                            insert.executeInsert();
+                        }
+                        if (sold > 0) {
+                            store.executeUpdateDelete(SalesQueries.recordSale(bookIds[i],
+                                    locationIds[i], sold, now));
+                        }
+                    }
+                } finally {
+                    update.close();
+                    stock.close();
+                    insert.close();
+                }
+            }
+            // Forget batches that are far too old to be sent again
+            db.delete(AppliedBatchEntry.TABLE_NAME, AppliedBatchEntry.COLUMN_APPLIED_AT + "<?",
+                    new String[] {
+                            String.valueOf(now - AppliedBatchEntry.RETENTION_SECONDS) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            Tracer.end(span);
+        }
+
+        if (applied) {
+            Tracer.handOffFlows();
+            getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        }
+        Bundle result = new Bundle();
+        result.putBoolean(BookContract.EXTRA_APPLIED, applied);
+        return result;
+    }
+
+    /**
+     * Set the stock at a location to the counts of its stocktake and clear the counts. The
+     * adjustments are a few set-based statements in one transaction, so the stock is never
+     * half reconciled; the stock triggers then update the totals of the adjusted books.
+     */
+    private Bundle applyStocktake(String locationArg, Bundle extras) {
+        if (locationArg == null) {
+            throw new IllegalArgumentException("A stocktake requires a location");
+        }
+        String location = String.valueOf(Long.parseLong(locationArg));
+        boolean fullCount = extras != null && extras.getBoolean(BookContract.EXTRA_FULL_COUNT);
+
+        String countedBooks = "SELECT " + StocktakeEntry.COLUMN_BOOK_ID + " FROM "
+                + StocktakeEntry.TABLE_NAME + " WHERE " + StocktakeEntry.COLUMN_LOCATION_ID
+                + "=" + location;
+        String count = "(SELECT " + StocktakeEntry.COLUMN_COUNTED + " FROM "
+                + StocktakeEntry.TABLE_NAME + " c WHERE c." + StocktakeEntry.COLUMN_BOOK_ID + "="
+                + StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_BOOK_ID + " AND c."
+                + StocktakeEntry.COLUMN_LOCATION_ID + "=" + location + ")";
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int adjusted = 0;
+        db.beginTransaction();
+        try {
+            // Stock that was counted and differs
+            adjusted += executeUpdateDelete(db, "UPDATE " + StockEntry.TABLE_NAME + " SET "
+                    + StockEntry.COLUMN_QUANTITY + "=" + count + " WHERE "
+                    + StockEntry.COLUMN_LOCATION_ID + "=" + location + " AND "
+                    + StockEntry.COLUMN_BOOK_ID + " IN (" + countedBooks + ") AND "
+                    + StockEntry.COLUMN_QUANTITY + "<>" + count);
+            // Books counted where they had no stock yet
+            adjusted += executeUpdateDelete(db, "INSERT INTO " + StockEntry.TABLE_NAME + " ("
+                    + StockEntry.COLUMN_BOOK_ID + ", " + StockEntry.COLUMN_LOCATION_ID + ", "
+                    + StockEntry.COLUMN_QUANTITY + ") SELECT " + StocktakeEntry.COLUMN_BOOK_ID
+                    + ", " + StocktakeEntry.COLUMN_LOCATION_ID + ", "
+                    + StocktakeEntry.COLUMN_COUNTED + " FROM " + StocktakeEntry.TABLE_NAME
+                    + " WHERE " + StocktakeEntry.COLUMN_LOCATION_ID + "=" + location + " AND "
+                    + StocktakeEntry.COLUMN_COUNTED + "<>0 AND "
+                    + StocktakeEntry.COLUMN_BOOK_ID + " NOT IN (SELECT "
+                    + StockEntry.COLUMN_BOOK_ID + " FROM " + StockEntry.TABLE_NAME + " WHERE "
+                    + StockEntry.COLUMN_LOCATION_ID + "=" + location + ")");
+            if (fullCount) {
+                // Books that were not found anywhere at the location
+                adjusted += executeUpdateDelete(db, "UPDATE " + StockEntry.TABLE_NAME + " SET "
+                        + StockEntry.COLUMN_QUANTITY + "=0 WHERE "
+                        + StockEntry.COLUMN_LOCATION_ID + "=" + location + " AND "
+                        + StockEntry.COLUMN_QUANTITY + "<>0 AND " + StockEntry.COLUMN_BOOK_ID
+                        + " NOT IN (" + countedBooks + ")");
+            }
+            db.delete(StocktakeEntry.TABLE_NAME, StocktakeEntry.COLUMN_LOCATION_ID + "=?",
+                    new String[] { location });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        getContext().getContentResolver().notifyChange(BookContract.BASE_CONTENT_URI, null);
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_ADJUSTED, adjusted);
+        return result;
+    }
+
+    /**
+     * Add a percentage or an amount to the prices of the books matching the filters in the
+     * extras, with a single UPDATE however many books match. The statement comes from
+     * {@link BookQueries}, which keeps the new prices within the rules of {@link BookValidator}.
+     */
+    private Bundle adjustPrices(Bundle extras) {
+        if (extras == null || extras.containsKey(BookContract.EXTRA_PERCENT)
+                == extras.containsKey(BookContract.EXTRA_AMOUNT)) {
+            throw new IllegalArgumentException(
+                    "A price adjustment requires either a percentage or an amount");
+        }
+
+        boolean percent = extras.containsKey(BookContract.EXTRA_PERCENT);
+        int adjustment = extras.getInt(percent
+                ? BookContract.EXTRA_PERCENT : BookContract.EXTRA_AMOUNT);
+        Integer category = extras.containsKey(BookContract.EXTRA_CATEGORY)
+                ? extras.getInt(BookContract.EXTRA_CATEGORY) : null;
+        SqlStatement update = BookQueries.adjustPrices(percent, adjustment, category,
+                extras.getString(BookContract.EXTRA_SUPPLIER));
+        int adjusted = new SQLiteBookStore(mDbHelper.getWritableDatabase())
+                .executeUpdateDelete(update);
+
+        if (adjusted != 0) {
+            getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        }
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_ADJUSTED, adjusted);
+        return result;
+    }
+
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -285,6 +1163,17 @@ public class BookProvider extends ContentProvider {
                 return BookEntry.CONTENT_LIST_TYPE;
             case BOOK_ID:
                 return BookEntry.CONTENT_ITEM_TYPE;
+            case CHANGES:
+                return ChangeLogEntry.CONTENT_LIST_TYPE;
+            case LOCATIONS:
+                return LocationEntry.CONTENT_LIST_TYPE;
+            case STOCKTAKE:
+                return StocktakeEntry.CONTENT_LIST_TYPE;
+            case VELOCITY:
+            case REORDER:
+                return VelocityEntry.CONTENT_LIST_TYPE;
+            case PRICE_HISTORY:
+                return PriceHistoryEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
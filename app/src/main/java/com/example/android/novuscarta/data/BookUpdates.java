@@ -0,0 +1,103 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.novuscarta.core.BookQueries;
+import com.example.android.novuscarta.core.Row;
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Updates of the books table that keep {@link BookEntry#COLUMN_VERSION} current. Every write
+ * to existing books must go through here (or increment the version in its own SQL), otherwise
+ * optimistic concurrency checks would miss it.
+ *
+ * Writes of new books pass their values through {@link #withDerivedColumns(ContentValues)}
+ * first, so the columns computed from the title and the ISBN are always filled in.
+ */
+public final class BookUpdates {
+
+    /** Matches everything in an ISBN that is not a digit or the check character X */
+    private static final Pattern ISBN_SEPARATORS = Pattern.compile("[^0-9Xx]+");
+
+    private BookUpdates() {}
+
+    /**
+     * Returns the values with the columns derived from them: the title key of the title, and
+     * the ISBN without separators. The given values are not changed.
+     */
+    public static ContentValues withDerivedColumns(ContentValues values) {
+        if (!values.containsKey(BookEntry.COLUMN_PRODUCT_NAME)
+                && !values.containsKey(BookEntry.COLUMN_ISBN)) {
+            return values;
+        }
+        ContentValues derived = new ContentValues(values);
+        if (values.containsKey(BookEntry.COLUMN_PRODUCT_NAME)) {
+            String title = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
+            derived.put(BookEntry.COLUMN_TITLE_KEY,
+                    title == null ? null : TitleIndex.normalize(title));
+        }
+        if (values.containsKey(BookEntry.COLUMN_ISBN)) {
+            derived.put(BookEntry.COLUMN_ISBN,
+                    normalizeIsbn(values.getAsString(BookEntry.COLUMN_ISBN)));
+        }
+        return derived;
+    }
+
+    /**
+     * Returns the ISBN with hyphens and spaces removed, or null if nothing is left of it.
+     */
+    public static String normalizeIsbn(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        String normalized = ISBN_SEPARATORS.matcher(isbn).replaceAll("").toUpperCase(Locale.ROOT);
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+    /**
+     * Returns the {@link BookEntry#COLUMN_NATURAL_KEY} of a book with the given values, which
+     * must already have their derived columns. The natural key triggers in
+     * {@link BookDbHelper} compute the same key in SQL.
+     */
+    public static String naturalKey(ContentValues values) {
+        String isbn = values.getAsString(BookEntry.COLUMN_ISBN);
+        if (isbn != null) {
+            return "isbn:" + isbn;
+        }
+        return "title:" + values.getAsString(BookEntry.COLUMN_TITLE_KEY) + "|"
+                + values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
+    }
+
+    /**
+     * Update the books matching the where clause with the given values and increment their
+     * version, in a single statement built by {@link BookQueries}. Any version in the values
+     * is ignored.
+     *
+     * @return the number of rows updated
+     */
+    public static int update(SQLiteDatabase db, ContentValues values, String whereClause,
+                             String[] whereArgs) {
+        return update(db, values, whereClause, whereArgs, true);
+    }
+
+    /**
+     * Update the books matching the where clause with the given values, incrementing their
+     * version only if asked to. The change log only records updates that increment the
+     * version, so an unversioned update is neither synced nor a conflict for an editor that
+     * read the book before. Only columns that belong to this device, like the path of a cover
+     * file, may be written without a version.
+     *
+     * @return the number of rows updated
+     */
+    public static int update(SQLiteDatabase db, ContentValues values, String whereClause,
+                             String[] whereArgs, boolean versioned) {
+        Row row = SQLiteBookStore.toRow(withDerivedColumns(values));
+        return new SQLiteBookStore(db).executeUpdateDelete(versioned
+                ? BookQueries.versionedUpdate(row, whereClause, whereArgs)
+                : BookQueries.unversionedUpdate(row, whereClause, whereArgs));
+    }
+}
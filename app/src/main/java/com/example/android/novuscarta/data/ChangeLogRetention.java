@@ -0,0 +1,68 @@
+package com.example.android.novuscarta.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.novuscarta.BuildConfig;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+
+/**
+ * Keeps the change log from growing forever. Entries older than {@link #RETENTION_SECONDS} are
+ * pruned when the database is opened, except for those a consumer has not processed yet. A
+ * consumer that must see every change (like the sync engine) pins the last sequence number it
+ * has processed, and only entries up to that number are ever pruned.
+ */
+public final class ChangeLogRetention {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = ChangeLogRetention.class.getSimpleName();
+
+    /** Change log entries older than this are pruned (30 days) */
+    public static final long RETENTION_SECONDS = 30L * 24 * 60 * 60;
+
+    /** Name of the preferences file holding the pinned sequence number */
+    private static final String PREFS_NAME = "change_log";
+
+    /** Highest sequence number that may be pruned */
+    private static final String KEY_PINNED_SEQ = "pinned_seq";
+
+    private ChangeLogRetention() {}
+
+    /**
+     * Allow entries up to and including the given sequence number to be pruned once they are
+     * old enough. Later entries are kept regardless of their age.
+     *
+     * @param context of the app
+     * @param seq     the last sequence number the consumer has processed
+     */
+    public static void pin(Context context, long seq) {
+        getPrefs(context).edit().putLong(KEY_PINNED_SEQ, seq).apply();
+    }
+
+    /**
+     * Delete the change log entries that are past the retention period and not pinned.
+     *
+     * @return the number of entries deleted
+     */
+    static int prune(Context context, SQLiteDatabase db) {
+        // Until the sync engine has pinned a sequence number, a store that syncs must keep
+        // everything. A store without a sync server has no consumer that needs old entries.
+        long defaultPinnedSeq = BuildConfig.SYNC_ENDPOINT.isEmpty() ? Long.MAX_VALUE : 0;
+        long pinnedSeq = getPrefs(context).getLong(KEY_PINNED_SEQ, defaultPinnedSeq);
+        long cutoff = System.currentTimeMillis() / 1000 - RETENTION_SECONDS;
+
+        int rowsDeleted = db.delete(ChangeLogEntry.TABLE_NAME,
+                ChangeLogEntry.COLUMN_CHANGED_AT + "<? AND " + ChangeLogEntry.COLUMN_SEQ + "<=?",
+                new String[] { String.valueOf(cutoff), String.valueOf(pinnedSeq) });
+        if (rowsDeleted != 0) {
+            Log.i(LOG_TAG, rowsDeleted + " change log entries pruned");
+        }
+        return rowsDeleted;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
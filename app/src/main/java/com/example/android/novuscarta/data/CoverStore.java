@@ -0,0 +1,266 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stores book cover images as files in the app's private storage, one per book, named after
+ * the book ID. The database only holds the path ({@link BookEntry#COLUMN_COVER_PATH}), which
+ * keeps rows small and cursor windows fast.
+ */
+public final class CoverStore {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = CoverStore.class.getSimpleName();
+
+    /** Directory under the app's files directory that holds the covers */
+    private static final String COVERS_DIR = "covers";
+
+    /** Suffix of the cover files, after the book ID */
+    private static final String COVER_SUFFIX = ".jpg";
+
+    private CoverStore() {}
+
+    /**
+     * Returns the file holding the cover of the given book.
+     */
+    public static File getCoverFile(Context context, long bookId) {
+        return new File(getCoversDir(context), bookId + COVER_SUFFIX);
+    }
+
+    /**
+     * Delete the cover files at the given paths. Called after the books are deleted.
+     */
+    static void deleteCovers(Iterable<String> paths) {
+        for (String path : paths) {
+            if (!new File(path).delete()) {
+                Log.w(LOG_TAG, "Could not delete cover " + path);
+            }
+        }
+    }
+
+    /**
+     * Make the covers match the books of a database that replaced the old one, like a restored
+     * backup, which doesn't hold the cover files: clear the paths whose file is missing and
+     * delete the cover files no book points at. Like other derived columns, the paths are
+     * cleared without bumping the versions of the books.
+     */
+    static void reconcileCovers(Context context, SQLiteDatabase db) {
+        Set<String> referenced = new HashSet<>();
+        List<Long> missing = new ArrayList<>();
+        Cursor cursor = db.query(BookEntry.TABLE_NAME,
+                new String[] { BookEntry._ID, BookEntry.COLUMN_COVER_PATH },
+                BookEntry.COLUMN_COVER_PATH + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (new File(cursor.getString(1)).isFile()) {
+                    referenced.add(cursor.getString(1));
+                } else {
+                    missing.add(cursor.getLong(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!missing.isEmpty()) {
+            SQLiteStatement clear = db.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                    + " SET " + BookEntry.COLUMN_COVER_PATH + "=NULL WHERE " + BookEntry._ID
+                    + "=?");
+            db.beginTransaction();
+            try {
+                for (long id : missing) {
+                    clear.bindLong(1, id);
+                    clear.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                clear.close();
+            }
+        }
+
+        // Imports in progress keep their staging files
+        File[] files = getCoversDir(context).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(COVER_SUFFIX)
+                        && !referenced.contains(file.getAbsolutePath()) && !file.delete()) {
+                    Log.w(LOG_TAG, "Could not delete cover " + file);
+                }
+            }
+        }
+        Log.i(LOG_TAG, "Cleared " + missing.size() + " missing covers");
+    }
+
+    /**
+     * Start copying the image at the given URI (e.g. picked from the gallery) into a staging
+     * file in the background. Call {@link CoverImport#attachTo(Uri)} once the book is saved to
+     * make it the cover of that book.
+     */
+    public static CoverImport importCover(Context context, Uri source) {
+        CoverImport coverImport = new CoverImport(context.getApplicationContext(), source);
+        coverImport.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return coverImport;
+    }
+
+    private static File getCoversDir(Context context) {
+        File dir = new File(context.getFilesDir(), COVERS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Copies a picked image into the covers directory and, once the book it belongs to is
+     * known, moves it into place and stores its path in the book's row. The copy starts as soon
+     * as the image is picked, so saving the book does not have to wait for it.
+     */
+    public static final class CoverImport extends AsyncTask<Void, Void, File> {
+
+        private final Context mContext;
+        private final Uri mSource;
+
+        /** Result of the copy, once it is done */
+        private File mStagingFile;
+
+        /** Whether the copy is done (successfully or not) */
+        private boolean mCopied;
+
+        /** Book the cover belongs to, once it has been saved */
+        private Uri mBookUri;
+
+        private CoverImport(Context context, Uri source) {
+            mContext = context;
+            mSource = source;
+        }
+
+        /**
+         * Make the imported image the cover of the given book. Safe to call before the copy
+         * has finished; the cover is then attached when it does.
+         */
+        public void attachTo(Uri bookUri) {
+            synchronized (this) {
+                mBookUri = bookUri;
+                if (!mCopied) {
+                    return;
+                }
+            }
+            // The copy is already done, finish the import off the main thread
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            });
+        }
+
+        /**
+         * Forget the imported image, e.g. because the user left the editor without saving.
+         */
+        public void discard() {
+            cancel(false);
+            attachTo(null);
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            File staging = null;
+            try {
+                staging = File.createTempFile("import", ".tmp", getCoversDir(mContext));
+                InputStream in = mContext.getContentResolver().openInputStream(mSource);
+                if (in == null) {
+                    throw new IOException("Cannot open " + mSource);
+                }
+                try {
+                    OutputStream out = new FileOutputStream(staging);
+                    try {
+                        byte[] buffer = new byte[16 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to import cover from " + mSource, e);
+                if (staging != null) {
+                    staging.delete();
+                }
+                staging = null;
+            }
+
+            synchronized (this) {
+                mStagingFile = staging;
+                mCopied = true;
+            }
+            finish();
+            return staging;
+        }
+
+        /**
+         * Move the staging file into place and point the book's row at it, if both the copy
+         * and the book are ready. Runs on a background thread.
+         */
+        private void finish() {
+            File staging;
+            Uri bookUri;
+            synchronized (this) {
+                if (!mCopied || mStagingFile == null) {
+                    return;
+                }
+                bookUri = mBookUri;
+                staging = mStagingFile;
+                if (bookUri != null || isCancelled()) {
+                    // Make sure only one thread finishes the import
+                    mStagingFile = null;
+                } else {
+                    return;
+                }
+            }
+            if (bookUri == null) {
+                staging.delete();
+                return;
+            }
+
+            long bookId = ContentUris.parseId(bookUri);
+            File cover = getCoverFile(mContext, bookId);
+            if (!staging.renameTo(cover)) {
+                Log.e(LOG_TAG, "Could not move cover into place for " + bookUri);
+                staging.delete();
+                return;
+            }
+            // The cover comes after the editor saved the book, so it leaves the version alone:
+            // a versioned update would make the next save of the editor a conflict
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_COVER_PATH, cover.getAbsolutePath());
+            BookUpdates.update(BookDbHelper.getInstance(mContext).getWritableDatabase(), values,
+                    BookEntry._ID + "=?", new String[] { String.valueOf(bookId) }, false);
+            mContext.getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.android.novuscarta.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.novuscarta.sync.SyncEngine;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backup and restore of inventory.db to and from a document picked by the user, e.g. on a
+ * USB stick or in a cloud drive.
+ *
+ * A backup first takes a consistent snapshot of the database into the cache directory, then
+ * streams the snapshot to the document. Only taking the snapshot touches the live database,
+ * so the till keeps selling while the (slow) document is written.
+ */
+public final class DatabaseBackup {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = DatabaseBackup.class.getSimpleName();
+
+    /** First version that ships a SQLite with VACUUM INTO (Android 11, SQLite 3.28) */
+    private static final int SDK_VACUUM_INTO = 30;
+
+    /** Name of the snapshot in the cache directory */
+    private static final String SNAPSHOT_NAME = "backup-snapshot.db";
+
+    /** Name under which the live database is attached to the snapshot it is copied into */
+    private static final String SNAPSHOT_SOURCE = "live";
+
+    /** Suffix of the file a backup is restored into before it replaces the database */
+    private static final String RESTORE_SUFFIX = ".restore";
+
+    /** Suffixes of the files SQLite keeps next to a database */
+    static final String[] SIDE_FILE_SUFFIXES = { "-wal", "-shm", "-journal" };
+
+    /** First two bytes of a gzip stream */
+    private static final int GZIP_MAGIC = 0x1f8b;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DatabaseBackup() {}
+
+    /**
+     * Write a backup of the database to a document.
+     *
+     * @param context     of the app
+     * @param destination document to write, e.g. from ACTION_CREATE_DOCUMENT
+     * @param compress    whether to gzip the backup
+     */
+    public static void backup(Context context, Uri destination, boolean compress)
+            throws IOException {
+        File snapshot = new File(context.getCacheDir(), SNAPSHOT_NAME);
+        try {
+            takeSnapshot(BookDbHelper.getInstance(context), snapshot);
+
+            ParcelFileDescriptor pfd =
+                    context.getContentResolver().openFileDescriptor(destination, "w");
+            if (pfd == null) {
+                throw new IOException("Cannot open " + destination);
+            }
+            try {
+                FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor());
+                if (compress) {
+                    OutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+                    InputStream in = new FileInputStream(snapshot);
+                    try {
+                        copy(in, gzip);
+                    } finally {
+                        in.close();
+                    }
+                    gzip.close();
+                } else {
+                    transfer(snapshot, out.getChannel());
+                    out.close();
+                }
+            } finally {
+                pfd.close();
+            }
+            Log.i(LOG_TAG, "Backed up " + snapshot.length() + " bytes to " + destination);
+        } finally {
+            deleteWithSideFiles(snapshot);
+        }
+    }
+
+    /**
+     * Replace the database with a backup. The backup is checked before the database is
+     * touched, so a damaged or foreign file leaves the database as it was. Sales not yet in
+     * the old database are dropped, and books whose cover file is gone lose their cover.
+     *
+     * @param context of the app
+     * @param source  document to read, written by {@link #backup(Context, Uri, boolean)}
+     */
+    public static void restore(Context context, Uri source) throws IOException {
+        final BookDbHelper dbHelper = BookDbHelper.getInstance(context);
+        // Next to the database, so it can be renamed over it
+        final File restored = new File(dbHelper.getDatabaseFile().getPath() + RESTORE_SUFFIX);
+        try {
+            InputStream in = context.getContentResolver().openInputStream(source);
+            if (in == null) {
+                throw new IOException("Cannot open " + source);
+            }
+            try {
+                in = new BufferedInputStream(in, BUFFER_SIZE);
+                if (isGzip(in)) {
+                    in = new GZIPInputStream(in, BUFFER_SIZE);
+                }
+                OutputStream out = new FileOutputStream(restored);
+                try {
+                    copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            checkBackup(restored);
+            // Sales still queued were made on the old database, and would change other books
+            // of the restored one, so they go. No batch is applied while the file is swapped.
+            SaleQueue.getInstance(context).discardAndRun(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    dbHelper.replaceDatabase(restored);
+                    return null;
+                }
+            });
+        } finally {
+            deleteWithSideFiles(restored);
+        }
+
+        // Everything that remembers what was in the old database starts over. The backup has
+        // no cover files, and the sync checkpoints are past its change log.
+        CoverStore.reconcileCovers(context, dbHelper.getWritableDatabase());
+        SyncEngine.onDatabaseReplaced(context);
+        TitleIndex.invalidate();
+        context.getContentResolver().notifyChange(BookContract.BASE_CONTENT_URI, null);
+        Log.i(LOG_TAG, "Restored database from " + source);
+    }
+
+    /**
+     * Write a consistent copy of the live database to the given file, without blocking
+     * writers.
+     */
+    private static void takeSnapshot(BookDbHelper dbHelper, File snapshot) throws IOException {
+        deleteWithSideFiles(snapshot);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+
+        if (Build.VERSION.SDK_INT >= SDK_VACUUM_INTO) {
+            // VACUUM INTO reads the database in a single read transaction, which with the
+            // write-ahead log never blocks writers, and writes a compact copy
+            db.execSQL("VACUUM INTO ?", new Object[] { snapshot.getPath() });
+        } else {
+            copyInReadTransaction(dbHelper.getDatabaseFile(), snapshot);
+        }
+        Log.i(LOG_TAG, "Snapshot written in " + (SystemClock.elapsedRealtime() - start)
+                + " ms");
+    }
+
+    /**
+     * Copy the schema and the rows of a database into a new database file. The copy runs on a
+     * connection of its own that attaches the database and reads it in one read transaction,
+     * like a {@link ReportSnapshot}: with the write-ahead log, every table is read as of the
+     * first read, and writers go on committing in the meantime.
+     */
+    private static void copyInReadTransaction(File file, File snapshot) throws IOException {
+        try {
+            // Without localized collators, the copy gets no android_metadata table of its own;
+            // it is copied along with the other tables
+            SQLiteDatabase copy = SQLiteDatabase.openDatabase(snapshot.getPath(), null,
+                    SQLiteDatabase.CREATE_IF_NECESSARY
+                            | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                // Only possible while the copy has no tables yet
+                copy.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+                copy.execSQL("ATTACH DATABASE ? AS " + SNAPSHOT_SOURCE,
+                        new Object[] { file.getPath() });
+                // BEGIN would be turned into an exclusive transaction, which would take the
+                // write lock of the attached database too; a savepoint starts a deferred one
+                copy.execSQL("SAVEPOINT " + SNAPSHOT_SOURCE);
+                try {
+                    copySchemaAndRows(copy);
+                    copy.execSQL("RELEASE " + SNAPSHOT_SOURCE);
+                } catch (RuntimeException e) {
+                    copy.execSQL("ROLLBACK TO " + SNAPSHOT_SOURCE);
+                    copy.execSQL("RELEASE " + SNAPSHOT_SOURCE);
+                    throw e;
+                }
+                copy.execSQL("DETACH DATABASE " + SNAPSHOT_SOURCE);
+            } finally {
+                copy.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Cannot copy the database", e);
+        }
+    }
+
+    /**
+     * Create the tables of the attached database in the copy and fill them, then create the
+     * indexes and triggers. The triggers come last so they don't fire for the copied rows.
+     */
+    private static void copySchemaAndRows(SQLiteDatabase copy) {
+        String source = SNAPSHOT_SOURCE + ".";
+        // The first read fixes the snapshot every later read sees
+        int version = (int) DatabaseUtils.longForQuery(copy,
+                "PRAGMA " + source + "user_version", null);
+
+        List<String> tables = new ArrayList<>();
+        List<String> laterStatements = new ArrayList<>();
+        Cursor schema = copy.rawQuery("SELECT type, name, sql FROM " + source + "sqlite_master"
+                + " WHERE sql IS NOT NULL AND substr(name, 1, 7)<>'sqlite_'", null);
+        try {
+            while (schema.moveToNext()) {
+                if ("table".equals(schema.getString(0))) {
+                    copy.execSQL(schema.getString(2));
+                    tables.add(schema.getString(1));
+                } else {
+                    laterStatements.add(schema.getString(2));
+                }
+            }
+        } finally {
+            schema.close();
+        }
+
+        for (String table : tables) {
+            String name = '"' + table + '"';
+            copy.execSQL("INSERT INTO main." + name + " SELECT * FROM " + source + name);
+        }
+        // The AUTOINCREMENT counters, so IDs of deleted books are not handed out again
+        if (DatabaseUtils.longForQuery(copy, "SELECT COUNT(*) FROM " + source + "sqlite_master"
+                + " WHERE name='sqlite_sequence'", null) != 0) {
+            copy.execSQL("DELETE FROM main.sqlite_sequence");
+            copy.execSQL("INSERT INTO main.sqlite_sequence SELECT * FROM " + source
+                    + "sqlite_sequence");
+        }
+        for (String sql : laterStatements) {
+            copy.execSQL(sql);
+        }
+        copy.execSQL("PRAGMA main.user_version=" + version);
+    }
+
+    /**
+     * Check that the given file is an intact inventory.db this version of the app can open.
+     *
+     * @throws IOException if it isn't
+     */
+    private static void checkBackup(File file) throws IOException {
+        try {
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            try {
+                String integrity = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+                if (!"ok".equals(integrity)) {
+                    throw new IOException("Backup is damaged: " + integrity);
+                }
+                if (db.getVersion() < 1 || db.getVersion() > BookDbHelper.DATABASE_VERSION) {
+                    throw new IOException("Backup has unsupported version " + db.getVersion());
+                }
+                if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE "
+                        + "type='table' AND name=?",
+                        new String[] { BookContract.BookEntry.TABLE_NAME }) == 0) {
+                    throw new IOException("Backup has no books table");
+                }
+            } finally {
+                db.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Backup is not a database", e);
+        }
+    }
+
+    private static boolean isGzip(InputStream in) throws IOException {
+        in.mark(2);
+        int magic = (in.read() << 8) | in.read();
+        in.reset();
+        return magic == GZIP_MAGIC;
+    }
+
+    /**
+     * Copy a whole file to a channel without going through a buffer in the app.
+     */
+    private static void transfer(File from, FileChannel to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, to);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Delete a database file and the files SQLite keeps next to it.
+     */
+    static void deleteWithSideFiles(File file) {
+        deleteIfExists(file);
+        for (String suffix : SIDE_FILE_SUFFIXES) {
+            deleteIfExists(new File(file.getPath() + suffix));
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Could not delete " + file);
+        }
+    }
+}
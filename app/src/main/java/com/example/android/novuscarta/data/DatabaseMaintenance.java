@@ -0,0 +1,140 @@
+package com.example.android.novuscarta.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Housekeeping of inventory.db: returns the pages freed by deletes to the file system and
+ * refreshes the statistics the query planner uses to pick indexes. Every step is short, so a
+ * run can be stopped between steps when the system needs the device back.
+ */
+public final class DatabaseMaintenance {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = DatabaseMaintenance.class.getSimpleName();
+
+    /** Value of PRAGMA auto_vacuum for incremental vacuum */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Number of free pages returned to the file system by one incremental vacuum step */
+    private static final int PAGES_PER_STEP = 256;
+
+    /** Maximum number of incremental vacuum steps in one run */
+    private static final int MAX_STEPS = 64;
+
+    /**
+     * Tells a run of the maintenance whether it should stop early.
+     */
+    public interface StopSignal {
+        boolean isStopped();
+    }
+
+    /**
+     * Size of the database files and the free space in them.
+     */
+    public static final class Stats {
+
+        /** Size of the database file in bytes */
+        public final long fileBytes;
+
+        /** Size of the write-ahead log in bytes */
+        public final long walBytes;
+
+        /** Size of a page in bytes */
+        public final long pageSize;
+
+        /** Number of pages in the database */
+        public final long pageCount;
+
+        /** Number of unused pages in the database */
+        public final long freePages;
+
+        Stats(long fileBytes, long walBytes, long pageSize, long pageCount, long freePages) {
+            this.fileBytes = fileBytes;
+            this.walBytes = walBytes;
+            this.pageSize = pageSize;
+            this.pageCount = pageCount;
+            this.freePages = freePages;
+        }
+
+        @Override
+        public String toString() {
+            return "file " + fileBytes + " bytes, WAL " + walBytes + " bytes, "
+                    + freePages + " of " + pageCount + " pages free";
+        }
+    }
+
+    private DatabaseMaintenance() {}
+
+    /**
+     * Run the maintenance steps until they are done or the signal says to stop.
+     *
+     * @param context of the app
+     * @param signal  checked between steps
+     */
+    public static void run(Context context, StopSignal signal) {
+        BookDbHelper dbHelper = BookDbHelper.getInstance(context);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        File file = context.getDatabasePath(dbHelper.getDatabaseName());
+        Stats before = getStats(db, file);
+
+        // Databases created before incremental vacuum was turned on need a full VACUUM once
+        // to switch over. That can't run in the upgrade transaction, so it happens here.
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            Log.i(LOG_TAG, "Switching to incremental vacuum");
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+
+        // Free pages in small steps, so the write lock is never held for long
+        for (int step = 0; step < MAX_STEPS && !signal.isStopped(); step++) {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) == 0) {
+                break;
+            }
+            // Each row stepped through frees a page, so read the result to the end
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (!signal.isStopped()) {
+            // PRAGMA optimize only analyzes the tables whose statistics are out of date, but
+            // it needs SQLite 3.18. Older versions get a full ANALYZE, which is cheap at the
+            // size of an inventory.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                Cursor cursor = db.rawQuery("PRAGMA optimize", null);
+                try {
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            } else {
+                db.execSQL("ANALYZE");
+            }
+        }
+
+        Log.i(LOG_TAG, "Maintenance done. Before: " + before + ". After: "
+                + getStats(db, file) + ".");
+    }
+
+    /**
+     * Returns the current size of the database files and the free space in them.
+     */
+    public static Stats getStats(SQLiteDatabase db, File file) {
+        File wal = new File(file.getPath() + "-wal");
+        return new Stats(file.length(), wal.length(),
+                DatabaseUtils.longForQuery(db, "PRAGMA page_size", null),
+                DatabaseUtils.longForQuery(db, "PRAGMA page_count", null),
+                DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+    }
+}
@@ -0,0 +1,651 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.novuscarta.core.CatalogGenerator;
+import com.example.android.novuscarta.core.Row;
+import com.example.android.novuscarta.core.ZipfSampler;
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.LocationEntry;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Load test of the {@link BookProvider}: fills the catalog with synthetic books from a
+ * {@link CatalogGenerator}, then lets several threads sell, edit, search and scan them at once
+ * through the content resolver, the way the clerks' devices would. Reports the throughput and
+ * latencies of every kind of operation, and checks afterwards that no sale or edit was lost and
+ * no stock went negative.
+ *
+ * Edits are read-modify-write cycles with {@link BookEntry#PARAM_EXPECTED_VERSION}, retried on
+ * conflicts. Sales are too, or go through the {@link SaleQueue} like the sold button with
+ * {@link #setQueuedSales(boolean)}. Either way every one that succeeded must show in the final
+ * quantities and prices. Only the books added by the simulation are changed, but they stay in
+ * the catalog.
+ */
+public class LoadSimulator {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = LoadSimulator.class.getSimpleName();
+
+    /** Number of books inserted in one bulk insert */
+    private static final int INSERT_BATCH = 1000;
+
+    /** Number of rows of the catalog read by a list scan, a few screens full */
+    private static final int SCAN_ROWS = 200;
+
+    /** Number of results of a title search that are read, as in the suggestions */
+    private static final int SEARCH_ROWS = 8;
+
+    /** Attempts of a sale or edit before it gives up on conflicts */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /** How long a queued sale may take to be recorded before it counts as given up */
+    private static final long RECORD_TIMEOUT_MILLIS = 5000;
+
+    /** Kinds of operations, in the order of the mix */
+    private static final int SELL = 0;
+    private static final int EDIT = 1;
+    private static final int SEARCH = 2;
+    private static final int SCAN = 3;
+    private static final int REPORT = 4;
+    private static final String[] OPERATION_NAMES =
+            { "sell", "edit", "search", "scan", "report" };
+
+    /** Default mix in percent: sell, edit, search, scan */
+    private static final int[] DEFAULT_MIX = { 50, 10, 30, 10 };
+
+    private final Context mContext;
+    private final long mSeed;
+    private int mThreads = 4;
+    private int mReportThreads;
+    private long mDurationMillis = 30000;
+    private int[] mMix = DEFAULT_MIX;
+    private boolean mQueuedSales;
+
+    /**
+     * Copies left of each book during a run with queued sales, by index in the IDs. Stands in
+     * for the quantity the till shows, which includes the sales still in the queue.
+     */
+    private AtomicIntegerArray mStock;
+
+    /** Stock at the default location is what the simulation sells */
+    private final Uri mBooksUri = BookEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(BookEntry.PARAM_LOCATION,
+                    String.valueOf(LocationEntry.DEFAULT_LOCATION_ID))
+            .build();
+
+    /**
+     * @param context of the app
+     * @param seed    seed of the catalog and the workload, so runs can be repeated
+     */
+    public LoadSimulator(Context context, long seed) {
+        mContext = context.getApplicationContext();
+        mSeed = seed;
+    }
+
+    public LoadSimulator setThreads(int threads) {
+        mThreads = threads;
+        return this;
+    }
+
+    /**
+     * Set the number of extra threads that run stock valuation reports back to back while
+     * the others run the mix, to see whether the reports slow down the sales.
+     */
+    public LoadSimulator setReportThreads(int reportThreads) {
+        mReportThreads = reportThreads;
+        return this;
+    }
+
+    public LoadSimulator setDurationMillis(long durationMillis) {
+        mDurationMillis = durationMillis;
+        return this;
+    }
+
+    /**
+     * Sell through the {@link SaleQueue} like the sold button, waiting for each sale to be
+     * recorded, instead of with a versioned read-modify-write. The queue is flushed before
+     * the stock is checked.
+     */
+    public LoadSimulator setQueuedSales(boolean queuedSales) {
+        mQueuedSales = queuedSales;
+        return this;
+    }
+
+    /**
+     * Set the share of each kind of operation in percent, which must add up to 100.
+     */
+    public LoadSimulator setMix(int sell, int edit, int search, int scan) {
+        if (sell < 0 || edit < 0 || search < 0 || scan < 0 || sell + edit + search + scan != 100) {
+            throw new IllegalArgumentException("The mix must add up to 100 percent");
+        }
+        mMix = new int[] { sell, edit, search, scan };
+        return this;
+    }
+
+    /**
+     * Add the given number of synthetic books to the catalog with bulk inserts, and run the
+     * workload on them.
+     *
+     * @return the report of the run
+     */
+    public Report run(int bookCount) {
+        ContentResolver resolver = mContext.getContentResolver();
+        long firstId = DatabaseUtils.longForQuery(
+                BookDbHelper.getInstance(mContext).getReadableDatabase(),
+                "SELECT IFNULL(MAX(" + BookEntry._ID + "), 0) + 1 FROM " + BookEntry.TABLE_NAME,
+                null);
+        long start = SystemClock.elapsedRealtime();
+        populate(resolver, bookCount);
+        long populateMillis = SystemClock.elapsedRealtime() - start;
+
+        long[] ids = readIds(resolver, firstId);
+        int[] quantities = new int[ids.length];
+        int[] prices = new int[ids.length];
+        readState(resolver, ids, quantities, prices);
+        mStock = new AtomicIntegerArray(quantities);
+
+        Worker[] workers = new Worker[mThreads + mReportThreads];
+        CountDownLatch done = new CountDownLatch(workers.length);
+        long deadline = SystemClock.elapsedRealtime() + mDurationMillis;
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, ids, deadline, done, i >= mThreads);
+            workers[i].start();
+        }
+        try {
+            done.await();
+            if (mQueuedSales) {
+                SaleQueue.getInstance(mContext).flushAndWait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Report report = new Report(ids.length, populateMillis, mDurationMillis);
+        for (Worker worker : workers) {
+            report.add(worker);
+        }
+        report.check(resolver, ids, quantities, prices);
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    /**
+     * Insert the synthetic books in batches, each one transaction in the provider.
+     */
+    private void populate(ContentResolver resolver, int bookCount) {
+        CatalogGenerator generator = new CatalogGenerator(mSeed, 40);
+        Uri uri = mBooksUri.buildUpon()
+                .appendQueryParameter(BookEntry.PARAM_RESTOCK, "true")
+                .build();
+        for (int inserted = 0; inserted < bookCount; inserted += INSERT_BATCH) {
+            ContentValues[] batch = new ContentValues[Math.min(INSERT_BATCH,
+                    bookCount - inserted)];
+            for (int i = 0; i < batch.length; i++) {
+                Row book = generator.next();
+                batch[i] = new ContentValues();
+                for (String column : book.keySet()) {
+                    Object value = book.get(column);
+                    if (value instanceof Integer) {
+                        batch[i].put(column, (Integer) value);
+                    } else {
+                        batch[i].put(column, (String) value);
+                    }
+                }
+            }
+            resolver.bulkInsert(uri, batch);
+        }
+    }
+
+    private long[] readIds(ContentResolver resolver, long firstId) {
+        Cursor cursor = resolver.query(mBooksUri, new String[] { BookEntry._ID },
+                BookEntry._ID + ">=?", new String[] { String.valueOf(firstId) },
+                BookEntry._ID);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read the quantity at the default location and the price of every book.
+     */
+    private void readState(ContentResolver resolver, long[] ids, int[] quantities,
+                           int[] prices) {
+        Cursor cursor = resolver.query(mBooksUri, new String[] { BookEntry._ID,
+                        BookEntry.COLUMN_PRODUCT_QUANTITY, BookEntry.COLUMN_PRODUCT_PRICE },
+                BookEntry._ID + ">=?",
+                new String[] { String.valueOf(ids.length == 0 ? 0 : ids[0]) }, BookEntry._ID);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                int index = Arrays.binarySearch(ids, cursor.getLong(0));
+                if (index >= 0) {
+                    quantities[index] = cursor.getInt(1);
+                    prices[index] = cursor.getInt(2);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Thread running a random mix of operations, or only reports, until the deadline, timing
+     * each of them.
+     */
+    private class Worker extends Thread {
+
+        private final long[] mIds;
+        private final long mDeadline;
+        private final CountDownLatch mDone;
+        private final Random mRandom;
+        private final ZipfSampler mPopularity;
+        private final ContentResolver mResolver;
+        private final boolean mReporter;
+
+        /** Latencies in microseconds, per kind of operation */
+        final long[][] mLatencies = new long[OPERATION_NAMES.length][];
+        final int[] mCounts = new int[OPERATION_NAMES.length];
+
+        /** Optimistic writes that had to be retried */
+        int mConflicts;
+
+        /** Sales of books that were sold out, which are not made */
+        int mSoldOut;
+
+        /** Sales and edits that gave up after too many conflicts */
+        int mGaveUp;
+
+        /** Successful sales and edits per book, by index in the IDs */
+        final int[] mSold;
+        final int[] mEdited;
+
+        Worker(int index, long[] ids, long deadline, CountDownLatch done, boolean reporter) {
+            super(LOG_TAG + "-" + index);
+            mReporter = reporter;
+            mIds = ids;
+            mDeadline = deadline;
+            mDone = done;
+            mRandom = new Random(mSeed * 31 + index);
+            mPopularity = new ZipfSampler(Math.max(1, ids.length), 1.0);
+            mResolver = mContext.getContentResolver();
+            mSold = new int[ids.length];
+            mEdited = new int[ids.length];
+            for (int i = 0; i < mLatencies.length; i++) {
+                mLatencies[i] = new long[1024];
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mIds.length != 0 && SystemClock.elapsedRealtime() < mDeadline) {
+                    int operation = mReporter ? REPORT : nextOperation();
+                    long start = System.nanoTime();
+                    switch (operation) {
+                        case SELL:
+                            if (mQueuedSales) {
+                                sellQueued(mPopularity.sample(mRandom) - 1);
+                            } else {
+                                sell(mPopularity.sample(mRandom) - 1);
+                            }
+                            break;
+                        case EDIT:
+                            edit(mRandom.nextInt(mIds.length));
+                            break;
+                        case SEARCH:
+                            search();
+                            break;
+                        case SCAN:
+                            scan();
+                            break;
+                        case REPORT:
+                            report();
+                            break;
+                    }
+                    record(operation, (System.nanoTime() - start) / 1000);
+                }
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private int nextOperation() {
+            int percent = mRandom.nextInt(100);
+            for (int operation = 0; operation < mMix.length; operation++) {
+                percent -= mMix[operation];
+                if (percent < 0) {
+                    return operation;
+                }
+            }
+            return SCAN;
+        }
+
+        private void record(int operation, long micros) {
+            long[] latencies = mLatencies[operation];
+            if (mCounts[operation] == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                mLatencies[operation] = latencies;
+            }
+            latencies[mCounts[operation]++] = micros;
+        }
+
+        /**
+         * Sell a copy of a book, like the sale button without the journal: read the quantity
+         * and version, write the quantity minus one if the version is still the same.
+         */
+        private void sell(int index) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int[] book = readBook(index, BookEntry.COLUMN_PRODUCT_QUANTITY);
+                if (book == null) {
+                    return;
+                }
+                if (book[0] <= 0) {
+                    mSoldOut++;
+                    return;
+                }
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, book[0] - 1);
+                if (writeBook(index, book[1], values)) {
+                    mSold[index]++;
+                    return;
+                }
+            }
+            mGaveUp++;
+        }
+
+        /**
+         * Sell a copy of a book like the sold button: check the stock the till would show,
+         * record the sale in the queue and wait until it is recorded.
+         */
+        private void sellQueued(int index) {
+            int stock;
+            do {
+                stock = mStock.get(index);
+                if (stock <= 0) {
+                    mSoldOut++;
+                    return;
+                }
+            } while (!mStock.compareAndSet(index, stock, stock - 1));
+
+            final CountDownLatch recorded = new CountDownLatch(1);
+            SaleQueue.getInstance(mContext).record(mIds[index],
+                    LocationEntry.DEFAULT_LOCATION_ID, -1, new SaleQueue.OnRecordedListener() {
+                        @Override
+                        public void onRecorded() {
+                            recorded.countDown();
+                        }
+                    });
+            try {
+                if (recorded.await(RECORD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    mSold[index]++;
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // The queue drops a change it cannot write
+            mStock.incrementAndGet(index);
+            mGaveUp++;
+        }
+
+        /**
+         * Raise the price of a book by one, like saving the editor.
+         */
+        private void edit(int index) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int[] book = readBook(index, BookEntry.COLUMN_PRODUCT_PRICE);
+                if (book == null) {
+                    return;
+                }
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_PRODUCT_PRICE, book[0] + 1);
+                if (writeBook(index, book[1], values)) {
+                    mEdited[index]++;
+                    return;
+                }
+            }
+            mGaveUp++;
+        }
+
+        /**
+         * Returns the value of the column and the version of a book, or null if it is gone.
+         */
+        private int[] readBook(int index, String column) {
+            Cursor cursor = mResolver.query(ContentUris.withAppendedId(mBooksUri, mIds[index]),
+                    new String[] { column, BookEntry.COLUMN_VERSION }, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst()
+                        ? new int[] { cursor.getInt(0), cursor.getInt(1) } : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Write the values if the book still has the given version.
+         *
+         * @return whether the values were written
+         */
+        private boolean writeBook(int index, int version, ContentValues values) {
+            Uri uri = ContentUris.withAppendedId(mBooksUri, mIds[index]).buildUpon()
+                    .appendQueryParameter(BookEntry.PARAM_EXPECTED_VERSION,
+                            String.valueOf(version))
+                    .build();
+            if (mResolver.update(uri, values, null, null) == 1) {
+                return true;
+            }
+            mConflicts++;
+            return false;
+        }
+
+        /**
+         * Search titles by prefix, like typing into the search field without the index.
+         */
+        private void search() {
+            String prefix = String.valueOf((char) ('A' + mRandom.nextInt(26)))
+                    + (char) ('a' + mRandom.nextInt(26));
+            Cursor cursor = mResolver.query(BookEntry.CONTENT_URI,
+                    new String[] { BookEntry._ID, BookEntry.COLUMN_PRODUCT_NAME },
+                    BookEntry.COLUMN_PRODUCT_NAME + " LIKE ?", new String[] { prefix + "%" },
+                    null);
+            drain(cursor, SEARCH_ROWS);
+        }
+
+        /**
+         * Read the catalog like the list of the catalog screen does while scrolling.
+         */
+        private void scan() {
+            Cursor cursor = mResolver.query(mBooksUri, new String[] { BookEntry._ID,
+                    BookEntry.COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRODUCT_PRICE,
+                    BookEntry.COLUMN_PRODUCT_QUANTITY, BookEntry.COLUMN_COVER_PATH },
+                    null, null, null);
+            drain(cursor, SCAN_ROWS);
+        }
+
+        /**
+         * Read the price and the quantity at the default location of every book in reporting
+         * mode, as a stock valuation does.
+         */
+        private void report() {
+            Cursor cursor = mResolver.query(mBooksUri.buildUpon()
+                            .appendQueryParameter(BookEntry.PARAM_REPORT, "true")
+                            .build(),
+                    new String[] { BookEntry.COLUMN_PRODUCT_PRICE,
+                            BookEntry.COLUMN_PRODUCT_QUANTITY }, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getInt(0);
+                    cursor.getInt(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private void drain(Cursor cursor, int rows) {
+            if (cursor == null) {
+                return;
+            }
+            try {
+                for (int i = 0; i < rows && cursor.moveToNext(); i++) {
+                    cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Throughput, latencies and invariant violations of a run.
+     */
+    public static class Report {
+
+        private final int mBooks;
+        private final long mPopulateMillis;
+        private final long mDurationMillis;
+        private final long[][] mLatencies = new long[OPERATION_NAMES.length][0];
+        private int mConflicts;
+        private int mSoldOut;
+        private int mGaveUp;
+        private int[] mSold;
+        private int[] mEdited;
+
+        /** Books with negative stock or quantity after the run */
+        private int mNegativeStock;
+
+        /** Books whose final quantity or price misses successful sales or edits */
+        private int mLostUpdates;
+
+        Report(int books, long populateMillis, long durationMillis) {
+            mBooks = books;
+            mPopulateMillis = populateMillis;
+            mDurationMillis = durationMillis;
+            mSold = new int[books];
+            mEdited = new int[books];
+        }
+
+        void add(Worker worker) {
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                long[] all = mLatencies[operation];
+                int count = worker.mCounts[operation];
+                long[] merged = Arrays.copyOf(all, all.length + count);
+                System.arraycopy(worker.mLatencies[operation], 0, merged, all.length, count);
+                mLatencies[operation] = merged;
+            }
+            mConflicts += worker.mConflicts;
+            mSoldOut += worker.mSoldOut;
+            mGaveUp += worker.mGaveUp;
+            for (int i = 0; i < mBooks; i++) {
+                mSold[i] += worker.mSold[i];
+                mEdited[i] += worker.mEdited[i];
+            }
+        }
+
+        /**
+         * Compare the final state of the books with their state before the run and the
+         * successful sales and edits.
+         */
+        void check(ContentResolver resolver, long[] ids, int[] quantities, int[] prices) {
+            Cursor cursor = resolver.query(BookEntry.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(BookEntry.PARAM_LOCATION,
+                                    String.valueOf(LocationEntry.DEFAULT_LOCATION_ID))
+                            .build(),
+                    new String[] { BookEntry._ID, BookEntry.COLUMN_PRODUCT_QUANTITY,
+                            BookEntry.COLUMN_PRODUCT_PRICE },
+                    BookEntry._ID + ">=?",
+                    new String[] { String.valueOf(ids.length == 0 ? 0 : ids[0]) }, null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    int index = Arrays.binarySearch(ids, cursor.getLong(0));
+                    if (index < 0) {
+                        continue;
+                    }
+                    int quantity = cursor.getInt(1);
+                    if (quantity < 0) {
+                        mNegativeStock++;
+                    }
+                    if (quantity != quantities[index] - mSold[index]
+                            || cursor.getInt(2) != prices[index] + mEdited[index]) {
+                        mLostUpdates++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        public int getNegativeStock() {
+            return mNegativeStock;
+        }
+
+        public int getLostUpdates() {
+            return mLostUpdates;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(Locale.US,
+                    "%d books inserted in %d ms\n", mBooks, mPopulateMillis));
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                long[] latencies = mLatencies[operation].clone();
+                Arrays.sort(latencies);
+                report.append(String.format(Locale.US,
+                        "%-6s %7d ops %8.1f/s  p50 %s  p95 %s  p99 %s  max %s\n",
+                        OPERATION_NAMES[operation], latencies.length,
+                        latencies.length * 1000.0 / mDurationMillis,
+                        percentile(latencies, 50), percentile(latencies, 95),
+                        percentile(latencies, 99), percentile(latencies, 100)));
+            }
+            report.append(String.format(Locale.US,
+                    "%d conflicts retried, %d gave up, %d sold out\n"
+                            + "%d books with negative stock, %d books with lost updates",
+                    mConflicts, mGaveUp, mSoldOut, mNegativeStock, mLostUpdates));
+            return report.toString();
+        }
+
+        private static String percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) {
+                return "-";
+            }
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            long micros = sorted[Math.max(0, index)];
+            return String.format(Locale.US, "%.1f ms", micros / 1000.0);
+        }
+    }
+}
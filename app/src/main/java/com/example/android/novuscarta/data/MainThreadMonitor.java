@@ -0,0 +1,247 @@
+package com.example.android.novuscarta.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.novuscarta.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records every call to {@link BookProvider} and every SQLite query made on the main thread
+ * in debug builds, with the stack trace of the caller, the duration and the URI or SQL. Such
+ * calls block the UI while the database works, and are easy to add by accident.
+ *
+ * The recorded calls can be summarized per offender ({@link #summarize()}) and dumped to the
+ * log ({@link #dump()}). In strict mode, meant for tests, a call on the main thread throws
+ * instead. Release builds record nothing.
+ */
+public final class MainThreadMonitor {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = MainThreadMonitor.class.getSimpleName();
+
+    /** Maximum number of violations kept. Later ones are only counted. */
+    private static final int MAX_VIOLATIONS = 200;
+
+    /** Whether calls are monitored at all */
+    private static final boolean ENABLED = BuildConfig.DEBUG;
+
+    /** Cursor factory that records the queries made directly on the main thread */
+    static final SQLiteDatabase.CursorFactory CURSOR_FACTORY = ENABLED
+            ? new SQLiteDatabase.CursorFactory() {
+                @Override
+                public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                                        String editTable, SQLiteQuery query) {
+                    // Queries made by the provider are already recorded as provider calls.
+                    // If this throws, the driver closes the query.
+                    if (isMainThread() && sProviderDepth == 0) {
+                        checkStrict("sql", query);
+                        record(new Violation("sql", query.toString(), 0, new Throwable()));
+                    }
+                    return new SQLiteCursor(masterQuery, editTable, query);
+                }
+            }
+            : null;
+
+    private static final List<Violation> sViolations = new ArrayList<>();
+
+    /** Number of violations, including the ones no longer kept */
+    private static int sViolationCount;
+
+    private static volatile boolean sStrict;
+
+    /** Number of provider calls in progress on the main thread. Only used on the main thread. */
+    private static int sProviderDepth;
+
+    /**
+     * A call made on the main thread.
+     */
+    public static final class Violation {
+
+        /** Kind of call, e.g. "query" or "sql" */
+        public final String operation;
+
+        /** URI or SQL statement of the call */
+        public final String target;
+
+        /** How long the call took in milliseconds, or 0 if unknown */
+        public final long durationMillis;
+
+        /** Stack trace of the caller */
+        public final Throwable stack;
+
+        Violation(String operation, String target, long durationMillis, Throwable stack) {
+            this.operation = operation;
+            this.target = target;
+            this.durationMillis = durationMillis;
+            this.stack = stack;
+        }
+
+        /**
+         * Returns the first frame of the stack trace in app code outside the data layer, i.e.
+         * the code that made the call.
+         */
+        public String getCaller() {
+            for (StackTraceElement frame : stack.getStackTrace()) {
+                if (frame.getClassName().startsWith(BuildConfig.APPLICATION_ID)
+                        && !frame.getClassName().startsWith(MainThreadMonitor.class.getPackage()
+                        .getName())) {
+                    return frame.toString();
+                }
+            }
+            return "unknown";
+        }
+    }
+
+    /**
+     * A provider call on the main thread that is in progress.
+     */
+    static final class Call {
+        private final String mOperation;
+        private final String mTarget;
+        private final long mStart;
+        private final Throwable mStack;
+
+        private Call(String operation, String target) {
+            mOperation = operation;
+            mTarget = target;
+            mStart = SystemClock.elapsedRealtime();
+            mStack = new Throwable();
+        }
+    }
+
+    private MainThreadMonitor() {}
+
+    /**
+     * In strict mode, calls on the main thread throw {@link IllegalStateException}, both
+     * provider calls and queries made directly on the database.
+     */
+    public static void setStrict(boolean strict) {
+        sStrict = strict;
+    }
+
+    /**
+     * Called at the start of every provider call. Returns the call to pass to
+     * {@link #end(Call)}, or null if the call is not on the main thread.
+     *
+     * @param operation name of the provider method
+     * @param target    URI or method argument of the call
+     */
+    static Call begin(String operation, Object target) {
+        if (!ENABLED || !isMainThread()) {
+            return null;
+        }
+        checkStrict(operation, target);
+        sProviderDepth++;
+        return new Call(operation, String.valueOf(target));
+    }
+
+    /**
+     * Called at the end of every provider call with the result of {@link #begin}.
+     */
+    static void end(Call call) {
+        if (call == null) {
+            return;
+        }
+        sProviderDepth--;
+        record(new Violation(call.mOperation, call.mTarget,
+                SystemClock.elapsedRealtime() - call.mStart, call.mStack));
+    }
+
+    /**
+     * Returns the recorded violations, oldest first.
+     */
+    public static List<Violation> getViolations() {
+        synchronized (sViolations) {
+            return new ArrayList<>(sViolations);
+        }
+    }
+
+    /**
+     * Forget all recorded violations.
+     */
+    public static void clear() {
+        synchronized (sViolations) {
+            sViolations.clear();
+            sViolationCount = 0;
+        }
+    }
+
+    /**
+     * Returns a summary of the violations, one line per caller and kind of call with the
+     * number of calls and their total and longest duration.
+     */
+    public static String summarize() {
+        Map<String, long[]> offenders = new LinkedHashMap<>();
+        int count;
+        synchronized (sViolations) {
+            count = sViolationCount;
+            for (Violation violation : sViolations) {
+                String key = violation.getCaller() + " " + violation.operation;
+                long[] stats = offenders.get(key);
+                if (stats == null) {
+                    stats = new long[3];
+                    offenders.put(key, stats);
+                }
+                stats[0]++;
+                stats[1] += violation.durationMillis;
+                stats[2] = Math.max(stats[2], violation.durationMillis);
+            }
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(count).append(" database calls on the main thread\n");
+        for (Map.Entry<String, long[]> offender : offenders.entrySet()) {
+            long[] stats = offender.getValue();
+            summary.append('\n').append(offender.getKey()).append(": ").append(stats[0])
+                    .append(" calls, ").append(stats[1]).append(" ms total, ")
+                    .append(stats[2]).append(" ms max");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Write the summary and every recorded violation with its stack trace to the log.
+     */
+    public static void dump() {
+        Log.w(LOG_TAG, summarize());
+        for (Violation violation : getViolations()) {
+            Log.w(LOG_TAG, violation.operation + " " + violation.target + " took "
+                    + violation.durationMillis + " ms", violation.stack);
+        }
+    }
+
+    /**
+     * Throw for a call on the main thread in strict mode.
+     */
+    private static void checkStrict(String operation, Object target) {
+        if (sStrict) {
+            throw new IllegalStateException(operation + " " + target + " on the main thread");
+        }
+    }
+
+    private static void record(Violation violation) {
+        synchronized (sViolations) {
+            sViolationCount++;
+            if (sViolations.size() < MAX_VIOLATIONS) {
+                sViolations.add(violation);
+            }
+        }
+        Log.w(LOG_TAG, violation.operation + " " + violation.target + " on the main thread from "
+                + violation.getCaller());
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.novuscarta.data;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JobService} that runs the {@link DatabaseMaintenance} about once a day, while the
+ * device is idle and charging so it never competes with the clerks for the database.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MaintenanceJobService extends JobService {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = MaintenanceJobService.class.getSimpleName();
+
+    /** ID of the maintenance job */
+    private static final int JOB_ID = 1;
+
+    /** How often the maintenance runs */
+    private static final long INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** Run of the maintenance in progress, if any */
+    private MaintenanceThread mThread;
+
+    /**
+     * Schedule the maintenance unless it is already scheduled. On versions without
+     * {@link JobScheduler} the database is left as it is.
+     *
+     * @param context of the app
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL_MILLIS)
+                .setPersisted(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mThread = new MaintenanceThread(params);
+        mThread.start();
+        // The job goes on in the background until the thread calls jobFinished()
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The device is no longer idle or charging, so stop after the current step and try
+        // again later
+        if (mThread != null) {
+            mThread.mStopped = true;
+        }
+        return true;
+    }
+
+    /**
+     * Thread running the maintenance until it is done or the job is stopped.
+     */
+    private class MaintenanceThread extends Thread implements DatabaseMaintenance.StopSignal {
+
+        private final JobParameters mParams;
+        private volatile boolean mStopped;
+
+        MaintenanceThread(JobParameters params) {
+            super(LOG_TAG);
+            mParams = params;
+        }
+
+        @Override
+        public boolean isStopped() {
+            return mStopped;
+        }
+
+        @Override
+        public void run() {
+            DatabaseMaintenance.run(MaintenanceJobService.this, this);
+            if (!mStopped) {
+                jobFinished(mParams, false);
+            }
+        }
+    }
+}
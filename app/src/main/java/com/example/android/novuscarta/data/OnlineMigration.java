@@ -0,0 +1,40 @@
+package com.example.android.novuscarta.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A schema change that is too slow to run in {@link BookDbHelper#onUpgrade}, e.g. filling in a
+ * new column of every book. The upgrade only makes the cheap changes and schedules the
+ * migration with {@link OnlineMigrations#schedule}; {@link OnlineMigrations} then runs it in
+ * small batches in the background while the app keeps using the database.
+ *
+ * Until the migration is cut over, the provider must keep working with the data in both the
+ * old and the new shape.
+ */
+abstract class OnlineMigration {
+
+    /** Returned by {@link #migrateBatch} when there is nothing left to migrate */
+    static final long DONE = -1;
+
+    /** Name the progress of the migration is saved under. Never change it once released. */
+    abstract String getName();
+
+    /**
+     * Migrate the next batch of rows. Runs in a transaction that also saves the returned
+     * position, so a batch is either migrated and recorded or not at all.
+     *
+     * @param db       the database
+     * @param position position the previous batch returned, or 0 for the first batch
+     * @param limit    maximum number of rows to migrate
+     * @return the position to continue after, or {@link #DONE}
+     */
+    abstract long migrateBatch(SQLiteDatabase db, long position, int limit);
+
+    /**
+     * Switch over to the new shape once all rows are migrated, e.g. by creating an index or
+     * dropping what is no longer needed. Runs in the transaction of the last batch. Does
+     * nothing unless overridden.
+     */
+    void cutOver(SQLiteDatabase db) {
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.novuscarta.data.BookContract.MigrationEntry;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the {@link OnlineMigration}s scheduled by upgrades of the database. Each batch is a short
+ * transaction of its own that also saves the position reached, so the provider is only ever
+ * blocked for one batch, and a migration interrupted by the process being killed continues at
+ * the next batch when the database is opened again.
+ */
+public final class OnlineMigrations {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = OnlineMigrations.class.getSimpleName();
+
+    /** Number of rows migrated in one transaction */
+    private static final int BATCH_SIZE = 500;
+
+    /** Every migration that can be scheduled, in the order they run */
+    private static final OnlineMigration[] MIGRATIONS = {
+            new TitleKeyBackfill(), new PriceHistoryBackfill(), new UuidBackfill() };
+
+    /** Whether a thread of this process is running the migrations */
+    private static final AtomicBoolean sRunning = new AtomicBoolean();
+
+    private OnlineMigrations() {}
+
+    /**
+     * Create the table that holds the progress of the migrations, unless it exists.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MigrationEntry.TABLE_NAME + " ("
+                + MigrationEntry.COLUMN_NAME + " TEXT PRIMARY KEY, "
+                + MigrationEntry.COLUMN_POSITION + " INTEGER NOT NULL DEFAULT 0, "
+                + MigrationEntry.COLUMN_DONE + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Schedule a migration from an upgrade step. It starts once the database is open.
+     */
+    static void schedule(SQLiteDatabase db, OnlineMigration migration) {
+        createTable(db);
+        ContentValues values = new ContentValues();
+        values.put(MigrationEntry.COLUMN_NAME, migration.getName());
+        db.insertWithOnConflict(MigrationEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Returns whether any scheduled migration is not cut over yet.
+     */
+    static boolean hasPending(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, MigrationEntry.TABLE_NAME,
+                MigrationEntry.COLUMN_DONE + "=0") != 0;
+    }
+
+    /**
+     * Returns whether any scheduled migration is not cut over yet, for work that needs the
+     * data in its new shape, like the sync.
+     *
+     * @param context of the app
+     */
+    public static boolean hasPending(Context context) {
+        return hasPending(BookDbHelper.getInstance(context).getReadableDatabase());
+    }
+
+    /**
+     * Run the pending migrations on a background thread, unless they are already running.
+     * Called whenever the database is opened with migrations pending.
+     *
+     * @param context of the app
+     */
+    static void startInBackground(final Context context) {
+        if (!sRunning.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(LOG_TAG) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    OnlineMigrations.run(context, new DatabaseMaintenance.StopSignal() {
+                        @Override
+                        public boolean isStopped() {
+                            return false;
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // E.g. the database was replaced by a restore; the next open resumes
+                    Log.e(LOG_TAG, "Migrations stopped", e);
+                } finally {
+                    sRunning.set(false);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Run the pending migrations batch by batch until they are done or the signal says to
+     * stop.
+     *
+     * @param context of the app
+     * @param signal  checked between batches
+     */
+    public static void run(Context context, DatabaseMaintenance.StopSignal signal) {
+        SQLiteDatabase db = BookDbHelper.getInstance(context).getWritableDatabase();
+        boolean cutOver = false;
+        for (OnlineMigration migration : MIGRATIONS) {
+            long position = getPosition(db, migration.getName());
+            if (position == OnlineMigration.DONE) {
+                continue;
+            }
+            long start = SystemClock.elapsedRealtime();
+            while (position != OnlineMigration.DONE && !signal.isStopped()) {
+                position = runBatch(db, migration, position);
+            }
+            if (position == OnlineMigration.DONE) {
+                cutOver = true;
+                Log.i(LOG_TAG, "Cut over " + migration.getName() + " after "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        }
+        // The data now has its new shape everywhere
+        if (cutOver) {
+            context.getContentResolver().notifyChange(BookContract.BASE_CONTENT_URI, null);
+        }
+    }
+
+    /**
+     * Returns the position a migration continues after, or {@link OnlineMigration#DONE} if it
+     * is not scheduled or already done.
+     */
+    private static long getPosition(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query(MigrationEntry.TABLE_NAME,
+                new String[] { MigrationEntry.COLUMN_POSITION },
+                MigrationEntry.COLUMN_NAME + "=? AND " + MigrationEntry.COLUMN_DONE + "=0",
+                new String[] { name }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : OnlineMigration.DONE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Migrate one batch and save the position reached in the same transaction. After the last
+     * batch the migration is cut over, still in that transaction.
+     */
+    private static long runBatch(SQLiteDatabase db, OnlineMigration migration, long position) {
+        ContentValues progress = new ContentValues();
+        db.beginTransactionNonExclusive();
+        try {
+            position = migration.migrateBatch(db, position, BATCH_SIZE);
+            if (position == OnlineMigration.DONE) {
+                migration.cutOver(db);
+                progress.put(MigrationEntry.COLUMN_DONE, 1);
+            } else {
+                progress.put(MigrationEntry.COLUMN_POSITION, position);
+            }
+            db.update(MigrationEntry.TABLE_NAME, progress, MigrationEntry.COLUMN_NAME + "=?",
+                    new String[] { migration.getName() });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return position;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.novuscarta.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.novuscarta.core.PriceHistoryQueries;
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+/**
+ * Records the current prices of the books that existed before version 12 of the database as
+ * the start of their price history, a range of IDs at a time. Books whose price changed since
+ * the upgrade already have a history, which the triggers started.
+ *
+ * Until it is done, the price history of a book that isn't filled in yet is empty, as if the
+ * book was entered after the instant asked for.
+ */
+class PriceHistoryBackfill extends OnlineMigration {
+
+    @Override
+    String getName() {
+        return "price_history_backfill";
+    }
+
+    @Override
+    long migrateBatch(SQLiteDatabase db, long position, int limit) {
+        // The last ID of the batch, so one statement records the whole range
+        Cursor cursor = db.rawQuery("SELECT MAX(" + BookEntry._ID + "), COUNT(*) FROM (SELECT "
+                + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID
+                + ">? ORDER BY " + BookEntry._ID + " LIMIT " + limit + ")",
+                new String[] { String.valueOf(position) });
+        try {
+            cursor.moveToFirst();
+            if (cursor.getLong(1) == 0) {
+                return DONE;
+            }
+            long last = cursor.getLong(0);
+            new SQLiteBookStore(db).executeUpdateDelete(
+                    PriceHistoryQueries.recordCurrentPrices(position, last));
+            return last;
+        } finally {
+            cursor.close();
+        }
+    }
+}
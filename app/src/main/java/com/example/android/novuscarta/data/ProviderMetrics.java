@@ -0,0 +1,41 @@
+package com.example.android.novuscarta.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the work done by {@link BookProvider}, kept for the lifetime of the process. They
+ * are cheap enough to update on every call and show whether optimizations like query
+ * cancellation actually kick in.
+ */
+public final class ProviderMetrics {
+
+    /** Number of queries started */
+    private static final AtomicLong sQueries = new AtomicLong();
+
+    /** Number of queries cancelled by their caller before they completed */
+    private static final AtomicLong sQueriesCancelled = new AtomicLong();
+
+    private ProviderMetrics() {}
+
+    static void recordQuery() {
+        sQueries.incrementAndGet();
+    }
+
+    static void recordQueryCancelled() {
+        sQueriesCancelled.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of queries started since the process started.
+     */
+    public static long getQueries() {
+        return sQueries.get();
+    }
+
+    /**
+     * Returns the number of queries cancelled since the process started.
+     */
+    public static long getQueriesCancelled() {
+        return sQueriesCancelled.get();
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.android.novuscarta.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A point-in-time view of inventory.db for reports, like a stock valuation or an export, that
+ * read every book.
+ *
+ * The view has a read-only connection of its own, outside the pool that the till uses, so a
+ * report never holds a connection a sale is waiting for. The connection opens a transaction
+ * and keeps it open while the report reads: with the write-ahead log, every read of that
+ * transaction sees the database as of its first read, however many sales commit in the
+ * meantime, and the sales don't wait for it.
+ *
+ * The books are read in chunks along their ID as the report moves through them, so it never
+ * holds more than one chunk in memory. Before each chunk the report waits until as much time
+ * has passed since the last one as that took to read, so it only uses half of the time of the
+ * disk and a core. While the report runs, checkpoints cannot move the write-ahead log past its
+ * snapshot, so the log grows by the writes made in the meantime until the report's cursor is
+ * closed.
+ */
+final class ReportSnapshot {
+
+    /** Number of books read per chunk */
+    static final int CHUNK_ROWS = 500;
+
+    /** Name of the savepoint that holds the read transaction */
+    private static final String SAVEPOINT = "report";
+
+    /** Page cache of the report connection in KiB. Reports read every page once. */
+    private static final int PAGE_CACHE_KIB = 256;
+
+    private final BookDbHelper mDbHelper;
+    private final SQLiteDatabase mDb;
+
+    /**
+     * Open a connection and pin the snapshot the report will see. Must be closed with
+     * {@link #close()}.
+     */
+    ReportSnapshot(BookDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        mDb = dbHelper.openReportDatabase();
+        try {
+            mDb.execSQL("PRAGMA cache_size=-" + PAGE_CACHE_KIB);
+            // BEGIN would be turned into an exclusive transaction by SQLiteDatabase, which a
+            // read-only connection cannot take; a savepoint starts a deferred one. Its first
+            // read fixes the snapshot, so the query has to be stepped, not just prepared.
+            mDb.execSQL("SAVEPOINT " + SAVEPOINT);
+            DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sqlite_master", null);
+        } catch (RuntimeException e) {
+            dbHelper.closeReportDatabase(mDb);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the books matching the selection as of the snapshot, in the order of their ID.
+     * The rows are read a chunk at a time as the cursor moves, through the connection of the
+     * snapshot, so they don't change when the books do. The cursor owns the snapshot: closing
+     * it closes the snapshot, and the snapshot must not be closed otherwise once this returned.
+     *
+     * @param projection columns of the books table, or null for all of them
+     */
+    Cursor queryBooks(String[] projection, String selection, String[] selectionArgs,
+                      CancellationSignal cancellationSignal) {
+        return new BookCursor(projection, selection, selectionArgs, cancellationSignal);
+    }
+
+    /**
+     * End the read transaction and close the connection.
+     */
+    void close() {
+        try {
+            if (mDb.isOpen()) {
+                mDb.execSQL("RELEASE " + SAVEPOINT);
+            }
+        } finally {
+            mDbHelper.closeReportDatabase(mDb);
+        }
+    }
+
+    /**
+     * Cursor over the books of a report. Chunk k holds the rows from position
+     * k * {@link #CHUNK_ROWS}; it is read when the cursor first moves into it, starting after
+     * the last ID of the chunk before. Moving back reads a chunk again from the ID it started
+     * after, which the snapshot keeps the same.
+     */
+    private final class BookCursor extends AbstractCursor {
+
+        private final String mSql;
+        private final String[] mArgs;
+        private final String[] mColumnNames;
+        private final int mCount;
+
+        /** The ID each chunk read so far starts after, and that of the chunk after those */
+        private final List<Long> mChunkStarts = new ArrayList<>();
+
+        private Cursor mChunk;
+        private int mChunkIndex;
+
+        /** How long the last chunk took to read, and when that was done */
+        private long mChunkMillis;
+        private long mChunkEnd;
+
+        BookCursor(String[] projection, String selection, String[] selectionArgs,
+                   CancellationSignal cancellationSignal) {
+            // The ID of the last book of a chunk is the start of the next one. It is read from
+            // an extra column, as the projection doesn't need to have it.
+            String columns = projection == null ? "*" : TextUtils.join(", ", projection);
+            String where = " FROM " + BookEntry.TABLE_NAME + " WHERE "
+                    + (selection == null ? "" : "(" + selection + ") AND ");
+            mSql = "SELECT " + columns + ", " + BookEntry.TABLE_NAME + "." + BookEntry._ID
+                    + where + BookEntry.TABLE_NAME + "." + BookEntry._ID + ">? ORDER BY "
+                    + BookEntry.TABLE_NAME + "." + BookEntry._ID + " LIMIT " + CHUNK_ROWS;
+            int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+            mArgs = selectionArgs == null
+                    ? new String[1] : Arrays.copyOf(selectionArgs, argCount + 1);
+
+            // Counting reads the IDs once, but copies no rows
+            String[] countArgs = Arrays.copyOf(mArgs, argCount + 1);
+            countArgs[argCount] = String.valueOf(Long.MIN_VALUE);
+            Cursor count = mDb.rawQuery("SELECT COUNT(*)" + where + BookEntry.TABLE_NAME + "."
+                    + BookEntry._ID + ">?", countArgs, cancellationSignal);
+            try {
+                count.moveToFirst();
+                mCount = count.getInt(0);
+            } finally {
+                count.close();
+            }
+
+            mChunkStarts.add(Long.MIN_VALUE);
+            mChunk = readChunk(0, cancellationSignal);
+            mColumnNames = Arrays.copyOf(mChunk.getColumnNames(), mChunk.getColumnCount() - 1);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int index = newPosition / CHUNK_ROWS;
+            if (index != mChunkIndex) {
+                // Chunks not read yet can only be found from the one before
+                for (int i = Math.min(index, mChunkStarts.size() - 1); i <= index; i++) {
+                    mChunk.close();
+                    mChunk = readChunk(i, null);
+                }
+            }
+            return mChunk.moveToPosition(newPosition - index * CHUNK_ROWS);
+        }
+
+        @Override
+        public int getType(int column) {
+            return mChunk.getType(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return mChunk.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return mChunk.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return mChunk.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mChunk.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return mChunk.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mChunk.getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mChunk.getBlob(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mChunk.isNull(column);
+        }
+
+        @Override
+        public void close() {
+            if (isClosed()) {
+                return;
+            }
+            super.close();
+            try {
+                mChunk.close();
+            } finally {
+                ReportSnapshot.this.close();
+            }
+        }
+
+        /**
+         * Read the chunk with the given index, whose start must be known, and note the start
+         * of the one after it.
+         */
+        private Cursor readChunk(int index, CancellationSignal cancellationSignal) {
+            // Leave the other half of the time to the till, unless the reader already did
+            long idle = SystemClock.elapsedRealtime() - mChunkEnd;
+            if (idle < mChunkMillis) {
+                SystemClock.sleep(mChunkMillis - idle);
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            long startId = mChunkStarts.get(index);
+            mArgs[mArgs.length - 1] = String.valueOf(startId);
+            Tracer.Span span = Tracer.begin("ReportSnapshot.chunk", startId);
+            Cursor chunk = mDb.rawQuery(mSql, mArgs, cancellationSignal);
+            try {
+                // Stepping the query fills the window with the whole chunk
+                int rows = chunk.getCount();
+                if (index == mChunkStarts.size() - 1 && rows == CHUNK_ROWS) {
+                    chunk.moveToLast();
+                    mChunkStarts.add(chunk.getLong(chunk.getColumnCount() - 1));
+                }
+            } catch (RuntimeException e) {
+                chunk.close();
+                throw e;
+            } finally {
+                Tracer.end(span);
+            }
+            mChunkEnd = SystemClock.elapsedRealtime();
+            mChunkMillis = mChunkEnd - start;
+            mChunkIndex = index;
+            return chunk;
+        }
+    }
+}
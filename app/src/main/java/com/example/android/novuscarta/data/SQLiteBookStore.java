@@ -0,0 +1,88 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.novuscarta.core.BookStore;
+import com.example.android.novuscarta.core.Row;
+import com.example.android.novuscarta.core.SqlStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BookStore} on the app's {@link SQLiteDatabase}, which runs the statements of the core
+ * module on the device.
+ */
+class SQLiteBookStore implements BookStore {
+
+    private final SQLiteDatabase mDatabase;
+
+    SQLiteBookStore(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Returns a {@link Row} with the same values as the given ContentValues.
+     */
+    static Row toRow(ContentValues values) {
+        Row row = new Row();
+        for (String column : values.keySet()) {
+            row.put(column, values.get(column));
+        }
+        return row;
+    }
+
+    @Override
+    public int executeUpdateDelete(SqlStatement statement) {
+        SQLiteStatement compiled = mDatabase.compileStatement(statement.sql);
+        try {
+            for (int i = 0; i < statement.args.length; i++) {
+                DatabaseUtils.bindObjectToProgram(compiled, i + 1, statement.args[i]);
+            }
+            return compiled.executeUpdateDelete();
+        } finally {
+            compiled.close();
+        }
+    }
+
+    @Override
+    public List<Row> query(SqlStatement statement) {
+        // Queries only take text arguments (and no nulls); SQLite converts them where a column
+        // is numeric
+        String[] args = new String[statement.args.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = statement.args[i] == null ? null : statement.args[i].toString();
+        }
+        Cursor cursor = mDatabase.rawQuery(statement.sql, args);
+        try {
+            List<Row> rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                rows.add(toRow(values));
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        mDatabase.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mDatabase.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        mDatabase.endTransaction();
+    }
+}
@@ -0,0 +1,616 @@
+package com.example.android.novuscarta.data;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.example.android.novuscarta.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind queue for changes to the stock made at the till, like a copy being sold.
+ *
+ * Every change is appended to a journal file on the queue thread right after it is recorded,
+ * so it survives the process dying, without a disk write on the thread that records it. The
+ * change is only acknowledged once it is in the journal. A few hundred milliseconds after the
+ * first change, the journal is closed as a batch and its changes are summed per book and
+ * location and sent to the provider with
+ * {@link BookContract#METHOD_APPLY_STOCK_DELTAS}: one transaction and one change notification,
+ * however many times the sold button was tapped. A batch is only deleted once the provider
+ * has applied it, and the provider ignores a batch it has seen before, so a batch interrupted
+ * by a crash is applied exactly once on the next start. A batch that cannot be read is set
+ * aside, so it doesn't hold up the batches after it.
+ *
+ * Until a change is applied, {@link #getPendingDelta(long, long)} returns it. The list shows
+ * the quantity including {@link #getPendingDelta(long, long, long)}, which also keeps the
+ * changes applied after the list was loaded until a list loaded after them is delivered, so
+ * a sale doesn't disappear from its row between being applied and the list being reloaded.
+ */
+public final class SaleQueue {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = SaleQueue.class.getSimpleName();
+
+    /** How long changes are collected before they are written to the database */
+    private static final long FLUSH_DELAY_MILLIS = 300;
+
+    /** How long to wait before trying again when a batch could not be applied */
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    /** Directory under the app's files directory that holds the journal and the batches */
+    private static final String QUEUE_DIR = "sales";
+
+    /** Name of the journal file that changes are appended to */
+    private static final String JOURNAL_NAME = "journal";
+
+    /** Prefix of the batch files. The rest of the name is the ID of the batch. */
+    private static final String BATCH_PREFIX = "batch-";
+
+    /** Prefix a batch that cannot be read is renamed with, so it is no longer applied */
+    private static final String UNREADABLE_PREFIX = "unreadable-";
+
+    /**
+     * Most applied batches remembered for lists loaded before them, in case no list is
+     * delivered for a while, e.g. while the catalog is not shown
+     */
+    private static final int MAX_APPLIED_BATCHES = 64;
+
+    /**
+     * Listener for a change being recorded.
+     */
+    public interface OnRecordedListener {
+        /**
+         * Called on the main thread once the change is in the journal, and counts as pending.
+         * Not called if the change could not be recorded.
+         */
+        void onRecorded();
+    }
+
+    private static SaleQueue sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+    private final File mJournal;
+
+    /** Thread that writes the journal and applies the batches */
+    private final Handler mHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Guards the pending deltas, their traced flows and whether a flush is scheduled */
+    private final Object mLock = new Object();
+
+    /**
+     * Open journal, or null if there are no changes since the last batch. Only used on the
+     * queue thread.
+     */
+    private OutputStream mJournalOut;
+
+    /** Net change of each book at each location that is not in the database yet */
+    private final Map<String, Integer> mPendingDeltas = new HashMap<>();
+
+    /** Number of batches applied, which is the generation of the last one */
+    private long mAppliedGeneration;
+
+    /** Net changes of the batches applied recently, by generation in ascending order */
+    private final LinkedHashMap<Long, Map<String, Integer>> mAppliedDeltas =
+            new LinkedHashMap<>();
+
+    private boolean mFlushScheduled;
+
+    /** Traced flows of the changes in the journal, see {@link Tracer} */
+    private long[] mJournalFlows = new long[0];
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Returns the shared {@link SaleQueue}. On the first call, changes left over by a previous
+     * process are applied.
+     *
+     * @param context of the app
+     */
+    public static synchronized SaleQueue getInstance(Context context) {
+        if (sInstance == null) {
+            context = context.getApplicationContext();
+            sInstance = new SaleQueue(context, new File(context.getFilesDir(), QUEUE_DIR));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructs a new {@link SaleQueue} keeping its journal and batches in the given
+     * directory. Tests use a directory of their own.
+     */
+    SaleQueue(Context context, File dir) {
+        mContext = context;
+        mDir = dir;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create " + mDir);
+        }
+        mJournal = new File(mDir, JOURNAL_NAME);
+
+        // A journal left over by a previous process becomes a batch of its own, before this
+        // process appends anything to it
+        closeJournal();
+
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                recover();
+            }
+        });
+    }
+
+    /**
+     * Add a change to the stock of a book at a location, e.g. -1 for a copy sold. The change
+     * is appended to the journal on the queue thread, which writes it to the database shortly
+     * after, together with the other changes made in the meantime. Once the change is in the
+     * journal it counts as pending and the listener is called. If the journal cannot be
+     * written, the change is dropped and a toast says so.
+     *
+     * @param listener to call once the change is recorded, or null
+     */
+    public void record(final long bookId, final long locationId, final int delta,
+                       final OnRecordedListener listener) {
+        synchronized (mLock) {
+            mJournalFlows = Tracer.merge(mJournalFlows, Tracer.getCurrentFlows());
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                append(bookId, locationId, delta, listener);
+            }
+        });
+    }
+
+    /**
+     * Returns the net change of the stock of a book at a location that is recorded but not in
+     * the database yet.
+     */
+    public int getPendingDelta(long bookId, long locationId) {
+        synchronized (mLock) {
+            Integer delta = mPendingDeltas.get(key(bookId, locationId));
+            return delta == null ? 0 : delta;
+        }
+    }
+
+    /**
+     * Returns the generation of the last batch applied. A query started after this returns
+     * sees the changes of that batch and all before it.
+     */
+    public long getAppliedGeneration() {
+        synchronized (mLock) {
+            return mAppliedGeneration;
+        }
+    }
+
+    /**
+     * Returns the net change of the stock of a book at a location that is missing from data
+     * loaded after {@link #getAppliedGeneration()} returned the given generation: the changes
+     * not in the database yet, and those applied since, as long as they are remembered.
+     */
+    public int getPendingDelta(long bookId, long locationId, long loadedGeneration) {
+        String key = key(bookId, locationId);
+        synchronized (mLock) {
+            Integer pending = mPendingDeltas.get(key);
+            int delta = pending == null ? 0 : pending;
+            for (Map.Entry<Long, Map<String, Integer>> batch : mAppliedDeltas.entrySet()) {
+                Integer applied = batch.getValue().get(key);
+                if (batch.getKey() > loadedGeneration && applied != null) {
+                    delta += applied;
+                }
+            }
+            return delta;
+        }
+    }
+
+    /**
+     * Forget the changes applied up to the given generation, once no list loaded before them
+     * is shown anymore.
+     */
+    public void forgetApplied(long generation) {
+        synchronized (mLock) {
+            Iterator<Long> generations = mAppliedDeltas.keySet().iterator();
+            while (generations.hasNext() && generations.next() <= generation) {
+                generations.remove();
+            }
+        }
+    }
+
+    /**
+     * Apply every change recorded so far and wait until it is in the database, or until
+     * applying it failed and is retried later. For checks after a load test.
+     */
+    void flushAndWait() throws InterruptedException {
+        FutureTask<Void> future = new FutureTask<>(mFlush, null);
+        mHandler.post(future);
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Drop every change that is not in the database yet, then run the given task, e.g. one that
+     * replaces the database. Both run on the queue thread, so no batch is applied before the
+     * task is done. Waits for the task and rethrows what it throws.
+     */
+    void discardAndRun(final Callable<Void> task) throws IOException {
+        FutureTask<Void> future = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                discardAll();
+                return task.call();
+            }
+        });
+        mHandler.post(future);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the sale queue");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Delete the journal and the batches and forget the pending changes. Runs on the queue
+     * thread.
+     */
+    private void discardAll() {
+        if (mJournalOut != null) {
+            try {
+                mJournalOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not close journal", e);
+            }
+            mJournalOut = null;
+        }
+        File[] batches = listBatches();
+        for (File file : batches) {
+            if (!file.delete()) {
+                Log.w(LOG_TAG, "Could not delete batch " + file);
+            }
+        }
+        if (mJournal.exists() && !mJournal.delete()) {
+            Log.w(LOG_TAG, "Could not delete journal");
+        }
+        synchronized (mLock) {
+            Log.i(LOG_TAG, "Discarded " + batches.length + " batches and the changes of "
+                    + mPendingDeltas.size() + " books");
+            mPendingDeltas.clear();
+            mAppliedDeltas.clear();
+            mJournalFlows = new long[0];
+        }
+    }
+
+    /**
+     * Append a change to the journal, then count it as pending, call the listener and schedule
+     * the flush that applies it. Runs on the queue thread, so a flush either comes before the
+     * append or takes it along.
+     */
+    private void append(long bookId, long locationId, int delta,
+                        final OnRecordedListener listener) {
+        try {
+            if (mJournalOut == null) {
+                mJournalOut = new FileOutputStream(mJournal, true);
+            }
+            // A single small write, so a record is either in the file or not. A torn last
+            // record after a crash is skipped when the batch is read.
+            mJournalOut.write(formatRecord(bookId, locationId, delta).getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not record change of book " + bookId, e);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(mContext, R.string.sold_database_error, Toast.LENGTH_SHORT)
+                            .show();
+                }
+            });
+            return;
+        }
+        synchronized (mLock) {
+            addPendingDelta(key(bookId, locationId), delta);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+            }
+        }
+        if (listener != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onRecorded();
+                }
+            });
+        }
+    }
+
+    /**
+     * Read the batches left over by a previous process and apply them. Runs on the queue
+     * thread.
+     */
+    private void recover() {
+        for (File batch : listBatches()) {
+            Map<String, Integer> deltas = readBatch(batch);
+            if (deltas == null) {
+                setAside(batch);
+                continue;
+            }
+            synchronized (mLock) {
+                for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                    addPendingDelta(delta.getKey(), delta.getValue());
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Turn the journal into a batch and apply all batches. Runs on the queue thread.
+     */
+    private void flush() {
+        long[] flows;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            closeJournal();
+            flows = mJournalFlows;
+            mJournalFlows = new long[0];
+        }
+        Tracer.Span span = Tracer.beginFlows("SaleQueue.flush", null, flows);
+        try {
+            for (File batch : listBatches()) {
+                if (!applyBatch(batch)) {
+                    // Keep the batch and try again later
+                    synchronized (mLock) {
+                        if (!mFlushScheduled) {
+                            mFlushScheduled = true;
+                            mHandler.postDelayed(mFlush, RETRY_DELAY_MILLIS);
+                        }
+                    }
+                    return;
+                }
+            }
+        } finally {
+            Tracer.end(span);
+        }
+    }
+
+    /**
+     * Send the net changes of a batch to the provider and delete the batch once they are in
+     * the database.
+     *
+     * @return false if the batch could not be applied and should be tried again
+     */
+    private boolean applyBatch(File batch) {
+        Map<String, Integer> deltas = readBatch(batch);
+        if (deltas == null) {
+            // Reading it again won't help, and it would hold up every batch after it
+            setAside(batch);
+            return true;
+        }
+        if (!deltas.isEmpty()) {
+            long[] bookIds = new long[deltas.size()];
+            long[] locationIds = new long[deltas.size()];
+            int[] values = new int[deltas.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                String[] key = delta.getKey().split(":");
+                bookIds[i] = Long.parseLong(key[0]);
+                locationIds[i] = Long.parseLong(key[1]);
+                values[i] = delta.getValue();
+                i++;
+            }
+            Bundle extras = new Bundle();
+            extras.putLongArray(BookContract.EXTRA_BOOK_IDS, bookIds);
+            extras.putLongArray(BookContract.EXTRA_LOCATION_IDS, locationIds);
+            extras.putIntArray(BookContract.EXTRA_DELTAS, values);
+            String batchId = batch.getName().substring(BATCH_PREFIX.length());
+            // The time of this span outside the span of the provider is the dispatch
+            Tracer.Span span = Tracer.begin("SaleQueue.applyBatch", batchId);
+            try {
+                mContext.getContentResolver().call(BookContract.BASE_CONTENT_URI,
+                        BookContract.METHOD_APPLY_STOCK_DELTAS, batchId, extras);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Could not apply batch " + batchId, e);
+                return false;
+            } finally {
+                Tracer.end(span);
+            }
+        }
+
+        if (!batch.delete()) {
+            Log.w(LOG_TAG, "Could not delete batch " + batch);
+        }
+        synchronized (mLock) {
+            for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                addPendingDelta(delta.getKey(), -delta.getValue());
+            }
+            // Lists loaded before keep showing the changes until they are reloaded
+            if (!deltas.isEmpty()) {
+                mAppliedDeltas.put(++mAppliedGeneration, deltas);
+                if (mAppliedDeltas.size() > MAX_APPLIED_BATCHES) {
+                    forgetApplied(mAppliedDeltas.keySet().iterator().next());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close the journal and rename it to a new batch, if it has any changes. Called on the
+     * queue thread, or before the queue is shared.
+     */
+    private void closeJournal() {
+        if (mJournalOut != null) {
+            try {
+                mJournalOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not close journal", e);
+            }
+            mJournalOut = null;
+        }
+        if (mJournal.length() > 0) {
+            File batch = new File(mDir, BATCH_PREFIX + UUID.randomUUID());
+            if (!mJournal.renameTo(batch)) {
+                Log.e(LOG_TAG, "Could not turn journal into " + batch);
+            }
+        }
+    }
+
+    /**
+     * Rename a batch that cannot be read so it is no longer applied, but stays on disk to be
+     * looked into. Its changes are not pending; the list shows the stock without them.
+     */
+    private void setAside(File batch) {
+        File unreadable = new File(mDir, UNREADABLE_PREFIX + batch.getName());
+        if (batch.renameTo(unreadable)) {
+            Log.e(LOG_TAG, "Set aside unreadable batch as " + unreadable);
+        } else {
+            Log.e(LOG_TAG, "Could not set aside unreadable batch " + batch);
+        }
+    }
+
+    private File[] listBatches() {
+        File[] batches = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(BATCH_PREFIX);
+            }
+        });
+        return batches == null ? new File[0] : batches;
+    }
+
+    /**
+     * Returns the journal record of a change: the book, the location and the change, followed
+     * by a checksum of the three, on a line of its own.
+     */
+    static String formatRecord(long bookId, long locationId, int delta) {
+        String fields = bookId + " " + locationId + " " + delta;
+        return fields + " " + checksum(fields) + "\n";
+    }
+
+    /**
+     * Returns the net change per book and location recorded in a batch, or null if the batch
+     * could not be read. Only records that end with a newline and match their checksum count,
+     * so a record torn by a crash is skipped even where what is left of it looks like a change,
+     * like "1 1 -1" left of "1 1 -10 ...".
+     */
+    static Map<String, Integer> readBatch(File batch) {
+        String text;
+        try {
+            InputStream in = new FileInputStream(batch);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                text = bytes.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not read batch " + batch, e);
+            return null;
+        }
+
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) != -1) {
+            String line = text.substring(start, end);
+            start = end + 1;
+            String[] fields = line.split(" ");
+            // Records written before they had a checksum are complete if they end with a
+            // newline
+            boolean valid = fields.length == 3 || fields.length == 4 && fields[3].equals(
+                    checksum(line.substring(0, line.lastIndexOf(' '))));
+            if (!valid) {
+                Log.w(LOG_TAG, "Skipping corrupt record in " + batch);
+                continue;
+            }
+            try {
+                String key = key(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                int delta = Integer.parseInt(fields[2]);
+                Integer sum = deltas.get(key);
+                deltas.put(key, sum == null ? delta : sum + delta);
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "Skipping corrupt record in " + batch);
+            }
+        }
+        if (start < text.length()) {
+            Log.w(LOG_TAG, "Skipping torn record in " + batch);
+        }
+        return deltas;
+    }
+
+    private static String checksum(String fields) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(fields.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Add to the pending change of a book at a location. Called with the lock held.
+     */
+    private void addPendingDelta(String key, int delta) {
+        Integer sum = mPendingDeltas.get(key);
+        int newSum = (sum == null ? 0 : sum) + delta;
+        if (newSum == 0) {
+            mPendingDeltas.remove(key);
+        } else {
+            mPendingDeltas.put(key, newSum);
+        }
+    }
+
+    private static String key(long bookId, long locationId) {
+        return bookId + ":" + locationId;
+    }
+}
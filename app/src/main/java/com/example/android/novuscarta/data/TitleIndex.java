@@ -0,0 +1,467 @@
+package com.example.android.novuscarta.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of book titles for typeahead suggestions.
+ *
+ * The normalized titles are kept in a sorted array, so all titles starting with a prefix are
+ * found with one binary search, without a round-trip to the database. The index is built in the
+ * background on first use and kept current by reading the change feed whenever the books
+ * change, merging the changed titles into a copy of the arrays. Lookups read an immutable
+ * snapshot and never block on updates.
+ *
+ * When the process is about to be killed for memory, the index is dropped, and built again by
+ * the next lookup.
+ */
+public final class TitleIndex implements ComponentCallbacks2 {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = TitleIndex.class.getSimpleName();
+
+    /**
+     * Maximum number of books in the index. Beyond that, the index is too large to be worth
+     * its memory: no titles are loaded and suggestions are no longer offered.
+     */
+    private static final int MAX_ENTRIES = 50000;
+
+    /** Only this many characters of a normalized title are indexed */
+    private static final int MAX_KEY_LENGTH = 48;
+
+    /** Matches the combining marks left over after decomposing accented characters */
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    /** Matches runs of anything but letters and digits */
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static TitleIndex sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+
+    /** Thread that builds and updates the index */
+    private final Handler mHandler;
+
+    /** Last change log entry applied to the index. Only accessed on the index thread. */
+    private long mLastSeq;
+
+    /** Current snapshot of the index, or null until it is built or if it is too large */
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Whether the catalog has more than {@link #MAX_ENTRIES} books, so there is no snapshot.
+     * Only accessed on the index thread.
+     */
+    private boolean mTooLarge;
+
+    /** Whether the index was dropped to free memory and must be built again */
+    private volatile boolean mReleased;
+
+    /**
+     * A book title suggested for a prefix.
+     */
+    public static final class Suggestion {
+
+        /** ID of the book */
+        public final long id;
+
+        /** Title of the book as it was entered */
+        public final String title;
+
+        Suggestion(long id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return title;
+        }
+    }
+
+    /**
+     * Returns the shared {@link TitleIndex}, starting to build it if this is the first call.
+     *
+     * @param context of the app
+     */
+    public static synchronized TitleIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TitleIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TitleIndex(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        HandlerThread thread = new HandlerThread(LOG_TAG,
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                build();
+            }
+        });
+        mContentResolver.registerContentObserver(BookEntry.CONTENT_URI, true,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        applyChanges();
+                    }
+                });
+        context.registerComponentCallbacks(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            release();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        release();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Drop the titles, until the next lookup needs them again.
+     */
+    private void release() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSnapshot = null;
+                mTooLarge = false;
+                mReleased = true;
+            }
+        });
+    }
+
+    /**
+     * Rebuild the index from scratch, if it was started. Called when the whole database was
+     * replaced, so the change feed no longer continues from where the index left off.
+     */
+    static synchronized void invalidate() {
+        if (sInstance == null) {
+            return;
+        }
+        final TitleIndex index = sInstance;
+        index.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                index.mSnapshot = null;
+                index.mReleased = false;
+                index.build();
+            }
+        });
+    }
+
+    /**
+     * Normalize a title for matching: accents removed, lower case, and punctuation and runs of
+     * white space turned into single spaces. "Les Misérables!" and "les  miserables" have the
+     * same key.
+     */
+    public static String normalize(String title) {
+        String key = Normalizer.normalize(title, Normalizer.Form.NFD);
+        key = DIACRITICS.matcher(key).replaceAll("");
+        key = SEPARATORS.matcher(key.toLowerCase(Locale.ROOT)).replaceAll(" ");
+        return key.trim();
+    }
+
+    /**
+     * Returns up to the given number of books whose title starts with the given prefix, in
+     * alphabetical order. Returns nothing while the index is being built. Safe to call from
+     * any thread.
+     *
+     * @param prefix typed by the user
+     * @param limit  maximum number of suggestions
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        if (mReleased) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Several lookups may ask for the rebuild, only the first one does it
+                    if (mReleased) {
+                        mReleased = false;
+                        build();
+                    }
+                }
+            });
+        }
+        Snapshot snapshot = mSnapshot;
+        String key = normalize(prefix);
+        if (snapshot == null || key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (key.length() > MAX_KEY_LENGTH) {
+            key = key.substring(0, MAX_KEY_LENGTH);
+        }
+
+        // Find the first key not smaller than the prefix. All keys starting with the prefix
+        // follow it.
+        int index = Arrays.binarySearch(snapshot.mKeys, key);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        List<Suggestion> suggestions = new ArrayList<>(limit);
+        while (index < snapshot.mKeys.length && suggestions.size() < limit
+                && snapshot.mKeys[index].startsWith(key)) {
+            suggestions.add(new Suggestion(snapshot.mIds[index], snapshot.mTitles[index]));
+            index++;
+        }
+        return suggestions;
+    }
+
+    /**
+     * Load every title, unless there are too many. Runs on the index thread.
+     */
+    private void build() {
+        // Remember where the change feed is first, so changes made while loading are applied
+        // again afterwards. Applying a change twice does no harm.
+        mLastSeq = queryLastSeq();
+        if (isTooLarge()) {
+            return;
+        }
+
+        Cursor cursor = mContentResolver.query(BookEntry.CONTENT_URI,
+                new String[] { BookEntry._ID, BookEntry.COLUMN_PRODUCT_NAME }, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(1)) {
+                    entries.add(new Entry(cursor.getLong(0), cursor.getString(1)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(entries);
+        mSnapshot = merge(new Snapshot(new String[0], new String[0], new long[0]),
+                Collections.<Long>emptySet(), entries);
+    }
+
+    /**
+     * Returns whether the catalog has more books than the index takes, and drops the snapshot
+     * if so. Runs on the index thread.
+     */
+    private boolean isTooLarge() {
+        SQLiteDatabase db = BookDbHelper.getInstance(mContext).getReadableDatabase();
+        long count = DatabaseUtils.queryNumEntries(db, BookEntry.TABLE_NAME);
+        mTooLarge = count > MAX_ENTRIES;
+        if (mTooLarge) {
+            Log.w(LOG_TAG, count + " books, title suggestions disabled");
+            mSnapshot = null;
+        }
+        return mTooLarge;
+    }
+
+    /**
+     * Apply the changes to titles made since the index was last updated. Runs on the index
+     * thread.
+     */
+    private void applyChanges() {
+        if (mReleased) {
+            // The rebuild reads all titles, including these changes
+            return;
+        }
+        Uri feed = ChangeLogEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ChangeLogEntry.PARAM_SINCE, String.valueOf(mLastSeq))
+                .build();
+        Cursor cursor = mContentResolver.query(feed, new String[] { ChangeLogEntry.COLUMN_SEQ,
+                BookEntry._ID, ChangeLogEntry.COLUMN_OP, ChangeLogEntry.COLUMN_COLUMNS },
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        // The books whose entries go, and those of them that get a new one
+        Set<Long> droppedIds = new HashSet<>();
+        Set<Long> changedIds = new LinkedHashSet<>();
+        boolean anyInsertOrDelete = false;
+        try {
+            while (cursor.moveToNext()) {
+                mLastSeq = cursor.getLong(0);
+                long id = cursor.getLong(1);
+                String op = cursor.getString(2);
+                if (ChangeLogEntry.OP_DELETE.equals(op)) {
+                    droppedIds.add(id);
+                    changedIds.remove(id);
+                    anyInsertOrDelete = true;
+                } else if (ChangeLogEntry.OP_INSERT.equals(op)
+                        || changesTitle(cursor.getString(3))) {
+                    droppedIds.add(id);
+                    changedIds.add(id);
+                    anyInsertOrDelete |= ChangeLogEntry.OP_INSERT.equals(op);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (mTooLarge) {
+            // Only a change in the number of books can bring the catalog back under the limit
+            if (anyInsertOrDelete && !isTooLarge()) {
+                build();
+            }
+            return;
+        }
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || droppedIds.isEmpty()) {
+            return;
+        }
+
+        List<Entry> added = new ArrayList<>(changedIds.size());
+        for (long id : changedIds) {
+            Cursor book = mContentResolver.query(
+                    Uri.withAppendedPath(BookEntry.CONTENT_URI, String.valueOf(id)),
+                    new String[] { BookEntry.COLUMN_PRODUCT_NAME }, null, null, null);
+            if (book == null) {
+                continue;
+            }
+            try {
+                if (book.moveToFirst() && !book.isNull(0)) {
+                    added.add(new Entry(id, book.getString(0)));
+                }
+            } finally {
+                book.close();
+            }
+        }
+        Collections.sort(added);
+        snapshot = merge(snapshot, droppedIds, added);
+        if (snapshot.mIds.length > MAX_ENTRIES) {
+            isTooLarge();
+        } else {
+            mSnapshot = snapshot;
+        }
+    }
+
+    /**
+     * Returns whether the changed columns of a change log entry include the title.
+     */
+    private static boolean changesTitle(String columns) {
+        if (columns == null) {
+            return true;
+        }
+        for (String column : columns.split(",")) {
+            if (BookEntry.COLUMN_PRODUCT_NAME.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long queryLastSeq() {
+        SQLiteDatabase db = BookDbHelper.getInstance(mContext).getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + ChangeLogEntry.COLUMN_SEQ
+                + "), 0) FROM " + ChangeLogEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Returns a new snapshot with the entries of the given books left out and the given
+     * entries merged in. The snapshot is copied once, and only the added titles are
+     * normalized and sorted.
+     *
+     * @param snapshot   to start from
+     * @param droppedIds books whose entries are left out
+     * @param added      entries to add, sorted by key
+     */
+    private static Snapshot merge(Snapshot snapshot, Set<Long> droppedIds, List<Entry> added) {
+        int capacity = snapshot.mIds.length + added.size();
+        String[] keys = new String[capacity];
+        String[] titles = new String[capacity];
+        long[] ids = new long[capacity];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < snapshot.mIds.length || j < added.size()) {
+            if (i < snapshot.mIds.length && droppedIds.contains(snapshot.mIds[i])) {
+                i++;
+            } else if (j == added.size() || i < snapshot.mIds.length
+                    && snapshot.mKeys[i].compareTo(added.get(j).mKey) <= 0) {
+                keys[size] = snapshot.mKeys[i];
+                titles[size] = snapshot.mTitles[i];
+                ids[size] = snapshot.mIds[i];
+                size++;
+                i++;
+            } else {
+                Entry entry = added.get(j);
+                keys[size] = entry.mKey;
+                titles[size] = entry.mTitle;
+                ids[size] = entry.mId;
+                size++;
+                j++;
+            }
+        }
+        return new Snapshot(Arrays.copyOf(keys, size), Arrays.copyOf(titles, size),
+                Arrays.copyOf(ids, size));
+    }
+
+    /**
+     * Sorted keys with the titles and IDs of the books they belong to, in parallel arrays.
+     */
+    private static final class Snapshot {
+        private final String[] mKeys;
+        private final String[] mTitles;
+        private final long[] mIds;
+
+        Snapshot(String[] keys, String[] titles, long[] ids) {
+            mKeys = keys;
+            mTitles = titles;
+            mIds = ids;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final String mKey;
+        private final String mTitle;
+        private final long mId;
+
+        Entry(long id, String title) {
+            String key = normalize(title);
+            mKey = key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+            mTitle = title;
+            mId = id;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return mKey.compareTo(other.mKey);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.android.novuscarta.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+/**
+ * Fills in the {@link BookEntry#COLUMN_TITLE_KEY} of the books that existed before version 8 of
+ * the database. The title key is normalized in Java, so this goes row by row, in the order of
+ * the IDs. Setting a title key fires the natural key trigger, so the oldest of several copies
+ * of a book gets the natural key, unless a copy entered since the upgrade already took it.
+ *
+ * Until it is done, books that aren't filled in yet have no natural key, so deliveries of them
+ * are added as new books, as before version 8.
+ */
+class TitleKeyBackfill extends OnlineMigration {
+
+    @Override
+    String getName() {
+        return "title_key_backfill";
+    }
+
+    @Override
+    long migrateBatch(SQLiteDatabase db, long position, int limit) {
+        // Setting the derived title key doesn't change any captured column, so it leaves the
+        // change log and the version alone
+        SQLiteStatement setTitleKey = db.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                + " SET " + BookEntry.COLUMN_TITLE_KEY + "=? WHERE " + BookEntry._ID + "=?");
+        Cursor cursor = db.query(BookEntry.TABLE_NAME, new String[] { BookEntry._ID,
+                        BookEntry.COLUMN_PRODUCT_NAME },
+                BookEntry._ID + ">? AND " + BookEntry.COLUMN_TITLE_KEY + " IS NULL",
+                new String[] { String.valueOf(position) }, null, null, BookEntry._ID,
+                String.valueOf(limit));
+        try {
+            if (cursor.getCount() == 0) {
+                return DONE;
+            }
+            while (cursor.moveToNext()) {
+                position = cursor.getLong(0);
+                setTitleKey.bindString(1, TitleIndex.normalize(cursor.getString(1)));
+                setTitleKey.bindLong(2, position);
+                setTitleKey.executeUpdateDelete();
+            }
+            return position;
+        } finally {
+            cursor.close();
+            setTitleKey.close();
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.example.android.novuscarta.data;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traces the work done for a user action across the layers of the app, e.g. from a tap on the
+ * sold button through the sale queue, the provider and SQLite to the list showing the new
+ * quantity.
+ *
+ * Every span is an {@link Trace} section, so it shows up in systrace. While recording, the
+ * spans are also kept in memory with the flows they belong to: a flow is a correlation ID that
+ * is started by the action and follows it from thread to thread. {@link #writeChromeTrace}
+ * exports the recorded spans in the Chrome trace event format, which chrome://tracing and
+ * Perfetto open, with the spans of a flow connected by arrows.
+ *
+ * While not recording, a span costs the systrace section and a check of a volatile field.
+ */
+public final class Tracer {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = Tracer.class.getSimpleName();
+
+    /** Maximum number of spans kept. The oldest ones are dropped first. */
+    private static final int MAX_SPANS = 20000;
+
+    /** Maximum length of a systrace section name */
+    private static final int MAX_SECTION_LENGTH = 127;
+
+    /** Whether {@link Trace} is available */
+    private static final boolean SYSTRACE = Build.VERSION.SDK_INT >= 18;
+
+    private static final long[] NO_FLOWS = new long[0];
+
+    private static volatile boolean sRecording;
+
+    private static final AtomicLong sNextFlow = new AtomicLong(1);
+
+    /** Flows the work on the current thread is done for */
+    private static final ThreadLocal<long[]> sCurrentFlows = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return NO_FLOWS;
+        }
+    };
+
+    /** Ring buffer of the recorded spans, guarded by itself */
+    private static final Span[] sSpans = new Span[MAX_SPANS];
+
+    /** Index of the next span in the ring buffer */
+    private static int sNextSpan;
+
+    /** Number of spans in the ring buffer */
+    private static int sSpanCount;
+
+    /** Flows handed over to the next load of the books, guarded by sSpans */
+    private static long[] sHandedOffFlows = NO_FLOWS;
+
+    /**
+     * A piece of work on one thread. Only exists while recording.
+     */
+    public static final class Span {
+        private final String mName;
+        private final String mDetail;
+        private final long[] mFlows;
+        private final long[] mPreviousFlows;
+        /** Whether the flows were passed to this span rather than inherited on the thread */
+        private final boolean mFlowStep;
+        private final int mThreadId;
+        private final String mThreadName;
+        private final long mStartNanos;
+        private long mEndNanos;
+
+        private Span(String name, String detail, long[] flows, long[] previousFlows,
+                     boolean flowStep) {
+            mName = name;
+            mDetail = detail;
+            mFlows = flows;
+            mPreviousFlows = previousFlows;
+            mFlowStep = flowStep;
+            mThreadId = Process.myTid();
+            mThreadName = Thread.currentThread().getName();
+            mStartNanos = System.nanoTime();
+        }
+    }
+
+    private Tracer() {}
+
+    /**
+     * Start or stop recording spans. Starting clears the spans recorded before.
+     */
+    public static void setRecording(boolean recording) {
+        if (recording) {
+            clear();
+        }
+        sRecording = recording;
+    }
+
+    public static boolean isRecording() {
+        return sRecording;
+    }
+
+    /**
+     * Forget all recorded spans.
+     */
+    public static void clear() {
+        synchronized (sSpans) {
+            Arrays.fill(sSpans, null);
+            sNextSpan = 0;
+            sSpanCount = 0;
+            sHandedOffFlows = NO_FLOWS;
+        }
+    }
+
+    /**
+     * Returns the number of spans recorded and still kept.
+     */
+    public static int getSpanCount() {
+        synchronized (sSpans) {
+            return sSpanCount;
+        }
+    }
+
+    /**
+     * Start a span for the flows of the current thread. Every span must be ended with
+     * {@link #end(Span)} on the same thread, also when the work fails.
+     *
+     * @param name   name of the span, a constant like "BookProvider.update"
+     * @param detail what the span works on, e.g. a URI, or null. It is only turned into a
+     *               string while recording.
+     * @return the span, or null if not recording
+     */
+    public static Span begin(String name, Object detail) {
+        beginSection(name);
+        if (!sRecording) {
+            return null;
+        }
+        long[] flows = sCurrentFlows.get();
+        return new Span(name, detail == null ? null : String.valueOf(detail), flows, flows,
+                false);
+    }
+
+    /**
+     * Start a span for a new flow, e.g. for a tap of the user. The spans started on this thread
+     * before this one ends belong to the new flow as well.
+     *
+     * @see #begin(String, Object)
+     */
+    public static Span beginFlow(String name, Object detail) {
+        beginSection(name);
+        if (!sRecording) {
+            return null;
+        }
+        return beginWithFlows(name, detail, new long[] { sNextFlow.getAndIncrement() });
+    }
+
+    /**
+     * Start a span for the given flows, usually taken with {@link #getCurrentFlows()} on
+     * another thread. The spans started on this thread before this one ends belong to these
+     * flows as well.
+     *
+     * @see #begin(String, Object)
+     */
+    public static Span beginFlows(String name, Object detail, long[] flows) {
+        beginSection(name);
+        if (!sRecording) {
+            return null;
+        }
+        return beginWithFlows(name, detail, flows);
+    }
+
+    /**
+     * Start a span for the flows handed off with {@link #handOffFlows()} since the last call,
+     * e.g. to connect a change to the load of the list that shows it.
+     *
+     * @see #begin(String, Object)
+     */
+    public static Span beginHandedOffFlows(String name, Object detail) {
+        beginSection(name);
+        if (!sRecording) {
+            return null;
+        }
+        long[] flows;
+        synchronized (sSpans) {
+            flows = sHandedOffFlows;
+            sHandedOffFlows = NO_FLOWS;
+        }
+        return beginWithFlows(name, detail, flows);
+    }
+
+    private static Span beginWithFlows(String name, Object detail, long[] flows) {
+        Span span = new Span(name, detail == null ? null : String.valueOf(detail), flows,
+                sCurrentFlows.get(), true);
+        sCurrentFlows.set(flows);
+        return span;
+    }
+
+    /**
+     * End a span started with one of the begin methods, which may be null.
+     */
+    public static void end(Span span) {
+        if (span != null) {
+            span.mEndNanos = System.nanoTime();
+            sCurrentFlows.set(span.mPreviousFlows);
+            synchronized (sSpans) {
+                sSpans[sNextSpan] = span;
+                sNextSpan = (sNextSpan + 1) % MAX_SPANS;
+                sSpanCount = Math.min(sSpanCount + 1, MAX_SPANS);
+            }
+        }
+        if (SYSTRACE) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Returns the flows the work on the current thread is done for, to pass to
+     * {@link #beginFlows} when the work continues on another thread. The array must not be
+     * changed.
+     */
+    public static long[] getCurrentFlows() {
+        return sRecording ? sCurrentFlows.get() : NO_FLOWS;
+    }
+
+    /**
+     * Hand the flows of the current thread over to the next
+     * {@link #beginHandedOffFlows(String, Object)}. Called when a change is written, before the
+     * listeners are notified.
+     */
+    public static void handOffFlows() {
+        if (!sRecording) {
+            return;
+        }
+        long[] flows = sCurrentFlows.get();
+        if (flows.length == 0) {
+            return;
+        }
+        synchronized (sSpans) {
+            sHandedOffFlows = merge(sHandedOffFlows, flows);
+        }
+    }
+
+    /**
+     * Returns the flows of both arrays, without duplicates.
+     */
+    static long[] merge(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        long[] merged = Arrays.copyOf(a, a.length + b.length);
+        int count = a.length;
+        for (long flow : b) {
+            if (indexOf(a, flow) < 0) {
+                merged[count++] = flow;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Write the recorded spans in the Chrome trace event format. Every span is a complete
+     * event, with its flows in its arguments, and every flow is a chain of flow events through
+     * the spans it was passed to, usually one per thread.
+     */
+    public static void writeChromeTrace(Writer out) throws IOException {
+        List<Span> spans = new ArrayList<>();
+        synchronized (sSpans) {
+            for (int i = 0; i < sSpanCount; i++) {
+                spans.add(sSpans[(sNextSpan - sSpanCount + i + MAX_SPANS) % MAX_SPANS]);
+            }
+        }
+        Collections.sort(spans, new Comparator<Span>() {
+            @Override
+            public int compare(Span a, Span b) {
+                return a.mStartNanos < b.mStartNanos ? -1
+                        : a.mStartNanos == b.mStartNanos ? 0 : 1;
+            }
+        });
+
+        // The last span of every flow, which finishes the chain of the flow
+        Map<Long, Span> lastSpans = new HashMap<>();
+        Map<Integer, String> threads = new LinkedHashMap<>();
+        for (Span span : spans) {
+            if (span.mFlowStep) {
+                for (long flow : span.mFlows) {
+                    lastSpans.put(flow, span);
+                }
+            }
+            threads.put(span.mThreadId, span.mThreadName);
+        }
+
+        int pid = Process.myPid();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("displayTimeUnit").value("ms");
+        writer.name("traceEvents").beginArray();
+        for (Map.Entry<Integer, String> thread : threads.entrySet()) {
+            writer.beginObject();
+            writer.name("ph").value("M");
+            writer.name("name").value("thread_name");
+            writer.name("pid").value(pid);
+            writer.name("tid").value(thread.getKey());
+            writer.name("args").beginObject().name("name").value(thread.getValue()).endObject();
+            writer.endObject();
+        }
+        Map<Long, Boolean> startedFlows = new HashMap<>();
+        for (Span span : spans) {
+            long start = span.mStartNanos / 1000;
+            writer.beginObject();
+            writer.name("ph").value("X");
+            writer.name("name").value(span.mName);
+            writer.name("cat").value("app");
+            writer.name("ts").value(start);
+            writer.name("dur").value((span.mEndNanos - span.mStartNanos) / 1000);
+            writer.name("pid").value(pid);
+            writer.name("tid").value(span.mThreadId);
+            writer.name("args").beginObject();
+            if (span.mDetail != null) {
+                writer.name("detail").value(span.mDetail);
+            }
+            if (span.mFlows.length != 0) {
+                writer.name("flows").value(Arrays.toString(span.mFlows));
+            }
+            writer.endObject();
+            writer.endObject();
+            if (!span.mFlowStep) {
+                continue;
+            }
+
+            for (long flow : span.mFlows) {
+                String phase;
+                if (startedFlows.put(flow, Boolean.TRUE) == null) {
+                    phase = "s";
+                } else if (lastSpans.get(flow) == span) {
+                    phase = "f";
+                } else {
+                    phase = "t";
+                }
+                writer.beginObject();
+                writer.name("ph").value(phase);
+                writer.name("name").value("flow");
+                writer.name("cat").value("flow");
+                writer.name("id").value(flow);
+                writer.name("ts").value(start);
+                writer.name("pid").value(pid);
+                writer.name("tid").value(span.mThreadId);
+                // Bind the event to the span it is in, not to the next one
+                writer.name("bp").value("e");
+                writer.endObject();
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static void beginSection(String name) {
+        if (SYSTRACE) {
+            Trace.beginSection(name.length() > MAX_SECTION_LENGTH
+                    ? name.substring(0, MAX_SECTION_LENGTH) : name);
+        }
+    }
+
+    private static int indexOf(long[] flows, long flow) {
+        for (int i = 0; i < flows.length; i++) {
+            if (flows[i] == flow) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.android.novuscarta.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+
+/**
+ * Gives the books that existed before version 13 of the database their
+ * {@link BookEntry#COLUMN_UUID}, a random one each, in the order of the IDs. The cut over creates
+ * the unique index on the key.
+ *
+ * Until it is done, books that aren't keyed yet can't be synced, so the sync engine waits for
+ * it.
+ */
+class UuidBackfill extends OnlineMigration {
+
+    @Override
+    String getName() {
+        return "uuid_backfill";
+    }
+
+    @Override
+    long migrateBatch(SQLiteDatabase db, long position, int limit) {
+        // The key is not a captured column, so keying the books neither logs a change nor
+        // bumps a version
+        SQLiteStatement setUuid = db.compileStatement("UPDATE " + BookEntry.TABLE_NAME
+                + " SET " + BookEntry.COLUMN_UUID + "=" + BookDbHelper.SQL_NEW_UUID + " WHERE "
+                + BookEntry._ID + ">? AND " + BookEntry._ID + "<=? AND "
+                + BookEntry.COLUMN_UUID + " IS NULL");
+        // The last ID of the batch, so one statement keys the whole range
+        Cursor cursor = db.rawQuery("SELECT MAX(" + BookEntry._ID + "), COUNT(*) FROM (SELECT "
+                + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID
+                + ">? AND " + BookEntry.COLUMN_UUID + " IS NULL ORDER BY " + BookEntry._ID
+                + " LIMIT " + limit + ")", new String[] { String.valueOf(position) });
+        try {
+            cursor.moveToFirst();
+            if (cursor.getLong(1) == 0) {
+                return DONE;
+            }
+            long last = cursor.getLong(0);
+            setUuid.bindLong(1, position);
+            setUuid.bindLong(2, last);
+            setUuid.executeUpdateDelete();
+            return last;
+        } finally {
+            cursor.close();
+            setUuid.close();
+        }
+    }
+
+    @Override
+    void cutOver(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX books_uuid ON " + BookEntry.TABLE_NAME + " ("
+                + BookEntry.COLUMN_UUID + ")");
+    }
+}
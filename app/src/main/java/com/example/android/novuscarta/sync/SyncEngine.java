@@ -0,0 +1,464 @@
+package com.example.android.novuscarta.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.novuscarta.data.BookContract.BookEntry;
+import com.example.android.novuscarta.data.BookContract.ChangeLogEntry;
+import com.example.android.novuscarta.data.BookDbHelper;
+import com.example.android.novuscarta.data.BookUpdates;
+import com.example.android.novuscarta.data.ChangeLogRetention;
+import com.example.android.novuscarta.data.OnlineMigrations;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Synchronizes the local inventory with the central server using deltas only.
+ *
+ * Pushing reads the local entries of the change log in batches from the last acknowledged
+ * sequence number, collapses them to one per book and sends the current state of each changed
+ * book (or a delete if the book no longer exists). Pulling asks the server for everything after
+ * the last remote version it acknowledged. Both checkpoints are persisted after every batch, so
+ * an interrupted sync resumes where it stopped instead of starting over.
+ *
+ * On the wire, books are identified by their {@link BookEntry#COLUMN_UUID}; each store maps it
+ * to its own {@link BookEntry#_ID}. Stock is not synced: the locations and their stock belong
+ * to each store, and the quantity of a book is the total of its local stock, so changes of only
+ * the quantity stay local.
+ */
+public class SyncEngine {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    /** Name of the preferences file holding the sync checkpoints */
+    public static final String PREFS_NAME = "sync";
+
+    /** Random identifier of this store, generated on the first sync */
+    private static final String KEY_STORE_ID = "store_id";
+
+    /** Highest change log sequence number acknowledged by the server */
+    public static final String KEY_PUSHED_SEQ = "pushed_seq";
+
+    /** Highest remote version applied to the local database */
+    public static final String KEY_PULLED_VERSION = "pulled_version";
+
+    /** Default number of change log entries sent in one request */
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** Maximum number of IDs bound to a single IN (...) query */
+    private static final int MAX_QUERY_IDS = 500;
+
+    /** Captured columns of the books that are local to each store and never sent */
+    private static final Set<String> LOCAL_COLUMNS = new HashSet<>(Arrays.asList(
+            BookEntry.COLUMN_PRODUCT_QUANTITY, BookEntry.COLUMN_COVER_PATH));
+
+    /** Values of the "op" field of a delta on the wire */
+    static final String OP_UPSERT = "upsert";
+    static final String OP_DELETE = "delete";
+
+    private final Context mContext;
+    private final SyncTransport mTransport;
+    private final int mBatchSize;
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Constructs a new {@link SyncEngine} sending batches of the default size.
+     *
+     * @param context   of the app
+     * @param transport connection to the central server
+     */
+    public SyncEngine(Context context, SyncTransport transport) {
+        this(context, transport, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a new {@link SyncEngine}.
+     *
+     * @param context   of the app
+     * @param transport connection to the central server
+     * @param batchSize number of change log entries sent in one request
+     */
+    public SyncEngine(Context context, SyncTransport transport, int batchSize) {
+        mContext = context.getApplicationContext();
+        mTransport = transport;
+        mBatchSize = batchSize;
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Realign the checkpoints with a database that replaced the one they were kept for, like a
+     * restored backup. Its change log is history that the server has already seen or that
+     * newer changes superseded, so only the changes made from now on are pushed, under a new
+     * store identifier as their sequence numbers may have been used before. Everything is
+     * pulled again, to bring the books up to date with the server.
+     *
+     * @param context of the app
+     */
+    public static void onDatabaseReplaced(Context context) {
+        SQLiteDatabase db = BookDbHelper.getInstance(context).getReadableDatabase();
+        long lastSeq = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + ChangeLogEntry.COLUMN_SEQ + "), 0) FROM " + ChangeLogEntry.TABLE_NAME, null);
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .remove(KEY_STORE_ID)
+                .putLong(KEY_PUSHED_SEQ, lastSeq)
+                .remove(KEY_PULLED_VERSION)
+                .commit();
+        ChangeLogRetention.pin(context, lastSeq);
+    }
+
+    /**
+     * Push local changes, then pull remote ones.
+     */
+    public void sync() throws IOException {
+        // Books not keyed yet can't be sent, nor matched with what the others send
+        if (OnlineMigrations.hasPending(mContext)) {
+            Log.i(LOG_TAG, "Migrations still running, skipping sync");
+            return;
+        }
+        int pushed = push();
+        int pulled = pull();
+        Log.i(LOG_TAG, "Sync finished: " + pushed + " books pushed, " + pulled + " pulled");
+    }
+
+    /**
+     * Send all local changes the server has not acknowledged yet.
+     *
+     * @return the number of book deltas sent
+     */
+    public int push() throws IOException {
+        SQLiteDatabase db = BookDbHelper.getInstance(mContext).getReadableDatabase();
+        int sent = 0;
+        while (true) {
+            long fromSeq = mPrefs.getLong(KEY_PUSHED_SEQ, 0);
+
+            // Read the next batch of the change log. A book changed several times in the batch
+            // is only sent once, with its latest state. Deletes logged the key of the book.
+            // Updates of local columns only, like sales, have nothing to send.
+            Map<Long, String> bookIds = new LinkedHashMap<>();
+            long toSeq = fromSeq;
+            Cursor log = db.query(ChangeLogEntry.TABLE_NAME,
+                    new String[] { ChangeLogEntry.COLUMN_SEQ, ChangeLogEntry.COLUMN_BOOK_ID,
+                            ChangeLogEntry.COLUMN_BOOK_UUID, ChangeLogEntry.COLUMN_COLUMNS },
+                    ChangeLogEntry.COLUMN_SEQ + ">? AND " + ChangeLogEntry.COLUMN_REMOTE + "=0",
+                    new String[] { String.valueOf(fromSeq) },
+                    null, null, ChangeLogEntry.COLUMN_SEQ, String.valueOf(mBatchSize));
+            try {
+                while (log.moveToNext()) {
+                    toSeq = log.getLong(0);
+                    if (!isLocalOnly(log.getString(3))) {
+                        bookIds.put(log.getLong(1), log.getString(2));
+                    }
+                }
+            } finally {
+                log.close();
+            }
+            if (toSeq == fromSeq) {
+                // Let the change log prune everything the server already has
+                ChangeLogRetention.pin(mContext, fromSeq);
+                return sent;
+            }
+
+            JSONArray changes = readChanges(db, bookIds);
+            if (changes.length() > 0) {
+                try {
+                    JSONObject body = new JSONObject();
+                    body.put("store", getStoreId());
+                    body.put("from", fromSeq);
+                    body.put("to", toSeq);
+                    body.put("changes", changes);
+                    mTransport.post("/push", body);
+                } catch (JSONException e) {
+                    throw new IOException("Could not encode changes", e);
+                }
+            }
+
+            // The server has the batch, so it never needs to be sent again. The server can use
+            // "from" and "to" to ignore a batch it already applied before a lost response.
+            mPrefs.edit().putLong(KEY_PUSHED_SEQ, toSeq).commit();
+            sent += changes.length();
+        }
+    }
+
+    /**
+     * Fetch and apply all remote changes after the last applied remote version.
+     *
+     * @return the number of remote deltas applied
+     */
+    public int pull() throws IOException {
+        int applied = 0;
+        boolean more = true;
+        while (more) {
+            long since = mPrefs.getLong(KEY_PULLED_VERSION, 0);
+            JSONObject response =
+                    mTransport.get("/pull?store=" + getStoreId() + "&since=" + since);
+            JSONArray changes = response.optJSONArray("changes");
+            if (changes == null) {
+                changes = new JSONArray();
+            }
+            try {
+                applyRemoteChanges(changes);
+            } catch (JSONException e) {
+                throw new IOException("Malformed remote change", e);
+            }
+            mPrefs.edit()
+                    .putLong(KEY_PULLED_VERSION, response.optLong("version", since))
+                    .commit();
+            applied += changes.length();
+            more = response.optBoolean("more", false) && changes.length() > 0;
+        }
+        if (applied > 0) {
+            mContext.getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        }
+        return applied;
+    }
+
+    /**
+     * Build the delta for each of the given books from its current row. Books that are no
+     * longer in the table are sent as deletes of the key their delete logged.
+     *
+     * @param bookIds IDs of the changed books, each with the key its delete logged, if any
+     */
+    private JSONArray readChanges(SQLiteDatabase db, Map<Long, String> bookIds)
+            throws IOException {
+        JSONArray changes = new JSONArray();
+        Set<Long> missing = new LinkedHashSet<>(bookIds.keySet());
+        List<Long> ids = new ArrayList<>(bookIds.keySet());
+        try {
+            for (int start = 0; start < ids.size(); start += MAX_QUERY_IDS) {
+                List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_QUERY_IDS));
+                Cursor cursor = db.query(BookEntry.TABLE_NAME, null,
+                        BookEntry._ID + " IN (" + placeholders(chunk.size()) + ")",
+                        toArgs(chunk), null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        JSONObject change = rowToJson(cursor);
+                        // The ID, the stock and the cover file stay on this device, so they mean
+                        // nothing elsewhere. The keys are derived from the other columns by every
+                        // store itself.
+                        change.remove(BookEntry._ID);
+                        change.remove(BookEntry.COLUMN_PRODUCT_QUANTITY);
+                        change.remove(BookEntry.COLUMN_COVER_PATH);
+                        change.remove(BookEntry.COLUMN_TITLE_KEY);
+                        change.remove(BookEntry.COLUMN_NATURAL_KEY);
+                        change.put("op", OP_UPSERT);
+                        changes.put(change);
+                        missing.remove(cursor.getLong(cursor.getColumnIndex(BookEntry._ID)));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            for (long id : missing) {
+                String uuid = bookIds.get(id);
+                if (uuid == null) {
+                    // The delete is further on in the log, which sends it with the key of the
+                    // book, or it was deleted before books had keys and no other store has it
+                    continue;
+                }
+                JSONObject change = new JSONObject();
+                change.put(BookEntry.COLUMN_UUID, uuid);
+                change.put("op", OP_DELETE);
+                changes.put(change);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Could not encode changes", e);
+        }
+        return changes;
+    }
+
+    /**
+     * Apply a page of remote deltas in a single transaction. Each delta applies to the book
+     * with its {@link BookEntry#COLUMN_UUID}, or else to the book with the same natural key,
+     * which this store entered itself; a book this store doesn't have yet is inserted with an
+     * ID of its own and no stock. The change log entries written by the triggers for
+     * these deltas are marked as remote, so they are not pushed back.
+     */
+    private void applyRemoteChanges(JSONArray changes) throws JSONException {
+        if (changes.length() == 0) {
+            return;
+        }
+        SQLiteDatabase db = BookDbHelper.getInstance(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // The transaction holds the write lock, so every entry after this one is ours
+            long lastLocalSeq = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + ChangeLogEntry.COLUMN_SEQ + "), 0) FROM " + ChangeLogEntry.TABLE_NAME, null);
+            for (int i = 0; i < changes.length(); i++) {
+                JSONObject change = changes.getJSONObject(i);
+                String[] uuidArg = new String[] { change.getString(BookEntry.COLUMN_UUID) };
+                if (OP_DELETE.equals(change.getString("op"))) {
+                    db.delete(BookEntry.TABLE_NAME, BookEntry.COLUMN_UUID + "=?", uuidArg);
+                    continue;
+                }
+                // The ID, the version and the stock are local to this store, so the server's
+                // values are not applied
+                ContentValues values = jsonToValues(change);
+                values.remove(BookEntry._ID);
+                values.remove(BookEntry.COLUMN_VERSION);
+                values.remove(BookEntry.COLUMN_PRODUCT_QUANTITY);
+                values.remove(BookEntry.COLUMN_COVER_PATH);
+                values.remove(BookEntry.COLUMN_TITLE_KEY);
+                values.remove(BookEntry.COLUMN_NATURAL_KEY);
+                if (BookUpdates.update(db, values, BookEntry.COLUMN_UUID + "=?", uuidArg) != 0) {
+                    continue;
+                }
+                long localId = findByNaturalKey(db, values);
+                if (localId != -1) {
+                    adopt(db, localId, values);
+                } else {
+                    // Without stock rows, its total is none
+                    values.put(BookEntry.COLUMN_PRODUCT_QUANTITY, 0);
+                    db.insertOrThrow(BookEntry.TABLE_NAME, null,
+                            BookUpdates.withDerivedColumns(values));
+                }
+            }
+            ContentValues remote = new ContentValues();
+            remote.put(ChangeLogEntry.COLUMN_REMOTE, 1);
+            db.update(ChangeLogEntry.TABLE_NAME, remote, ChangeLogEntry.COLUMN_SEQ + ">?",
+                    new String[] { String.valueOf(lastLocalSeq) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the ID of the local book with the natural key of a remote book, or -1 if there
+     * is none. Stores that entered the same book on their own gave it different keys.
+     */
+    private static long findByNaturalKey(SQLiteDatabase db, ContentValues values) {
+        String naturalKey = BookUpdates.naturalKey(BookUpdates.withDerivedColumns(values));
+        Cursor cursor = db.query(BookEntry.TABLE_NAME, new String[] { BookEntry._ID },
+                BookEntry.COLUMN_NATURAL_KEY + "=?", new String[] { naturalKey },
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Apply a remote book to the local copy of the same book, which has a key of its own. Of
+     * the two keys, both stores keep the lower one, so they end up with the same key whichever
+     * of them pulls first, and without swapping keys back and forth.
+     */
+    private static void adopt(SQLiteDatabase db, long localId, ContentValues values) {
+        String[] idArg = new String[] { String.valueOf(localId) };
+        String localUuid = DatabaseUtils.stringForQuery(db, "SELECT " + BookEntry.COLUMN_UUID
+                + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + "=?", idArg);
+        String remoteUuid = values.getAsString(BookEntry.COLUMN_UUID);
+        if (localUuid != null && localUuid.compareTo(remoteUuid) < 0) {
+            values.remove(BookEntry.COLUMN_UUID);
+        }
+        BookUpdates.update(db, values, BookEntry._ID + "=?", idArg);
+    }
+
+    /**
+     * Returns whether the given changed columns of a logged update are all local columns.
+     * Inserts and deletes, which have no changed columns, are never local only.
+     */
+    private static boolean isLocalOnly(String columns) {
+        if (columns == null) {
+            return false;
+        }
+        for (String column : columns.split(",")) {
+            if (!LOCAL_COLUMNS.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the identifier of this store, generating it on first use.
+     */
+    private String getStoreId() {
+        String storeId = mPrefs.getString(KEY_STORE_ID, null);
+        if (storeId == null) {
+            storeId = UUID.randomUUID().toString();
+            mPrefs.edit().putString(KEY_STORE_ID, storeId).commit();
+        }
+        return storeId;
+    }
+
+    private static JSONObject rowToJson(Cursor cursor) throws JSONException {
+        JSONObject row = new JSONObject();
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            String column = cursor.getColumnName(i);
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row.put(column, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row.put(column, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row.put(column, cursor.getString(i));
+                    break;
+                default:
+                    row.put(column, JSONObject.NULL);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static ContentValues jsonToValues(JSONObject change) throws JSONException {
+        ContentValues values = new ContentValues();
+        Iterator<String> keys = change.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if ("op".equals(key)) {
+                continue;
+            }
+            Object value = change.get(key);
+            if (value == JSONObject.NULL) {
+                values.putNull(key);
+            } else if (value instanceof Integer || value instanceof Long) {
+                values.put(key, ((Number) value).longValue());
+            } else if (value instanceof Number) {
+                values.put(key, ((Number) value).doubleValue());
+            } else {
+                values.put(key, value.toString());
+            }
+        }
+        return values;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
+    private static String[] toArgs(List<Long> ids) {
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            args[i] = String.valueOf(ids.get(i));
+        }
+        return args;
+    }
+}
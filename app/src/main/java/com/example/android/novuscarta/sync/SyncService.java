@@ -0,0 +1,55 @@
+package com.example.android.novuscarta.sync;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.novuscarta.BuildConfig;
+
+import java.io.IOException;
+
+/**
+ * {@link IntentService} that runs the {@link SyncEngine} against the central server
+ * configured in {@link BuildConfig#SYNC_ENDPOINT}, off the main thread.
+ */
+public class SyncService extends IntentService {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = SyncService.class.getSimpleName();
+
+    public SyncService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Returns whether a central server is configured for this build.
+     */
+    public static boolean isConfigured() {
+        return !TextUtils.isEmpty(BuildConfig.SYNC_ENDPOINT);
+    }
+
+    /**
+     * Start a sync in the background.
+     *
+     * @param context of the app
+     */
+    public static void startSync(Context context) {
+        context.startService(new Intent(context, SyncService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!isConfigured()) {
+            Log.w(LOG_TAG, "No sync endpoint configured, skipping sync");
+            return;
+        }
+        try {
+            new SyncEngine(this, new SyncTransport(BuildConfig.SYNC_ENDPOINT)).sync();
+        } catch (IOException e) {
+            // The checkpoints are saved after every batch, so the next sync resumes from here
+            Log.e(LOG_TAG, "Sync failed", e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.android.novuscarta.sync;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP transport used by the {@link SyncEngine}. Request bodies are gzip compressed JSON, and
+ * failed requests are retried with exponential backoff and jitter.
+ */
+public class SyncTransport {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = SyncTransport.class.getSimpleName();
+
+    /** Default number of attempts for a single request before giving up */
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /** Default delay before the first retry, doubled on every further attempt */
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+
+    /** Default upper bound for the delay between two attempts */
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+
+    /** Timeout for connecting to and reading from the server */
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    /** Base URL of the central server, without a trailing slash */
+    private final String mEndpoint;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+
+    /** Source of the jitter added to every backoff delay */
+    private final Random mRandom = new Random();
+
+    /**
+     * Constructs a new {@link SyncTransport} with the default retry policy.
+     *
+     * @param endpoint base URL of the central server
+     */
+    public SyncTransport(String endpoint) {
+        this(endpoint, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Constructs a new {@link SyncTransport}.
+     *
+     * @param endpoint        base URL of the central server
+     * @param maxAttempts     number of attempts for a single request before giving up
+     * @param baseDelayMillis delay before the first retry
+     * @param maxDelayMillis  upper bound for the delay between two attempts
+     */
+    public SyncTransport(String endpoint, int maxAttempts, long baseDelayMillis,
+                         long maxDelayMillis) {
+        // Strip a trailing slash so that paths can always start with one
+        if (endpoint.endsWith("/")) {
+            endpoint = endpoint.substring(0, endpoint.length() - 1);
+        }
+        mEndpoint = endpoint;
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * POST the given JSON body, gzip compressed, to the given path and return the JSON response.
+     */
+    public JSONObject post(String path, JSONObject body) throws IOException {
+        return execute("POST", path, gzip(body.toString().getBytes("UTF-8")));
+    }
+
+    /**
+     * GET the given path and return the JSON response.
+     */
+    public JSONObject get(String path) throws IOException {
+        return execute("GET", path, null);
+    }
+
+    /**
+     * Execute a request, retrying connection failures, server errors (5xx) and throttling
+     * (429) with exponential backoff. Any other error status fails immediately.
+     */
+    private JSONObject execute(String method, String path, byte[] gzippedBody)
+            throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < mMaxAttempts; attempt++) {
+            if (attempt > 0) {
+                sleep(backoffDelay(attempt));
+            }
+            int status;
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL(mEndpoint + path).openConnection();
+            try {
+                connection.setConnectTimeout(TIMEOUT_MILLIS);
+                connection.setReadTimeout(TIMEOUT_MILLIS);
+                connection.setRequestMethod(method);
+                // Ask for a compressed response. Setting the header ourselves turns off the
+                // transparent decompression of HttpURLConnection, so readBody() handles it.
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+                connection.setRequestProperty("Accept", "application/json");
+                if (gzippedBody != null) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                    connection.setFixedLengthStreamingMode(gzippedBody.length);
+                    OutputStream out = connection.getOutputStream();
+                    try {
+                        out.write(gzippedBody);
+                    } finally {
+                        out.close();
+                    }
+                }
+
+                status = connection.getResponseCode();
+                if (status >= 200 && status < 300) {
+                    return parse(readBody(connection));
+                }
+            } catch (IOException e) {
+                // Connection failures and timeouts are worth another attempt
+                lastError = e;
+                Log.w(LOG_TAG, "Attempt " + (attempt + 1) + " of " + method + " " + path
+                        + " failed: " + e.getMessage());
+                continue;
+            } finally {
+                connection.disconnect();
+            }
+
+            lastError = new IOException("HTTP " + status + " for " + method + " " + path);
+            if (status < 500 && status != 429) {
+                // The request itself is wrong, so retrying will not help
+                throw lastError;
+            }
+            Log.w(LOG_TAG, "Attempt " + (attempt + 1) + " of " + method + " " + path
+                    + " failed: " + lastError.getMessage());
+        }
+        throw lastError;
+    }
+
+    /**
+     * Returns the delay before the given retry: the base delay doubled for every previous
+     * attempt, capped at the maximum, plus up to 50% random jitter so that many stores
+     * recovering from the same outage do not retry in lockstep.
+     */
+    long backoffDelay(int attempt) {
+        long delay = mBaseDelayMillis << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > mMaxDelayMillis) {
+            delay = mMaxDelayMillis;
+        }
+        return delay + (long) (mRandom.nextDouble() * delay / 2);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync interrupted during backoff");
+        }
+    }
+
+    /**
+     * Read the response body, decompressing it if the server sent it gzip encoded.
+     */
+    private static byte[] readBody(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse a response body as JSON. An empty body is treated as an empty object.
+     */
+    private static JSONObject parse(byte[] body) throws IOException {
+        if (body.length == 0) {
+            return new JSONObject();
+        }
+        try {
+            return new JSONObject(new String(body, "UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException("Malformed sync response", e);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return compressed.toByteArray();
+    }
+}
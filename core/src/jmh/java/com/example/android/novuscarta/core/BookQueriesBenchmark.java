@@ -0,0 +1,85 @@
+package com.example.android.novuscarta.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+/**
+ * Benchmarks of the hot paths of the provider on the JVM: validating the values of a book,
+ * building an update, and a bulk price adjustment on an in-memory SQLite catalog.
+ */
+@State(Scope.Thread)
+public class BookQueriesBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int books;
+
+    private Connection mConnection;
+    private JdbcBookStore mStore;
+    private final Row mValues = new Row()
+            .put(BookSchema.COLUMN_TITLE, "Dune")
+            .put(BookSchema.COLUMN_PRICE, 999)
+            .put(BookSchema.COLUMN_QUANTITY, 3)
+            .put(BookSchema.COLUMN_CATEGORY, BookSchema.CATEGORY_FICTION)
+            .put(BookSchema.COLUMN_SUPPLIER_NAME, "Chilton")
+            .put(BookSchema.COLUMN_SUPPLIER_NUMBER, "555-0100");
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mStore = new JdbcBookStore(mConnection);
+        mStore.executeUpdateDelete(new SqlStatement("CREATE TABLE " + BookSchema.TABLE_NAME
+                + " (" + BookSchema.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + BookSchema.COLUMN_TITLE + " TEXT NOT NULL, "
+                + BookSchema.COLUMN_PRICE + " INTEGER NOT NULL, "
+                + BookSchema.COLUMN_CATEGORY + " INTEGER NOT NULL DEFAULT 0, "
+                + BookSchema.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL, "
+                + BookSchema.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0)"));
+        mStore.beginTransaction();
+        try {
+            for (int i = 0; i < books; i++) {
+                mStore.executeUpdateDelete(new SqlStatement("INSERT INTO "
+                        + BookSchema.TABLE_NAME + " (" + BookSchema.COLUMN_TITLE + ", "
+                        + BookSchema.COLUMN_PRICE + ", " + BookSchema.COLUMN_CATEGORY + ", "
+                        + BookSchema.COLUMN_SUPPLIER_NAME + ") VALUES (?, ?, ?, ?)",
+                        "Book " + i, 500 + i % 1000, i % 4, "Supplier " + i % 10));
+            }
+            mStore.setTransactionSuccessful();
+        } finally {
+            mStore.endTransaction();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mConnection.close();
+    }
+
+    @Benchmark
+    public Row validateNewBook() {
+        BookValidator.checkNewBookValues(mValues);
+        return mValues;
+    }
+
+    @Benchmark
+    public SqlStatement buildVersionedUpdate() {
+        return BookQueries.versionedUpdate(mValues, BookSchema.COLUMN_ID + "=?",
+                new String[] { "42" });
+    }
+
+    /** A raise and the matching discount, so the prices stay the same across invocations */
+    @Benchmark
+    public int adjustPricesOfCategory() {
+        return mStore.executeUpdateDelete(BookQueries.adjustPrices(false, 10,
+                BookSchema.CATEGORY_FICTION, null))
+                + mStore.executeUpdateDelete(BookQueries.adjustPrices(false, -10,
+                BookSchema.CATEGORY_FICTION, null));
+    }
+}
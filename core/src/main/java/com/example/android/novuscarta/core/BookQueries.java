@@ -0,0 +1,111 @@
+package com.example.android.novuscarta.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the statements that write books. Every update of existing books increments their
+ * {@link BookSchema#COLUMN_VERSION} in the same statement, so optimistic concurrency checks
+ * see every change.
+ */
+public final class BookQueries {
+
+    private BookQueries() {}
+
+    /**
+     * Returns the statement that updates the books matching the where clause with the given
+     * values and increments their version. Any version in the values is ignored.
+     *
+     * @param values      columns to set
+     * @param whereClause WHERE clause without "WHERE", with ? for the arguments, or null
+     * @param whereArgs   arguments of the where clause, or null
+     */
+    public static SqlStatement versionedUpdate(Row values, String whereClause,
+                                               String[] whereArgs) {
+        return update(values, whereClause, whereArgs, true);
+    }
+
+    /**
+     * Returns the statement that updates the books matching the where clause with the given
+     * values and leaves their version alone. Only for columns derived on this device, which
+     * no optimistic concurrency check needs to see. Any version in the values is ignored.
+     *
+     * @param values      columns to set
+     * @param whereClause WHERE clause without "WHERE", with ? for the arguments, or null
+     * @param whereArgs   arguments of the where clause, or null
+     */
+    public static SqlStatement unversionedUpdate(Row values, String whereClause,
+                                                 String[] whereArgs) {
+        return update(values, whereClause, whereArgs, false);
+    }
+
+    /**
+     * Returns the statement that adds a percentage or an amount to the prices of the books
+     * matching the filters, in one UPDATE however many books match. Prices never drop below
+     * 0, and books whose price would not change keep their version.
+     *
+     * @param percent    whether the adjustment is a percentage rather than an amount
+     * @param adjustment percentage or amount added to the prices, e.g. -20
+     * @param category   only adjust books of this category, or null for all
+     * @param supplier   only adjust books of this supplier, or null for all
+     */
+    public static SqlStatement adjustPrices(boolean percent, long adjustment, Integer category,
+                                            String supplier) {
+        if (category != null && !BookSchema.isValidCategory(category)) {
+            throw new IllegalArgumentException("Unknown category " + category);
+        }
+
+        // ?1 is the percentage or amount, the filters are bound from ?2 on
+        String price = BookSchema.COLUMN_PRICE;
+        String newPrice = percent
+                ? "MAX(0, CAST(ROUND(" + price + "*(100+?1)/100.0) AS INTEGER))"
+                : "MAX(0, " + price + "+?1)";
+        StringBuilder where = new StringBuilder(price + "<>" + newPrice);
+        List<Object> args = new ArrayList<>();
+        args.add(adjustment);
+        if (category != null) {
+            args.add(category);
+            where.append(" AND ").append(BookSchema.COLUMN_CATEGORY).append("=?")
+                    .append(args.size());
+        }
+        if (supplier != null) {
+            args.add(supplier);
+            where.append(" AND ").append(BookSchema.COLUMN_SUPPLIER_NAME).append("=?")
+                    .append(args.size());
+        }
+        return new SqlStatement("UPDATE " + BookSchema.TABLE_NAME + " SET " + price + "="
+                + newPrice + ", " + BookSchema.COLUMN_VERSION + "=" + BookSchema.COLUMN_VERSION
+                + "+1 WHERE " + where, args.toArray());
+    }
+
+    private static SqlStatement update(Row values, String whereClause, String[] whereArgs,
+                                       boolean versioned) {
+        StringBuilder sql = new StringBuilder("UPDATE " + BookSchema.TABLE_NAME + " SET ");
+        List<Object> args = new ArrayList<>(values.size()
+                + (whereArgs == null ? 0 : whereArgs.length));
+        for (String column : values.keySet()) {
+            if (BookSchema.COLUMN_VERSION.equals(column)) {
+                continue;
+            }
+            sql.append(column).append("=?, ");
+            args.add(values.get(column));
+        }
+        if (versioned) {
+            sql.append(BookSchema.COLUMN_VERSION).append("=").append(BookSchema.COLUMN_VERSION)
+                    .append("+1");
+        } else if (args.isEmpty()) {
+            throw new IllegalArgumentException("No columns to update");
+        } else {
+            sql.setLength(sql.length() - ", ".length());
+        }
+        if (whereClause != null) {
+            sql.append(" WHERE ").append(whereClause);
+        }
+        if (whereArgs != null) {
+            for (String arg : whereArgs) {
+                args.add(arg);
+            }
+        }
+        return new SqlStatement(sql.toString(), args.toArray());
+    }
+}
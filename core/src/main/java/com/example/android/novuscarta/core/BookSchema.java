@@ -0,0 +1,57 @@
+package com.example.android.novuscarta.core;
+
+/**
+ * Names of the books table and its columns, and the categories a book can have. The contract of
+ * the app's content provider publishes the same names.
+ */
+public final class BookSchema {
+
+    private BookSchema() {}
+
+    /** Name of database table for books */
+    public static final String TABLE_NAME = "books";
+
+    /** Unique ID number for the book (only for use in the database table). Type: INTEGER */
+    public static final String COLUMN_ID = "_id";
+
+    /** Title of the book. Type: TEXT */
+    public static final String COLUMN_TITLE = "title";
+
+    /** Price of the book. Type: INTEGER */
+    public static final String COLUMN_PRICE = "price";
+
+    /** Quantity of the book in stock. Type: INTEGER */
+    public static final String COLUMN_QUANTITY = "quantity";
+
+    /** Category of the book, one of the CATEGORY constants. Type: INTEGER */
+    public static final String COLUMN_CATEGORY = "category";
+
+    /** Name of the supplier of the book. Type: TEXT */
+    public static final String COLUMN_SUPPLIER_NAME = "supplier";
+
+    /** Phone number of the supplier of the book. Type: TEXT */
+    public static final String COLUMN_SUPPLIER_NUMBER = "number";
+
+    /** ISBN of the book, digits only (and a final X for ISBN-10), or null. Type: TEXT */
+    public static final String COLUMN_ISBN = "isbn";
+
+    /** Version of the row, incremented by every update. Type: INTEGER */
+    public static final String COLUMN_VERSION = "version";
+
+    /**
+     * Possible values for the category of the book.
+     */
+    public static final int CATEGORY_UNKNOWN = 0;
+    public static final int CATEGORY_FICTION = 1;
+    public static final int CATEGORY_NONFICTION = 2;
+    public static final int CATEGORY_REFERENCE = 3;
+
+    /**
+     * Returns whether or not the given category is {@link #CATEGORY_UNKNOWN},
+     * {@link #CATEGORY_FICTION}, {@link #CATEGORY_NONFICTION} or {@link #CATEGORY_REFERENCE}.
+     */
+    public static boolean isValidCategory(int category) {
+        return category == CATEGORY_UNKNOWN || category == CATEGORY_FICTION
+                || category == CATEGORY_NONFICTION || category == CATEGORY_REFERENCE;
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.android.novuscarta.core;
+
+import java.util.List;
+
+/**
+ * Storage that runs the statements built by {@link BookQueries}. The app implements it on an
+ * Android SQLiteDatabase; {@link JdbcBookStore} implements it on any JDBC connection, e.g. to
+ * SQLite on a development machine.
+ *
+ * Transactions nest the way they do on Android: a transaction commits when the outermost one
+ * ends, and only if every level was marked successful.
+ */
+public interface BookStore {
+
+    /**
+     * Run an UPDATE, DELETE or INSERT statement.
+     *
+     * @return the number of rows changed
+     */
+    int executeUpdateDelete(SqlStatement statement);
+
+    /**
+     * Run a query and return all of its rows.
+     */
+    List<Row> query(SqlStatement statement);
+
+    void beginTransaction();
+
+    void setTransactionSuccessful();
+
+    void endTransaction();
+}
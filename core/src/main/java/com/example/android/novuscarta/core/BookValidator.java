@@ -0,0 +1,79 @@
+package com.example.android.novuscarta.core;
+
+/**
+ * The rules the values of a book must follow before they are written. A broken rule throws
+ * {@link IllegalArgumentException}, which the content provider passes on to its caller.
+ */
+public final class BookValidator {
+
+    private BookValidator() {}
+
+    /**
+     * Check the values of the columns of a book that are present, and throw
+     * {@link IllegalArgumentException} if any of them is invalid.
+     */
+    public static void checkBookValues(Row values) {
+        // If the title is present, check that it is not null
+        if (values.containsKey(BookSchema.COLUMN_TITLE)) {
+            if (values.getAsString(BookSchema.COLUMN_TITLE) == null) {
+                throw new IllegalArgumentException("Book requires a title");
+            }
+        }
+        // If the price is present, check that it is not negative
+        if (values.containsKey(BookSchema.COLUMN_PRICE)) {
+            Integer price = values.getAsInteger(BookSchema.COLUMN_PRICE);
+            if (price != null && price < 0) {
+                throw new IllegalArgumentException("Book requires a valid price");
+            }
+        }
+        // If the quantity is present, check that it is 0 or a positive number
+        if (values.containsKey(BookSchema.COLUMN_QUANTITY)) {
+            Integer quantity = values.getAsInteger(BookSchema.COLUMN_QUANTITY);
+            if (quantity != null && quantity < 0) {
+                throw new IllegalArgumentException("Book requires a valid quantity");
+            }
+        }
+        // If the category is present, check that it is one of the categories
+        if (values.containsKey(BookSchema.COLUMN_CATEGORY)) {
+            Integer category = values.getAsInteger(BookSchema.COLUMN_CATEGORY);
+            if (category == null || !BookSchema.isValidCategory(category)) {
+                throw new IllegalArgumentException("Book requires a valid category");
+            }
+        }
+        // If the supplier name is present, check that it is not null
+        if (values.containsKey(BookSchema.COLUMN_SUPPLIER_NAME)) {
+            if (values.getAsString(BookSchema.COLUMN_SUPPLIER_NAME) == null) {
+                throw new IllegalArgumentException("Supplier name required");
+            }
+        }
+        // If the supplier number is present, check that it is not null
+        if (values.containsKey(BookSchema.COLUMN_SUPPLIER_NUMBER)) {
+            if (values.getAsString(BookSchema.COLUMN_SUPPLIER_NUMBER) == null) {
+                throw new IllegalArgumentException("Supplier number required");
+            }
+        }
+    }
+
+    /**
+     * Check the values of a new book: the columns without a default must be present, and all
+     * values must be valid.
+     */
+    public static void checkNewBookValues(Row values) {
+        if (values.getAsString(BookSchema.COLUMN_TITLE) == null) {
+            throw new IllegalArgumentException("Book requires a title");
+        }
+        if (values.getAsInteger(BookSchema.COLUMN_PRICE) == null) {
+            throw new IllegalArgumentException("Book requires a valid price");
+        }
+        if (values.getAsInteger(BookSchema.COLUMN_QUANTITY) == null) {
+            throw new IllegalArgumentException("Book requires a valid quantity");
+        }
+        if (values.getAsString(BookSchema.COLUMN_SUPPLIER_NAME) == null) {
+            throw new IllegalArgumentException("Supplier name required");
+        }
+        if (values.getAsString(BookSchema.COLUMN_SUPPLIER_NUMBER) == null) {
+            throw new IllegalArgumentException("Supplier number required");
+        }
+        checkBookValues(values);
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.novuscarta.core;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a synthetic catalog of books for load tests. The same seed always generates the
+ * same catalog. The distributions roughly follow a general bookshop:
+ * <ul>
+ * <li>titles of one to a dozen words, most of them two to five words long, some with a
+ * subtitle</li>
+ * <li>a few suppliers delivering most of the books (Zipf's law), each with one phone
+ * number</li>
+ * <li>half fiction, a third nonfiction, some reference and a few uncategorized books</li>
+ * <li>prices spread log-normally around 15.00, quantities mostly small</li>
+ * <li>a unique, valid ISBN-13 for every book</li>
+ * </ul>
+ * Popularity is not part of a book: load tests draw the books to sell from a
+ * {@link ZipfSampler} over the generated books.
+ */
+public final class CatalogGenerator {
+
+    private static final String[] WORDS = {
+            "the", "of", "and", "a", "in", "night", "house", "river", "city", "garden",
+            "winter", "summer", "shadow", "light", "stone", "sea", "war", "peace", "daughter",
+            "king", "queen", "secret", "history", "world", "guide", "last", "first", "little",
+            "great", "silent", "lost", "golden", "iron", "glass", "north", "south", "dark",
+            "wild", "heart", "road", "island", "mountain", "forest", "letters", "memory",
+            "kingdom", "empire", "science", "art", "life", "death", "love", "time", "fire",
+            "water", "bread", "salt", "journey", "return", "stranger", "widow", "doctor",
+            "murder", "mystery", "dream", "book", "song", "poems", "tales", "atlas",
+            "dictionary", "handbook", "introduction", "cooking", "birds", "stars", "code",
+            "machine", "ocean", "desert", "bridge", "tower", "storm", "wolf", "fox", "rose" };
+
+    private static final String[] SUPPLIER_FIRST = {
+            "Harbor", "Granite", "Meridian", "Oak", "Silver", "Lantern", "Northwind", "Quill",
+            "Riverside", "Beacon", "Cedar", "Atlas", "Kestrel", "Juniper", "Foxglove" };
+
+    private static final String[] SUPPLIER_SECOND = {
+            "Books", "Press", "Distribution", "Publishing", "& Sons", "Wholesale", "House" };
+
+    /** Category weights in percent: unknown, fiction, nonfiction, reference */
+    private static final int[] CATEGORY_PERCENT = { 5, 50, 33, 12 };
+
+    /** Median price, in the smallest unit of the currency */
+    private static final double MEDIAN_PRICE = 1500;
+
+    private final Random mRandom;
+    private final ZipfSampler mSuppliers;
+
+    /** Number of the first ISBN, chosen by the seed */
+    private final long mIsbnOffset;
+
+    /** Number of books generated so far, which makes the ISBNs unique */
+    private long mCount;
+
+    /**
+     * @param seed          seed of the random numbers
+     * @param supplierCount number of different suppliers
+     */
+    public CatalogGenerator(long seed, int supplierCount) {
+        mRandom = new Random(seed);
+        mSuppliers = new ZipfSampler(supplierCount, 1.1);
+        mIsbnOffset = (seed & Long.MAX_VALUE) % 1000000000L;
+    }
+
+    /**
+     * Returns the values of the next book, with all columns a new book requires and its ISBN.
+     */
+    public Row next() {
+        int supplier = mSuppliers.sample(mRandom);
+        return new Row()
+                .put(BookSchema.COLUMN_TITLE, nextTitle())
+                .put(BookSchema.COLUMN_PRICE, nextPrice())
+                .put(BookSchema.COLUMN_QUANTITY, nextQuantity())
+                .put(BookSchema.COLUMN_CATEGORY, nextCategory())
+                .put(BookSchema.COLUMN_SUPPLIER_NAME, supplierName(supplier))
+                .put(BookSchema.COLUMN_SUPPLIER_NUMBER, supplierNumber(supplier))
+                .put(BookSchema.COLUMN_ISBN, isbn(mIsbnOffset + mCount++));
+    }
+
+    private String nextTitle() {
+        // Geometric word counts: half the titles have up to three words
+        int words = 1;
+        while (words < 12 && mRandom.nextDouble() < 0.72) {
+            words++;
+        }
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            String word = WORDS[mRandom.nextInt(WORDS.length)];
+            if (i == 0 || word.length() > 3) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            }
+            title.append(i == 0 ? "" : " ").append(word);
+        }
+        if (mRandom.nextInt(10) == 0) {
+            title.append(": A Novel");
+        }
+        return title.toString();
+    }
+
+    private int nextPrice() {
+        double price = MEDIAN_PRICE * Math.exp(0.6 * mRandom.nextGaussian());
+        // Rounded to whole units ending in 99, like shelf prices
+        return Math.max(99, (int) Math.round(price / 100) * 100 - 1);
+    }
+
+    private int nextQuantity() {
+        // Mostly a handful of copies, a few stacks of bestsellers, some sold out
+        if (mRandom.nextInt(20) == 0) {
+            return 0;
+        }
+        return (int) Math.min(500, Math.round(Math.exp(1.2 + mRandom.nextGaussian())));
+    }
+
+    private int nextCategory() {
+        int percent = mRandom.nextInt(100);
+        for (int category = 0; category < CATEGORY_PERCENT.length; category++) {
+            percent -= CATEGORY_PERCENT[category];
+            if (percent < 0) {
+                return category;
+            }
+        }
+        return BookSchema.CATEGORY_UNKNOWN;
+    }
+
+    private String supplierName(int supplier) {
+        // Ranks are 1-based; every supplier has a distinct name
+        int index = supplier - 1;
+        String name = SUPPLIER_FIRST[index % SUPPLIER_FIRST.length] + " "
+                + SUPPLIER_SECOND[(index / SUPPLIER_FIRST.length) % SUPPLIER_SECOND.length];
+        int round = index / (SUPPLIER_FIRST.length * SUPPLIER_SECOND.length);
+        return round == 0 ? name : name + " " + (round + 1);
+    }
+
+    private String supplierNumber(int supplier) {
+        return String.format(Locale.US, "555-%04d", supplier % 10000);
+    }
+
+    /**
+     * Returns the ISBN-13 with the given number after the 978 prefix and a valid check digit.
+     */
+    static String isbn(long number) {
+        String digits = String.format(Locale.US, "978%09d", number % 1000000000L);
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.android.novuscarta.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BookStore} on a JDBC connection, e.g. to an in-memory SQLite database from the
+ * sqlite-jdbc driver, so the statements of the app can be tested and benchmarked on a
+ * development machine. SQL errors are rethrown as {@link IllegalStateException}, like the
+ * unchecked exceptions of Android's SQLiteDatabase.
+ */
+public class JdbcBookStore implements BookStore {
+
+    private final Connection mConnection;
+
+    /** Number of transactions begun and not ended yet */
+    private int mTransactionDepth;
+
+    /** Whether every level of the current transaction was marked successful so far */
+    private boolean mTransactionSuccessful;
+
+    /** Whether the current level of the transaction was marked successful */
+    private boolean mLevelSuccessful;
+
+    public JdbcBookStore(Connection connection) {
+        mConnection = connection;
+    }
+
+    @Override
+    public int executeUpdateDelete(SqlStatement statement) {
+        try {
+            PreparedStatement prepared = prepare(statement);
+            try {
+                return prepared.executeUpdate();
+            } finally {
+                prepared.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot execute " + statement, e);
+        }
+    }
+
+    @Override
+    public List<Row> query(SqlStatement statement) {
+        try {
+            PreparedStatement prepared = prepare(statement);
+            try {
+                ResultSet resultSet = prepared.executeQuery();
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                List<Row> rows = new ArrayList<>();
+                while (resultSet.next()) {
+                    Row row = new Row();
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        row.put(metaData.getColumnLabel(i), resultSet.getObject(i));
+                    }
+                    rows.add(row);
+                }
+                return rows;
+            } finally {
+                prepared.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot query " + statement, e);
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (mTransactionDepth == 0) {
+            try {
+                mConnection.setAutoCommit(false);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot begin a transaction", e);
+            }
+            mTransactionSuccessful = true;
+        }
+        mTransactionDepth++;
+        mLevelSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        if (mTransactionDepth == 0) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        mLevelSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        if (mTransactionDepth == 0) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        mTransactionSuccessful &= mLevelSuccessful;
+        // The enclosing level still has to be marked successful on its own
+        mLevelSuccessful = false;
+        if (--mTransactionDepth != 0) {
+            return;
+        }
+        try {
+            if (mTransactionSuccessful) {
+                mConnection.commit();
+            } else {
+                mConnection.rollback();
+            }
+            mConnection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot end the transaction", e);
+        }
+    }
+
+    private PreparedStatement prepare(SqlStatement statement) throws SQLException {
+        PreparedStatement prepared = mConnection.prepareStatement(statement.sql);
+        for (int i = 0; i < statement.args.length; i++) {
+            prepared.setObject(i + 1, statement.args[i]);
+        }
+        return prepared;
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.android.novuscarta.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the statements that keep and read the price history of the books.
+ *
+ * The history is written by triggers on the books table, so every way of changing a price
+ * (the editor, price adjustments, sync) is recorded, and a write that leaves the price as it
+ * was is not. The table is clustered on (book, time) without a rowid: a change takes a few
+ * bytes of integers, and the price of a book at an instant is one seek into that key, however
+ * long the history grows.
+ */
+public final class PriceHistoryQueries {
+
+    private PriceHistoryQueries() {}
+
+    /** SQL expression for the current time in seconds since the epoch */
+    private static final String SQL_NOW = "CAST(strftime('%s','now') AS INTEGER)";
+
+    /**
+     * Returns the statements that create the price history table and its triggers. A new
+     * book records its first price. Two changes of a book within the same second keep the
+     * last price.
+     *
+     * @param withoutRowid whether SQLite supports tables without rowid (3.8.2 and later).
+     *                     Otherwise the primary key is a separate index, which about doubles
+     *                     the size of the history but answers the same queries.
+     */
+    public static List<SqlStatement> createTables(boolean withoutRowid) {
+        return Arrays.asList(
+                new SqlStatement("CREATE TABLE " + PriceHistorySchema.TABLE_NAME + " ("
+                        + PriceHistorySchema.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                        + PriceHistorySchema.COLUMN_CHANGED_AT + " INTEGER NOT NULL, "
+                        + PriceHistorySchema.COLUMN_PRICE + " INTEGER NOT NULL, "
+                        + "PRIMARY KEY (" + PriceHistorySchema.COLUMN_BOOK_ID + ", "
+                        + PriceHistorySchema.COLUMN_CHANGED_AT + "))"
+                        + (withoutRowid ? " WITHOUT ROWID" : "")),
+                new SqlStatement("CREATE TRIGGER books_insert_price AFTER INSERT ON "
+                        + BookSchema.TABLE_NAME + " BEGIN " + recordPrice() + " END"),
+                new SqlStatement("CREATE TRIGGER books_update_price AFTER UPDATE OF "
+                        + BookSchema.COLUMN_PRICE + " ON " + BookSchema.TABLE_NAME
+                        + " WHEN NEW." + BookSchema.COLUMN_PRICE + " IS NOT OLD."
+                        + BookSchema.COLUMN_PRICE + " BEGIN " + recordPrice() + " END"));
+    }
+
+    private static String recordPrice() {
+        return "INSERT OR REPLACE INTO " + PriceHistorySchema.TABLE_NAME + " ("
+                + PriceHistorySchema.COLUMN_BOOK_ID + ", " + PriceHistorySchema.COLUMN_CHANGED_AT
+                + ", " + PriceHistorySchema.COLUMN_PRICE + ") VALUES (NEW."
+                + BookSchema.COLUMN_ID + ", " + SQL_NOW + ", NEW." + BookSchema.COLUMN_PRICE
+                + "); ";
+    }
+
+    /**
+     * Returns the statement that records the current price as of now of the books in a range
+     * of IDs that were in the catalog before their prices were recorded. Books that already
+     * have a history, e.g. as their price changed since, are left as they are. Recording the
+     * whole catalog a range at a time keeps each statement short.
+     *
+     * @param afterId first ID before the range
+     * @param lastId  last ID of the range
+     */
+    public static SqlStatement recordCurrentPrices(long afterId, long lastId) {
+        return new SqlStatement("INSERT OR IGNORE INTO " + PriceHistorySchema.TABLE_NAME + " ("
+                + PriceHistorySchema.COLUMN_BOOK_ID + ", " + PriceHistorySchema.COLUMN_CHANGED_AT
+                + ", " + PriceHistorySchema.COLUMN_PRICE + ") SELECT " + BookSchema.COLUMN_ID
+                + ", " + SQL_NOW + ", " + BookSchema.COLUMN_PRICE + " FROM "
+                + BookSchema.TABLE_NAME + " WHERE " + BookSchema.COLUMN_ID + ">? AND "
+                + BookSchema.COLUMN_ID + "<=? AND NOT EXISTS (SELECT 1 FROM "
+                + PriceHistorySchema.TABLE_NAME + " WHERE " + PriceHistorySchema.COLUMN_BOOK_ID
+                + "=" + BookSchema.TABLE_NAME + "." + BookSchema.COLUMN_ID + ")",
+                afterId, lastId);
+    }
+
+    /**
+     * Returns the query for the price of a book at an instant, with the columns
+     * {@link PriceHistorySchema#COLUMN_CHANGED_AT} and {@link PriceHistorySchema#COLUMN_PRICE}:
+     * one row with the last change at or before the instant, or none if the book had no
+     * price yet.
+     *
+     * @param bookId ID of the book
+     * @param at     the instant in seconds since the epoch
+     */
+    public static SqlStatement priceAt(long bookId, long at) {
+        return new SqlStatement(lastChangeAt(), bookId, at);
+    }
+
+    /**
+     * Returns the query for the prices of a book during a period, with the same columns as
+     * {@link #priceAt(long, long)}: the price at the start of the period, if the book had
+     * one, and every change during the period, oldest first.
+     *
+     * @param bookId ID of the book
+     * @param from   start of the period in seconds since the epoch
+     * @param to     end of the period in seconds since the epoch, inclusive
+     */
+    public static SqlStatement prices(long bookId, long from, long to) {
+        if (from > to) {
+            throw new IllegalArgumentException("The period ends before it starts");
+        }
+        String sql = "SELECT * FROM (" + lastChangeAt() + ") UNION ALL SELECT "
+                + PriceHistorySchema.COLUMN_CHANGED_AT + ", " + PriceHistorySchema.COLUMN_PRICE
+                + " FROM " + PriceHistorySchema.TABLE_NAME + " WHERE "
+                + PriceHistorySchema.COLUMN_BOOK_ID + "=?1 AND "
+                + PriceHistorySchema.COLUMN_CHANGED_AT + ">?2 AND "
+                + PriceHistorySchema.COLUMN_CHANGED_AT + "<=?3 ORDER BY "
+                + PriceHistorySchema.COLUMN_CHANGED_AT;
+        return new SqlStatement(sql, bookId, from, to);
+    }
+
+    private static String lastChangeAt() {
+        return "SELECT " + PriceHistorySchema.COLUMN_CHANGED_AT + ", "
+                + PriceHistorySchema.COLUMN_PRICE + " FROM " + PriceHistorySchema.TABLE_NAME
+                + " WHERE " + PriceHistorySchema.COLUMN_BOOK_ID + "=?1 AND "
+                + PriceHistorySchema.COLUMN_CHANGED_AT + "<=?2 ORDER BY "
+                + PriceHistorySchema.COLUMN_CHANGED_AT + " DESC LIMIT 1";
+    }
+}
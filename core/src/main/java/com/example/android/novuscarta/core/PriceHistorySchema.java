@@ -0,0 +1,22 @@
+package com.example.android.novuscarta.core;
+
+/**
+ * Names of the price history table and its columns. Every price a book had is kept with the
+ * time it took effect, so the price at any instant is the last one that took effect before.
+ */
+public final class PriceHistorySchema {
+
+    private PriceHistorySchema() {}
+
+    /** Name of database table for the price changes */
+    public static final String TABLE_NAME = "price_history";
+
+    /** ID of the book whose price changed. Type: INTEGER */
+    public static final String COLUMN_BOOK_ID = "book_id";
+
+    /** Time the price took effect in seconds since the epoch. Type: INTEGER */
+    public static final String COLUMN_CHANGED_AT = "changed_at";
+
+    /** Price in cents from that time on. Type: INTEGER */
+    public static final String COLUMN_PRICE = "price";
+}
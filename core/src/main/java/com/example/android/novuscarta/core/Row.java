@@ -0,0 +1,120 @@
+package com.example.android.novuscarta.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values of some columns of a row, by column name. This is the plain Java counterpart of
+ * Android's ContentValues, and its getters convert the values the same way.
+ */
+public final class Row {
+
+    /** Values in the order they were put */
+    private final Map<String, Object> mValues;
+
+    /**
+     * Constructs an empty {@link Row}.
+     */
+    public Row() {
+        mValues = new LinkedHashMap<>();
+    }
+
+    /**
+     * Constructs a {@link Row} with a copy of the values of another one.
+     */
+    public Row(Row from) {
+        mValues = new LinkedHashMap<>(from.mValues);
+    }
+
+    /**
+     * Set the value of a column. The value may be null, a String, a Number, a Boolean or a
+     * byte array.
+     */
+    public Row put(String column, Object value) {
+        mValues.put(column, value);
+        return this;
+    }
+
+    public Object get(String column) {
+        return mValues.get(column);
+    }
+
+    public boolean containsKey(String column) {
+        return mValues.containsKey(column);
+    }
+
+    public void remove(String column) {
+        mValues.remove(column);
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+
+    /** Returns the columns in the order they were put. */
+    public Set<String> keySet() {
+        return mValues.keySet();
+    }
+
+    /**
+     * Returns the value of a column as a String, or null if it is null or missing.
+     */
+    public String getAsString(String column) {
+        Object value = mValues.get(column);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Returns the value of a column as an Integer, or null if it is null, missing or can't be
+     * converted.
+     */
+    public Integer getAsInteger(String column) {
+        Object value = mValues.get(column);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a column as a Long, or null if it is null, missing or can't be
+     * converted.
+     */
+    public Long getAsLong(String column) {
+        Object value = mValues.get(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Row && mValues.equals(((Row) o).mValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return mValues.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mValues.toString();
+    }
+}
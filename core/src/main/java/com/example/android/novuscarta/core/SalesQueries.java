@@ -0,0 +1,151 @@
+package com.example.android.novuscarta.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the statements that record sales and compute how fast the books sell. The rollups of
+ * a sale are updated by a trigger on its insert, which touches one row per rollup whatever
+ * the length of the history.
+ */
+public final class SalesQueries {
+
+    private SalesQueries() {}
+
+    /** Days of daily rollups the velocity of a book is computed from */
+    public static final int VELOCITY_DAYS = 28;
+
+    /**
+     * Weeks of weekly rollups (including the current one) the velocity of a book that didn't
+     * sell in the last {@link #VELOCITY_DAYS} is computed from, so slow sellers still get one
+     */
+    public static final int SLOW_VELOCITY_WEEKS = 13;
+
+    /**
+     * Returns the statements that create the sales and rollup tables and the rollup trigger.
+     * The rollups start with the day or week, so the rollups of a recent period are one range
+     * of the primary key.
+     */
+    public static List<SqlStatement> createTables() {
+        String day = "NEW." + SalesSchema.COLUMN_SOLD_AT + "/86400";
+        String week = "(" + day + "+3)/7";
+        return Arrays.asList(
+                new SqlStatement("CREATE TABLE " + SalesSchema.TABLE_NAME + " ("
+                        + SalesSchema.COLUMN_ID + " INTEGER PRIMARY KEY, "
+                        + SalesSchema.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                        + SalesSchema.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "
+                        + SalesSchema.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                        + SalesSchema.COLUMN_SOLD_AT + " INTEGER NOT NULL)"),
+                new SqlStatement(createRollup(SalesSchema.DAILY_TABLE_NAME,
+                        SalesSchema.COLUMN_DAY)),
+                new SqlStatement(createRollup(SalesSchema.WEEKLY_TABLE_NAME,
+                        SalesSchema.COLUMN_WEEK)),
+                new SqlStatement("CREATE TRIGGER sales_rollup AFTER INSERT ON "
+                        + SalesSchema.TABLE_NAME + " BEGIN "
+                        + addToRollup(SalesSchema.DAILY_TABLE_NAME, SalesSchema.COLUMN_DAY, day)
+                        + addToRollup(SalesSchema.WEEKLY_TABLE_NAME, SalesSchema.COLUMN_WEEK,
+                                week)
+                        + " END"));
+    }
+
+    private static String createRollup(String table, String period) {
+        return "CREATE TABLE " + table + " ("
+                + period + " INTEGER NOT NULL, "
+                + SalesSchema.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + SalesSchema.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + period + ", " + SalesSchema.COLUMN_BOOK_ID + "))";
+    }
+
+    private static String addToRollup(String table, String period, String value) {
+        String bookId = "NEW." + SalesSchema.COLUMN_BOOK_ID;
+        return "INSERT OR IGNORE INTO " + table + " (" + period + ", "
+                + SalesSchema.COLUMN_BOOK_ID + ") VALUES (" + value + ", " + bookId + "); "
+                + "UPDATE " + table + " SET " + SalesSchema.COLUMN_QUANTITY + "="
+                + SalesSchema.COLUMN_QUANTITY + "+NEW." + SalesSchema.COLUMN_QUANTITY
+                + " WHERE " + period + "=" + value + " AND " + SalesSchema.COLUMN_BOOK_ID + "="
+                + bookId + "; ";
+    }
+
+    /**
+     * Returns the statement that records a sale, which also adds it to its rollups.
+     *
+     * @param bookId     ID of the sold book
+     * @param locationId ID of the location it was sold at
+     * @param quantity   number of copies sold, more than 0
+     * @param soldAt     time of the sale in seconds since the epoch
+     */
+    public static SqlStatement recordSale(long bookId, long locationId, int quantity,
+                                          long soldAt) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("A sale requires a positive quantity");
+        }
+        return new SqlStatement("INSERT INTO " + SalesSchema.TABLE_NAME + " ("
+                + SalesSchema.COLUMN_BOOK_ID + ", " + SalesSchema.COLUMN_LOCATION_ID + ", "
+                + SalesSchema.COLUMN_QUANTITY + ", " + SalesSchema.COLUMN_SOLD_AT
+                + ") VALUES (?, ?, ?, ?)", bookId, locationId, quantity, soldAt);
+    }
+
+    /**
+     * Returns the query for the sales velocity and days of cover of the books, with the
+     * columns {@link BookSchema#COLUMN_ID}, {@link BookSchema#COLUMN_TITLE},
+     * {@link BookSchema#COLUMN_SUPPLIER_NAME}, {@link BookSchema#COLUMN_SUPPLIER_NUMBER},
+     * {@link BookSchema#COLUMN_QUANTITY}, {@link SalesSchema#COLUMN_VELOCITY},
+     * {@link SalesSchema#COLUMN_DAYS_OF_COVER} and {@link SalesSchema#COLUMN_SUGGESTED_QUANTITY}.
+     *
+     * The velocity is the copies sold per day over the last {@link #VELOCITY_DAYS} days, or
+     * over the last {@link #SLOW_VELOCITY_WEEKS} weeks for books that didn't sell in that time.
+     * Only the rollups of these periods are read.
+     *
+     * @param now          current time in seconds since the epoch
+     * @param coverDays    number of days the stock should last; the suggested quantity is
+     *                     the number of copies missing for that
+     * @param reorderOnly  whether to only return the books with a suggested quantity, grouped
+     *                     by supplier and the first to sell out first; otherwise all books are
+     *                     returned by ID
+     */
+    public static SqlStatement velocity(long now, int coverDays, boolean reorderOnly) {
+        if (coverDays <= 0) {
+            throw new IllegalArgumentException("Invalid number of cover days " + coverDays);
+        }
+        long today = SalesSchema.epochDay(now);
+        long firstWeek = SalesSchema.epochWeek(today) - SLOW_VELOCITY_WEEKS + 1;
+
+        // The sold copies and the length of the period they were sold in; integer arithmetic
+        // rounds the suggested quantity up without floating point errors
+        String inner = "SELECT b." + BookSchema.COLUMN_ID + ", b." + BookSchema.COLUMN_TITLE
+                + ", b." + BookSchema.COLUMN_SUPPLIER_NAME + ", b."
+                + BookSchema.COLUMN_SUPPLIER_NUMBER + ", b." + BookSchema.COLUMN_QUANTITY
+                + ", CASE WHEN d.sold>0 THEN d.sold ELSE IFNULL(w.sold, 0) END AS sold"
+                + ", CASE WHEN d.sold>0 THEN ?3 ELSE ?4 END AS days"
+                + " FROM " + BookSchema.TABLE_NAME + " b"
+                + " LEFT JOIN (" + soldSince(SalesSchema.DAILY_TABLE_NAME,
+                        SalesSchema.COLUMN_DAY, "?1") + ") d ON d."
+                + SalesSchema.COLUMN_BOOK_ID + "=b." + BookSchema.COLUMN_ID
+                + " LEFT JOIN (" + soldSince(SalesSchema.WEEKLY_TABLE_NAME,
+                        SalesSchema.COLUMN_WEEK, "?2") + ") w ON w."
+                + SalesSchema.COLUMN_BOOK_ID + "=b." + BookSchema.COLUMN_ID;
+        String sql = "SELECT " + BookSchema.COLUMN_ID + ", " + BookSchema.COLUMN_TITLE + ", "
+                + BookSchema.COLUMN_SUPPLIER_NAME + ", " + BookSchema.COLUMN_SUPPLIER_NUMBER
+                + ", " + BookSchema.COLUMN_QUANTITY
+                + ", sold*1.0/days AS " + SalesSchema.COLUMN_VELOCITY
+                + ", CASE WHEN sold>0 THEN " + BookSchema.COLUMN_QUANTITY
+                + "*1.0*days/sold END AS " + SalesSchema.COLUMN_DAYS_OF_COVER
+                + ", MAX(0, (sold*?5+days-1)/days-" + BookSchema.COLUMN_QUANTITY + ") AS "
+                + SalesSchema.COLUMN_SUGGESTED_QUANTITY
+                + " FROM (" + inner + ")";
+        if (reorderOnly) {
+            sql += " WHERE " + SalesSchema.COLUMN_SUGGESTED_QUANTITY + ">0 ORDER BY "
+                    + BookSchema.COLUMN_SUPPLIER_NAME + ", " + SalesSchema.COLUMN_DAYS_OF_COVER;
+        } else {
+            sql += " ORDER BY " + BookSchema.COLUMN_ID;
+        }
+        return new SqlStatement(sql, today - VELOCITY_DAYS + 1, firstWeek, VELOCITY_DAYS,
+                today - SalesSchema.firstDayOfWeek(firstWeek) + 1, coverDays);
+    }
+
+    private static String soldSince(String table, String period, String first) {
+        return "SELECT " + SalesSchema.COLUMN_BOOK_ID + ", SUM(" + SalesSchema.COLUMN_QUANTITY
+                + ") AS sold FROM " + table + " WHERE " + period + ">=" + first + " GROUP BY "
+                + SalesSchema.COLUMN_BOOK_ID;
+    }
+}
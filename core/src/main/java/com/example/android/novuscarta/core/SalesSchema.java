@@ -0,0 +1,77 @@
+package com.example.android.novuscarta.core;
+
+/**
+ * Names of the sales tables and the columns of the sales velocity of the books. Every sale is
+ * recorded in {@link #TABLE_NAME} and added to the rollups of its day and week, so questions
+ * about recent sales read a few rollup rows per book instead of the whole history.
+ */
+public final class SalesSchema {
+
+    private SalesSchema() {}
+
+    /** Name of database table for the individual sales */
+    public static final String TABLE_NAME = "sales";
+
+    /** Name of database table for the copies sold per book and day */
+    public static final String DAILY_TABLE_NAME = "sales_daily";
+
+    /** Name of database table for the copies sold per book and week */
+    public static final String WEEKLY_TABLE_NAME = "sales_weekly";
+
+    /** Unique ID number for the sale. Type: INTEGER */
+    public static final String COLUMN_ID = "_id";
+
+    /** ID of the sold book, in the sales and rollup tables. Type: INTEGER */
+    public static final String COLUMN_BOOK_ID = "book_id";
+
+    /** ID of the location the book was sold at. Type: INTEGER */
+    public static final String COLUMN_LOCATION_ID = "location_id";
+
+    /** Number of copies sold, in the sales and rollup tables. Type: INTEGER */
+    public static final String COLUMN_QUANTITY = "quantity";
+
+    /** Time of the sale in seconds since the epoch. Type: INTEGER */
+    public static final String COLUMN_SOLD_AT = "sold_at";
+
+    /** Day of a daily rollup, in days since the epoch (UTC). Type: INTEGER */
+    public static final String COLUMN_DAY = "day";
+
+    /** Week of a weekly rollup, see {@link #epochWeek(long)}. Type: INTEGER */
+    public static final String COLUMN_WEEK = "week";
+
+    /** Query results only: copies sold per day recently. Type: REAL */
+    public static final String COLUMN_VELOCITY = "velocity";
+
+    /**
+     * Query results only: days until the book sells out at its velocity, or null for books
+     * that don't sell. Type: REAL
+     */
+    public static final String COLUMN_DAYS_OF_COVER = "days_of_cover";
+
+    /** Query results only: copies to order to last the requested number of days. Type: INTEGER */
+    public static final String COLUMN_SUGGESTED_QUANTITY = "suggested_quantity";
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Returns the day of the given time, in days since the epoch (UTC).
+     */
+    public static long epochDay(long seconds) {
+        return seconds / SECONDS_PER_DAY;
+    }
+
+    /**
+     * Returns the week of the given day, in weeks since the epoch. Weeks start on Monday; the
+     * epoch was a Thursday, in week 0.
+     */
+    public static long epochWeek(long day) {
+        return (day + 3) / 7;
+    }
+
+    /**
+     * Returns the day the given week starts on.
+     */
+    public static long firstDayOfWeek(long week) {
+        return week * 7 - 3;
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.android.novuscarta.core;
+
+import java.util.Arrays;
+
+/**
+ * A SQL statement with the values bound to its parameters, ready to be run by a
+ * {@link BookStore}.
+ */
+public final class SqlStatement {
+
+    /** SQL of the statement, with ? or ?NNN for the parameters */
+    public final String sql;
+
+    /** Values of the parameters, in order: null, String, Number or byte array */
+    public final Object[] args;
+
+    public SqlStatement(String sql, Object... args) {
+        this.sql = sql;
+        this.args = args;
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + Arrays.toString(args);
+    }
+}
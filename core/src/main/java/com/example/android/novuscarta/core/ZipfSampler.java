@@ -0,0 +1,88 @@
+package com.example.android.novuscarta.core;
+
+import java.util.Random;
+
+/**
+ * Draws ranks from 1 to n following Zipf's law: rank k comes up in proportion to 1/k^s. A few
+ * bestsellers get most of the sales and the long tail hardly any, as in a real bookshop.
+ *
+ * Uses rejection-inversion sampling (Hoermann and Derflinger, 1996), which needs constant time
+ * and memory per sample however large n is.
+ */
+public final class ZipfSampler {
+
+    private final int mCount;
+    private final double mExponent;
+    private final double mHIntegralX1;
+    private final double mHIntegralCount;
+    private final double mS;
+
+    /**
+     * @param count    number of ranks, at least 1
+     * @param exponent skew of the distribution, more than 0; around 1 for sales
+     */
+    public ZipfSampler(int count, double exponent) {
+        if (count < 1 || exponent <= 0) {
+            throw new IllegalArgumentException("Invalid Zipf distribution " + count + ", "
+                    + exponent);
+        }
+        mCount = count;
+        mExponent = exponent;
+        mHIntegralX1 = hIntegral(1.5) - 1;
+        mHIntegralCount = hIntegral(count + 0.5);
+        mS = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * Returns a rank from 1 (the most frequent) to the count.
+     */
+    public int sample(Random random) {
+        while (true) {
+            double u = mHIntegralCount + random.nextDouble() * (mHIntegralX1 - mHIntegralCount);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > mCount) {
+                k = mCount;
+            }
+            if (k - x <= mS || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    private double h(double x) {
+        return Math.exp(-mExponent * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1 - mExponent) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = x * (1 - mExponent);
+        if (t < -1) {
+            // Limit the value to the domain of log1p, against rounding errors
+            t = -1;
+        }
+        return Math.exp(helper1(t) * x);
+    }
+
+    /** log(1 + x) / x, accurate near 0 */
+    private static double helper1(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.log1p(x) / x;
+        }
+        return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    /** (exp(x) - 1) / x, accurate near 0 */
+    private static double helper2(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.expm1(x) / x;
+        }
+        return 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.novuscarta.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the statements of {@link BookQueries} on an in-memory SQLite database.
+ */
+public class BookQueriesTest {
+
+    private Connection mConnection;
+    private JdbcBookStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mStore = new JdbcBookStore(mConnection);
+        TestBooks.createTable(mStore);
+        TestBooks.insert(mStore, "Dune", 1000, BookSchema.CATEGORY_FICTION, "Chilton");
+        TestBooks.insert(mStore, "Emma", 500, BookSchema.CATEGORY_FICTION, "Murray");
+        TestBooks.insert(mStore, "Atlas", 2000, BookSchema.CATEGORY_REFERENCE, "Chilton");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.close();
+    }
+
+    @Test
+    public void versionedUpdate_setsValuesAndBumpsVersion() {
+        Row values = new Row()
+                .put(BookSchema.COLUMN_PRICE, 1200)
+                .put(BookSchema.COLUMN_VERSION, 42);
+        int updated = mStore.executeUpdateDelete(BookQueries.versionedUpdate(values,
+                BookSchema.COLUMN_TITLE + "=?", new String[] { "Dune" }));
+
+        assertEquals(1, updated);
+        Row dune = book("Dune");
+        assertEquals(Integer.valueOf(1200), dune.getAsInteger(BookSchema.COLUMN_PRICE));
+        assertEquals(Integer.valueOf(1), dune.getAsInteger(BookSchema.COLUMN_VERSION));
+        assertEquals(Integer.valueOf(0), book("Emma").getAsInteger(BookSchema.COLUMN_VERSION));
+    }
+
+    @Test
+    public void unversionedUpdate_setsValuesAndKeepsVersion() {
+        Row values = new Row()
+                .put(BookSchema.COLUMN_PRICE, 1200)
+                .put(BookSchema.COLUMN_VERSION, 42);
+        int updated = mStore.executeUpdateDelete(BookQueries.unversionedUpdate(values,
+                BookSchema.COLUMN_TITLE + "=?", new String[] { "Dune" }));
+
+        assertEquals(1, updated);
+        Row dune = book("Dune");
+        assertEquals(Integer.valueOf(1200), dune.getAsInteger(BookSchema.COLUMN_PRICE));
+        assertEquals(Integer.valueOf(0), dune.getAsInteger(BookSchema.COLUMN_VERSION));
+    }
+
+    @Test
+    public void adjustPrices_percentageOfCategory() {
+        int adjusted = mStore.executeUpdateDelete(BookQueries.adjustPrices(true, -20,
+                BookSchema.CATEGORY_FICTION, null));
+
+        assertEquals(2, adjusted);
+        assertEquals(Integer.valueOf(800), book("Dune").getAsInteger(BookSchema.COLUMN_PRICE));
+        assertEquals(Integer.valueOf(400), book("Emma").getAsInteger(BookSchema.COLUMN_PRICE));
+        assertEquals(Integer.valueOf(2000), book("Atlas").getAsInteger(BookSchema.COLUMN_PRICE));
+    }
+
+    @Test
+    public void adjustPrices_neverBelowZero() {
+        int adjusted = mStore.executeUpdateDelete(BookQueries.adjustPrices(false, -700, null,
+                "Chilton"));
+
+        assertEquals(2, adjusted);
+        assertEquals(Integer.valueOf(300), book("Dune").getAsInteger(BookSchema.COLUMN_PRICE));
+        assertEquals(Integer.valueOf(1300), book("Atlas").getAsInteger(BookSchema.COLUMN_PRICE));
+
+        // Emma drops to 0; a second discount no longer changes it or its version
+        mStore.executeUpdateDelete(BookQueries.adjustPrices(false, -700, null, "Murray"));
+        assertEquals(0, mStore.executeUpdateDelete(
+                BookQueries.adjustPrices(false, -700, null, "Murray")));
+        Row emma = book("Emma");
+        assertEquals(Integer.valueOf(0), emma.getAsInteger(BookSchema.COLUMN_PRICE));
+        assertEquals(Integer.valueOf(1), emma.getAsInteger(BookSchema.COLUMN_VERSION));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adjustPrices_rejectsUnknownCategory() {
+        BookQueries.adjustPrices(true, 10, 9, null);
+    }
+
+    private Row book(String title) {
+        List<Row> rows = mStore.query(new SqlStatement("SELECT * FROM " + BookSchema.TABLE_NAME
+                + " WHERE " + BookSchema.COLUMN_TITLE + "=?", title));
+        assertEquals(1, rows.size());
+        return rows.get(0);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.android.novuscarta.core;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of the {@link BookValidator} rules.
+ */
+public class BookValidatorTest {
+
+    private static Row newBook() {
+        return new Row()
+                .put(BookSchema.COLUMN_TITLE, "Dune")
+                .put(BookSchema.COLUMN_PRICE, 999)
+                .put(BookSchema.COLUMN_QUANTITY, 3)
+                .put(BookSchema.COLUMN_SUPPLIER_NAME, "Chilton")
+                .put(BookSchema.COLUMN_SUPPLIER_NUMBER, "555-0100");
+    }
+
+    @Test
+    public void newBook_isValid() {
+        BookValidator.checkNewBookValues(newBook());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void newBook_requiresSupplierNumber() {
+        Row book = newBook();
+        book.remove(BookSchema.COLUMN_SUPPLIER_NUMBER);
+        BookValidator.checkNewBookValues(book);
+    }
+
+    @Test
+    public void update_onlyChecksPresentColumns() {
+        BookValidator.checkBookValues(new Row().put(BookSchema.COLUMN_PRICE, 0));
+        BookValidator.checkBookValues(new Row());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void update_rejectsNegativePrice() {
+        BookValidator.checkBookValues(new Row().put(BookSchema.COLUMN_PRICE, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void update_rejectsNegativeQuantityGivenAsText() {
+        BookValidator.checkBookValues(new Row().put(BookSchema.COLUMN_QUANTITY, "-2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void update_rejectsUnknownCategory() {
+        BookValidator.checkBookValues(new Row().put(BookSchema.COLUMN_CATEGORY, 7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void update_rejectsNullTitle() {
+        BookValidator.checkBookValues(new Row().put(BookSchema.COLUMN_TITLE, null));
+    }
+}
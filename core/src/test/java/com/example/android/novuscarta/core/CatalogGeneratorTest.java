@@ -0,0 +1,62 @@
+package com.example.android.novuscarta.core;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of the {@link CatalogGenerator} and the {@link ZipfSampler}.
+ */
+public class CatalogGeneratorTest {
+
+    @Test
+    public void sameSeed_sameCatalog() {
+        CatalogGenerator first = new CatalogGenerator(42, 20);
+        CatalogGenerator second = new CatalogGenerator(42, 20);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(first.next(), second.next());
+        }
+    }
+
+    @Test
+    public void books_areValidWithUniqueIsbns() {
+        CatalogGenerator generator = new CatalogGenerator(7, 50);
+        Set<String> isbns = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            Row book = generator.next();
+            BookValidator.checkNewBookValues(book);
+            String isbn = book.getAsString(BookSchema.COLUMN_ISBN);
+            assertEquals(13, isbn.length());
+            assertTrue(isbns.add(isbn));
+        }
+    }
+
+    @Test
+    public void isbn_hasValidCheckDigit() {
+        // ISBN of "Good Omens", 978-0-06-085398-3
+        assertEquals("9780060853983", CatalogGenerator.isbn(6085398));
+    }
+
+    @Test
+    public void zipf_favoursLowRanks() {
+        ZipfSampler sampler = new ZipfSampler(1000000, 1.0);
+        Random random = new Random(1);
+        int[] counts = new int[11];
+        for (int i = 0; i < 100000; i++) {
+            int rank = sampler.sample(random);
+            assertTrue(rank >= 1 && rank <= 1000000);
+            if (rank <= 10) {
+                counts[rank]++;
+            }
+        }
+        // Rank k comes up about 1/k as often as rank 1
+        assertTrue(counts[1] > 1.5 * counts[2]);
+        assertTrue(counts[2] > 1.5 * counts[4]);
+        assertTrue(counts[1] > 7 * counts[10]);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.novuscarta.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that transactions of the {@link JdbcBookStore} nest like those of Android's
+ * SQLiteDatabase.
+ */
+public class JdbcBookStoreTest {
+
+    private static final SqlStatement COUNT =
+            new SqlStatement("SELECT COUNT(*) AS n FROM " + BookSchema.TABLE_NAME);
+
+    private Connection mConnection;
+    private JdbcBookStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mStore = new JdbcBookStore(mConnection);
+        TestBooks.createTable(mStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.close();
+    }
+
+    @Test
+    public void nestedTransactions_commitTogether() {
+        mStore.beginTransaction();
+        TestBooks.insert(mStore, "Dune", 1000, BookSchema.CATEGORY_FICTION, "Chilton");
+        mStore.beginTransaction();
+        TestBooks.insert(mStore, "Emma", 500, BookSchema.CATEGORY_FICTION, "Murray");
+        mStore.setTransactionSuccessful();
+        mStore.endTransaction();
+        mStore.setTransactionSuccessful();
+        mStore.endTransaction();
+
+        assertEquals(2L, count());
+    }
+
+    @Test
+    public void failedInnerTransaction_rollsBackAll() {
+        mStore.beginTransaction();
+        TestBooks.insert(mStore, "Dune", 1000, BookSchema.CATEGORY_FICTION, "Chilton");
+        mStore.beginTransaction();
+        TestBooks.insert(mStore, "Emma", 500, BookSchema.CATEGORY_FICTION, "Murray");
+        mStore.endTransaction();
+        mStore.setTransactionSuccessful();
+        mStore.endTransaction();
+
+        assertEquals(0L, count());
+    }
+
+    private long count() {
+        return mStore.query(COUNT).get(0).getAsLong("n");
+    }
+}
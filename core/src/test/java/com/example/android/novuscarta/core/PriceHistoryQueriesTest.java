@@ -0,0 +1,148 @@
+package com.example.android.novuscarta.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records price changes with the triggers of {@link PriceHistoryQueries} and reads them back
+ * on an in-memory SQLite database.
+ */
+public class PriceHistoryQueriesTest {
+
+    /** A book with a history written directly, with changes at 100, 200 and 300 */
+    private static final long BOOK = 99;
+
+    private Connection mConnection;
+    private JdbcBookStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mStore = new JdbcBookStore(mConnection);
+        TestBooks.createTable(mStore);
+        for (SqlStatement statement : PriceHistoryQueries.createTables(true)) {
+            mStore.executeUpdateDelete(statement);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.close();
+    }
+
+    @Test
+    public void onlyActualPriceChanges_areRecorded() {
+        TestBooks.insert(mStore, "Dune", 1000, BookSchema.CATEGORY_FICTION, "Chilton");
+        TestBooks.insert(mStore, "Emma", 500, BookSchema.CATEGORY_FICTION, "Murray");
+        assertEquals(2, countChanges());
+
+        // Same price, and another column, leave the history as it is
+        update(BookSchema.COLUMN_PRICE + "=1000");
+        update(BookSchema.COLUMN_TITLE + "='Dune Messiah'");
+        assertEquals(2, countChanges());
+
+        // Within the same second, the last price wins
+        update(BookSchema.COLUMN_PRICE + "=1100");
+        update(BookSchema.COLUMN_PRICE + "=1200");
+        List<Row> dune = mStore.query(new SqlStatement("SELECT * FROM "
+                + PriceHistorySchema.TABLE_NAME + " WHERE " + PriceHistorySchema.COLUMN_BOOK_ID
+                + "=1"));
+        assertEquals(1, dune.size());
+        assertEquals(Integer.valueOf(1200),
+                dune.get(0).getAsInteger(PriceHistorySchema.COLUMN_PRICE));
+    }
+
+    @Test
+    public void recordCurrentPrices_addsBooksWithoutHistory() {
+        TestBooks.insert(mStore, "Dune", 1000, BookSchema.CATEGORY_FICTION, "Chilton");
+        TestBooks.insert(mStore, "Emma", 500, BookSchema.CATEGORY_FICTION, "Murray");
+        mStore.executeUpdateDelete(new SqlStatement("DELETE FROM "
+                + PriceHistorySchema.TABLE_NAME));
+
+        // Only the books in the range, and only once
+        mStore.executeUpdateDelete(PriceHistoryQueries.recordCurrentPrices(0, 1));
+        mStore.executeUpdateDelete(PriceHistoryQueries.recordCurrentPrices(0, 1));
+        assertEquals(1, countChanges());
+
+        // A book that already has a history keeps it as it is
+        mStore.executeUpdateDelete(PriceHistoryQueries.recordCurrentPrices(0, 2));
+        assertEquals(2, countChanges());
+    }
+
+    @Test
+    public void priceAt_returnsLastChangeBefore() {
+        writeHistory();
+        assertEquals(0, mStore.query(PriceHistoryQueries.priceAt(BOOK, 99)).size());
+        assertEquals(1000, priceAt(100));
+        assertEquals(1200, priceAt(250));
+        assertEquals(900, priceAt(1000));
+        assertEquals(0, mStore.query(PriceHistoryQueries.priceAt(BOOK + 1, 1000)).size());
+    }
+
+    @Test
+    public void priceAt_seeksThePrimaryKey() {
+        SqlStatement query = PriceHistoryQueries.priceAt(BOOK, 250);
+        List<Row> plan = mStore.query(new SqlStatement("EXPLAIN QUERY PLAN " + query.sql,
+                query.args));
+        assertEquals(1, plan.size());
+        String detail = plan.get(0).getAsString("detail");
+        assertTrue(detail, detail.contains("SEARCH"));
+        assertTrue(detail, detail.contains("PRIMARY KEY"));
+    }
+
+    @Test
+    public void prices_startWithThePriceInEffect() {
+        writeHistory();
+        List<Row> prices = mStore.query(PriceHistoryQueries.prices(BOOK, 150, 300));
+        assertEquals(3, prices.size());
+        assertEquals(Long.valueOf(100),
+                prices.get(0).getAsLong(PriceHistorySchema.COLUMN_CHANGED_AT));
+        assertEquals(Integer.valueOf(1200),
+                prices.get(1).getAsInteger(PriceHistorySchema.COLUMN_PRICE));
+        assertEquals(Long.valueOf(300),
+                prices.get(2).getAsLong(PriceHistorySchema.COLUMN_CHANGED_AT));
+
+        assertEquals(0, mStore.query(PriceHistoryQueries.prices(BOOK, 0, 99)).size());
+        assertEquals(1, mStore.query(PriceHistoryQueries.prices(BOOK, 300, 400)).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prices_ofBackwardPeriod_areRejected() {
+        PriceHistoryQueries.prices(BOOK, 200, 100);
+    }
+
+    private void writeHistory() {
+        insertChange(100, 1000);
+        insertChange(200, 1200);
+        insertChange(300, 900);
+    }
+
+    private void insertChange(long changedAt, int price) {
+        mStore.executeUpdateDelete(new SqlStatement("INSERT INTO "
+                + PriceHistorySchema.TABLE_NAME + " VALUES (?, ?, ?)", BOOK, changedAt, price));
+    }
+
+    private int priceAt(long at) {
+        List<Row> price = mStore.query(PriceHistoryQueries.priceAt(BOOK, at));
+        assertEquals(1, price.size());
+        return price.get(0).getAsInteger(PriceHistorySchema.COLUMN_PRICE);
+    }
+
+    private void update(String set) {
+        mStore.executeUpdateDelete(new SqlStatement("UPDATE " + BookSchema.TABLE_NAME
+                + " SET " + set + " WHERE " + BookSchema.COLUMN_ID + "=1"));
+    }
+
+    private int countChanges() {
+        return mStore.query(new SqlStatement("SELECT * FROM "
+                + PriceHistorySchema.TABLE_NAME)).size();
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.android.novuscarta.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Records sales and computes velocities with the statements of {@link SalesQueries} on an
+ * in-memory SQLite database.
+ */
+public class SalesQueriesTest {
+
+    /** Noon on a Wednesday, 2018-10-17 */
+    private static final long NOW = 1539777600L;
+
+    private static final long DAY = 24 * 60 * 60;
+
+    private Connection mConnection;
+    private JdbcBookStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mStore = new JdbcBookStore(mConnection);
+        TestBooks.createTable(mStore);
+        for (SqlStatement statement : SalesQueries.createTables()) {
+            mStore.executeUpdateDelete(statement);
+        }
+        // Every book starts with 1 copy in stock
+        TestBooks.insert(mStore, "Dune", 1000, BookSchema.CATEGORY_FICTION, "Chilton");
+        TestBooks.insert(mStore, "Emma", 500, BookSchema.CATEGORY_FICTION, "Murray");
+        TestBooks.insert(mStore, "Atlas", 2000, BookSchema.CATEGORY_REFERENCE, "Chilton");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnection.close();
+    }
+
+    @Test
+    public void recordSale_addsToDailyAndWeeklyRollups() {
+        sell(1, 2, NOW);
+        sell(1, 3, NOW + 60);
+        sell(1, 1, NOW - DAY);
+
+        List<Row> daily = mStore.query(new SqlStatement("SELECT * FROM "
+                + SalesSchema.DAILY_TABLE_NAME + " ORDER BY " + SalesSchema.COLUMN_DAY));
+        assertEquals(2, daily.size());
+        assertEquals(Integer.valueOf(1), daily.get(0).getAsInteger(SalesSchema.COLUMN_QUANTITY));
+        assertEquals(Integer.valueOf(5), daily.get(1).getAsInteger(SalesSchema.COLUMN_QUANTITY));
+        assertEquals(Long.valueOf(SalesSchema.epochDay(NOW)),
+                daily.get(1).getAsLong(SalesSchema.COLUMN_DAY));
+
+        // Tuesday and Wednesday are in the same week
+        List<Row> weekly = mStore.query(new SqlStatement("SELECT * FROM "
+                + SalesSchema.WEEKLY_TABLE_NAME));
+        assertEquals(1, weekly.size());
+        assertEquals(Integer.valueOf(6), weekly.get(0).getAsInteger(SalesSchema.COLUMN_QUANTITY));
+    }
+
+    @Test
+    public void weeks_startOnMonday() {
+        long wednesday = SalesSchema.epochDay(NOW);
+        long week = SalesSchema.epochWeek(wednesday);
+        assertEquals(wednesday - 2, SalesSchema.firstDayOfWeek(week));
+        assertEquals(week, SalesSchema.epochWeek(wednesday - 2));
+        assertEquals(week - 1, SalesSchema.epochWeek(wednesday - 3));
+    }
+
+    @Test
+    public void velocity_ofRecentAndSlowSellers() {
+        // Dune sold 14 copies in the last 28 days, Atlas 1 copy two months ago
+        sell(1, 10, NOW - 20 * DAY);
+        sell(1, 4, NOW);
+        sell(3, 1, NOW - 60 * DAY);
+        sell(3, 50, NOW - 400 * DAY);
+
+        List<Row> books = mStore.query(SalesQueries.velocity(NOW, 28, false));
+        assertEquals(3, books.size());
+
+        Row dune = books.get(0);
+        assertEquals(0.5, velocity(dune), 1e-9);
+        assertEquals(2.0, daysOfCover(dune), 1e-9);
+        assertEquals(Integer.valueOf(13),
+                dune.getAsInteger(SalesSchema.COLUMN_SUGGESTED_QUANTITY));
+
+        Row emma = books.get(1);
+        assertEquals(0.0, velocity(emma), 1e-9);
+        assertNull(emma.get(SalesSchema.COLUMN_DAYS_OF_COVER));
+        assertEquals(Integer.valueOf(0),
+                emma.getAsInteger(SalesSchema.COLUMN_SUGGESTED_QUANTITY));
+
+        // The weekly window starts on the Monday 12 weeks before this one
+        Row atlas = books.get(2);
+        double days = SalesQueries.SLOW_VELOCITY_WEEKS * 7 - 4;
+        assertEquals(1 / days, velocity(atlas), 1e-9);
+        assertEquals(days, daysOfCover(atlas), 1e-9);
+    }
+
+    @Test
+    public void reorder_groupsBySupplier() {
+        sell(3, 28, NOW);
+        sell(2, 56, NOW);
+        sell(1, 14, NOW);
+
+        List<Row> reorder = mStore.query(SalesQueries.velocity(NOW, 7, true));
+        assertEquals(3, reorder.size());
+        // Chilton first, and Atlas sells out before Dune
+        assertEquals("Atlas", reorder.get(0).getAsString(BookSchema.COLUMN_TITLE));
+        assertEquals("Dune", reorder.get(1).getAsString(BookSchema.COLUMN_TITLE));
+        assertEquals("Emma", reorder.get(2).getAsString(BookSchema.COLUMN_TITLE));
+        assertEquals(Integer.valueOf(6),
+                reorder.get(0).getAsInteger(SalesSchema.COLUMN_SUGGESTED_QUANTITY));
+        assertEquals(Integer.valueOf(3),
+                reorder.get(1).getAsInteger(SalesSchema.COLUMN_SUGGESTED_QUANTITY));
+        assertEquals(Integer.valueOf(13),
+                reorder.get(2).getAsInteger(SalesSchema.COLUMN_SUGGESTED_QUANTITY));
+
+        // One copy lasts a day of Atlas or Dune sales, but not of Emma sales
+        reorder = mStore.query(SalesQueries.velocity(NOW, 1, true));
+        assertEquals(1, reorder.size());
+        assertEquals("Emma", reorder.get(0).getAsString(BookSchema.COLUMN_TITLE));
+    }
+
+    private void sell(long bookId, int quantity, long soldAt) {
+        mStore.executeUpdateDelete(SalesQueries.recordSale(bookId, 1, quantity, soldAt));
+    }
+
+    private static double velocity(Row book) {
+        return ((Number) book.get(SalesSchema.COLUMN_VELOCITY)).doubleValue();
+    }
+
+    private static double daysOfCover(Row book) {
+        return ((Number) book.get(SalesSchema.COLUMN_DAYS_OF_COVER)).doubleValue();
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.novuscarta.core;
+
+/**
+ * Creates a books table like the app's and fills it, for the tests and benchmarks.
+ */
+final class TestBooks {
+
+    private TestBooks() {}
+
+    static void createTable(BookStore store) {
+        store.executeUpdateDelete(new SqlStatement("CREATE TABLE " + BookSchema.TABLE_NAME
+                + " (" + BookSchema.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + BookSchema.COLUMN_TITLE + " TEXT NOT NULL, "
+                + BookSchema.COLUMN_PRICE + " INTEGER NOT NULL, "
+                + BookSchema.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                + BookSchema.COLUMN_CATEGORY + " INTEGER NOT NULL DEFAULT 0, "
+                + BookSchema.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL, "
+                + BookSchema.COLUMN_SUPPLIER_NUMBER + " TEXT NOT NULL, "
+                + BookSchema.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0)"));
+    }
+
+    static void insert(BookStore store, String title, int price, int category,
+                       String supplier) {
+        store.executeUpdateDelete(new SqlStatement("INSERT INTO " + BookSchema.TABLE_NAME
+                + " (" + BookSchema.COLUMN_TITLE + ", " + BookSchema.COLUMN_PRICE + ", "
+                + BookSchema.COLUMN_QUANTITY + ", " + BookSchema.COLUMN_CATEGORY + ", "
+                + BookSchema.COLUMN_SUPPLIER_NAME + ", " + BookSchema.COLUMN_SUPPLIER_NUMBER
+                + ") VALUES (?, ?, 1, ?, ?, '555-0100')", title, price, category, supplier));
+    }
+}